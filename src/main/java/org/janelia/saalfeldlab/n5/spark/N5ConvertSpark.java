@@ -2,16 +2,25 @@ package org.janelia.saalfeldlab.n5.spark;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.Function0;
 import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5FSReader;
@@ -22,24 +31,31 @@ import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5ReaderSupplier;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockWriter;
+import org.janelia.saalfeldlab.n5.spark.util.N5CompletionTracker;
+import org.janelia.saalfeldlab.n5.spark.util.N5CompressionTuner;
 import org.janelia.saalfeldlab.n5.spark.util.N5Compression;
+import org.janelia.saalfeldlab.n5.spark.util.N5GridPartitioner;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparseBlockScanner;
+import org.janelia.saalfeldlab.n5.spark.util.N5ValueRangeEstimator;
+import org.janelia.saalfeldlab.n5.spark.util.ZOrderCurve;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import net.imglib2.FinalInterval;
-import net.imglib2.Interval;
-import net.imglib2.RandomAccessible;
-import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Cursor;
 import net.imglib2.converter.Converter;
-import net.imglib2.converter.Converters;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
+import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
-import net.imglib2.view.Views;
+import scala.Tuple2;
 
 public class N5ConvertSpark
 {
@@ -83,6 +99,251 @@ public class N5ConvertSpark
 		}
 	}
 
+	/**
+	 * Converts the values of data blocks in the same way as {@link ClampingConverter}, but operates directly on the primitive arrays of the blocks.
+	 * For 8-bit and 16-bit integer input types, all possible input values are converted once into a lookup table,
+	 * and the conversion is a single table lookup per value. For other input types, the values are clamped and scaled in simple loops over primitive arrays.
+	 * Unsigned 64-bit values are converted with {@link ClampingConverter} unless the lookup table can be used.
+	 */
+	static class BlockConverter< I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > >
+	{
+		private final DataType inputDataType, outputDataType;
+		private final double minInputValue, maxInputValue;
+		private final double minOutputValue, maxOutputValue;
+		private final double inputValueRange, outputValueRange;
+		private final ClampingConverter< I, O > converter;
+
+		private final Object lookupTable;
+		private final int lookupTableOffset;
+
+		private double[] values = new double[ 0 ];
+
+		public BlockConverter(
+				final DataType inputDataType, final DataType outputDataType,
+				final double minInputValue, final double maxInputValue,
+				final double minOutputValue, final double maxOutputValue )
+		{
+			this.inputDataType = inputDataType; this.outputDataType = outputDataType;
+			this.minInputValue = minInputValue; this.maxInputValue = maxInputValue;
+			this.minOutputValue = minOutputValue; this.maxOutputValue = maxOutputValue;
+
+			inputValueRange = maxInputValue - minInputValue;
+			outputValueRange = maxOutputValue - minOutputValue;
+			converter = new ClampingConverter<>( minInputValue, maxInputValue, minOutputValue, maxOutputValue );
+
+			// the lookup table is indexed by the raw bits of the input value, shifted so that the signed types start from their min value
+			final int lookupTableSize;
+			switch ( inputDataType )
+			{
+			case INT8:
+				lookupTableSize = 1 << 8;
+				lookupTableOffset = -Byte.MIN_VALUE;
+				break;
+			case UINT8:
+				lookupTableSize = 1 << 8;
+				lookupTableOffset = 0;
+				break;
+			case INT16:
+				lookupTableSize = 1 << 16;
+				lookupTableOffset = -Short.MIN_VALUE;
+				break;
+			case UINT16:
+				lookupTableSize = 1 << 16;
+				lookupTableOffset = 0;
+				break;
+			default:
+				lookupTableSize = 0;
+				lookupTableOffset = 0;
+				break;
+			}
+
+			if ( lookupTableSize != 0 )
+			{
+				final DataBlock< ? > allInputValues = inputDataType.createDataBlock( new int[] { lookupTableSize }, new long[ 1 ] );
+				final Cursor< I > inputCursor = N5SparkUtils.< I >wrapAsArrayImg( allInputValues, inputDataType ).cursor();
+				for ( int i = 0; i < lookupTableSize; ++i )
+					inputCursor.next().setReal( i - lookupTableOffset );
+
+				final DataBlock< ? > lookupTableBlock = outputDataType.createDataBlock( new int[] { lookupTableSize }, new long[ 1 ] );
+				convertWithCursors( allInputValues, lookupTableBlock );
+				lookupTable = lookupTableBlock.getData();
+			}
+			else
+			{
+				lookupTable = null;
+			}
+		}
+
+		/**
+		 * Converts the values of the input block and stores them in the output block of the same size.
+		 */
+		public void convert( final DataBlock< ? > inputBlock, final DataBlock< ? > outputBlock )
+		{
+			final int numElements = ( int ) Intervals.numElements( inputBlock.getSize() );
+			if ( lookupTable != null )
+				applyLookupTable( inputBlock.getData(), outputBlock.getData(), numElements );
+			else if ( inputDataType == DataType.UINT64 || outputDataType == DataType.UINT64 )
+				convertWithCursors( inputBlock, outputBlock );
+			else
+				clampAndScale( inputBlock.getData(), outputBlock.getData(), numElements );
+		}
+
+		private void convertWithCursors( final DataBlock< ? > inputBlock, final DataBlock< ? > outputBlock )
+		{
+			final Cursor< I > inputCursor = N5SparkUtils.< I >wrapAsArrayImg( inputBlock, inputDataType ).cursor();
+			final Cursor< O > outputCursor = N5SparkUtils.< O >wrapAsArrayImg( outputBlock, outputDataType ).cursor();
+			while ( inputCursor.hasNext() )
+				converter.convert( inputCursor.next(), outputCursor.next() );
+		}
+
+		private void applyLookupTable( final Object input, final Object output, final int numElements )
+		{
+			final int offset = lookupTableOffset;
+			final int mask = ( input instanceof byte[] ) ? 0xff : 0xffff;
+
+			// separate loops for each combination of array types, so that each loop accesses only primitive arrays of known types
+			if ( input instanceof byte[] )
+			{
+				final byte[] in = ( byte[] ) input;
+				if ( lookupTable instanceof byte[] )
+				{
+					final byte[] lut = ( byte[] ) lookupTable, out = ( byte[] ) output;
+					for ( int i = 0; i < numElements; ++i ) out[ i ] = lut[ ( in[ i ] + offset ) & mask ];
+				}
+				else if ( lookupTable instanceof short[] )
+				{
+					final short[] lut = ( short[] ) lookupTable, out = ( short[] ) output;
+					for ( int i = 0; i < numElements; ++i ) out[ i ] = lut[ ( in[ i ] + offset ) & mask ];
+				}
+				else if ( lookupTable instanceof int[] )
+				{
+					final int[] lut = ( int[] ) lookupTable, out = ( int[] ) output;
+					for ( int i = 0; i < numElements; ++i ) out[ i ] = lut[ ( in[ i ] + offset ) & mask ];
+				}
+				else if ( lookupTable instanceof long[] )
+				{
+					final long[] lut = ( long[] ) lookupTable, out = ( long[] ) output;
+					for ( int i = 0; i < numElements; ++i ) out[ i ] = lut[ ( in[ i ] + offset ) & mask ];
+				}
+				else if ( lookupTable instanceof float[] )
+				{
+					final float[] lut = ( float[] ) lookupTable, out = ( float[] ) output;
+					for ( int i = 0; i < numElements; ++i ) out[ i ] = lut[ ( in[ i ] + offset ) & mask ];
+				}
+				else
+				{
+					final double[] lut = ( double[] ) lookupTable, out = ( double[] ) output;
+					for ( int i = 0; i < numElements; ++i ) out[ i ] = lut[ ( in[ i ] + offset ) & mask ];
+				}
+			}
+			else
+			{
+				final short[] in = ( short[] ) input;
+				if ( lookupTable instanceof byte[] )
+				{
+					final byte[] lut = ( byte[] ) lookupTable, out = ( byte[] ) output;
+					for ( int i = 0; i < numElements; ++i ) out[ i ] = lut[ ( in[ i ] + offset ) & mask ];
+				}
+				else if ( lookupTable instanceof short[] )
+				{
+					final short[] lut = ( short[] ) lookupTable, out = ( short[] ) output;
+					for ( int i = 0; i < numElements; ++i ) out[ i ] = lut[ ( in[ i ] + offset ) & mask ];
+				}
+				else if ( lookupTable instanceof int[] )
+				{
+					final int[] lut = ( int[] ) lookupTable, out = ( int[] ) output;
+					for ( int i = 0; i < numElements; ++i ) out[ i ] = lut[ ( in[ i ] + offset ) & mask ];
+				}
+				else if ( lookupTable instanceof long[] )
+				{
+					final long[] lut = ( long[] ) lookupTable, out = ( long[] ) output;
+					for ( int i = 0; i < numElements; ++i ) out[ i ] = lut[ ( in[ i ] + offset ) & mask ];
+				}
+				else if ( lookupTable instanceof float[] )
+				{
+					final float[] lut = ( float[] ) lookupTable, out = ( float[] ) output;
+					for ( int i = 0; i < numElements; ++i ) out[ i ] = lut[ ( in[ i ] + offset ) & mask ];
+				}
+				else
+				{
+					final double[] lut = ( double[] ) lookupTable, out = ( double[] ) output;
+					for ( int i = 0; i < numElements; ++i ) out[ i ] = lut[ ( in[ i ] + offset ) & mask ];
+				}
+			}
+		}
+
+		private void clampAndScale( final Object input, final Object output, final int numElements )
+		{
+			if ( values.length < numElements )
+				values = new double[ numElements ];
+
+			switch ( inputDataType )
+			{
+			case INT32:
+				final int[] intInput = ( int[] ) input;
+				for ( int i = 0; i < numElements; ++i ) values[ i ] = intInput[ i ];
+				break;
+			case UINT32:
+				final int[] uintInput = ( int[] ) input;
+				for ( int i = 0; i < numElements; ++i ) values[ i ] = uintInput[ i ] & 0xffffffffL;
+				break;
+			case INT64:
+				final long[] longInput = ( long[] ) input;
+				for ( int i = 0; i < numElements; ++i ) values[ i ] = longInput[ i ];
+				break;
+			case FLOAT32:
+				final float[] floatInput = ( float[] ) input;
+				for ( int i = 0; i < numElements; ++i ) values[ i ] = floatInput[ i ];
+				break;
+			case FLOAT64:
+				System.arraycopy( input, 0, values, 0, numElements );
+				break;
+			default:
+				throw new IllegalArgumentException( "Unsupported input data type: " + inputDataType );
+			}
+
+			// same arithmetic as in ClampingConverter, so that both produce the same values
+			for ( int i = 0; i < numElements; ++i )
+			{
+				final double value = values[ i ];
+				values[ i ] = value <= minInputValue ? minOutputValue : value >= maxInputValue ? maxOutputValue : ( value - minInputValue ) / inputValueRange * outputValueRange + minOutputValue;
+			}
+
+			// integer types round the values in the same way as RealType.setReal()
+			switch ( outputDataType )
+			{
+			case INT8:
+			case UINT8:
+				final byte[] byteOutput = ( byte[] ) output;
+				for ( int i = 0; i < numElements; ++i ) byteOutput[ i ] = ( byte ) Util.round( values[ i ] );
+				break;
+			case INT16:
+			case UINT16:
+				final short[] shortOutput = ( short[] ) output;
+				for ( int i = 0; i < numElements; ++i ) shortOutput[ i ] = ( short ) Util.round( values[ i ] );
+				break;
+			case INT32:
+			case UINT32:
+				final int[] intOutput = ( int[] ) output;
+				for ( int i = 0; i < numElements; ++i ) intOutput[ i ] = ( int ) Util.round( values[ i ] );
+				break;
+			case INT64:
+				final long[] longOutput = ( long[] ) output;
+				for ( int i = 0; i < numElements; ++i ) longOutput[ i ] = Util.round( values[ i ] );
+				break;
+			case FLOAT32:
+				final float[] floatOutput = ( float[] ) output;
+				for ( int i = 0; i < numElements; ++i ) floatOutput[ i ] = ( float ) values[ i ];
+				break;
+			case FLOAT64:
+				System.arraycopy( values, 0, output, 0, numElements );
+				break;
+			default:
+				throw new IllegalArgumentException( "Unsupported output data type: " + outputDataType );
+			}
+		}
+	}
+
 	public static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convert(
 			final JavaSparkContext sparkContext,
 			final N5ReaderSupplier n5InputSupplier,
@@ -119,6 +380,263 @@ public class N5ConvertSpark
 			final Optional< Pair< Double, Double > > valueRangeOptional,
 			final boolean overwriteExisting ) throws IOException
 	{
+		convert(
+				sparkContext,
+				n5InputSupplier,
+				inputDatasetPath,
+				n5OutputSupplier,
+				outputDatasetPath,
+				blockSizeOptional,
+				compressionOptional,
+				dataTypeOptional,
+				valueRangeOptional,
+				overwriteExisting,
+				false );
+	}
+
+	/**
+	 * Converts the given dataset with optionally changed block size, compression, and data type.
+	 *
+	 * If {@code sparse} is set, the existing blocks of the input dataset are found first by scanning the N5 container,
+	 * and only the output blocks that are affected by them are converted and written.
+	 * Missing input blocks are treated as empty and the corresponding output blocks are not written,
+	 * even if the converted value of zero is not zero in the output value range.
+	 *
+	 * @param sparkContext
+	 * @param n5InputSupplier
+	 * @param inputDatasetPath
+	 * @param n5OutputSupplier
+	 * @param outputDatasetPath
+	 * @param blockSizeOptional
+	 * @param compressionOptional
+	 * @param dataTypeOptional
+	 * @param valueRangeOptional
+	 * @param overwriteExisting
+	 * @param sparse
+	 * @throws IOException
+	 */
+	public static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convert(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputDatasetPath,
+			final Optional< int[] > blockSizeOptional,
+			final Optional< Compression > compressionOptional,
+			final Optional< DataType > dataTypeOptional,
+			final Optional< Pair< Double, Double > > valueRangeOptional,
+			final boolean overwriteExisting,
+			final boolean sparse ) throws IOException
+	{
+		convert(
+				sparkContext,
+				n5InputSupplier,
+				inputDatasetPath,
+				n5OutputSupplier,
+				outputDatasetPath,
+				blockSizeOptional,
+				compressionOptional,
+				dataTypeOptional,
+				valueRangeOptional,
+				overwriteExisting,
+				sparse,
+				false );
+	}
+
+	/**
+	 * Converts the given dataset with optionally changed block size, compression, and data type.
+	 *
+	 * If {@code sparse} is set, the existing blocks of the input dataset are found first by scanning the N5 container,
+	 * and only the output blocks that are affected by them are converted and written.
+	 * Missing input blocks are treated as empty and the corresponding output blocks are not written,
+	 * even if the converted value of zero is not zero in the output value range.
+	 *
+	 * If {@code zOrder} is set, the processing blocks are assigned to partitions along the Z-order curve instead of the raster order,
+	 * and the input blocks shared by neighboring processing blocks are cached and read only once within each partition
+	 * (which happens if the input and output block sizes are not multiples of each other).
+	 *
+	 * @param sparkContext
+	 * @param n5InputSupplier
+	 * @param inputDatasetPath
+	 * @param n5OutputSupplier
+	 * @param outputDatasetPath
+	 * @param blockSizeOptional
+	 * @param compressionOptional
+	 * @param dataTypeOptional
+	 * @param valueRangeOptional
+	 * @param overwriteExisting
+	 * @param sparse
+	 * @param zOrder
+	 * @throws IOException
+	 */
+	public static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convert(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputDatasetPath,
+			final Optional< int[] > blockSizeOptional,
+			final Optional< Compression > compressionOptional,
+			final Optional< DataType > dataTypeOptional,
+			final Optional< Pair< Double, Double > > valueRangeOptional,
+			final boolean overwriteExisting,
+			final boolean sparse,
+			final boolean zOrder ) throws IOException
+	{
+		convert(
+				sparkContext,
+				n5InputSupplier,
+				inputDatasetPath,
+				n5OutputSupplier,
+				outputDatasetPath,
+				blockSizeOptional,
+				compressionOptional,
+				dataTypeOptional,
+				valueRangeOptional,
+				overwriteExisting,
+				sparse,
+				zOrder,
+				false );
+	}
+
+	/**
+	 * Converts the given dataset with optionally changed block size, compression, and data type.
+	 *
+	 * If {@code sparse} is set, the existing blocks of the input dataset are found first by scanning the N5 container,
+	 * and only the output blocks that are affected by them are converted and written.
+	 * Missing input blocks are treated as empty and the corresponding output blocks are not written,
+	 * even if the converted value of zero is not zero in the output value range.
+	 *
+	 * If {@code zOrder} is set, the processing blocks are assigned to partitions along the Z-order curve instead of the raster order,
+	 * and the input blocks shared by neighboring processing blocks are cached and read only once within each partition
+	 * (which happens if the input and output block sizes are not multiples of each other).
+	 *
+	 * If the block size and data type are unchanged (only the compression is changed), the input blocks are not converted:
+	 * each existing block is read and written to the output dataset under the same grid position with the new compression.
+	 *
+	 * If {@code resumable} is set, the completed partitions of processing blocks are recorded with {@link N5CompletionTracker} while the job is running.
+	 * If the job fails, it can be started again with the same parameters: the existing output dataset is then re-opened
+	 * and only the partitions that have not been completed are converted. A partition is skipped only if exactly the same set of blocks
+	 * has been completed as a partition of the previous job, so the partitions that have changed (for example, because of the sampling
+	 * in {@code zOrder} mode with {@code sparse}) are converted again. The record is removed when the job has finished.
+	 *
+	 * If {@code overwriteExisting} is set and the output dataset exists (and there is no unfinished job to resume), the blocks of the existing output dataset
+	 * are overwritten in place, including the empty ones. In sparse mode, the existing output blocks that are not covered by any existing input block
+	 * are removed after the conversion. The input and output datasets cannot be the same, because the output blocks may be written or removed
+	 * before all input blocks overlapping with them have been read.
+	 *
+	 * @param sparkContext
+	 * @param n5InputSupplier
+	 * @param inputDatasetPath
+	 * @param n5OutputSupplier
+	 * @param outputDatasetPath
+	 * @param blockSizeOptional
+	 * @param compressionOptional
+	 * @param dataTypeOptional
+	 * @param valueRangeOptional
+	 * @param overwriteExisting
+	 * @param sparse
+	 * @param zOrder
+	 * @param resumable
+	 * @throws IOException
+	 */
+	public static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convert(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputDatasetPath,
+			final Optional< int[] > blockSizeOptional,
+			final Optional< Compression > compressionOptional,
+			final Optional< DataType > dataTypeOptional,
+			final Optional< Pair< Double, Double > > valueRangeOptional,
+			final boolean overwriteExisting,
+			final boolean sparse,
+			final boolean zOrder,
+			final boolean resumable ) throws IOException
+	{
+		convert(
+				sparkContext,
+				n5InputSupplier,
+				inputDatasetPath,
+				n5OutputSupplier,
+				outputDatasetPath,
+				blockSizeOptional,
+				compressionOptional,
+				dataTypeOptional,
+				valueRangeOptional,
+				overwriteExisting,
+				sparse,
+				zOrder,
+				resumable,
+				false );
+	}
+
+	/**
+	 * Converts the given dataset with optionally changed block size, compression, and data type.
+	 *
+	 * If {@code sparse} is set, the existing blocks of the input dataset are found first by scanning the N5 container,
+	 * and only the output blocks that are affected by them are converted and written.
+	 * Missing input blocks are treated as empty and the corresponding output blocks are not written,
+	 * even if the converted value of zero is not zero in the output value range.
+	 *
+	 * If {@code zOrder} is set, the processing blocks are assigned to partitions along the Z-order curve instead of the raster order,
+	 * and the input blocks shared by neighboring processing blocks are cached and read only once within each partition
+	 * (which happens if the input and output block sizes are not multiples of each other).
+	 *
+	 * If {@code shuffle} is set, each input block is read only once and is cut into fragments that are shuffled to the tasks writing the corresponding output blocks,
+	 * instead of reading every input block overlapping with each output block (which happens if the input and output block sizes are not multiples of each other).
+	 * This mode cannot be combined with {@code zOrder} and {@code resumable}.
+	 *
+	 * If the block size and data type are unchanged (only the compression is changed), the input blocks are not converted:
+	 * each existing block is read and written to the output dataset under the same grid position with the new compression.
+	 *
+	 * If {@code resumable} is set, the completed partitions of processing blocks are recorded with {@link N5CompletionTracker} while the job is running.
+	 * If the job fails, it can be started again with the same parameters: the existing output dataset is then re-opened
+	 * and only the partitions that have not been completed are converted. A partition is skipped only if exactly the same set of blocks
+	 * has been completed as a partition of the previous job, so the partitions that have changed (for example, because of the sampling
+	 * in {@code zOrder} mode with {@code sparse}) are converted again. The record is removed when the job has finished.
+	 *
+	 * If {@code overwriteExisting} is set and the output dataset exists (and there is no unfinished job to resume), the blocks of the existing output dataset
+	 * are overwritten in place, including the empty ones. In sparse mode, the existing output blocks that are not covered by any existing input block
+	 * are removed after the conversion. The input and output datasets cannot be the same, because the output blocks may be written or removed
+	 * before all input blocks overlapping with them have been read.
+	 *
+	 * @param sparkContext
+	 * @param n5InputSupplier
+	 * @param inputDatasetPath
+	 * @param n5OutputSupplier
+	 * @param outputDatasetPath
+	 * @param blockSizeOptional
+	 * @param compressionOptional
+	 * @param dataTypeOptional
+	 * @param valueRangeOptional
+	 * @param overwriteExisting
+	 * @param sparse
+	 * @param zOrder
+	 * @param resumable
+	 * @param shuffle
+	 * @throws IOException
+	 */
+	public static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convert(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputDatasetPath,
+			final Optional< int[] > blockSizeOptional,
+			final Optional< Compression > compressionOptional,
+			final Optional< DataType > dataTypeOptional,
+			final Optional< Pair< Double, Double > > valueRangeOptional,
+			final boolean overwriteExisting,
+			final boolean sparse,
+			final boolean zOrder,
+			final boolean resumable,
+			final boolean shuffle ) throws IOException
+	{
+		if ( shuffle && ( zOrder || resumable ) )
+			throw new IllegalArgumentException( "Shuffle mode cannot be combined with Z-order or resumable mode." );
+
 		final N5Reader n5Input = n5InputSupplier.get();
 		final DatasetAttributes inputAttributes = n5Input.getDatasetAttributes( inputDatasetPath );
 
@@ -127,66 +645,101 @@ public class N5ConvertSpark
 		final DataType inputDataType = inputAttributes.getDataType();
 
 		final N5Writer n5Output = n5OutputSupplier.get();
-		if ( !overwriteExisting && n5Output.datasetExists( outputDatasetPath ) )
-			throw new RuntimeException( "Output dataset already exists: " + outputDatasetPath );
+		final boolean resuming = resumable && n5Output.datasetExists( outputDatasetPath ) && N5CompletionTracker.exists( n5Output, outputDatasetPath );
+		final boolean overwriting = !resuming && n5Output.datasetExists( outputDatasetPath );
+
+		// the output blocks may be written before all input blocks overlapping with them have been read (or may be removed),
+		// so converting a dataset onto itself would read the blocks that have already been overwritten
+		if ( ( overwriting || resuming ) && isSameDataset( n5Input, inputDatasetPath, n5Output, outputDatasetPath ) )
+			throw new IllegalArgumentException( "Input and output datasets are the same, the dataset cannot be converted in place: " + inputDatasetPath );
+
+		if ( overwriting && !overwriteExisting )
+			throw new RuntimeException( "Output dataset already exists: " + outputDatasetPath + ( resumable ? " (there is no unfinished job to resume)" : "" ) );
 
 		final int[] outputBlockSize = blockSizeOptional.isPresent() ? blockSizeOptional.get() : inputBlockSize;
 		final Compression outputCompression = compressionOptional.isPresent() ? compressionOptional.get() : inputCompression;
 		final DataType outputDataType = dataTypeOptional.isPresent() ? dataTypeOptional.get() : inputDataType;
 
 		final long[] dimensions = inputAttributes.getDimensions();
-		n5Output.createDataset( outputDatasetPath, dimensions, outputBlockSize, outputDataType, outputCompression );
+		final boolean parallelizeOverOutputBlocks = Intervals.numElements( outputBlockSize ) >= Intervals.numElements( inputBlockSize );
+		final int[] processingBlockSize = parallelizeOverOutputBlocks ? outputBlockSize : getAdjustedBlockSize( inputBlockSize, outputBlockSize );
 
-		// derive input and output value range
-		final double minInputValue, maxInputValue;
-		if ( valueRangeOptional.isPresent() )
+		// the tracker is created before the output dataset, so an existing output dataset without a tracker is never mistaken for an unfinished job
+		final N5CompletionTracker completionTracker = resumable
+				? N5CompletionTracker.openOrCreate( n5Output, outputDatasetPath, new CellGrid( dimensions, processingBlockSize ).getGridDimensions() )
+				: null;
+		if ( resuming )
 		{
-			minInputValue = valueRangeOptional.get().getA();
-			maxInputValue = valueRangeOptional.get().getB();
+			final DatasetAttributes existingOutputAttributes = n5Output.getDatasetAttributes( outputDatasetPath );
+			if ( !Arrays.equals( existingOutputAttributes.getDimensions(), dimensions ) ||
+					!Arrays.equals( existingOutputAttributes.getBlockSize(), outputBlockSize ) ||
+					existingOutputAttributes.getDataType() != outputDataType )
+				throw new RuntimeException( "Cannot resume: existing output dataset " + outputDatasetPath + " was created with different parameters" );
 		}
 		else
 		{
-			if ( inputDataType == DataType.FLOAT32 || inputDataType == DataType.FLOAT64 )
-			{
-				minInputValue = 0;
-				maxInputValue = 1;
-			}
-			else
-			{
-				final I inputType = N5Utils.type( inputDataType );
-				minInputValue = inputType.getMinValue();
-				maxInputValue = inputType.getMaxValue();
-			}
+			// when overwriting, the existing blocks are overwritten in place
+			n5Output.createDataset( outputDatasetPath, dimensions, outputBlockSize, outputDataType, outputCompression );
 		}
 
-		final double minOutputValue, maxOutputValue;
-		if ( outputDataType == DataType.FLOAT32 || outputDataType == DataType.FLOAT64 )
-		{
-			minOutputValue = 0;
-			maxOutputValue = 1;
-		}
-		else
-		{
-			final O outputType = N5Utils.type( outputDataType );
-			minOutputValue = outputType.getMinValue();
-			maxOutputValue = outputType.getMaxValue();
-		}
+		// derive input and output value range
+		final Pair< Double, Double > inputValueRange = valueRangeOptional.isPresent() ? valueRangeOptional.get() : N5ConvertSpark.< I >getDefaultValueRange( inputDataType );
+		final Pair< Double, Double > outputValueRange = N5ConvertSpark.< O >getDefaultValueRange( outputDataType );
+		final double minInputValue = inputValueRange.getA(), maxInputValue = inputValueRange.getB();
+		final double minOutputValue = outputValueRange.getA(), maxOutputValue = outputValueRange.getB();
 
 		System.out.println( "Input value range: " + Arrays.toString( new double[] { minInputValue, maxInputValue } ) );
 		System.out.println( "Output value range: " + Arrays.toString( new double[] { minOutputValue, maxOutputValue } ) );
 
-		if ( Intervals.numElements( outputBlockSize ) >= Intervals.numElements( inputBlockSize ) )
+		if ( Arrays.equals( outputBlockSize, inputBlockSize ) && outputDataType == inputDataType )
+		{
+			System.out.println( "Block size and data type are unchanged, transcoding the blocks directly..." );
+			transcodeBlocks(
+					sparkContext,
+					n5InputSupplier,
+					inputDatasetPath,
+					inputAttributes,
+					n5OutputSupplier,
+					outputDatasetPath,
+					overwriting,
+					sparse,
+					completionTracker,
+					resuming
+				);
+		}
+		else if ( shuffle )
+		{
+			System.out.println( "Rechunking by shuffling fragments of the input blocks..." );
+			convertByShuffling(
+					sparkContext,
+					n5InputSupplier,
+					inputDatasetPath,
+					inputAttributes,
+					n5OutputSupplier,
+					outputDatasetPath,
+					minInputValue, maxInputValue,
+					minOutputValue, maxOutputValue,
+					overwriting,
+					sparse
+				);
+		}
+		else if ( parallelizeOverOutputBlocks )
 		{
 			System.out.println( "Output block size is the same or bigger than the input block size, parallelizing over output blocks..." );
 			convertParallelizingOverOutputBlocks(
 					sparkContext,
 					n5InputSupplier,
 					inputDatasetPath,
+					inputAttributes,
 					n5OutputSupplier,
 					outputDatasetPath,
 					minInputValue, maxInputValue,
 					minOutputValue, maxOutputValue,
-					overwriteExisting
+					overwriting,
+					sparse,
+					zOrder,
+					completionTracker,
+					resuming
 				);
 		}
 		else
@@ -196,164 +749,692 @@ public class N5ConvertSpark
 					sparkContext,
 					n5InputSupplier,
 					inputDatasetPath,
+					inputAttributes,
 					n5OutputSupplier,
 					outputDatasetPath,
 					minInputValue, maxInputValue,
 					minOutputValue, maxOutputValue,
-					overwriteExisting
+					overwriting,
+					sparse,
+					zOrder,
+					completionTracker,
+					resuming
 				);
 		}
+
+		// in sparse mode, the output blocks that are not covered by the input blocks are never visited, so the blocks of the previous dataset would remain in their place
+		if ( sparse && ( overwriting || resuming ) )
+			removeUncoveredBlocks( sparkContext, n5InputSupplier, inputDatasetPath, n5OutputSupplier, outputDatasetPath );
+
+		if ( completionTracker != null )
+			N5RemoveSpark.remove( sparkContext, n5OutputSupplier, completionTracker.getTrackerDatasetPath() );
 	}
 
-	@SuppressWarnings( "unchecked" )
 	private static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convertParallelizingOverOutputBlocks(
 			final JavaSparkContext sparkContext,
 			final N5ReaderSupplier n5InputSupplier,
 			final String inputDatasetPath,
+			final DatasetAttributes inputAttributes,
 			final N5WriterSupplier n5OutputSupplier,
 			final String outputDatasetPath,
 			final double minInputValue, final double maxInputValue,
 			final double minOutputValue, final double maxOutputValue,
-			final boolean overwriteExisting ) throws IOException
+			final boolean overwriteExisting,
+			final boolean sparse,
+			final boolean zOrder,
+			final N5CompletionTracker completionTracker,
+			final boolean removeEmptyBlocks ) throws IOException
 	{
-		final DatasetAttributes inputAttributes = n5InputSupplier.get().getDatasetAttributes( inputDatasetPath );
 		final long[] dimensions = inputAttributes.getDimensions();
-		final DataType inputDataType = inputAttributes.getDataType();
 
 		final DatasetAttributes outputAttributes = n5OutputSupplier.get().getDatasetAttributes( outputDatasetPath );
 		final int[] outputBlockSize = outputAttributes.getBlockSize();
-		final DataType outputDataType = outputAttributes.getDataType();
 
-		final long numOutputBlocks = Intervals.numElements( new CellGrid( dimensions, outputBlockSize ).getGridDimensions() );
-		final List< Long > outputBlockIndexes = LongStream.range( 0, numOutputBlocks ).boxed().collect( Collectors.toList() );
+		final int blockCacheSize = zOrder ? N5BlockReader.getBlockCacheSize( outputBlockSize, inputAttributes.getBlockSize() ) : 0;
+
+		final JavaRDD< Long > outputBlockIndexes = getBlockIndexes( sparkContext, n5InputSupplier, inputDatasetPath, outputBlockSize, sparse, zOrder );
 
-		sparkContext.parallelize( outputBlockIndexes, Math.min( outputBlockIndexes.size(), MAX_PARTITIONS ) ).foreach( outputBlockIndex ->
+		outputBlockIndexes.foreachPartition( outputBlockIndexesIterator ->
 		{
+			final N5Writer n5OutputLocal = n5OutputSupplier.get();
+			final RegionConverter< I, O > regionConverter = new RegionConverter<>(
+					n5InputSupplier.get(), inputDatasetPath, inputAttributes, blockCacheSize,
+					n5OutputLocal, outputDatasetPath, outputAttributes,
+					outputBlockSize,
+					minInputValue, maxInputValue,
+					minOutputValue, maxOutputValue,
+					overwriteExisting,
+					removeEmptyBlocks
+				);
+
 			final CellGrid outputBlockGrid = new CellGrid( dimensions, outputBlockSize );
 			final long[] outputBlockGridPosition = new long[ outputBlockGrid.numDimensions() ];
-			outputBlockGrid.getCellGridPositionFlat( outputBlockIndex, outputBlockGridPosition );
-
-			final long[] outputBlockMin = new long[ outputBlockGrid.numDimensions() ], outputBlockMax = new long[ outputBlockGrid.numDimensions() ];
+			final long[] outputBlockMin = new long[ outputBlockGrid.numDimensions() ];
 			final int[] outputBlockDimensions = new int[ outputBlockGrid.numDimensions() ];
-			outputBlockGrid.getCellDimensions( outputBlockGridPosition, outputBlockMin, outputBlockDimensions );
-			for ( int d = 0; d < outputBlockGrid.numDimensions(); ++d )
-				outputBlockMax[ d ] = outputBlockMin[ d ] + outputBlockDimensions[ d ] - 1;
-			final Interval outputBlockInterval = new FinalInterval( outputBlockMin, outputBlockMax );
 
-			final O outputType = N5Utils.type( outputDataType );
+			// when resuming, the partition is skipped as a whole if exactly the same blocks have been completed by the previous job
+			final long[] partitionBlockIndexes = completionTracker != null ? N5CompletionTracker.collectBlockIndexes( outputBlockIndexesIterator ) : null;
+			if ( partitionBlockIndexes != null && completionTracker.isCompleted( n5OutputLocal, partitionBlockIndexes ) )
+				return;
+			final Iterator< Long > partitionBlockIndexesIterator = partitionBlockIndexes != null ? Arrays.stream( partitionBlockIndexes ).iterator() : outputBlockIndexesIterator;
 
-			final RandomAccessibleInterval< I > source = N5Utils.open( n5InputSupplier.get(), inputDatasetPath );
-			final RandomAccessible< O > convertedSource;
-			if ( inputDataType == outputDataType )
+			while ( partitionBlockIndexesIterator.hasNext() )
 			{
-				convertedSource = ( RandomAccessible< O > ) source;
+				outputBlockGrid.getCellGridPositionFlat( partitionBlockIndexesIterator.next(), outputBlockGridPosition );
+
+				outputBlockGrid.getCellDimensions( outputBlockGridPosition, outputBlockMin, outputBlockDimensions );
+				regionConverter.convert( outputBlockMin, outputBlockDimensions );
 			}
-			else
+
+			if ( completionTracker != null )
+				completionTracker.markCompleted( n5OutputLocal, partitionBlockIndexes );
+		} );
+	}
+
+	private static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convertParallelizingOverAdjustedInputBlocks(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final DatasetAttributes inputAttributes,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputDatasetPath,
+			final double minInputValue, final double maxInputValue,
+			final double minOutputValue, final double maxOutputValue,
+			final boolean overwriteExisting,
+			final boolean sparse,
+			final boolean zOrder,
+			final N5CompletionTracker completionTracker,
+			final boolean removeEmptyBlocks ) throws IOException
+	{
+		final long[] dimensions = inputAttributes.getDimensions();
+		final int[] inputBlockSize = inputAttributes.getBlockSize();
+
+		final DatasetAttributes outputAttributes = n5OutputSupplier.get().getDatasetAttributes( outputDatasetPath );
+		final int[] outputBlockSize = outputAttributes.getBlockSize();
+
+		final int[] adjustedBlockSize = getAdjustedBlockSize( inputBlockSize, outputBlockSize );
+
+		final int blockCacheSize = zOrder ? N5BlockReader.getBlockCacheSize( adjustedBlockSize, inputBlockSize ) : 0;
+
+		final JavaRDD< Long > adjustedBlockIndexes = getBlockIndexes( sparkContext, n5InputSupplier, inputDatasetPath, adjustedBlockSize, sparse, zOrder );
+
+		adjustedBlockIndexes.foreachPartition( adjustedBlockIndexesIterator ->
+		{
+			final N5Writer n5OutputLocal = n5OutputSupplier.get();
+			final RegionConverter< I, O > regionConverter = new RegionConverter<>(
+					n5InputSupplier.get(), inputDatasetPath, inputAttributes, blockCacheSize,
+					n5OutputLocal, outputDatasetPath, outputAttributes,
+					adjustedBlockSize,
+					minInputValue, maxInputValue,
+					minOutputValue, maxOutputValue,
+					overwriteExisting,
+					removeEmptyBlocks
+				);
+
+			final CellGrid adjustedBlockGrid = new CellGrid( dimensions, adjustedBlockSize );
+			final long[] adjustedBlockGridPosition = new long[ adjustedBlockGrid.numDimensions() ];
+			final long[] adjustedBlockMin = new long[ adjustedBlockGrid.numDimensions() ];
+			final int[] adjustedBlockDimensions = new int[ adjustedBlockGrid.numDimensions() ];
+
+			// when resuming, the partition is skipped as a whole if exactly the same blocks have been completed by the previous job
+			final long[] partitionBlockIndexes = completionTracker != null ? N5CompletionTracker.collectBlockIndexes( adjustedBlockIndexesIterator ) : null;
+			if ( partitionBlockIndexes != null && completionTracker.isCompleted( n5OutputLocal, partitionBlockIndexes ) )
+				return;
+			final Iterator< Long > partitionBlockIndexesIterator = partitionBlockIndexes != null ? Arrays.stream( partitionBlockIndexes ).iterator() : adjustedBlockIndexesIterator;
+
+			while ( partitionBlockIndexesIterator.hasNext() )
 			{
-				convertedSource = Converters.convert( source, new ClampingConverter< I, O >(
-						minInputValue, maxInputValue,
-						minOutputValue, maxOutputValue
-					), outputType.createVariable() );
+				adjustedBlockGrid.getCellGridPositionFlat( partitionBlockIndexesIterator.next(), adjustedBlockGridPosition );
+
+				adjustedBlockGrid.getCellDimensions( adjustedBlockGridPosition, adjustedBlockMin, adjustedBlockDimensions );
+				regionConverter.convert( adjustedBlockMin, adjustedBlockDimensions );
 			}
-			final RandomAccessibleInterval< O > convertedSourceInterval = Views.offsetInterval( convertedSource, outputBlockInterval );
 
-			if ( overwriteExisting )
-				N5Utils.saveBlock(
-					convertedSourceInterval,
-					n5OutputSupplier.get(),
-					outputDatasetPath,
-					outputBlockGridPosition
-				);
-			else
-				N5Utils.saveNonEmptyBlock(
-					convertedSourceInterval,
-					n5OutputSupplier.get(),
-					outputDatasetPath,
-					outputBlockGridPosition,
-					outputType.createVariable()
-				);
+			if ( completionTracker != null )
+				completionTracker.markCompleted( n5OutputLocal, partitionBlockIndexes );
 		} );
 	}
 
-	@SuppressWarnings( "unchecked" )
-	private static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convertParallelizingOverAdjustedInputBlocks(
+	/**
+	 * Converts the dataset by reading each input block once and cutting it into fragments that correspond to the output blocks.
+	 * The fragments are shuffled by the output block index, and each output block is assembled from its fragments and written.
+	 * The values are converted before the input block is cut, so the fragments are already of the output data type.
+	 */
+	private static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convertByShuffling(
 			final JavaSparkContext sparkContext,
 			final N5ReaderSupplier n5InputSupplier,
 			final String inputDatasetPath,
+			final DatasetAttributes inputAttributes,
 			final N5WriterSupplier n5OutputSupplier,
 			final String outputDatasetPath,
 			final double minInputValue, final double maxInputValue,
 			final double minOutputValue, final double maxOutputValue,
-			final boolean overwriteExisting ) throws IOException
+			final boolean overwriteExisting,
+			final boolean sparse ) throws IOException
 	{
-		final DatasetAttributes inputAttributes = n5InputSupplier.get().getDatasetAttributes( inputDatasetPath );
 		final long[] dimensions = inputAttributes.getDimensions();
 		final int[] inputBlockSize = inputAttributes.getBlockSize();
 		final DataType inputDataType = inputAttributes.getDataType();
+		final int dim = dimensions.length;
 
 		final DatasetAttributes outputAttributes = n5OutputSupplier.get().getDatasetAttributes( outputDatasetPath );
 		final int[] outputBlockSize = outputAttributes.getBlockSize();
 		final DataType outputDataType = outputAttributes.getDataType();
+		final long[] outputGridDimensions = new CellGrid( dimensions, outputBlockSize ).getGridDimensions();
+
+		getBlockIndexes( sparkContext, n5InputSupplier, inputDatasetPath, inputBlockSize, sparse, false )
+			// read and convert each input block, and cut it into fragments for the overlapping output blocks
+			.mapPartitionsToPair( inputBlockIndexesIterator ->
+				{
+					final N5BlockReader reader = new N5BlockReader( n5InputSupplier.get(), inputDatasetPath, inputAttributes );
+					final BlockConverter< I, O > converter = new BlockConverter<>(
+							inputDataType, outputDataType,
+							minInputValue, maxInputValue,
+							minOutputValue, maxOutputValue
+						);
+
+					final CellGrid inputBlockGrid = new CellGrid( dimensions, inputBlockSize );
+					final long[] inputBlockGridPosition = new long[ dim ], inputBlockMin = new long[ dim ];
+					final int[] inputBlockDimensions = new int[ dim ];
+					final long[] outputGridMin = new long[ dim ], outputGridMax = new long[ dim ], outputGridPosition = new long[ dim ];
+					final int[] fragmentPositionInInputBlock = new int[ dim ];
+
+					return new LazyFragmentIterator( inputBlockIndexesIterator, inputBlockIndex ->
+						{
+							inputBlockGrid.getCellGridPositionFlat( inputBlockIndex, inputBlockGridPosition );
+							inputBlockGrid.getCellDimensions( inputBlockGridPosition, inputBlockMin, inputBlockDimensions );
+
+							// missing input blocks are converted as zeros, in the same way as when the input blocks are read for each output block
+							final DataBlock< ? > inputBlock = inputDataType.createDataBlock( inputBlockDimensions.clone(), new long[ dim ] );
+							reader.read( inputBlockMin, inputBlock );
+							final DataBlock< ? > convertedBlock = convertValues( inputBlock, inputDataType, outputDataType, converter );
+
+							for ( int d = 0; d < dim; ++d )
+							{
+								outputGridMin[ d ] = inputBlockMin[ d ] / outputBlockSize[ d ];
+								outputGridMax[ d ] = ( inputBlockMin[ d ] + inputBlockDimensions[ d ] - 1 ) / outputBlockSize[ d ];
+							}
+
+							final List< Tuple2< Long, BlockFragment > > fragments = new ArrayList<>();
+							System.arraycopy( outputGridMin, 0, outputGridPosition, 0, dim );
+							while ( true )
+							{
+								final long[] fragmentMin = new long[ dim ];
+								final int[] fragmentDimensions = new int[ dim ];
+								for ( int d = 0; d < dim; ++d )
+								{
+									fragmentMin[ d ] = Math.max( outputGridPosition[ d ] * outputBlockSize[ d ], inputBlockMin[ d ] );
+									final long fragmentMax = Math.min( ( outputGridPosition[ d ] + 1 ) * outputBlockSize[ d ], inputBlockMin[ d ] + inputBlockDimensions[ d ] );
+									fragmentDimensions[ d ] = ( int ) ( fragmentMax - fragmentMin[ d ] );
+									fragmentPositionInInputBlock[ d ] = ( int ) ( fragmentMin[ d ] - inputBlockMin[ d ] );
+								}
+
+								final Object fragmentData = outputDataType.createDataBlock( fragmentDimensions, new long[ dim ] ).getData();
+								N5SparkUtils.copy(
+										convertedBlock.getData(), inputBlockDimensions, fragmentPositionInInputBlock,
+										fragmentData, fragmentDimensions, new int[ dim ],
+										fragmentDimensions
+									);
+
+								// empty fragments are only needed when overwriting, so the empty output blocks replace the existing ones
+								if ( overwriteExisting || !N5SparkUtils.isEmpty( fragmentData ) )
+									fragments.add( new Tuple2<>(
+											IntervalIndexer.positionToIndex( outputGridPosition, outputGridDimensions ),
+											new BlockFragment( fragmentMin, fragmentDimensions, fragmentData ) ) );
+
+								int d = 0;
+								while ( d < dim && ++outputGridPosition[ d ] > outputGridMax[ d ] )
+									outputGridPosition[ d ] = outputGridMin[ d++ ];
+								if ( d == dim )
+									break;
+							}
+							return fragments;
+						} );
+				} )
+			.groupByKey( new N5GridPartitioner( Intervals.numElements( outputGridDimensions ), MAX_PARTITIONS ) )
+			// assemble each output block from its fragments
+			.foreachPartition( outputBlockIndexesAndFragmentsIterator ->
+				{
+					final N5BlockWriter writer = new N5BlockWriter( n5OutputSupplier.get(), outputDatasetPath, outputAttributes );
+
+					final CellGrid outputBlockGrid = new CellGrid( dimensions, outputBlockSize );
+					final long[] outputBlockGridPosition = new long[ dim ];
+					final int[] fragmentPositionInOutputBlock = new int[ dim ];
+
+					while ( outputBlockIndexesAndFragmentsIterator.hasNext() )
+					{
+						final Tuple2< Long, Iterable< BlockFragment > > outputBlockIndexAndFragments = outputBlockIndexesAndFragmentsIterator.next();
+						final long[] outputBlockMin = new long[ dim ];
+						final int[] outputBlockDimensions = new int[ dim ];
+						outputBlockGrid.getCellGridPositionFlat( outputBlockIndexAndFragments._1(), outputBlockGridPosition );
+						outputBlockGrid.getCellDimensions( outputBlockGridPosition, outputBlockMin, outputBlockDimensions );
+
+						final DataBlock< ? > outputBlock = outputDataType.createDataBlock( outputBlockDimensions, new long[ dim ] );
+						for ( final BlockFragment fragment : outputBlockIndexAndFragments._2() )
+						{
+							for ( int d = 0; d < dim; ++d )
+								fragmentPositionInOutputBlock[ d ] = ( int ) ( fragment.min[ d ] - outputBlockMin[ d ] );
+							N5SparkUtils.copy(
+									fragment.data, fragment.size, new int[ dim ],
+									outputBlock.getData(), outputBlockDimensions, fragmentPositionInOutputBlock,
+									fragment.size
+								);
+						}
+
+						writer.write( outputBlockMin, outputBlock, !overwriteExisting );
+					}
+				} );
+	}
+
+	/**
+	 * Returns the value range of the given data type: the full range for integer types, or [0,1] for real types.
+	 */
+	private static < T extends NativeType< T > & RealType< T > > Pair< Double, Double > getDefaultValueRange( final DataType dataType )
+	{
+		if ( dataType == DataType.FLOAT32 || dataType == DataType.FLOAT64 )
+			return new ValuePair<>( 0.0, 1.0 );
+
+		final T type = N5Utils.type( dataType );
+		return new ValuePair<>( type.getMinValue(), type.getMaxValue() );
+	}
+
+	/**
+	 * Selects the compression for the output dataset with {@link N5CompressionTuner}: the sampled blocks of the input dataset are cut using the output block size
+	 * and converted to the output data type in the same way as in {@link #convert}, so the measurements reflect the blocks that will be written.
+	 *
+	 * @return selected compression, or {@code null} if the sampled input blocks are empty
+	 */
+	private static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > Compression selectCompression(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final Optional< int[] > blockSizeOptional,
+			final Optional< DataType > dataTypeOptional,
+			final Optional< Pair< Double, Double > > valueRangeOptional,
+			final double minEncodingThroughput,
+			final double minDecodingThroughput ) throws IOException
+	{
+		final DatasetAttributes inputAttributes = n5InputSupplier.get().getDatasetAttributes( inputDatasetPath );
+		final DataType inputDataType = inputAttributes.getDataType();
+		final DataType outputDataType = dataTypeOptional.isPresent() ? dataTypeOptional.get() : inputDataType;
+
+		final Function0< Function< DataBlock< ? >, DataBlock< ? > > > blockConverterFactory;
+		if ( outputDataType != inputDataType )
+		{
+			final Pair< Double, Double > inputValueRange = valueRangeOptional.isPresent() ? valueRangeOptional.get() : N5ConvertSpark.< I >getDefaultValueRange( inputDataType );
+			final Pair< Double, Double > outputValueRange = N5ConvertSpark.< O >getDefaultValueRange( outputDataType );
+			final double minInputValue = inputValueRange.getA(), maxInputValue = inputValueRange.getB();
+			final double minOutputValue = outputValueRange.getA(), maxOutputValue = outputValueRange.getB();
+			blockConverterFactory = () ->
+				{
+					final BlockConverter< I, O > converter = new BlockConverter<>( inputDataType, outputDataType, minInputValue, maxInputValue, minOutputValue, maxOutputValue );
+					return block -> convertValues( block, inputDataType, outputDataType, converter );
+				};
+		}
+		else
+		{
+			blockConverterFactory = null;
+		}
+
+		return N5CompressionTuner.selectCompression(
+				sparkContext,
+				n5InputSupplier,
+				inputDatasetPath,
+				blockSizeOptional.isPresent() ? blockSizeOptional.get() : inputAttributes.getBlockSize(),
+				blockConverterFactory,
+				minEncodingThroughput,
+				minDecodingThroughput
+			);
+	}
+
+	/**
+	 * Converts the values of the given block to the output data type, or returns the same block if the data type is unchanged.
+	 */
+	private static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > DataBlock< ? > convertValues(
+			final DataBlock< ? > inputBlock,
+			final DataType inputDataType,
+			final DataType outputDataType,
+			final BlockConverter< I, O > converter )
+	{
+		if ( inputDataType == outputDataType )
+			return inputBlock;
+
+		final DataBlock< ? > outputBlock = outputDataType.createDataBlock( inputBlock.getSize(), inputBlock.getGridPosition() );
+		converter.convert( inputBlock, outputBlock );
+		return outputBlock;
+	}
+
+	/**
+	 * Copies the blocks of the input dataset to the output dataset that has the same block size and data type,
+	 * re-encoding them with the compression of the output dataset. The blocks are written under the same grid positions
+	 * without being copied into intermediate buffers. The missing and empty input blocks are skipped,
+	 * unless the existing output dataset is being overwritten: then the empty blocks are written as well to replace the existing ones.
+	 */
+	private static void transcodeBlocks(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final DatasetAttributes inputAttributes,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputDatasetPath,
+			final boolean overwriteExisting,
+			final boolean sparse,
+			final N5CompletionTracker completionTracker,
+			final boolean removeEmptyBlocks ) throws IOException
+	{
+		final long[] dimensions = inputAttributes.getDimensions();
+		final int[] blockSize = inputAttributes.getBlockSize();
+
+		final DatasetAttributes outputAttributes = n5OutputSupplier.get().getDatasetAttributes( outputDatasetPath );
+
+		// each block is read only once, so there is no benefit in processing the blocks in Z-order
+		final JavaRDD< Long > blockIndexes = getBlockIndexes( sparkContext, n5InputSupplier, inputDatasetPath, blockSize, sparse, false );
+
+		blockIndexes.foreachPartition( blockIndexesIterator ->
+		{
+			final N5Reader n5InputLocal = n5InputSupplier.get();
+			final N5Writer n5OutputLocal = n5OutputSupplier.get();
+
+			final CellGrid blockGrid = new CellGrid( dimensions, blockSize );
+			final long[] blockGridPosition = new long[ blockGrid.numDimensions() ];
+			final long[] blockMin = new long[ blockGrid.numDimensions() ];
+			final int[] blockDimensions = new int[ blockGrid.numDimensions() ];
+
+			// when resuming, the partition is skipped as a whole if exactly the same blocks have been completed by the previous job
+			final long[] partitionBlockIndexes = completionTracker != null ? N5CompletionTracker.collectBlockIndexes( blockIndexesIterator ) : null;
+			if ( partitionBlockIndexes != null && completionTracker.isCompleted( n5OutputLocal, partitionBlockIndexes ) )
+				return;
+			final Iterator< Long > partitionBlockIndexesIterator = partitionBlockIndexes != null ? Arrays.stream( partitionBlockIndexes ).iterator() : blockIndexesIterator;
+
+			while ( partitionBlockIndexesIterator.hasNext() )
+			{
+				blockGrid.getCellGridPositionFlat( partitionBlockIndexesIterator.next(), blockGridPosition );
+
+				final DataBlock< ? > block = n5InputLocal.readBlock( inputDatasetPath, inputAttributes, blockGridPosition );
+				if ( block != null && ( overwriteExisting || !N5SparkUtils.isEmpty( block ) ) )
+				{
+					n5OutputLocal.writeBlock( outputDatasetPath, outputAttributes, block );
+				}
+				else if ( overwriteExisting )
+				{
+					blockGrid.getCellDimensions( blockGridPosition, blockMin, blockDimensions );
+					n5OutputLocal.writeBlock( outputDatasetPath, outputAttributes, outputAttributes.getDataType().createDataBlock( blockDimensions, blockGridPosition ) );
+				}
+				else if ( removeEmptyBlocks )
+					N5BlockWriter.removeBlock( n5OutputLocal, outputDatasetPath, blockGridPosition );
+			}
+
+			if ( completionTracker != null )
+				completionTracker.markCompleted( n5OutputLocal, partitionBlockIndexes );
+		} );
+	}
 
-		// adjust the size of the processing block to minimize number of reads of each input block
+	/**
+	 * Adjusts the size of the processing block to minimize number of reads of each input block,
+	 * when the output blocks are smaller than the input blocks.
+	 *
+	 * @param inputBlockSize
+	 * @param outputBlockSize
+	 * @return processing block size, a multiple of the output block size
+	 */
+	private static int[] getAdjustedBlockSize( final int[] inputBlockSize, final int[] outputBlockSize )
+	{
 		final int[] adjustedBlockSize = new int[ inputBlockSize.length ];
 		for ( int d = 0; d < adjustedBlockSize.length; ++d )
 			adjustedBlockSize[ d ] = ( int ) Math.max( Math.round( ( double ) inputBlockSize[ d ] / outputBlockSize[ d ] ), 1) * outputBlockSize[ d ];
+		return adjustedBlockSize;
+	}
 
-		final long numAdjustedBlocks = Intervals.numElements( new CellGrid( dimensions, adjustedBlockSize ).getGridDimensions() );
-		final List< Long > adjustedBlockIndexes = LongStream.range( 0, numAdjustedBlocks ).boxed().collect( Collectors.toList() );
+	/**
+	 * Returns flat indexes of the processing blocks of the given size. If {@code sparse} is set,
+	 * only the processing blocks that intersect with existing input blocks are included.
+	 * If {@code zOrder} is set, the indexes are ordered along the Z-order curve.
+	 *
+	 * @param sparkContext
+	 * @param n5InputSupplier
+	 * @param inputDatasetPath
+	 * @param processingBlockSize
+	 * @param sparse
+	 * @param zOrder
+	 * @return RDD of flat processing block indexes
+	 * @throws IOException
+	 */
+	private static JavaRDD< Long > getBlockIndexes(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final int[] processingBlockSize,
+			final boolean sparse,
+			final boolean zOrder ) throws IOException
+	{
+		final DatasetAttributes inputAttributes = n5InputSupplier.get().getDatasetAttributes( inputDatasetPath );
+		final long[] dimensions = inputAttributes.getDimensions();
+		final long[] gridDimensions = new CellGrid( dimensions, processingBlockSize ).getGridDimensions();
 
-		sparkContext.parallelize( adjustedBlockIndexes, Math.min( adjustedBlockIndexes.size(), MAX_PARTITIONS ) ).foreach( adjustedBlockIndex ->
+		if ( sparse )
 		{
-			final CellGrid adjustedBlockGrid = new CellGrid( dimensions, adjustedBlockSize );
-			final long[] adjustedBlockGridPosition = new long[ adjustedBlockGrid.numDimensions() ];
-			adjustedBlockGrid.getCellGridPositionFlat( adjustedBlockIndex, adjustedBlockGridPosition );
+			final int[] noDownsampling = new int[ dimensions.length ];
+			Arrays.fill( noDownsampling, 1 );
+			final JavaRDD< Long > blockIndexes = N5SparseBlockScanner.getAffectedOutputBlockIndexes(
+					N5SparseBlockScanner.scanExistingBlocks( sparkContext, n5InputSupplier, inputDatasetPath ),
+					inputAttributes.getBlockSize(),
+					noDownsampling,
+					dimensions,
+					processingBlockSize
+				);
+			return zOrder ? ZOrderCurve.sortBlockIndexes( blockIndexes, gridDimensions ) : blockIndexes;
+		}
 
-			final long[] adjustedBlockMin = new long[ adjustedBlockGrid.numDimensions() ], adjustedBlockMax = new long[ adjustedBlockGrid.numDimensions() ];
-			final int[] adjustedBlockDimensions = new int[ adjustedBlockGrid.numDimensions() ];
-			adjustedBlockGrid.getCellDimensions( adjustedBlockGridPosition, adjustedBlockMin, adjustedBlockDimensions );
-			for ( int d = 0; d < adjustedBlockGrid.numDimensions(); ++d )
-				adjustedBlockMax[ d ] = adjustedBlockMin[ d ] + adjustedBlockDimensions[ d ] - 1;
-			final Interval adjustedBlockInterval = new FinalInterval( adjustedBlockMin, adjustedBlockMax );
+		return zOrder
+				? ZOrderCurve.parallelizeBlockIndexes( sparkContext, gridDimensions, MAX_PARTITIONS )
+				: N5SparkUtils.parallelizeIndexRange( sparkContext, Intervals.numElements( gridDimensions ), MAX_PARTITIONS );
+	}
 
-			final O outputType = N5Utils.type( outputDataType );
+	/**
+	 * Removes the existing blocks of the output dataset that are not covered by any existing block of the input dataset.
+	 * Used in sparse mode when the output dataset is overwritten, because such output blocks are never visited.
+	 *
+	 * @param sparkContext
+	 * @param n5InputSupplier
+	 * @param inputDatasetPath
+	 * @param n5OutputSupplier
+	 * @param outputDatasetPath
+	 * @throws IOException
+	 */
+	private static void removeUncoveredBlocks(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputDatasetPath ) throws IOException
+	{
+		final DatasetAttributes inputAttributes = n5InputSupplier.get().getDatasetAttributes( inputDatasetPath );
+		final long[] dimensions = inputAttributes.getDimensions();
 
-			final RandomAccessibleInterval< I > source = N5Utils.open( n5InputSupplier.get(), inputDatasetPath );
-			final RandomAccessible< O > convertedSource;
-			if ( inputDataType == outputDataType )
+		final int[] outputBlockSize = n5OutputSupplier.get().getDatasetAttributes( outputDatasetPath ).getBlockSize();
+		final long[] outputGridDimensions = new CellGrid( dimensions, outputBlockSize ).getGridDimensions();
+
+		final int[] noDownsampling = new int[ dimensions.length ];
+		Arrays.fill( noDownsampling, 1 );
+		final JavaRDD< Long > coveredOutputBlockIndexes = N5SparseBlockScanner.getAffectedOutputBlockIndexes(
+				N5SparseBlockScanner.scanExistingBlocks( sparkContext, n5InputSupplier, inputDatasetPath ),
+				inputAttributes.getBlockSize(),
+				noDownsampling,
+				dimensions,
+				outputBlockSize
+			);
+		final JavaRDD< Long > existingOutputBlockIndexes = N5SparseBlockScanner.scanExistingBlocks( sparkContext, n5OutputSupplier, outputDatasetPath )
+				.map( outputBlockGridPosition -> IntervalIndexer.positionToIndex( outputBlockGridPosition, outputGridDimensions ) );
+
+		existingOutputBlockIndexes.subtract( coveredOutputBlockIndexes ).foreachPartition( uncoveredBlockIndexesIterator ->
+		{
+			final N5Writer n5OutputLocal = n5OutputSupplier.get();
+			final long[] outputBlockGridPosition = new long[ outputGridDimensions.length ];
+			while ( uncoveredBlockIndexesIterator.hasNext() )
 			{
-				convertedSource = ( RandomAccessible< O > ) source;
+				IntervalIndexer.indexToPosition( uncoveredBlockIndexesIterator.next(), outputGridDimensions, outputBlockGridPosition );
+				N5BlockWriter.removeBlock( n5OutputLocal, outputDatasetPath, outputBlockGridPosition );
 			}
-			else
+		} );
+	}
+
+	/**
+	 * Checks if the given input and output datasets are the same dataset in the same container.
+	 * For the containers that are not stored in the filesystem, only the dataset paths are compared (so different containers may be reported as the same).
+	 */
+	private static boolean isSameDataset(
+			final N5Reader n5Input,
+			final String inputDatasetPath,
+			final N5Reader n5Output,
+			final String outputDatasetPath ) throws IOException
+	{
+		final Path inputDatasetFilePath = N5SparseBlockScanner.getBlockFilePath( n5Input, inputDatasetPath, new long[ 0 ] );
+		final Path outputDatasetFilePath = N5SparseBlockScanner.getBlockFilePath( n5Output, outputDatasetPath, new long[ 0 ] );
+		if ( inputDatasetFilePath == null || outputDatasetFilePath == null )
+			return Paths.get( "/", inputDatasetPath ).normalize().equals( Paths.get( "/", outputDatasetPath ).normalize() );
+
+		return Files.exists( outputDatasetFilePath ) && Files.isSameFile( inputDatasetFilePath, outputDatasetFilePath );
+	}
+
+	/**
+	 * Part of an input block that falls into a single output block, with its position in pixel coordinates.
+	 */
+	private static class BlockFragment implements Serializable
+	{
+		private static final long serialVersionUID = -2227372637226519744L;
+
+		final long[] min;
+		final int[] size;
+		final Object data;
+
+		BlockFragment( final long[] min, final int[] size, final Object data )
+		{
+			this.min = min;
+			this.size = size;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Cuts an input block into fragments for the overlapping output blocks.
+	 */
+	@FunctionalInterface
+	private interface FragmentCutter
+	{
+		List< Tuple2< Long, BlockFragment > > cut( long inputBlockIndex ) throws IOException;
+	}
+
+	/**
+	 * Reads and cuts the input blocks on demand while the partition is being consumed,
+	 * so only the fragments of a single input block are held in memory at a time.
+	 */
+	private static class LazyFragmentIterator implements Iterator< Tuple2< Long, BlockFragment > >
+	{
+		private final Iterator< Long > inputBlockIndexesIterator;
+		private final FragmentCutter fragmentCutter;
+		private Iterator< Tuple2< Long, BlockFragment > > fragmentsIterator = Collections.emptyIterator();
+
+		public LazyFragmentIterator( final Iterator< Long > inputBlockIndexesIterator, final FragmentCutter fragmentCutter )
+		{
+			this.inputBlockIndexesIterator = inputBlockIndexesIterator;
+			this.fragmentCutter = fragmentCutter;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			try
+			{
+				while ( !fragmentsIterator.hasNext() && inputBlockIndexesIterator.hasNext() )
+					fragmentsIterator = fragmentCutter.cut( inputBlockIndexesIterator.next() ).iterator();
+			}
+			catch ( final IOException e )
 			{
-				convertedSource = Converters.convert( source, new ClampingConverter< I, O >(
-						minInputValue, maxInputValue,
-						minOutputValue, maxOutputValue
-					), outputType.createVariable() );
+				throw new RuntimeException( e );
 			}
-			final RandomAccessibleInterval< O > convertedSourceInterval = Views.offsetInterval( convertedSource, adjustedBlockInterval );
+			return fragmentsIterator.hasNext();
+		}
 
-			// compute correct output block grid offset
-			final CellGrid outputBlockGrid = new CellGrid( dimensions, outputBlockSize );
-			final long[] outputBlockGridPosition = new long[ outputBlockGrid.numDimensions() ];
-			outputBlockGrid.getCellPosition( adjustedBlockMin, outputBlockGridPosition );
+		@Override
+		public Tuple2< Long, BlockFragment > next()
+		{
+			if ( !hasNext() )
+				throw new NoSuchElementException();
+			return fragmentsIterator.next();
+		}
+	}
 
-			if ( overwriteExisting )
-				N5Utils.saveBlock(
-					convertedSourceInterval,
-					n5OutputSupplier.get(),
-					outputDatasetPath,
-					outputBlockGridPosition
+	/**
+	 * Converts regions of the input dataset that are aligned with the output block grid and writes the resulting output blocks.
+	 * The input blocks are read directly into a primitive buffer, and the output blocks are written directly from the converted buffer.
+	 * Intended to be instantiated once per partition: the N5 readers and writers, the converter, and the buffers for full-size regions are reused.
+	 */
+	private static class RegionConverter< I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > >
+	{
+		private final N5BlockReader reader;
+		private final N5BlockWriter writer;
+		private final DataType inputDataType, outputDataType;
+		private final BlockConverter< I, O > converter;
+		private final boolean overwriteExisting;
+		private final boolean removeEmptyBlocks;
+
+		private final int[] fullRegionDimensions;
+		private final DataBlock< ? > fullInputBlock, fullOutputBlock;
+
+		public RegionConverter(
+				final N5Reader n5Input,
+				final String inputDatasetPath,
+				final DatasetAttributes inputAttributes,
+				final int inputBlockCacheSize,
+				final N5Writer n5Output,
+				final String outputDatasetPath,
+				final DatasetAttributes outputAttributes,
+				final int[] fullRegionDimensions,
+				final double minInputValue, final double maxInputValue,
+				final double minOutputValue, final double maxOutputValue,
+				final boolean overwriteExisting,
+				final boolean removeEmptyBlocks )
+		{
+			this.fullRegionDimensions = fullRegionDimensions;
+			this.overwriteExisting = overwriteExisting;
+			this.removeEmptyBlocks = removeEmptyBlocks;
+
+			reader = new N5BlockReader( n5Input, inputDatasetPath, inputAttributes, inputBlockCacheSize );
+			writer = new N5BlockWriter( n5Output, outputDatasetPath, outputAttributes );
+			inputDataType = inputAttributes.getDataType();
+			outputDataType = outputAttributes.getDataType();
+			converter = new BlockConverter<>(
+					inputDataType, outputDataType,
+					minInputValue, maxInputValue,
+					minOutputValue, maxOutputValue
 				);
+
+			fullInputBlock = inputDataType.createDataBlock( fullRegionDimensions, new long[ fullRegionDimensions.length ] );
+			fullOutputBlock = inputDataType == outputDataType ? fullInputBlock : outputDataType.createDataBlock( fullRegionDimensions, new long[ fullRegionDimensions.length ] );
+		}
+
+		public void convert( final long[] regionMin, final int[] regionDimensions ) throws IOException
+		{
+			final boolean isFullRegion = Arrays.equals( regionDimensions, fullRegionDimensions );
+
+			final DataBlock< ? > inputBlock = isFullRegion ? fullInputBlock : inputDataType.createDataBlock( regionDimensions.clone(), new long[ regionDimensions.length ] );
+			reader.read( regionMin, inputBlock );
+
+			final DataBlock< ? > outputBlock;
+			if ( inputDataType == outputDataType )
+			{
+				outputBlock = inputBlock;
+			}
 			else
-				N5Utils.saveNonEmptyBlock(
-					convertedSourceInterval,
-					n5OutputSupplier.get(),
-					outputDatasetPath,
-					outputBlockGridPosition,
-					outputType.createVariable()
-				);
-		} );
+			{
+				outputBlock = isFullRegion ? fullOutputBlock : outputDataType.createDataBlock( regionDimensions.clone(), new long[ regionDimensions.length ] );
+				converter.convert( inputBlock, outputBlock );
+			}
+
+			// when overwriting, the empty blocks are written as well to replace the existing blocks,
+			// and when resuming, the empty blocks may have been partially written by the failed job
+			writer.write( regionMin, outputBlock, !overwriteExisting, removeEmptyBlocks );
+		}
 	}
 
 	public static void main( final String... args ) throws IOException
@@ -367,17 +1448,55 @@ public class N5ConvertSpark
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 			) )
 		{
+			final N5ReaderSupplier n5InputSupplier = () -> new N5FSReader( parsedArgs.getInputN5Path() );
+
+			Pair< Double, Double > valueRange = parsedArgs.getValueRange();
+			if ( parsedArgs.getAutoRangePercentiles() != null )
+			{
+				valueRange = N5ValueRangeEstimator.estimateValueRange(
+						sparkContext,
+						n5InputSupplier,
+						parsedArgs.getInputDatasetPath(),
+						parsedArgs.getAutoRangePercentiles()[ 0 ],
+						parsedArgs.getAutoRangePercentiles()[ 1 ],
+						N5ValueRangeEstimator.DEFAULT_MAX_SAMPLED_BLOCKS
+					);
+				if ( valueRange != null )
+					System.out.println( "Estimated value range: [" + valueRange.getA() + ", " + valueRange.getB() + "]" );
+				else
+					System.out.println( "Could not estimate value range: input dataset is empty, using the default range" );
+			}
+
+			Compression compression = parsedArgs.getCompression();
+			if ( parsedArgs.autoCompression )
+			{
+				compression = selectCompression(
+						sparkContext,
+						n5InputSupplier,
+						parsedArgs.getInputDatasetPath(),
+						Optional.ofNullable( parsedArgs.getBlockSize() ),
+						Optional.ofNullable( parsedArgs.getDataType() ),
+						Optional.ofNullable( valueRange ),
+						parsedArgs.minEncodingThroughput,
+						parsedArgs.minDecodingThroughput
+					);
+			}
+
 			convert(
 					sparkContext,
-					() -> new N5FSReader( parsedArgs.getInputN5Path() ),
+					n5InputSupplier,
 					parsedArgs.getInputDatasetPath(),
 					() -> new N5FSWriter( parsedArgs.getOutputN5Path() ),
 					parsedArgs.getOutputDatasetPath(),
 					Optional.ofNullable( parsedArgs.getBlockSize() ),
-					Optional.ofNullable( parsedArgs.getCompression() ),
+					Optional.ofNullable( compression ),
 					Optional.ofNullable( parsedArgs.getDataType() ),
-					Optional.ofNullable( parsedArgs.getValueRange() ),
-					parsedArgs.force
+					Optional.ofNullable( valueRange ),
+					parsedArgs.force,
+					parsedArgs.sparse,
+					parsedArgs.zOrder,
+					parsedArgs.resumable,
+					parsedArgs.shuffle
 				);
 		}
 
@@ -412,6 +1531,19 @@ public class N5ConvertSpark
 				usage = "Compression to be used for the converted dataset (by default the same compression is used as for the input dataset).")
 		private N5Compression n5Compression;
 
+		@Option(name = "-ac", aliases = { "--autoCompression" }, required = false,
+				usage = "Select the compression for the converted dataset by measuring the available compression schemes on a sample of blocks: "
+						+ "the one with the best compression ratio is selected among those that satisfy --minEncodingThroughput and --minDecodingThroughput. Cannot be combined with --compression.")
+		private boolean autoCompression;
+
+		@Option(name = "-met", aliases = { "--minEncodingThroughput" }, required = false,
+				usage = "Minimum encoding throughput in MB/s (per thread) for --autoCompression (default is 20).")
+		private double minEncodingThroughput = N5CompressionTuner.DEFAULT_MIN_ENCODING_THROUGHPUT;
+
+		@Option(name = "-mdt", aliases = { "--minDecodingThroughput" }, required = false,
+				usage = "Minimum decoding throughput in MB/s (per thread) for --autoCompression (default is 100).")
+		private double minDecodingThroughput = N5CompressionTuner.DEFAULT_MIN_DECODING_THROUGHPUT;
+
 		@Option(name = "-t", aliases = { "--type" }, required = false,
 				usage = "Type to be used for the converted dataset (by default the same type is used as for the input dataset)."
 						+ "If a different type is used, the values are mapped to the range of the output type, rounding to the nearest integer value if necessary.")
@@ -425,10 +1557,35 @@ public class N5ConvertSpark
 				usage = "Maximum value of the input range to be used for the conversion (default is max type value for integer types, or 1 for real types).")
 		private Double maxValue;
 
+		@Option(name = "-ar", aliases = { "--autoRange" }, required = false,
+				usage = "Estimate the input range to be used for the conversion as percentiles of the values in a sample of the input blocks (or in a coarser scale level if the input is a level of a scale pyramid). Cannot be combined with --minValue and --maxValue.")
+		private boolean autoRange;
+
+		@Option(name = "-arp", aliases = { "--autoRangePercentiles" }, required = false,
+				usage = "Lower and upper percentiles of the values to be used as the input range with --autoRange (default is 0.1,99.9).")
+		private String autoRangePercentilesStr;
+
 		@Option(name = "-f", aliases = { "--force" }, required = false, usage = "Will overwrite existing output dataset if specified.")
 		private Boolean force;
 
+		@Option(name = "-s", aliases = { "--sparse" }, required = false,
+				usage = "Scan the input dataset for existing blocks first and convert only the blocks that contain data (beneficial for largely empty datasets).")
+		private boolean sparse;
+
+		@Option(name = "-z", aliases = { "--zOrder" }, required = false,
+				usage = "Process the blocks in Z-order and reuse the shared input blocks within each partition (beneficial if the input and output block sizes are not multiples of each other).")
+		private boolean zOrder;
+
+		@Option(name = "-r", aliases = { "--resumable" }, required = false,
+				usage = "Record the completed partitions of blocks (one record per partition with its exact set of blocks), so a failed job can be resumed by running it again with the same parameters and input: the existing output dataset is re-opened and a partition is skipped only if exactly the same blocks have been completed as one partition before. With the same partitioning, only the unfinished partitions are converted, otherwise the changed partitions are converted again.")
+		private boolean resumable;
+
+		@Option(name = "-sh", aliases = { "--shuffle" }, required = false,
+				usage = "Read each input block only once and shuffle its parts to the tasks writing the corresponding output blocks (beneficial if the input and output block sizes are not multiples of each other). Cannot be combined with --zOrder and --resumable.")
+		private boolean shuffle;
+
 		private int[] blockSize;
+		private double[] autoRangePercentiles;
 		private boolean parsedSuccessfully = false;
 
 		public Arguments( final String... args )
@@ -442,6 +1599,24 @@ public class N5ConvertSpark
 
 				if ( Objects.isNull( minValue ) != Objects.isNull( maxValue ) )
 					throw new IllegalArgumentException( "minValue and maxValue should be either both specified or omitted." );
+				if ( autoRange )
+				{
+					if ( Objects.nonNull( minValue ) || Objects.nonNull( maxValue ) )
+						throw new IllegalArgumentException( "autoRange cannot be combined with minValue and maxValue." );
+					autoRangePercentiles = autoRangePercentilesStr != null
+							? CmdUtils.parseDoubleArray( autoRangePercentilesStr )
+							: new double[] { N5ValueRangeEstimator.DEFAULT_LOWER_PERCENTILE, N5ValueRangeEstimator.DEFAULT_UPPER_PERCENTILE };
+					if ( autoRangePercentiles.length != 2 )
+						throw new IllegalArgumentException( "autoRangePercentiles should contain two values, got " + autoRangePercentilesStr );
+				}
+				else if ( autoRangePercentilesStr != null )
+				{
+					throw new IllegalArgumentException( "autoRangePercentiles can only be used with autoRange." );
+				}
+				if ( shuffle && ( zOrder || resumable ) )
+					throw new IllegalArgumentException( "shuffle cannot be combined with zOrder or resumable." );
+				if ( autoCompression && n5Compression != null )
+					throw new IllegalArgumentException( "autoCompression cannot be combined with compression." );
 
 				this.force = Optional.ofNullable( this.force ).orElse( false );
 
@@ -462,6 +1637,7 @@ public class N5ConvertSpark
 		public int[] getBlockSize() { return blockSize; }
 		public Compression getCompression() { return n5Compression != null ? n5Compression.get() : null; }
 		public DataType getDataType() { return dataType; }
+		public double[] getAutoRangePercentiles() { return autoRangePercentiles; }
 		public Pair< Double, Double > getValueRange() { return Objects.nonNull( minValue ) && Objects.nonNull( maxValue ) ? new ValuePair<>( minValue, maxValue ) : null; }
 	}
 }
@@ -5,19 +5,25 @@ import java.io.Serializable;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
+import java.util.Set;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.broadcast.Broadcast;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5ReaderSupplier;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockReader;
 import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparseBlockScanner;
 import org.janelia.saalfeldlab.n5.spark.util.TiffUtils;
 import org.janelia.saalfeldlab.n5.spark.util.TiffUtils.TiffCompression;
 import org.kohsuke.args4j.CmdLineException;
@@ -31,7 +37,7 @@ import net.imglib2.Cursor;
 import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.exception.ImgLibException;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.imageplus.ImagePlusImg;
@@ -39,8 +45,8 @@ import net.imglib2.img.imageplus.ImagePlusImgFactory;
 import net.imglib2.iterator.IntervalIterator;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
-import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import scala.Tuple2;
 
@@ -150,6 +156,51 @@ public class N5MaxIntensityProjectionSpark
 			final int[] cellsInSingleMIP,
 			final String outputPath,
 			final TiffCompression compression ) throws IOException
+	{
+		createMaxIntensityProjection(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				cellsInSingleMIP,
+				outputPath,
+				compression,
+				false
+			);
+	}
+
+	/**
+	 * Generates max intensity projection of the given dataset in X/Y/Z directions using the specified MIP step.
+	 * Saves the resulting MIPs as TIFF images in the specified output folder.
+	 *
+	 * If {@code sparse} is set, the existing blocks of the dataset are found first by scanning the N5 container,
+	 * and only these blocks are processed. Missing blocks are treated as empty: the pixels that are not covered by any existing block
+	 * are set to zero, so the result is the same as without {@code sparse} for any data type.
+	 * All MIPs are written, including those that do not include any existing blocks, so the MIPs of a previous run in the output folder are replaced.
+	 *
+	 * @param sparkContext
+	 * 			Spark context instantiated with {@link Kryo} serializer
+	 * @param n5Supplier
+	 * 			{@link N5Reader} supplier
+	 * @param datasetPath
+	 * 			Path to the input dataset
+	 * @param cellsInSingleMIP
+	 * 			MIP step in X/Y/Z directions specified as the number of N5 blocks included in a single MIP
+	 * @param outputPath
+	 * 			Path to the output folder for saving resulting MIPs
+	 * @param compression
+	 * 			TIFF compression to be used for the resulting MIPs
+	 * @param sparse
+	 * 			Process only the existing blocks of the dataset
+	 * @throws IOException
+	 */
+	public static < T extends NativeType< T > & RealType< T > > void createMaxIntensityProjection(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5Supplier,
+			final String datasetPath,
+			final int[] cellsInSingleMIP,
+			final String outputPath,
+			final TiffCompression compression,
+			final boolean sparse ) throws IOException
 	{
 		final N5Reader n5 = n5Supplier.get();
 		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
@@ -160,13 +211,20 @@ public class N5MaxIntensityProjectionSpark
 		if ( dim > 3 )
 			throw new RuntimeException( "MaxIntensityProjection is supported for 1D/2D/3D datasets" );
 
-		final long numCells;
-		final T type;
+		final DataType dataType = attributes.getDataType();
+		final long[] cellGridDimensions = new CellGrid( dimensions, blockSize ).getGridDimensions();
+		final T type = N5Utils.type( dataType );
+
+		final JavaRDD< Long > cellIndexes;
+		if ( sparse )
+		{
+			cellIndexes = N5SparseBlockScanner.scanExistingBlocks( sparkContext, n5Supplier, datasetPath )
+					.map( cellGridPosition -> IntervalIndexer.positionToIndex( cellGridPosition, cellGridDimensions ) );
+		}
+		else
 		{
-			final CachedCellImg< T, ? > cellImg = N5SparkUtils.openWithBoundedCache( n5, datasetPath, 1 );
-			final long[] cellGridDimensions = cellImg.getCellGrid().getGridDimensions();
-			numCells = Intervals.numElements( cellGridDimensions );
-			type = Util.getTypeFromInterval( cellImg ).createVariable();
+			final long numCells = Intervals.numElements( cellGridDimensions );
+			cellIndexes = N5SparkUtils.parallelizeIndexRange( sparkContext, numCells, MAX_PARTITIONS );
 		}
 
 		for ( int d = 0; d < dim; ++d )
@@ -174,28 +232,25 @@ public class N5MaxIntensityProjectionSpark
 
 		final Broadcast< T > typeBroadcast = sparkContext.broadcast( type );
 
-		sparkContext
-			// distribute flat cell indexes
-			.parallelize(
-					LongStream.range( 0, numCells ).boxed().collect( Collectors.toList() ),
-					Math.min( ( int ) numCells, MAX_PARTITIONS )
-				)
+		final Set< MipKey > savedMips = new HashSet<>( cellIndexes
 			// compute MIPs for x/y/z of each cell
 			.flatMapToPair( cellIndex ->
 					{
-						final N5Reader n5Local = n5Supplier.get();
-						final CachedCellImg< T, ? > cellImg = N5SparkUtils.openWithBoundedCache( n5Local, datasetPath, 1 );
-						final RandomAccess< T > cellImgRandomAccess = cellImg.randomAccess();
-
 						final long[] cellMin = new long[ dim ], cellMax = new long[ dim ];
 						final int[] cellDims = new int[ dim ];
 						final long[] cellGridPosition = new long[ dim ];
-						final CellGrid cellGrid = cellImg.getCellGrid();
+						final CellGrid cellGrid = new CellGrid( dimensions, blockSize );
 						cellGrid.getCellGridPositionFlat( cellIndex, cellGridPosition );
 						cellGrid.getCellDimensions( cellGridPosition, cellMin, cellDims );
 						for ( int d = 0; d < dim; ++d )
 							cellMax[ d ] = cellMin[ d ] + cellDims[ d ] - 1;
 
+						// each cell is read only once, directly into a single block
+						final N5Reader n5Local = n5Supplier.get();
+						final DataBlock< ? > cellBlock = dataType.createDataBlock( cellDims, cellGridPosition );
+						new N5BlockReader( n5Local, datasetPath, attributes ).read( cellMin, cellBlock );
+						final RandomAccess< T > cellImgRandomAccess = Views.translate( N5SparkUtils.< T >wrapAsArrayImg( cellBlock, dataType ), cellMin ).randomAccess();
+
 						final List< RandomAccessibleInterval< T > > cellMips = new ArrayList<>();
 						final List< RandomAccess< T > > cellMipsRandomAccess = new ArrayList<>();
 						for ( int d = 0; d < dim; ++d )
@@ -258,7 +313,7 @@ public class N5MaxIntensityProjectionSpark
 			.mapToPair( keyAndMip -> new Tuple2<>( new MipKey( keyAndMip._1().dimension, keyAndMip._1().mipStep ), keyAndMip._2() ) )
 			.groupByKey()
 			// join cells into a single MIP for each dimension and MIP index
-			.foreach( keyAndMips ->
+			.map( keyAndMips ->
 					{
 						final int mipDimension = keyAndMips._1().dimension;
 						final long mipCoordinate = cellsInSingleMIP == null ? 0 : ( long ) keyAndMips._1().mipStep * cellsInSingleMIP[ mipDimension ] * blockSize[ mipDimension ];
@@ -279,10 +334,39 @@ public class N5MaxIntensityProjectionSpark
 						final ImagePlus mipImp = mip.getImagePlus();
 						final String outputMipPath = Paths.get( outputPath, AXES[ mipDimension ], mipCoordinate + ".tif" ).toString();
 						TiffUtils.saveAsTiff( mipImp, outputMipPath, compression );
+						return keyAndMips._1();
 					}
-				);
+				)
+			.collect() );
 
 		typeBroadcast.destroy();
+
+		if ( sparse )
+		{
+			// MIPs that do not include any existing cells have not been generated, save them as empty images
+			// (MIPs from a previous run may be present in the output folder, so they are overwritten as well)
+			for ( int d = 0; d < dim; ++d )
+			{
+				final long numMipSteps = cellsInSingleMIP == null ? 1 : ( cellGridDimensions[ d ] + cellsInSingleMIP[ d ] - 1 ) / cellsInSingleMIP[ d ];
+				for ( long mipStep = 0; mipStep < numMipSteps; ++mipStep )
+				{
+					if ( savedMips.contains( new MipKey( d, ( int ) mipStep ) ) )
+						continue;
+
+					final long mipCoordinate = cellsInSingleMIP == null ? 0 : mipStep * cellsInSingleMIP[ d ] * blockSize[ d ];
+					final String outputMipPath = Paths.get( outputPath, AXES[ d ], mipCoordinate + ".tif" ).toString();
+					final ImagePlusImg< T, ? > mip = new ImagePlusImgFactory<>( type ).create( getMipPosition( dimensions, d ) );
+					try
+					{
+						TiffUtils.saveAsTiff( mip.getImagePlus(), outputMipPath, compression );
+					}
+					catch ( final ImgLibException e )
+					{
+						throw new RuntimeException( e );
+					}
+				}
+			}
+		}
 	}
 
 	private static long[] getMipPosition( final long[] pos, final int mipDim )
@@ -312,7 +396,8 @@ public class N5MaxIntensityProjectionSpark
 					parsedArgs.getInputDatasetPath(),
 					parsedArgs.getMipCellsStep(),
 					parsedArgs.getOutputPath(),
-					parsedArgs.getTiffCompression()
+					parsedArgs.getTiffCompression(),
+					parsedArgs.isSparse()
 				);
 		}
 
@@ -344,6 +429,10 @@ public class N5MaxIntensityProjectionSpark
 				usage = "Number of cells used for a single MIP image (MIP step in X/Y/Z). By default the MIP is computed through the entire volume.")
 		private String mipCellsStep;
 
+		@Option(name = "-s", aliases = { "--sparse" }, required = false,
+				usage = "Scan the input dataset for existing blocks first and process only these blocks (beneficial for largely empty datasets).")
+		private boolean sparse;
+
 		private boolean parsedSuccessfully = false;
 
 		public Arguments( final String... args ) throws IllegalArgumentException
@@ -368,5 +457,6 @@ public class N5MaxIntensityProjectionSpark
 		public String getOutputPath() { return outputPath; }
 		public TiffCompression getTiffCompression() { return tiffCompression; }
 		public int[] getMipCellsStep() { return CmdUtils.parseIntArray( mipCellsStep ); }
+		public boolean isSparse() { return sparse; }
 	}
 }
@@ -65,7 +65,18 @@ public class N5RemoveSpark
 			// iteratively find all leaves
 			while ( !nodesQueue.isEmpty() )
 			{
-				final Map< String, String[] > nodeToChildren = sparkContext.parallelize( nodesQueue, Math.min( nodesQueue.size(), MAX_PARTITIONS ) ).mapToPair( node -> new Tuple2<>( node, n5Supplier.get().list( node ) ) ).collectAsMap();
+				final Map< String, String[] > nodeToChildren = sparkContext.parallelize( nodesQueue, Math.min( nodesQueue.size(), MAX_PARTITIONS ) ).mapPartitionsToPair( nodesIterator ->
+					{
+						final N5Writer n5Local = n5Supplier.get();
+						final List< Tuple2< String, String[] > > nodesWithChildren = new ArrayList<>();
+						while ( nodesIterator.hasNext() )
+						{
+							final String node = nodesIterator.next();
+							nodesWithChildren.add( new Tuple2<>( node, n5Local.list( node ) ) );
+						}
+						return nodesWithChildren.iterator();
+					}
+				).collectAsMap();
 				nodesQueue.clear();
 				for ( final Entry< String, String[] > entry : nodeToChildren.entrySet() )
 				{
@@ -82,7 +93,13 @@ public class N5RemoveSpark
 			}
 
 			// delete inner files
-			sparkContext.parallelize( leaves, Math.min( leaves.size(), MAX_PARTITIONS ) ).foreach( leaf -> n5Supplier.get().remove( leaf ) );
+			sparkContext.parallelize( leaves, Math.min( leaves.size(), MAX_PARTITIONS ) ).foreachPartition( leavesIterator ->
+				{
+					final N5Writer n5Local = n5Supplier.get();
+					while ( leavesIterator.hasNext() )
+						n5Local.remove( leavesIterator.next() );
+				}
+			);
 		}
 
 		// cleanup the directory tree
@@ -3,16 +3,19 @@ package org.janelia.saalfeldlab.n5.spark;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.file.Paths;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5ReaderSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5OffHeapBlockCache;
+import org.janelia.saalfeldlab.n5.spark.util.N5SharedBlockCache;
 import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
 import org.janelia.saalfeldlab.n5.spark.util.SliceDimension;
 import org.janelia.saalfeldlab.n5.spark.util.TiffUtils;
@@ -25,17 +28,10 @@ import com.esotericsoftware.kryo.Kryo;
 
 import ij.ImagePlus;
 import net.imglib2.Cursor;
-import net.imglib2.FinalInterval;
-import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.cache.img.CachedCellImg;
-import net.imglib2.img.cell.Cell;
-import net.imglib2.img.cell.CellGrid;
-import net.imglib2.img.cell.LazyCellImg.LazyCells;
 import net.imglib2.img.imageplus.ImagePlusImg;
 import net.imglib2.img.imageplus.ImagePlusImgFactory;
 import net.imglib2.type.NativeType;
-import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 public class N5ToSliceTiffSpark
@@ -119,54 +115,29 @@ public class N5ToSliceTiffSpark
 				sliceDimensionMap[ i++ ] = d;
 		final long[] sliceDimensions = new long[] { dimensions[ sliceDimensionMap[ 0 ] ], dimensions[ sliceDimensionMap[ 1 ] ] };
 
-		final List< Long > sliceCoords = LongStream.range( 0, dimensions[ sliceDimension.asInteger() ] ).boxed().collect( Collectors.toList() );
-
 		Paths.get( outputPath ).toFile().mkdirs();
 
-		sparkContext.parallelize( sliceCoords, Math.min( sliceCoords.size(), MAX_PARTITIONS ) ).foreach( slice ->
+		final DataType dataType = attributes.getDataType();
+		final int[] sliceBlockSize = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			sliceBlockSize[ d ] = d == sliceDimension.asInteger() ? 1 : ( int ) dimensions[ d ];
+
+		N5SparkUtils.parallelizeIndexRange( sparkContext, dimensions[ sliceDimension.asInteger() ], MAX_PARTITIONS ).foreach( slice ->
 			{
+				// read the slice directly from the blocks intersecting with it (or from the off-heap cache if the reader has been wrapped with it)
 				final N5Reader n5Local = n5Supplier.get();
-				final CachedCellImg< T, ? > cellImg = N5SparkUtils.openWithBoundedCache( n5Local, datasetPath, 1 );
-				final CellGrid cellGrid = cellImg.getCellGrid();
-				final long[] slicePos = new long[ cellImg.numDimensions() ], cellPos = new long[ cellImg.numDimensions() ];
-				slicePos[ sliceDimension.asInteger() ] = slice;
-				cellGrid.getCellPosition( slicePos, cellPos );
-
-				final ImagePlusImg< T, ? > target = new ImagePlusImgFactory<>( Util.getTypeFromInterval( cellImg ) ).create( sliceDimensions );
-
-				final LazyCells< ? extends Cell< ? > > cells = cellImg.getCells();
-				final long[] cellGridMin = new long[ cellImg.numDimensions() ], cellGridMax = new long[ cellImg.numDimensions() ];
-				cells.min( cellGridMin );
-				cells.max( cellGridMax );
-				cellGridMin[ sliceDimension.asInteger() ] = cellGridMax[ sliceDimension.asInteger() ] = cellPos[ sliceDimension.asInteger() ];
-				final Interval cellGridInterval = new FinalInterval( cellGridMin, cellGridMax );
-
-				final RandomAccessibleInterval< ? extends Cell< ? > > sliceCells = Views.interval( cells, cellGridInterval );
-				final Cursor< ? extends Cell< ? > > sliceCellsCursor = Views.iterable( sliceCells ).cursor();
-
-				final long[] cellMin = new long[ cellImg.numDimensions() ], cellMax = new long[ cellImg.numDimensions() ];
-				final int[] cellDimensions = new int[ cellImg.numDimensions() ];
-
-				while ( sliceCellsCursor.hasNext() )
-				{
-					final Cell< ? > cell = sliceCellsCursor.next();
-					cell.min( cellMin );
-					cell.dimensions( cellDimensions );
-					for ( int d = 0; d < cellImg.numDimensions(); ++d )
-						cellMax[ d ] = cellMin[ d ] + cellDimensions[ d ] - 1;
-					cellMin[ sliceDimension.asInteger() ] = cellMax[ sliceDimension.asInteger() ] = slice;
-					final Interval sourceInterval = new FinalInterval( cellMin, cellMax );
-
-					final Interval targetInterval = new FinalInterval(
-							new long[] { cellMin[ sliceDimensionMap[ 0 ] ], cellMin[ sliceDimensionMap[ 1 ] ] },
-							new long[] { cellMax[ sliceDimensionMap[ 0 ] ], cellMax[ sliceDimensionMap[ 1 ] ] }
-						);
-
-					final Cursor< T > sourceCursor = Views.flatIterable( Views.interval( cellImg, sourceInterval ) ).cursor();
-					final Cursor< T > targetCursor = Views.flatIterable( Views.interval( target, targetInterval ) ).cursor();
-					while ( sourceCursor.hasNext() || targetCursor.hasNext() )
-						targetCursor.next().set( sourceCursor.next() );
-				}
+				final long[] sliceMin = new long[ 3 ];
+				sliceMin[ sliceDimension.asInteger() ] = slice;
+				final DataBlock< ? > sliceBlock = dataType.createDataBlock( sliceBlockSize, new long[ 3 ] );
+				new N5BlockReader( n5Local, datasetPath, attributes ).read( sliceMin, sliceBlock );
+
+				final RandomAccessibleInterval< T > source = Views.hyperSlice( N5SparkUtils.< T >wrapAsArrayImg( sliceBlock, dataType ), sliceDimension.asInteger(), 0 );
+				final ImagePlusImg< T, ? > target = new ImagePlusImgFactory<>( N5Utils.< T >type( dataType ) ).create( sliceDimensions );
+
+				final Cursor< T > sourceCursor = Views.flatIterable( source ).cursor();
+				final Cursor< T > targetCursor = Views.flatIterable( target ).cursor();
+				while ( sourceCursor.hasNext() || targetCursor.hasNext() )
+					targetCursor.next().set( sourceCursor.next() );
 
 				final ImagePlus sliceImp = target.getImagePlus();
 				final String outputImgPath = Paths.get( outputPath, filenamePrefix + slice + ".tif" ).toString();
@@ -187,7 +158,14 @@ public class N5ToSliceTiffSpark
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 			) )
 		{
-			final N5ReaderSupplier n5Supplier = () -> new N5FSReader( parsedArgs.n5Path );
+			final N5ReaderSupplier n5FSSupplier = () -> new N5FSReader( parsedArgs.n5Path );
+			final N5ReaderSupplier n5Supplier;
+			if ( parsedArgs.sharedCacheSize <= 0 )
+				n5Supplier = n5FSSupplier;
+			else if ( parsedArgs.offHeapCache )
+				n5Supplier = N5OffHeapBlockCache.wrap( n5FSSupplier, parsedArgs.sharedCacheSize << 20 );
+			else
+				n5Supplier = N5SharedBlockCache.wrap( n5FSSupplier, parsedArgs.sharedCacheSize << 20 );
 			convert(
 					sparkContext,
 					n5Supplier,
@@ -231,6 +209,16 @@ public class N5ToSliceTiffSpark
 				usage = "Optional filename prefix (by default output files are named 1.tif, 2.tif, and so on)")
 		private String filenamePrefix;
 
+		@Option(name = "-sc", aliases = { "--sharedCacheSize" }, required = false,
+				usage = "Size of the block cache shared by all tasks on each executor in MB (not used by default). "
+						+ "Allows to decode each input block only once on each executor instead of once for every slice that intersects with it.")
+		private long sharedCacheSize;
+
+		@Option(name = "-oh", aliases = { "--offHeapCache" }, required = false,
+				usage = "Keep the blocks of the shared block cache (-sc) in direct memory outside of the Java heap. "
+						+ "Requires the executors to be started with -XX:MaxDirectMemorySize larger than the cache size.")
+		private boolean offHeapCache;
+
 		private boolean parsedSuccessfully = false;
 
 		public Arguments( final String... args ) throws IllegalArgumentException
@@ -239,6 +227,10 @@ public class N5ToSliceTiffSpark
 			try
 			{
 				parser.parseArgument( args );
+
+				if ( offHeapCache && sharedCacheSize <= 0 )
+					throw new IllegalArgumentException( "Off-heap cache requires the shared cache size to be specified" );
+
 				parsedSuccessfully = true;
 			}
 			catch ( final CmdLineException e )
@@ -8,18 +8,19 @@ import java.text.Collator;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
 import org.janelia.saalfeldlab.n5.spark.util.N5Compression;
+import org.janelia.saalfeldlab.n5.spark.util.N5CompressionTuner;
 import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
 import org.janelia.saalfeldlab.n5.spark.util.TiffUtils;
 import org.kohsuke.args4j.CmdLineException;
@@ -62,7 +63,6 @@ public class SliceTiffToN5Spark
 	 * 			Output N5 compression
 	 * @throws IOException
 	 */
-	@SuppressWarnings( "unchecked" )
 	public static < T extends NativeType< T > > void convert(
 			final JavaSparkContext sparkContext,
 			final String inputDirPath,
@@ -70,6 +70,53 @@ public class SliceTiffToN5Spark
 			final String outputDataset,
 			final int[] blockSize,
 			final Compression compression ) throws IOException
+	{
+		convert( sparkContext, inputDirPath, outputN5Supplier, outputDataset, blockSize, compression, 0, 0 );
+	}
+
+	/**
+	 * Converts slice TIFF series into an N5 dataset, selecting the compression with {@link N5CompressionTuner}.
+	 * The temporary dataset is stored with the default GZIP compression, and the compression schemes are measured on a sample of its regions
+	 * of the output block size before the output dataset is created.
+	 *
+	 * @param sparkContext
+	 * 			Spark context instantiated with {@link Kryo} serializer
+	 * @param inputDirPath
+	 * 			Path to the input directory containing TIFF slices
+	 * @param outputN5Supplier
+	 * 			{@link N5Writer} supplier
+	 * @param outputDataset
+	 * 			Output N5 dataset
+	 * @param blockSize
+	 * 			Output N5 block size
+	 * @param minEncodingThroughput
+	 * 			Minimum encoding throughput of the selected compression in MB/s
+	 * @param minDecodingThroughput
+	 * 			Minimum decoding throughput of the selected compression in MB/s
+	 * @throws IOException
+	 */
+	public static < T extends NativeType< T > > void convertWithAutoCompression(
+			final JavaSparkContext sparkContext,
+			final String inputDirPath,
+			final N5WriterSupplier outputN5Supplier,
+			final String outputDataset,
+			final int[] blockSize,
+			final double minEncodingThroughput,
+			final double minDecodingThroughput ) throws IOException
+	{
+		convert( sparkContext, inputDirPath, outputN5Supplier, outputDataset, blockSize, null, minEncodingThroughput, minDecodingThroughput );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static < T extends NativeType< T > > void convert(
+			final JavaSparkContext sparkContext,
+			final String inputDirPath,
+			final N5WriterSupplier outputN5Supplier,
+			final String outputDataset,
+			final int[] blockSize,
+			final Compression requestedCompression,
+			final double minEncodingThroughput,
+			final double minDecodingThroughput ) throws IOException
 	{
 		if ( blockSize.length != 3 )
 			throw new IllegalArgumentException( "Expected 3D block size." );
@@ -111,36 +158,65 @@ public class SliceTiffToN5Spark
 			tmpBlockSize[ d ] = blockSize[ d ] * Math.max( ( int ) Math.round( Math.sqrt( blockSize[ 2 ] ) ), 1 );
 
 		// convert to temporary N5 dataset with block size = 1 in the slice dimension and increased block size in other dimensions
-		n5.createDataset( tmpDataset, dimensions, tmpBlockSize, dataType, compression );
-		final List< Integer > sliceIndices = IntStream.range( 0, tiffSliceFilepaths.size() ).boxed().collect( Collectors.toList() );
-		sparkContext.parallelize( sliceIndices, Math.min( sliceIndices.size(), MAX_PARTITIONS ) ).foreach( sliceIndex ->
+		// when the compression is selected automatically, the temporary dataset is compressed with the default compression,
+		// as storing a full copy of the volume uncompressed may take several times more space than the output dataset
+		n5.createDataset( tmpDataset, dimensions, tmpBlockSize, dataType, requestedCompression != null ? requestedCompression : new GzipCompression() );
+		N5SparkUtils.parallelizeIndexRange( sparkContext, tiffSliceFilepaths.size(), MAX_PARTITIONS ).foreachPartition( sliceIndicesIterator ->
 			{
-				final ImagePlus imp = TiffUtils.openTiff( tiffSliceFilepaths.get( sliceIndex ) );
-				final RandomAccessibleInterval< T > img = ( RandomAccessibleInterval< T > ) ImagePlusImgs.from( imp );
-				N5Utils.saveNonEmptyBlock(
-						Views.addDimension( img, 0, 0 ),
-						outputN5Supplier.get(),
-						tmpDataset,
-						new long[] { 0, 0, sliceIndex },
-						Util.getTypeFromInterval( img ).createVariable()
-					);
+				final N5Writer n5Local = outputN5Supplier.get();
+				while ( sliceIndicesIterator.hasNext() )
+				{
+					final int sliceIndex = sliceIndicesIterator.next().intValue();
+					final ImagePlus imp = TiffUtils.openTiff( tiffSliceFilepaths.get( sliceIndex ) );
+					final RandomAccessibleInterval< T > img = ( RandomAccessibleInterval< T > ) ImagePlusImgs.from( imp );
+					N5Utils.saveNonEmptyBlock(
+							Views.addDimension( img, 0, 0 ),
+							n5Local,
+							tmpDataset,
+							new long[] { 0, 0, sliceIndex },
+							Util.getTypeFromInterval( img ).createVariable()
+						);
+				}
 			}
 		);
 
+		final Compression compression;
+		if ( requestedCompression != null )
+		{
+			compression = requestedCompression;
+		}
+		else
+		{
+			final Compression selectedCompression = N5CompressionTuner.selectCompression(
+					sparkContext,
+					outputN5Supplier,
+					tmpDataset,
+					blockSize,
+					null,
+					minEncodingThroughput,
+					minDecodingThroughput
+				);
+			compression = selectedCompression != null ? selectedCompression : new GzipCompression();
+		}
+
 		// resave the temporary dataset using the requested block size
 		final int[] processingBlockSize = { tmpBlockSize[ 0 ], tmpBlockSize[ 1 ], blockSize[ 2 ] }; // minimize number of reads of each temporary block
 		n5.createDataset( outputDataset, dimensions, blockSize, dataType, compression );
 		final List< Tuple2< long[], long[] > > minMaxTuples = N5SparkUtils.toMinMaxTuples( Grids.collectAllContainedIntervals( dimensions, processingBlockSize ) );
-		sparkContext.parallelize( minMaxTuples, Math.min( minMaxTuples.size(), MAX_PARTITIONS ) ).foreach( minMaxTuple ->
+		sparkContext.parallelize( minMaxTuples, Math.min( minMaxTuples.size(), MAX_PARTITIONS ) ).foreachPartition( minMaxTuplesIterator ->
 			{
-				final Interval interval = N5SparkUtils.toInterval( minMaxTuple );
 				final N5Writer n5Local = outputN5Supplier.get();
 				final RandomAccessibleInterval< T > tmpImg = N5Utils.open( n5Local, tmpDataset );
-				final RandomAccessibleInterval< T > tmpImgCrop = Views.offsetInterval( tmpImg, interval );
+				final T defaultValue = Util.getTypeFromInterval( tmpImg ).createVariable();
 				final CellGrid cellGrid = new CellGrid( dimensions, blockSize );
 				final long[] gridOffset = new long[ 3 ];
-				cellGrid.getCellPosition( Intervals.minAsLongArray( interval ), gridOffset );
-				N5Utils.saveNonEmptyBlock( tmpImgCrop, n5Local, outputDataset, gridOffset, Util.getTypeFromInterval( tmpImgCrop ) );
+				while ( minMaxTuplesIterator.hasNext() )
+				{
+					final Interval interval = N5SparkUtils.toInterval( minMaxTuplesIterator.next() );
+					final RandomAccessibleInterval< T > tmpImgCrop = Views.offsetInterval( tmpImg, interval );
+					cellGrid.getCellPosition( Intervals.minAsLongArray( interval ), gridOffset );
+					N5Utils.saveNonEmptyBlock( tmpImgCrop, n5Local, outputDataset, gridOffset, defaultValue );
+				}
 			}
 		);
 
@@ -161,14 +237,29 @@ public class SliceTiffToN5Spark
 			) )
 		{
 			final N5WriterSupplier n5Supplier = () -> new N5FSWriter( parsedArgs.getOutputN5Path() );
-			convert(
-					sparkContext,
-					parsedArgs.getInputDirPath(),
-					n5Supplier,
-					parsedArgs.getOutputDatasetPath(),
-					parsedArgs.getBlockSize(),
-					parsedArgs.getCompression()
-				);
+			if ( parsedArgs.autoCompression )
+			{
+				convertWithAutoCompression(
+						sparkContext,
+						parsedArgs.getInputDirPath(),
+						n5Supplier,
+						parsedArgs.getOutputDatasetPath(),
+						parsedArgs.getBlockSize(),
+						parsedArgs.minEncodingThroughput,
+						parsedArgs.minDecodingThroughput
+					);
+			}
+			else
+			{
+				convert(
+						sparkContext,
+						parsedArgs.getInputDirPath(),
+						n5Supplier,
+						parsedArgs.getOutputDatasetPath(),
+						parsedArgs.getBlockSize(),
+						parsedArgs.getCompression()
+					);
+			}
 		}
 
 		System.out.println( System.lineSeparator() + "Done" );
@@ -198,6 +289,19 @@ public class SliceTiffToN5Spark
 				usage = "Compression for the output N5 dataset")
 		private N5Compression n5Compression = N5Compression.GZIP;
 
+		@Option(name = "-ac", aliases = { "--autoCompression" }, required = false,
+				usage = "Select the compression for the output N5 dataset by measuring the available compression schemes on a sample of blocks "
+						+ "(the one with the best compression ratio is selected among those that satisfy --minEncodingThroughput and --minDecodingThroughput)")
+		private boolean autoCompression;
+
+		@Option(name = "-met", aliases = { "--minEncodingThroughput" }, required = false,
+				usage = "Minimum encoding throughput in MB/s (per thread) for --autoCompression")
+		private double minEncodingThroughput = N5CompressionTuner.DEFAULT_MIN_ENCODING_THROUGHPUT;
+
+		@Option(name = "-mdt", aliases = { "--minDecodingThroughput" }, required = false,
+				usage = "Minimum decoding throughput in MB/s (per thread) for --autoCompression")
+		private double minDecodingThroughput = N5CompressionTuner.DEFAULT_MIN_DECODING_THROUGHPUT;
+
 		private int[] blockSize;
 		private boolean parsedSuccessfully = false;
 
@@ -0,0 +1,428 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.util.Util;
+
+/**
+ * Averaging downsampling kernel that works directly on primitive arrays laid out in the same way as the data of N5 {@link DataBlock}s
+ * (the first dimension is the fastest varying one).
+ *<p>
+ * Produces the same values as {@link bdv.export.Downsample}: the values within each window are summed up, multiplied by the inverse of the window size,
+ * and rounded to the nearest integer (half away from zero) for integer types.
+ * The sum is accumulated in a {@code long} for 8/16/32-bit integer types, which is exact and thus identical to summing up doubles.
+ * Windows of 4 and 8 elements (such as 2x2x1 and 2x2x2) are unrolled and normalized with integer arithmetic.
+ */
+public abstract class DownsamplingKernel
+{
+	/**
+	 * Returns the downsampling kernel for the given N5 data type.
+	 *
+	 * @param dataType
+	 * @return kernel
+	 */
+	public static DownsamplingKernel forDataType( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+			return new ByteKernel( false );
+		case UINT8:
+			return new ByteKernel( true );
+		case INT16:
+			return new ShortKernel( false );
+		case UINT16:
+			return new ShortKernel( true );
+		case INT32:
+			return new IntKernel( false );
+		case UINT32:
+			return new IntKernel( true );
+		case INT64:
+			return new LongKernel();
+		case UINT64:
+			return new UnsignedLongKernel();
+		case FLOAT32:
+			return new FloatKernel();
+		case FLOAT64:
+			return new DoubleKernel();
+		default:
+			throw new IllegalArgumentException( "Downsampling is not supported for data type " + dataType );
+		}
+	}
+
+	/**
+	 * Downsamples the data of the source block into the target block.
+	 * The source block is expected to contain the full input region for the target block starting at the origin,
+	 * that is, {@code source.getSize()[d] >= target.getSize()[d] * factors[d]}.
+	 *
+	 * @param source
+	 * @param target
+	 * @param factors
+	 */
+	public void downsample( final DataBlock< ? > source, final DataBlock< ? > target, final int[] factors )
+	{
+		downsample( source.getData(), source.getSize(), target.getData(), target.getSize(), factors );
+	}
+
+	/**
+	 * Downsamples the source array into the target array.
+	 * The source array is expected to contain the full input region for the target array starting at the origin,
+	 * that is, {@code sourceSize[d] >= targetSize[d] * factors[d]}.
+	 *
+	 * @param source
+	 * 			primitive array of the input data
+	 * @param sourceSize
+	 * 			dimensions of the input data
+	 * @param target
+	 * 			primitive array of the same type for storing the downsampled data
+	 * @param targetSize
+	 * 			dimensions of the downsampled data
+	 * @param factors
+	 * 			downsampling factors
+	 */
+	public void downsample(
+			final Object source,
+			final int[] sourceSize,
+			final Object target,
+			final int[] targetSize,
+			final int[] factors )
+	{
+		final int n = targetSize.length;
+		if ( sourceSize.length != n || factors.length != n )
+			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
+		for ( int d = 0; d < n; ++d )
+			if ( ( long ) targetSize[ d ] * factors[ d ] > sourceSize[ d ] )
+				throw new IllegalArgumentException( "Source size is too small for the requested target size in dimension " + d );
+
+		final int[] sourceStrides = new int[ n ];
+		sourceStrides[ 0 ] = 1;
+		for ( int d = 1; d < n; ++d )
+			sourceStrides[ d ] = sourceStrides[ d - 1 ] * sourceSize[ d - 1 ];
+
+		// offsets of the window elements relative to the window origin in flat iteration order
+		int windowSize = 1;
+		for ( int d = 0; d < n; ++d )
+			windowSize *= factors[ d ];
+		final int[] windowOffsets = new int[ windowSize ];
+		final int[] windowPosition = new int[ n ];
+		for ( int i = 0; i < windowSize; ++i )
+		{
+			int offset = 0;
+			for ( int d = 0; d < n; ++d )
+				offset += windowPosition[ d ] * sourceStrides[ d ];
+			windowOffsets[ i ] = offset;
+
+			for ( int d = 0; d < n && ++windowPosition[ d ] == factors[ d ]; ++d )
+				windowPosition[ d ] = 0;
+		}
+
+		// iterate over the target rows, the first dimension is processed by the kernel implementations
+		int numRows = 1;
+		for ( int d = 1; d < n; ++d )
+			numRows *= targetSize[ d ];
+		if ( numRows == 0 || targetSize[ 0 ] == 0 )
+			return;
+
+		final int rowLength = targetSize[ 0 ];
+		final int windowStep = factors[ 0 ];
+		final int[] rowPosition = new int[ n ];
+		int sourceRowOffset = 0;
+		for ( int row = 0, targetRowOffset = 0; row < numRows; ++row, targetRowOffset += rowLength )
+		{
+			downsampleRow( source, sourceRowOffset, windowStep, windowOffsets, target, targetRowOffset, rowLength );
+
+			for ( int d = 1; d < n; ++d )
+			{
+				sourceRowOffset += factors[ d ] * sourceStrides[ d ];
+				if ( ++rowPosition[ d ] < targetSize[ d ] )
+					break;
+				sourceRowOffset -= rowPosition[ d ] * factors[ d ] * sourceStrides[ d ];
+				rowPosition[ d ] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Computes a single row of the target array.
+	 *
+	 * @param source
+	 * @param sourceOffset
+	 * 			offset of the first window origin in the source array
+	 * @param windowStep
+	 * 			distance between two consecutive window origins in the source array
+	 * @param windowOffsets
+	 * 			offsets of the window elements relative to the window origin
+	 * @param target
+	 * @param targetOffset
+	 * 			offset of the first row element in the target array
+	 * @param rowLength
+	 */
+	protected abstract void downsampleRow(
+			final Object source,
+			final int sourceOffset,
+			final int windowStep,
+			final int[] windowOffsets,
+			final Object target,
+			final int targetOffset,
+			final int rowLength );
+
+	/**
+	 * Rounds the given sum divided by 2^shift to the nearest integer, half away from zero.
+	 */
+	protected static long roundShift( final long sum, final int shift )
+	{
+		final long half = 1L << ( shift - 1 );
+		return sum >= 0 ? ( sum + half ) >> shift : -( ( -sum + half ) >> shift );
+	}
+
+	private static class ByteKernel extends DownsamplingKernel
+	{
+		private final int mask;
+
+		public ByteKernel( final boolean unsigned )
+		{
+			mask = unsigned ? 0xff : -1;
+		}
+
+		@Override
+		protected void downsampleRow( final Object source, final int sourceOffset, final int windowStep, final int[] windowOffsets, final Object target, final int targetOffset, final int rowLength )
+		{
+			final byte[] src = ( byte[] ) source;
+			final byte[] dst = ( byte[] ) target;
+			final int windowSize = windowOffsets.length;
+			final int m = mask;
+			int o = sourceOffset;
+			if ( windowSize == 8 )
+			{
+				final int o0 = windowOffsets[ 0 ], o1 = windowOffsets[ 1 ], o2 = windowOffsets[ 2 ], o3 = windowOffsets[ 3 ];
+				final int o4 = windowOffsets[ 4 ], o5 = windowOffsets[ 5 ], o6 = windowOffsets[ 6 ], o7 = windowOffsets[ 7 ];
+				for ( int x = 0; x < rowLength; ++x, o += windowStep )
+				{
+					final int sum =
+							( src[ o + o0 ] & m ) + ( src[ o + o1 ] & m ) + ( src[ o + o2 ] & m ) + ( src[ o + o3 ] & m ) +
+							( src[ o + o4 ] & m ) + ( src[ o + o5 ] & m ) + ( src[ o + o6 ] & m ) + ( src[ o + o7 ] & m );
+					dst[ targetOffset + x ] = ( byte ) roundShift( sum, 3 );
+				}
+			}
+			else if ( windowSize == 4 )
+			{
+				final int o0 = windowOffsets[ 0 ], o1 = windowOffsets[ 1 ], o2 = windowOffsets[ 2 ], o3 = windowOffsets[ 3 ];
+				for ( int x = 0; x < rowLength; ++x, o += windowStep )
+				{
+					final int sum = ( src[ o + o0 ] & m ) + ( src[ o + o1 ] & m ) + ( src[ o + o2 ] & m ) + ( src[ o + o3 ] & m );
+					dst[ targetOffset + x ] = ( byte ) roundShift( sum, 2 );
+				}
+			}
+			else
+			{
+				final double scale = 1.0 / windowSize;
+				for ( int x = 0; x < rowLength; ++x, o += windowStep )
+				{
+					long sum = 0;
+					for ( int i = 0; i < windowSize; ++i )
+						sum += src[ o + windowOffsets[ i ] ] & m;
+					dst[ targetOffset + x ] = ( byte ) Util.round( sum * scale );
+				}
+			}
+		}
+	}
+
+	private static class ShortKernel extends DownsamplingKernel
+	{
+		private final int mask;
+
+		public ShortKernel( final boolean unsigned )
+		{
+			mask = unsigned ? 0xffff : -1;
+		}
+
+		@Override
+		protected void downsampleRow( final Object source, final int sourceOffset, final int windowStep, final int[] windowOffsets, final Object target, final int targetOffset, final int rowLength )
+		{
+			final short[] src = ( short[] ) source;
+			final short[] dst = ( short[] ) target;
+			final int windowSize = windowOffsets.length;
+			final int m = mask;
+			int o = sourceOffset;
+			if ( windowSize == 8 )
+			{
+				final int o0 = windowOffsets[ 0 ], o1 = windowOffsets[ 1 ], o2 = windowOffsets[ 2 ], o3 = windowOffsets[ 3 ];
+				final int o4 = windowOffsets[ 4 ], o5 = windowOffsets[ 5 ], o6 = windowOffsets[ 6 ], o7 = windowOffsets[ 7 ];
+				for ( int x = 0; x < rowLength; ++x, o += windowStep )
+				{
+					final int sum =
+							( src[ o + o0 ] & m ) + ( src[ o + o1 ] & m ) + ( src[ o + o2 ] & m ) + ( src[ o + o3 ] & m ) +
+							( src[ o + o4 ] & m ) + ( src[ o + o5 ] & m ) + ( src[ o + o6 ] & m ) + ( src[ o + o7 ] & m );
+					dst[ targetOffset + x ] = ( short ) roundShift( sum, 3 );
+				}
+			}
+			else if ( windowSize == 4 )
+			{
+				final int o0 = windowOffsets[ 0 ], o1 = windowOffsets[ 1 ], o2 = windowOffsets[ 2 ], o3 = windowOffsets[ 3 ];
+				for ( int x = 0; x < rowLength; ++x, o += windowStep )
+				{
+					final int sum = ( src[ o + o0 ] & m ) + ( src[ o + o1 ] & m ) + ( src[ o + o2 ] & m ) + ( src[ o + o3 ] & m );
+					dst[ targetOffset + x ] = ( short ) roundShift( sum, 2 );
+				}
+			}
+			else
+			{
+				final double scale = 1.0 / windowSize;
+				for ( int x = 0; x < rowLength; ++x, o += windowStep )
+				{
+					long sum = 0;
+					for ( int i = 0; i < windowSize; ++i )
+						sum += src[ o + windowOffsets[ i ] ] & m;
+					dst[ targetOffset + x ] = ( short ) Util.round( sum * scale );
+				}
+			}
+		}
+	}
+
+	private static class IntKernel extends DownsamplingKernel
+	{
+		private final long mask;
+
+		public IntKernel( final boolean unsigned )
+		{
+			mask = unsigned ? 0xffffffffL : -1L;
+		}
+
+		@Override
+		protected void downsampleRow( final Object source, final int sourceOffset, final int windowStep, final int[] windowOffsets, final Object target, final int targetOffset, final int rowLength )
+		{
+			final int[] src = ( int[] ) source;
+			final int[] dst = ( int[] ) target;
+			final int windowSize = windowOffsets.length;
+			final long m = mask;
+			int o = sourceOffset;
+			if ( windowSize == 8 )
+			{
+				final int o0 = windowOffsets[ 0 ], o1 = windowOffsets[ 1 ], o2 = windowOffsets[ 2 ], o3 = windowOffsets[ 3 ];
+				final int o4 = windowOffsets[ 4 ], o5 = windowOffsets[ 5 ], o6 = windowOffsets[ 6 ], o7 = windowOffsets[ 7 ];
+				for ( int x = 0; x < rowLength; ++x, o += windowStep )
+				{
+					final long sum =
+							( src[ o + o0 ] & m ) + ( src[ o + o1 ] & m ) + ( src[ o + o2 ] & m ) + ( src[ o + o3 ] & m ) +
+							( src[ o + o4 ] & m ) + ( src[ o + o5 ] & m ) + ( src[ o + o6 ] & m ) + ( src[ o + o7 ] & m );
+					dst[ targetOffset + x ] = ( int ) roundShift( sum, 3 );
+				}
+			}
+			else if ( windowSize == 4 )
+			{
+				final int o0 = windowOffsets[ 0 ], o1 = windowOffsets[ 1 ], o2 = windowOffsets[ 2 ], o3 = windowOffsets[ 3 ];
+				for ( int x = 0; x < rowLength; ++x, o += windowStep )
+				{
+					final long sum = ( src[ o + o0 ] & m ) + ( src[ o + o1 ] & m ) + ( src[ o + o2 ] & m ) + ( src[ o + o3 ] & m );
+					dst[ targetOffset + x ] = ( int ) roundShift( sum, 2 );
+				}
+			}
+			else
+			{
+				final double scale = 1.0 / windowSize;
+				for ( int x = 0; x < rowLength; ++x, o += windowStep )
+				{
+					long sum = 0;
+					for ( int i = 0; i < windowSize; ++i )
+						sum += src[ o + windowOffsets[ i ] ] & m;
+					dst[ targetOffset + x ] = ( int ) Util.round( sum * scale );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sums up doubles to produce the same values as {@link bdv.export.Downsample} for values that cannot be summed up exactly in a {@code long}.
+	 */
+	private static class LongKernel extends DownsamplingKernel
+	{
+		@Override
+		protected void downsampleRow( final Object source, final int sourceOffset, final int windowStep, final int[] windowOffsets, final Object target, final int targetOffset, final int rowLength )
+		{
+			final long[] src = ( long[] ) source;
+			final long[] dst = ( long[] ) target;
+			final int windowSize = windowOffsets.length;
+			final double scale = 1.0 / windowSize;
+			int o = sourceOffset;
+			for ( int x = 0; x < rowLength; ++x, o += windowStep )
+			{
+				double sum = 0;
+				for ( int i = 0; i < windowSize; ++i )
+					sum += src[ o + windowOffsets[ i ] ];
+				dst[ targetOffset + x ] = Util.round( sum * scale );
+			}
+		}
+	}
+
+	/**
+	 * Delegates the conversion between unsigned long and double values to {@link UnsignedLongType}
+	 * to produce the same values as {@link bdv.export.Downsample}.
+	 */
+	private static class UnsignedLongKernel extends DownsamplingKernel
+	{
+		private final UnsignedLongType value = new UnsignedLongType();
+
+		@Override
+		protected void downsampleRow( final Object source, final int sourceOffset, final int windowStep, final int[] windowOffsets, final Object target, final int targetOffset, final int rowLength )
+		{
+			final long[] src = ( long[] ) source;
+			final long[] dst = ( long[] ) target;
+			final int windowSize = windowOffsets.length;
+			final double scale = 1.0 / windowSize;
+			int o = sourceOffset;
+			for ( int x = 0; x < rowLength; ++x, o += windowStep )
+			{
+				double sum = 0;
+				for ( int i = 0; i < windowSize; ++i )
+				{
+					value.set( src[ o + windowOffsets[ i ] ] );
+					sum += value.getRealDouble();
+				}
+				value.setReal( sum * scale );
+				dst[ targetOffset + x ] = value.get();
+			}
+		}
+	}
+
+	private static class FloatKernel extends DownsamplingKernel
+	{
+		@Override
+		protected void downsampleRow( final Object source, final int sourceOffset, final int windowStep, final int[] windowOffsets, final Object target, final int targetOffset, final int rowLength )
+		{
+			final float[] src = ( float[] ) source;
+			final float[] dst = ( float[] ) target;
+			final int windowSize = windowOffsets.length;
+			final double scale = 1.0 / windowSize;
+			int o = sourceOffset;
+			for ( int x = 0; x < rowLength; ++x, o += windowStep )
+			{
+				double sum = 0;
+				for ( int i = 0; i < windowSize; ++i )
+					sum += src[ o + windowOffsets[ i ] ];
+				dst[ targetOffset + x ] = ( float ) ( sum * scale );
+			}
+		}
+	}
+
+	private static class DoubleKernel extends DownsamplingKernel
+	{
+		@Override
+		protected void downsampleRow( final Object source, final int sourceOffset, final int windowStep, final int[] windowOffsets, final Object target, final int targetOffset, final int rowLength )
+		{
+			final double[] src = ( double[] ) source;
+			final double[] dst = ( double[] ) target;
+			final int windowSize = windowOffsets.length;
+			final double scale = 1.0 / windowSize;
+			int o = sourceOffset;
+			for ( int x = 0; x < rowLength; ++x, o += windowStep )
+			{
+				double sum = 0;
+				for ( int i = 0; i < windowSize; ++i )
+					sum += src[ o + windowOffsets[ i ] ];
+				dst[ targetOffset + x ] = sum * scale;
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+/**
+ * Counts primitive {@code long} labels in an open-addressing hash table with linear probing.
+ * The counts are {@code long} as well, because the labels of entire scale levels may be merged into a single histogram.
+ * The table grows when needed and is never shrunk, and {@link #clear()} resets only the slots that have been used,
+ * so an instance can be reused for many small histograms without allocating.
+ */
+class LabelCounter
+{
+	private static final long HASH_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+	private long[] keys;
+	private long[] counts;
+	private int[] usedSlots;
+	private int size;
+	private int hashShift;
+
+	public LabelCounter( final int expectedSize )
+	{
+		allocate( expectedSize );
+	}
+
+	/**
+	 * Adds the given count to the label.
+	 *
+	 * @param label
+	 * @param count
+	 * 			has to be positive
+	 * @return the new count of the label
+	 */
+	public long add( final long label, final long count )
+	{
+		if ( size == usedSlots.length )
+			grow();
+
+		final int slot = findSlot( label );
+		if ( counts[ slot ] == 0 )
+		{
+			keys[ slot ] = label;
+			usedSlots[ size++ ] = slot;
+		}
+		return counts[ slot ] += count;
+	}
+
+	/**
+	 * @param label
+	 * @return count of the label, or 0 if the label has not been added
+	 */
+	public long get( final long label )
+	{
+		return counts[ findSlot( label ) ];
+	}
+
+	/**
+	 * @return number of distinct labels
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Copies the distinct labels into the given array in no particular order.
+	 *
+	 * @param target
+	 * @param offset
+	 */
+	public void getLabels( final long[] target, final int offset )
+	{
+		for ( int i = 0; i < size; ++i )
+			target[ offset + i ] = keys[ usedSlots[ i ] ];
+	}
+
+	public void clear()
+	{
+		for ( int i = 0; i < size; ++i )
+			counts[ usedSlots[ i ] ] = 0;
+		size = 0;
+	}
+
+	private int findSlot( final long label )
+	{
+		final int mask = keys.length - 1;
+		int slot = ( int ) ( ( label * HASH_MULTIPLIER ) >>> hashShift );
+		while ( counts[ slot ] != 0 && keys[ slot ] != label )
+			slot = ( slot + 1 ) & mask;
+		return slot;
+	}
+
+	private void allocate( final int maxSize )
+	{
+		// keep the load factor at or below 1/2
+		final int numBits = Math.max( 32 - Integer.numberOfLeadingZeros( Math.max( maxSize, 1 ) - 1 ) + 1, 1 );
+		keys = new long[ 1 << numBits ];
+		counts = new long[ 1 << numBits ];
+		usedSlots = new int[ 1 << ( numBits - 1 ) ];
+		hashShift = Long.SIZE - numBits;
+		size = 0;
+	}
+
+	private void grow()
+	{
+		final long[] oldKeys = keys;
+		final long[] oldCounts = counts;
+		final int[] oldUsedSlots = usedSlots;
+		final int oldSize = size;
+
+		allocate( usedSlots.length * 2 );
+		for ( int i = 0; i < oldSize; ++i )
+			add( oldKeys[ oldUsedSlots[ i ] ], oldCounts[ oldUsedSlots[ i ] ] );
+	}
+}
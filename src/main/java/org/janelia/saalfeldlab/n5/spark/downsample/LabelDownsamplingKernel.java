@@ -0,0 +1,220 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+/**
+ * Label downsampling kernel that works directly on primitive arrays laid out in the same way as the data of N5 {@link DataBlock}s.
+ * Instead of averaging, it uses the value that is the most frequent in the window.
+ * In case of equal frequencies, the smallest label value among them is used.
+ *<p>
+ * The labels are compared as the values returned by {@link net.imglib2.type.numeric.IntegerType#getIntegerLong()} for the corresponding imglib2 type,
+ * that is, unsigned 8/16/32-bit values are zero-extended and 64-bit values (including unsigned ones) are compared as signed longs.
+ * Windows of up to {@value #MAX_SORTED_WINDOW_SIZE} elements (such as 2x2x2) are sorted in place and scanned for the longest run,
+ * larger windows are counted with an open-addressing hash table of primitive labels and counts (see {@link LabelCounter}).
+ * Both are allocated once and reused for all windows, so an instance is not thread-safe and is intended to be used once per partition.
+ */
+public class LabelDownsamplingKernel extends DownsamplingKernel
+{
+	private static final int MAX_SORTED_WINDOW_SIZE = 8;
+
+	private final DataType dataType;
+
+	private long[] window = new long[ 0 ];
+	private final LabelCounter counter = new LabelCounter( 64 );
+
+	public LabelDownsamplingKernel( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		case UINT8:
+		case INT16:
+		case UINT16:
+		case INT32:
+		case UINT32:
+		case INT64:
+		case UINT64:
+			this.dataType = dataType;
+			break;
+		default:
+			throw new IllegalArgumentException( "Label downsampling is not supported for data type " + dataType );
+		}
+	}
+
+	@Override
+	protected void downsampleRow( final Object source, final int sourceOffset, final int windowStep, final int[] windowOffsets, final Object target, final int targetOffset, final int rowLength )
+	{
+		final int windowSize = windowOffsets.length;
+		if ( window.length < windowSize )
+			window = new long[ windowSize ];
+
+		int o = sourceOffset;
+		for ( int x = 0; x < rowLength; ++x, o += windowStep )
+		{
+			readWindow( source, o, windowOffsets );
+			final long label = windowSize <= MAX_SORTED_WINDOW_SIZE ? sortedMode( windowSize ) : countedMode( windowSize );
+			writeLabel( target, targetOffset + x, label );
+		}
+	}
+
+	private void readWindow( final Object source, final int offset, final int[] windowOffsets )
+	{
+		final int windowSize = windowOffsets.length;
+		switch ( dataType )
+		{
+		case INT8:
+			for ( int i = 0; i < windowSize; ++i )
+				window[ i ] = ( ( byte[] ) source )[ offset + windowOffsets[ i ] ];
+			break;
+		case UINT8:
+			for ( int i = 0; i < windowSize; ++i )
+				window[ i ] = ( ( byte[] ) source )[ offset + windowOffsets[ i ] ] & 0xffL;
+			break;
+		case INT16:
+			for ( int i = 0; i < windowSize; ++i )
+				window[ i ] = ( ( short[] ) source )[ offset + windowOffsets[ i ] ];
+			break;
+		case UINT16:
+			for ( int i = 0; i < windowSize; ++i )
+				window[ i ] = ( ( short[] ) source )[ offset + windowOffsets[ i ] ] & 0xffffL;
+			break;
+		case INT32:
+			for ( int i = 0; i < windowSize; ++i )
+				window[ i ] = ( ( int[] ) source )[ offset + windowOffsets[ i ] ];
+			break;
+		case UINT32:
+			for ( int i = 0; i < windowSize; ++i )
+				window[ i ] = ( ( int[] ) source )[ offset + windowOffsets[ i ] ] & 0xffffffffL;
+			break;
+		default:
+			for ( int i = 0; i < windowSize; ++i )
+				window[ i ] = ( ( long[] ) source )[ offset + windowOffsets[ i ] ];
+			break;
+		}
+	}
+
+	/**
+	 * Reads a single label from the given primitive array in the same way as the window elements are read.
+	 *
+	 * @param data
+	 * @param index
+	 * @param dataType
+	 * @return label
+	 */
+	public static long getLabel( final Object data, final int index, final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+			return ( ( byte[] ) data )[ index ];
+		case UINT8:
+			return ( ( byte[] ) data )[ index ] & 0xffL;
+		case INT16:
+			return ( ( short[] ) data )[ index ];
+		case UINT16:
+			return ( ( short[] ) data )[ index ] & 0xffffL;
+		case INT32:
+			return ( ( int[] ) data )[ index ];
+		case UINT32:
+			return ( ( int[] ) data )[ index ] & 0xffffffffL;
+		case INT64:
+		case UINT64:
+			return ( ( long[] ) data )[ index ];
+		default:
+			throw new IllegalArgumentException( "Label downsampling is not supported for data type " + dataType );
+		}
+	}
+
+	private void writeLabel( final Object target, final int index, final long label )
+	{
+		setLabel( target, index, label, dataType );
+	}
+
+	/**
+	 * Writes a single label into the given primitive array, truncating it to the width of the data type.
+	 *
+	 * @param data
+	 * @param index
+	 * @param label
+	 * @param dataType
+	 */
+	public static void setLabel( final Object data, final int index, final long label, final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		case UINT8:
+			( ( byte[] ) data )[ index ] = ( byte ) label;
+			break;
+		case INT16:
+		case UINT16:
+			( ( short[] ) data )[ index ] = ( short ) label;
+			break;
+		case INT32:
+		case UINT32:
+			( ( int[] ) data )[ index ] = ( int ) label;
+			break;
+		case INT64:
+		case UINT64:
+			( ( long[] ) data )[ index ] = label;
+			break;
+		default:
+			throw new IllegalArgumentException( "Label downsampling is not supported for data type " + dataType );
+		}
+	}
+
+	/**
+	 * Sorts the window with insertion sort and finds the longest run of equal labels.
+	 * The first longest run in ascending order contains the smallest label among the most frequent ones.
+	 */
+	private long sortedMode( final int windowSize )
+	{
+		final long[] w = window;
+		for ( int i = 1; i < windowSize; ++i )
+		{
+			final long value = w[ i ];
+			int j = i - 1;
+			for ( ; j >= 0 && w[ j ] > value; --j )
+				w[ j + 1 ] = w[ j ];
+			w[ j + 1 ] = value;
+		}
+
+		long mode = w[ 0 ];
+		int maxCount = 0;
+		for ( int i = 0; i < windowSize; )
+		{
+			int j = i + 1;
+			while ( j < windowSize && w[ j ] == w[ i ] )
+				++j;
+			if ( j - i > maxCount )
+			{
+				maxCount = j - i;
+				mode = w[ i ];
+			}
+			i = j;
+		}
+		return mode;
+	}
+
+	/**
+	 * Counts the labels, keeping track of the most frequent label along the way.
+	 */
+	private long countedMode( final int windowSize )
+	{
+		counter.clear();
+		long mode = Long.MIN_VALUE;
+		long maxCount = 0;
+		for ( int i = 0; i < windowSize; ++i )
+		{
+			final long label = window[ i ];
+			final long count = counter.add( label, 1 );
+			if ( count > maxCount || ( count == maxCount && label < mode ) )
+			{
+				maxCount = count;
+				mode = label;
+			}
+		}
+		return mode;
+	}
+}
@@ -0,0 +1,427 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import net.imglib2.util.Intervals;
+
+/**
+ * Block of label multisets: a list of distinct (label, count) pairs sorted by label for each voxel,
+ * where the count is the number of voxels of the full-resolution label data that have the label.
+ * The background label 0 is not stored, so the multisets of empty voxels are empty.
+ *<p>
+ * The multisets are stored in {@link org.janelia.saalfeldlab.n5.DataType#UINT8} datasets marked with the {@value #LABEL_MULTISET_ATTRIBUTE_KEY} attribute.
+ * Each block is serialized into a byte array that is written as a single N5 data block of size {@code [numBytes, 1, ..., 1]},
+ * so the dataset cannot be read as regular image data. The voxels of a block are ordered in the same way as in regular N5 blocks
+ * (the first dimension is the fastest varying one). The serialized block consists of
+ * the number of voxels, the number of labels of each voxel, all labels, and all counts.
+ * The counts are stored as 64-bit values, as a voxel of a coarse scale level may represent more than {@code 2^31} full-resolution voxels.
+ */
+public class LabelMultisetBlock
+{
+	public static final String LABEL_MULTISET_ATTRIBUTE_KEY = "labelMultisets";
+
+	private final int[] offsets;
+	private final long[] labels;
+	private final long[] counts;
+
+	/**
+	 * @param offsets
+	 * 			start of the entries of each voxel, followed by the total number of entries
+	 * @param labels
+	 * @param counts
+	 */
+	public LabelMultisetBlock( final int[] offsets, final long[] labels, final long[] counts )
+	{
+		this.offsets = offsets;
+		this.labels = labels;
+		this.counts = counts;
+	}
+
+	public int getNumVoxels()
+	{
+		return offsets.length - 1;
+	}
+
+	public int getNumEntries()
+	{
+		return offsets[ offsets.length - 1 ];
+	}
+
+	/**
+	 * @param voxel
+	 * @return index of the first entry of the voxel
+	 */
+	public int getEntriesStart( final int voxel )
+	{
+		return offsets[ voxel ];
+	}
+
+	/**
+	 * @param voxel
+	 * @return index after the last entry of the voxel
+	 */
+	public int getEntriesEnd( final int voxel )
+	{
+		return offsets[ voxel + 1 ];
+	}
+
+	public long getLabel( final int entry )
+	{
+		return labels[ entry ];
+	}
+
+	public long getCount( final int entry )
+	{
+		return counts[ entry ];
+	}
+
+	/**
+	 * Returns the most frequent label of the voxel, where the background label 0 is counted as well.
+	 * Since the background is not stored, its count is derived from the number of full-resolution voxels represented by the voxel.
+	 * In case of equal counts, the smallest label value among them is used, which is consistent with {@link LabelDownsamplingKernel}.
+	 *
+	 * @param voxel
+	 * @param windowSize
+	 * 			number of full-resolution voxels represented by each voxel (product of the absolute downsampling factors)
+	 * @return most frequent label
+	 */
+	public long getMostFrequentLabel( final int voxel, final long windowSize )
+	{
+		final int start = offsets[ voxel ], end = offsets[ voxel + 1 ];
+		long backgroundCount = windowSize;
+		for ( int e = start; e < end; ++e )
+			backgroundCount -= counts[ e ];
+
+		long mode = 0;
+		long maxCount = backgroundCount;
+		for ( int e = start; e < end; ++e )
+		{
+			if ( counts[ e ] > maxCount || ( counts[ e ] == maxCount && labels[ e ] < mode ) )
+			{
+				maxCount = counts[ e ];
+				mode = labels[ e ];
+			}
+		}
+		return mode;
+	}
+
+	/**
+	 * Creates the label multisets of the downsampled voxels from the given region of regular label data.
+	 * The source array is expected to contain the full input region for the target block starting at the origin,
+	 * that is, {@code sourceSize[d] >= targetSize[d] * factors[d]}.
+	 *
+	 * @param source
+	 * 			primitive array of the label data
+	 * @param dataType
+	 * @param sourceSize
+	 * @param targetSize
+	 * @param factors
+	 * @return block of size {@code targetSize}
+	 */
+	public static LabelMultisetBlock fromLabels(
+			final Object source,
+			final DataType dataType,
+			final int[] sourceSize,
+			final int[] targetSize,
+			final int[] factors )
+	{
+		final int[] windowOffsets = getWindowOffsets( sourceSize, targetSize, factors );
+		final int[] windowOrigins = getWindowOrigins( sourceSize, targetSize, factors );
+		final LabelCounter counter = new LabelCounter( Math.min( windowOffsets.length, 64 ) );
+		final Entries entries = new Entries( windowOrigins.length, windowOrigins.length );
+		for ( final int origin : windowOrigins )
+		{
+			counter.clear();
+			for ( final int offset : windowOffsets )
+			{
+				final long label = LabelDownsamplingKernel.getLabel( source, origin + offset, dataType );
+				if ( label != 0 )
+					counter.add( label, 1 );
+			}
+			entries.addVoxel( counter );
+		}
+		return entries.build();
+	}
+
+	/**
+	 * Merges the label multisets of this block within each window of the given size,
+	 * so the counts of the downsampled block still refer to the full-resolution label data.
+	 * This block is expected to contain the full input region for the target block starting at the origin,
+	 * that is, {@code sourceSize[d] >= targetSize[d] * factors[d]}.
+	 *
+	 * @param sourceSize
+	 * 			dimensions of this block
+	 * @param targetSize
+	 * @param factors
+	 * @return block of size {@code targetSize}
+	 */
+	public LabelMultisetBlock downsample( final int[] sourceSize, final int[] targetSize, final int[] factors )
+	{
+		if ( Intervals.numElements( sourceSize ) != getNumVoxels() )
+			throw new IllegalArgumentException( "Block has " + getNumVoxels() + " voxels, expected " + Intervals.numElements( sourceSize ) );
+
+		final int[] windowOffsets = getWindowOffsets( sourceSize, targetSize, factors );
+		final int[] windowOrigins = getWindowOrigins( sourceSize, targetSize, factors );
+		final LabelCounter counter = new LabelCounter( 64 );
+		final Entries entries = new Entries( windowOrigins.length, getNumEntries() / windowOffsets.length );
+		for ( final int origin : windowOrigins )
+		{
+			counter.clear();
+			for ( final int offset : windowOffsets )
+				for ( int e = offsets[ origin + offset ]; e < offsets[ origin + offset + 1 ]; ++e )
+					counter.add( labels[ e ], counts[ e ] );
+			entries.addVoxel( counter );
+		}
+		return entries.build();
+	}
+
+	/**
+	 * Returns the offsets of the window elements relative to the window origin in flat iteration order.
+	 */
+	private static int[] getWindowOffsets( final int[] sourceSize, final int[] targetSize, final int[] factors )
+	{
+		final int n = targetSize.length;
+		if ( sourceSize.length != n || factors.length != n )
+			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
+		for ( int d = 0; d < n; ++d )
+			if ( ( long ) targetSize[ d ] * factors[ d ] > sourceSize[ d ] )
+				throw new IllegalArgumentException( "Source size is too small for the requested target size in dimension " + d );
+
+		final int[] windowOffsets = new int[ ( int ) Intervals.numElements( factors ) ];
+		final int[] windowPosition = new int[ n ];
+		for ( int i = 0; i < windowOffsets.length; ++i )
+		{
+			int offset = 0;
+			for ( int d = n - 1; d >= 0; --d )
+				offset = offset * sourceSize[ d ] + windowPosition[ d ];
+			windowOffsets[ i ] = offset;
+
+			for ( int d = 0; d < n && ++windowPosition[ d ] == factors[ d ]; ++d )
+				windowPosition[ d ] = 0;
+		}
+		return windowOffsets;
+	}
+
+	/**
+	 * Returns the flat index of the window origin in the source array for each target voxel.
+	 */
+	private static int[] getWindowOrigins( final int[] sourceSize, final int[] targetSize, final int[] factors )
+	{
+		final int n = targetSize.length;
+		final int[] windowOrigins = new int[ ( int ) Intervals.numElements( targetSize ) ];
+		final int[] position = new int[ n ];
+		for ( int i = 0; i < windowOrigins.length; ++i )
+		{
+			int origin = 0;
+			for ( int d = n - 1; d >= 0; --d )
+				origin = origin * sourceSize[ d ] + position[ d ] * factors[ d ];
+			windowOrigins[ i ] = origin;
+
+			for ( int d = 0; d < n && ++position[ d ] == targetSize[ d ]; ++d )
+				position[ d ] = 0;
+		}
+		return windowOrigins;
+	}
+
+	public static boolean isLabelMultisetDataset( final N5Reader n5, final String datasetPath ) throws IOException
+	{
+		return Boolean.TRUE.equals( n5.getAttribute( datasetPath, LABEL_MULTISET_ATTRIBUTE_KEY, Boolean.class ) );
+	}
+
+	/**
+	 * Reads the block at the given grid position.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @param attributes
+	 * @param gridPosition
+	 * @return block, or {@code null} if the block does not exist (all multisets are empty)
+	 * @throws IOException
+	 */
+	public static LabelMultisetBlock read( final N5Reader n5, final String datasetPath, final DatasetAttributes attributes, final long[] gridPosition ) throws IOException
+	{
+		final DataBlock< ? > dataBlock = n5.readBlock( datasetPath, attributes, gridPosition );
+		return dataBlock != null ? deserialize( ( byte[] ) dataBlock.getData() ) : null;
+	}
+
+	/**
+	 * Writes the block at the given grid position.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @param attributes
+	 * @param gridPosition
+	 * @throws IOException
+	 */
+	public void write( final N5Writer n5, final String datasetPath, final DatasetAttributes attributes, final long[] gridPosition ) throws IOException
+	{
+		final byte[] bytes = serialize();
+		final int[] size = new int[ attributes.getNumDimensions() ];
+		Arrays.fill( size, 1 );
+		size[ 0 ] = bytes.length;
+		n5.writeBlock( datasetPath, attributes, new ByteArrayDataBlock( size, gridPosition.clone(), bytes ) );
+	}
+
+	public byte[] serialize()
+	{
+		final int numVoxels = getNumVoxels(), numEntries = getNumEntries();
+		final ByteBuffer buffer = ByteBuffer.allocate( Integer.BYTES * ( 1 + numVoxels ) + ( Long.BYTES + Long.BYTES ) * numEntries );
+		buffer.putInt( numVoxels );
+		for ( int i = 0; i < numVoxels; ++i )
+			buffer.putInt( offsets[ i + 1 ] - offsets[ i ] );
+		for ( int i = 0; i < numEntries; ++i )
+			buffer.putLong( labels[ i ] );
+		for ( int i = 0; i < numEntries; ++i )
+			buffer.putLong( counts[ i ] );
+		return buffer.array();
+	}
+
+	public static LabelMultisetBlock deserialize( final byte[] bytes )
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap( bytes );
+		final int numVoxels = buffer.getInt();
+		final int[] offsets = new int[ numVoxels + 1 ];
+		for ( int i = 0; i < numVoxels; ++i )
+			offsets[ i + 1 ] = offsets[ i ] + buffer.getInt();
+
+		final int numEntries = offsets[ numVoxels ];
+		final long[] labels = new long[ numEntries ];
+		final long[] counts = new long[ numEntries ];
+		for ( int i = 0; i < numEntries; ++i )
+			labels[ i ] = buffer.getLong();
+		for ( int i = 0; i < numEntries; ++i )
+			counts[ i ] = buffer.getLong();
+
+		return new LabelMultisetBlock( offsets, labels, counts );
+	}
+
+	/**
+	 * Collects (voxel, label, count) entries in any order and merges them into a block.
+	 * The buffers are reused after each {@link #build(int)}, so an instance is intended to be used once per partition.
+	 */
+	public static class Builder
+	{
+		private int[] voxels = new int[ 1024 ];
+		private long[] labels = new long[ 1024 ];
+		private long[] counts = new long[ 1024 ];
+		private int size;
+
+		private final LabelCounter counter = new LabelCounter( 64 );
+
+		/**
+		 * Adds the count to the label of the voxel. The background label 0 is ignored.
+		 *
+		 * @param voxel
+		 * @param label
+		 * @param count
+		 */
+		public void add( final int voxel, final long label, final long count )
+		{
+			if ( label == 0 )
+				return;
+
+			if ( size == voxels.length )
+			{
+				voxels = Arrays.copyOf( voxels, size * 2 );
+				labels = Arrays.copyOf( labels, size * 2 );
+				counts = Arrays.copyOf( counts, size * 2 );
+			}
+			voxels[ size ] = voxel;
+			labels[ size ] = label;
+			counts[ size ] = count;
+			++size;
+		}
+
+		/**
+		 * Builds the block from the collected entries and resets the builder.
+		 *
+		 * @param numVoxels
+		 * @return block
+		 */
+		public LabelMultisetBlock build( final int numVoxels )
+		{
+			// group the entries by voxel with counting sort
+			final int[] voxelStarts = new int[ numVoxels + 1 ];
+			for ( int i = 0; i < size; ++i )
+				++voxelStarts[ voxels[ i ] + 1 ];
+			for ( int v = 0; v < numVoxels; ++v )
+				voxelStarts[ v + 1 ] += voxelStarts[ v ];
+
+			final int[] order = new int[ size ];
+			final int[] next = Arrays.copyOf( voxelStarts, numVoxels );
+			for ( int i = 0; i < size; ++i )
+				order[ next[ voxels[ i ] ]++ ] = i;
+
+			// merge the entries of each voxel and sort them by label
+			final Entries entries = new Entries( numVoxels, size );
+			for ( int v = 0; v < numVoxels; ++v )
+			{
+				counter.clear();
+				for ( int k = voxelStarts[ v ]; k < voxelStarts[ v + 1 ]; ++k )
+					counter.add( labels[ order[ k ] ], counts[ order[ k ] ] );
+				entries.addVoxel( counter );
+			}
+
+			size = 0;
+			return entries.build();
+		}
+	}
+
+	/**
+	 * Collects the sorted entries of consecutive voxels.
+	 */
+	private static class Entries
+	{
+		private final int[] offsets;
+		private long[] labels;
+		private long[] counts;
+		private int numVoxels;
+
+		public Entries( final int numVoxels, final int expectedNumEntries )
+		{
+			offsets = new int[ numVoxels + 1 ];
+			labels = new long[ Math.max( expectedNumEntries, 16 ) ];
+			counts = new long[ labels.length ];
+		}
+
+		/**
+		 * Appends the labels of the counter sorted by label as the entries of the next voxel.
+		 */
+		public void addVoxel( final LabelCounter counter )
+		{
+			final int numEntries = offsets[ numVoxels ];
+			final int numLabels = counter.size();
+			if ( numEntries + numLabels > labels.length )
+			{
+				final int capacity = Math.max( labels.length * 2, numEntries + numLabels );
+				labels = Arrays.copyOf( labels, capacity );
+				counts = Arrays.copyOf( counts, capacity );
+			}
+
+			counter.getLabels( labels, numEntries );
+			Arrays.sort( labels, numEntries, numEntries + numLabels );
+			for ( int k = numEntries; k < numEntries + numLabels; ++k )
+				counts[ k ] = counter.get( labels[ k ] );
+
+			offsets[ ++numVoxels ] = numEntries + numLabels;
+		}
+
+		public LabelMultisetBlock build()
+		{
+			if ( numVoxels != offsets.length - 1 )
+				throw new IllegalStateException( "Expected " + ( offsets.length - 1 ) + " voxels, got " + numVoxels );
+
+			final int numEntries = offsets[ numVoxels ];
+			return new LabelMultisetBlock( offsets, Arrays.copyOf( labels, numEntries ), Arrays.copyOf( counts, numEntries ) );
+		}
+	}
+}
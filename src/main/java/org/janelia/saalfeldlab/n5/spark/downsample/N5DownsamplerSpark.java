@@ -3,34 +3,36 @@ package org.janelia.saalfeldlab.n5.spark.downsample;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
+import java.util.Iterator;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaFutureAction;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.VoidFunction;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.N5RemoveSpark;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockWriter;
+import org.janelia.saalfeldlab.n5.spark.util.N5CompletionTracker;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparseBlockScanner;
+import org.janelia.saalfeldlab.n5.spark.util.ZOrderCurve;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
-import bdv.export.Downsample;
-import net.imglib2.FinalInterval;
-import net.imglib2.Interval;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Intervals;
-import net.imglib2.util.Util;
-import net.imglib2.view.Views;
 
 public class N5DownsamplerSpark
 {
@@ -85,12 +87,148 @@ public class N5DownsamplerSpark
 			final String outputDatasetPath,
 			final int[] downsamplingFactors,
 			final int[] blockSize ) throws IOException
+	{
+		downsample(
+				sparkContext,
+				n5Supplier,
+				inputDatasetPath,
+				outputDatasetPath,
+				downsamplingFactors,
+				blockSize,
+				false
+			);
+	}
+
+	/**
+	 * Downsamples the given input dataset of an N5 container with respect to the given downsampling factors.
+	 * The output dataset will be created within the same N5 container with given block size.
+	 *
+	 * If {@code sparse} is set, the existing blocks of the input dataset are found first by scanning the N5 container,
+	 * and only the output blocks that are affected by them are processed. Missing input blocks are treated as empty.
+	 * This is beneficial for datasets that are largely empty.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPath
+	 * @param downsamplingFactors
+	 * @param blockSize
+	 * @param sparse
+	 * @throws IOException
+	 */
+	public static < T extends NativeType< T > & RealType< T > > void downsample(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final String outputDatasetPath,
+			final int[] downsamplingFactors,
+			final int[] blockSize,
+			final boolean sparse ) throws IOException
+	{
+		downsample(
+				sparkContext,
+				n5Supplier,
+				inputDatasetPath,
+				outputDatasetPath,
+				downsamplingFactors,
+				blockSize,
+				sparse,
+				false
+			);
+	}
+
+	/**
+	 * Downsamples the given input dataset of an N5 container with respect to the given downsampling factors.
+	 * The output dataset will be created within the same N5 container with given block size.
+	 *
+	 * If {@code sparse} is set, the existing blocks of the input dataset are found first by scanning the N5 container,
+	 * and only the output blocks that are affected by them are processed. Missing input blocks are treated as empty.
+	 * This is beneficial for datasets that are largely empty.
+	 *
+	 * If {@code zOrder} is set, the output blocks are assigned to partitions along the Z-order curve instead of the raster order,
+	 * so each partition covers a compact region, and the input blocks shared by neighboring output blocks are cached and read only once
+	 * (which happens if the input block size is not a divisor of the output block size multiplied by the downsampling factors).
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPath
+	 * @param downsamplingFactors
+	 * @param blockSize
+	 * @param sparse
+	 * @param zOrder
+	 * @throws IOException
+	 */
+	public static < T extends NativeType< T > & RealType< T > > void downsample(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final String outputDatasetPath,
+			final int[] downsamplingFactors,
+			final int[] blockSize,
+			final boolean sparse,
+			final boolean zOrder ) throws IOException
+	{
+		downsample(
+				sparkContext,
+				n5Supplier,
+				inputDatasetPath,
+				outputDatasetPath,
+				downsamplingFactors,
+				blockSize,
+				sparse,
+				zOrder,
+				false
+			);
+	}
+
+	/**
+	 * Downsamples the given input dataset of an N5 container with respect to the given downsampling factors.
+	 * The output dataset will be created within the same N5 container with given block size.
+	 *
+	 * If {@code sparse} is set, the existing blocks of the input dataset are found first by scanning the N5 container,
+	 * and only the output blocks that are affected by them are processed. Missing input blocks are treated as empty.
+	 * This is beneficial for datasets that are largely empty.
+	 *
+	 * If {@code zOrder} is set, the output blocks are assigned to partitions along the Z-order curve instead of the raster order,
+	 * so each partition covers a compact region, and the input blocks shared by neighboring output blocks are cached and read only once
+	 * (which happens if the input block size is not a divisor of the output block size multiplied by the downsampling factors).
+	 *
+	 * If {@code resumable} is set, the completed partitions of output blocks are recorded with {@link N5CompletionTracker} while the job is running.
+	 * If the job fails, it can be started again with the same parameters: the existing output dataset is then re-opened
+	 * and only the partitions that have not been completed are processed. A partition is skipped only if exactly the same set of blocks
+	 * has been completed as a partition of the previous job, so the partitions that have changed (for example, because of the sampling
+	 * in {@code zOrder} mode with {@code sparse}) are processed again. The record is removed when the job has finished.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPath
+	 * @param downsamplingFactors
+	 * @param blockSize
+	 * @param sparse
+	 * @param zOrder
+	 * @param resumable
+	 * @throws IOException
+	 */
+	public static < T extends NativeType< T > & RealType< T > > void downsample(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final String outputDatasetPath,
+			final int[] downsamplingFactors,
+			final int[] blockSize,
+			final boolean sparse,
+			final boolean zOrder,
+			final boolean resumable ) throws IOException
 	{
 		final N5Writer n5 = n5Supplier.get();
 		if ( !n5.datasetExists( inputDatasetPath ) )
 			throw new IllegalArgumentException( "Input N5 dataset " + inputDatasetPath + " does not exist" );
-		if ( n5.datasetExists( outputDatasetPath ) )
-			throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " already exists" );
+
+		final boolean resuming = resumable && n5.datasetExists( outputDatasetPath ) && N5CompletionTracker.exists( n5, outputDatasetPath );
+		if ( n5.datasetExists( outputDatasetPath ) && !resuming )
+			throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " already exists" + ( resumable ? " and there is no unfinished job to resume" : "" ) );
 
 		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
 		final int dim = inputAttributes.getNumDimensions();
@@ -106,13 +244,28 @@ public class N5DownsamplerSpark
 			throw new IllegalArgumentException( "Degenerate output dimensions: " + Arrays.toString( outputDimensions ) );
 
 		final int[] outputBlockSize = blockSize != null ? blockSize : inputAttributes.getBlockSize();
-		n5.createDataset(
-				outputDatasetPath,
-				outputDimensions,
-				outputBlockSize,
-				inputAttributes.getDataType(),
-				inputAttributes.getCompression()
-			);
+		final long[] outputGridDimensions = new CellGrid( outputDimensions, outputBlockSize ).getGridDimensions();
+
+		// the tracker is created before the output dataset, so an existing output dataset without a tracker is never mistaken for an unfinished job
+		final N5CompletionTracker completionTracker = resumable ? N5CompletionTracker.openOrCreate( n5, outputDatasetPath, outputGridDimensions ) : null;
+		if ( resuming )
+		{
+			final DatasetAttributes existingOutputAttributes = n5.getDatasetAttributes( outputDatasetPath );
+			if ( !Arrays.equals( existingOutputAttributes.getDimensions(), outputDimensions ) ||
+					!Arrays.equals( existingOutputAttributes.getBlockSize(), outputBlockSize ) ||
+					existingOutputAttributes.getDataType() != inputAttributes.getDataType() )
+				throw new IllegalArgumentException( "Cannot resume: existing output N5 dataset " + outputDatasetPath + " was created with different parameters" );
+		}
+		else
+		{
+			n5.createDataset(
+					outputDatasetPath,
+					outputDimensions,
+					outputBlockSize,
+					inputAttributes.getDataType(),
+					inputAttributes.getCompression()
+				);
+		}
 
 		// set the downsampling factors attribute
 		final int[] inputAbsoluteDownsamplingFactors = n5.getAttribute( inputDatasetPath, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class );
@@ -121,53 +274,255 @@ public class N5DownsamplerSpark
 			outputAbsoluteDownsamplingFactors[ d ] = downsamplingFactors[ d ] * ( inputAbsoluteDownsamplingFactors != null ? inputAbsoluteDownsamplingFactors[ d ] : 1 );
 		n5.setAttribute( outputDatasetPath, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, outputAbsoluteDownsamplingFactors );
 
-		final CellGrid outputCellGrid = new CellGrid( outputDimensions, outputBlockSize );
-		final long numDownsampledBlocks = Intervals.numElements( outputCellGrid.getGridDimensions() );
-		final List< Long > blockIndexes = LongStream.range( 0, numDownsampledBlocks ).boxed().collect( Collectors.toList() );
-
-		sparkContext.parallelize( blockIndexes, Math.min( blockIndexes.size(), MAX_PARTITIONS ) ).foreach( blockIndex ->
+		final DatasetAttributes outputAttributes = n5.getDatasetAttributes( outputDatasetPath );
+		final JavaRDD< Long > blockIndexesRdd;
+		if ( sparse )
 		{
-			final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
-			final long[] blockGridPosition = new long[ cellGrid.numDimensions() ];
-			cellGrid.getCellGridPositionFlat( blockIndex, blockGridPosition );
+			final JavaRDD< Long > affectedBlockIndexesRdd = N5SparseBlockScanner.getAffectedOutputBlockIndexes(
+					N5SparseBlockScanner.scanExistingBlocks( sparkContext, n5Supplier, inputDatasetPath ),
+					inputAttributes.getBlockSize(),
+					downsamplingFactors,
+					outputDimensions,
+					outputBlockSize
+				);
+			blockIndexesRdd = zOrder ? ZOrderCurve.sortBlockIndexes( affectedBlockIndexesRdd, outputGridDimensions ) : affectedBlockIndexesRdd;
+		}
+		else
+		{
+			blockIndexesRdd = zOrder
+					? ZOrderCurve.parallelizeBlockIndexes( sparkContext, outputGridDimensions, MAX_PARTITIONS )
+					: N5SparkUtils.parallelizeIndexRange( sparkContext, Intervals.numElements( outputGridDimensions ), MAX_PARTITIONS );
+		}
 
-			final long[] sourceMin = new long[ dim ], sourceMax = new long[ dim ], targetMin = new long[ dim ], targetMax = new long[ dim ];
-			final int[] cellDimensions = new int[ dim ];
-			cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
-			for ( int d = 0; d < dim; ++d )
-			{
-				targetMax[ d ] = targetMin[ d ] + cellDimensions[ d ] - 1;
-				sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ];
-				sourceMax[ d ] = targetMax[ d ] * downsamplingFactors[ d ] + downsamplingFactors[ d ] - 1;
-			}
-			final Interval sourceInterval = new FinalInterval( sourceMin, sourceMax );
-			final Interval targetInterval = new FinalInterval( targetMin, targetMax );
+		downsampleBlocks(
+				n5Supplier,
+				inputDatasetPath,
+				inputAttributes,
+				outputDatasetPath,
+				outputAttributes,
+				downsamplingFactors,
+				blockIndexesRdd,
+				zOrder,
+				completionTracker,
+				resuming
+			);
+
+		if ( completionTracker != null )
+			N5RemoveSpark.remove( sparkContext, n5Supplier, completionTracker.getTrackerDatasetPath() );
+	}
+
+	/**
+	 * Recomputes the given blocks of an existing downsampled dataset, for example after the corresponding region of the input dataset has been modified.
+	 * Other blocks of the output dataset are not touched. The output blocks that become empty are removed.
+	 *
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPath
+	 * @param downsamplingFactors
+	 * @param outputBlockIndexes
+	 * 			flat indexes of the output blocks to be recomputed
+	 * @throws IOException
+	 */
+	public static void updateDownsampledBlocks(
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final String outputDatasetPath,
+			final int[] downsamplingFactors,
+			final JavaRDD< Long > outputBlockIndexes ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		if ( !n5.datasetExists( inputDatasetPath ) )
+			throw new IllegalArgumentException( "Input N5 dataset " + inputDatasetPath + " does not exist" );
+		if ( !n5.datasetExists( outputDatasetPath ) )
+			throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " does not exist" );
+
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
+		final DatasetAttributes outputAttributes = n5.getDatasetAttributes( outputDatasetPath );
+		checkDownsampledDataset( inputAttributes, outputAttributes, downsamplingFactors );
+
+		downsampleBlocks(
+				n5Supplier,
+				inputDatasetPath,
+				inputAttributes,
+				outputDatasetPath,
+				outputAttributes,
+				downsamplingFactors,
+				outputBlockIndexes,
+				false,
+				null,
+				true
+			);
+	}
+
+	/**
+	 * Computes the given blocks of an existing downsampled dataset as an asynchronous Spark job, and returns immediately.
+	 * This allows to run the jobs for several datasets or parts of a dataset concurrently, for example to start computing
+	 * the parts of the next scale level as soon as the corresponding parts of the previous scale level are done.
+	 *
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPath
+	 * @param downsamplingFactors
+	 * @param outputBlockIndexes
+	 * 			flat indexes of the output blocks to be computed
+	 * @return future of the submitted job
+	 * @throws IOException
+	 */
+	public static JavaFutureAction< Void > downsampleBlocksAsync(
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final String outputDatasetPath,
+			final int[] downsamplingFactors,
+			final JavaRDD< Long > outputBlockIndexes ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		if ( !n5.datasetExists( inputDatasetPath ) )
+			throw new IllegalArgumentException( "Input N5 dataset " + inputDatasetPath + " does not exist" );
+		if ( !n5.datasetExists( outputDatasetPath ) )
+			throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " does not exist" );
+
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
+		final DatasetAttributes outputAttributes = n5.getDatasetAttributes( outputDatasetPath );
+		checkDownsampledDataset( inputAttributes, outputAttributes, downsamplingFactors );
+
+		return outputBlockIndexes.foreachPartitionAsync( createDownsampleBlocksFunction(
+				n5Supplier,
+				inputDatasetPath,
+				inputAttributes,
+				outputDatasetPath,
+				outputAttributes,
+				downsamplingFactors,
+				false,
+				null,
+				false
+			) );
+	}
+
+	private static void checkDownsampledDataset(
+			final DatasetAttributes inputAttributes,
+			final DatasetAttributes outputAttributes,
+			final int[] downsamplingFactors )
+	{
+		final int dim = inputAttributes.getNumDimensions();
+
+		if ( dim != downsamplingFactors.length || dim != outputAttributes.getNumDimensions() )
+			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
 
+		for ( int d = 0; d < dim; ++d )
+			if ( outputAttributes.getDimensions()[ d ] != inputAttributes.getDimensions()[ d ] / downsamplingFactors[ d ] )
+				throw new IllegalArgumentException( "Output dataset dimensions " + Arrays.toString( outputAttributes.getDimensions() ) + " do not match the input dataset downsampled by the given factors" );
+
+		if ( inputAttributes.getDataType() != outputAttributes.getDataType() )
+			throw new IllegalArgumentException( "Output dataset data type " + outputAttributes.getDataType() + " does not match input dataset data type " + inputAttributes.getDataType() );
+	}
+
+	private static void downsampleBlocks(
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final DatasetAttributes inputAttributes,
+			final String outputDatasetPath,
+			final DatasetAttributes outputAttributes,
+			final int[] downsamplingFactors,
+			final JavaRDD< Long > blockIndexesRdd,
+			final boolean zOrder,
+			final N5CompletionTracker completionTracker,
+			final boolean removeEmptyBlocks ) throws IOException
+	{
+		blockIndexesRdd.foreachPartition( createDownsampleBlocksFunction(
+				n5Supplier,
+				inputDatasetPath,
+				inputAttributes,
+				outputDatasetPath,
+				outputAttributes,
+				downsamplingFactors,
+				zOrder,
+				completionTracker,
+				removeEmptyBlocks
+			) );
+	}
+
+	private static VoidFunction< Iterator< Long > > createDownsampleBlocksFunction(
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final DatasetAttributes inputAttributes,
+			final String outputDatasetPath,
+			final DatasetAttributes outputAttributes,
+			final int[] downsamplingFactors,
+			final boolean zOrder,
+			final N5CompletionTracker completionTracker,
+			final boolean removeEmptyBlocks )
+	{
+		final int dim = inputAttributes.getNumDimensions();
+		final DataType dataType = inputAttributes.getDataType();
+		final long[] outputDimensions = outputAttributes.getDimensions();
+		final int[] outputBlockSize = outputAttributes.getBlockSize();
+
+		final int[] fullSourceDimensions = new int[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			fullSourceDimensions[ d ] = outputBlockSize[ d ] * downsamplingFactors[ d ];
+		final int blockCacheSize = zOrder ? N5BlockReader.getBlockCacheSize( fullSourceDimensions, inputAttributes.getBlockSize() ) : 0;
+
+		return blockIndexesIterator ->
+		{
+			// set up the resources once per partition, the buffers are reused for all full-size blocks
 			final N5Writer n5Local = n5Supplier.get();
+			final N5BlockReader reader = new N5BlockReader( n5Local, inputDatasetPath, inputAttributes, blockCacheSize );
+			final DownsamplingKernel kernel = DownsamplingKernel.forDataType( dataType );
+			final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
+			final DataBlock< ? > fullSourceBlock = dataType.createDataBlock( fullSourceDimensions, new long[ dim ] );
+			final Object fullTargetData = dataType.createDataBlock( outputBlockSize, new long[ dim ] ).getData();
 
-			final RandomAccessibleInterval< T > source = N5Utils.open( n5Local, inputDatasetPath );
-			final RandomAccessibleInterval< T > sourceBlock = Views.offsetInterval( source, sourceInterval );
+			final long[] sourceMin = new long[ dim ], targetMin = new long[ dim ];
+			final int[] cellDimensions = new int[ dim ], sourceDimensions = new int[ dim ];
 
-			/* test if empty */
-			final T defaultValue = Util.getTypeFromInterval( sourceBlock ).createVariable();
-			boolean isEmpty = true;
-			for ( final T t : Views.iterable( sourceBlock ) )
-			{
-				isEmpty &= defaultValue.valueEquals( t );
-				if ( !isEmpty ) break;
-			}
-			if ( isEmpty )
+			// when resuming, the partition is skipped as a whole if exactly the same blocks have been completed by the previous job
+			final long[] partitionBlockIndexes = completionTracker != null ? N5CompletionTracker.collectBlockIndexes( blockIndexesIterator ) : null;
+			if ( partitionBlockIndexes != null && completionTracker.isCompleted( n5Local, partitionBlockIndexes ) )
 				return;
+			final Iterator< Long > partitionBlockIndexesIterator = partitionBlockIndexes != null ? Arrays.stream( partitionBlockIndexes ).iterator() : blockIndexesIterator;
 
-			/* do if not empty */
-			final RandomAccessibleInterval< T > targetBlock = new ArrayImgFactory<>( defaultValue ).create( targetInterval );
-			Downsample.downsample( sourceBlock, targetBlock, downsamplingFactors );
+			while ( partitionBlockIndexesIterator.hasNext() )
+			{
+				final long[] blockGridPosition = new long[ dim ];
+				cellGrid.getCellGridPositionFlat( partitionBlockIndexesIterator.next(), blockGridPosition );
+
+				cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
+				for ( int d = 0; d < dim; ++d )
+				{
+					sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ];
+					sourceDimensions[ d ] = cellDimensions[ d ] * downsamplingFactors[ d ];
+				}
+				final boolean isFullBlock = Arrays.equals( cellDimensions, outputBlockSize );
+
+				/* read the source blocks directly */
+				final DataBlock< ? > sourceBlock = isFullBlock ? fullSourceBlock : dataType.createDataBlock( sourceDimensions, new long[ dim ] );
+				final boolean isSourceEmpty = !reader.read( sourceMin, sourceBlock ) || N5SparkUtils.isEmpty( sourceBlock );
+
+				/* do if not empty */
+				final DataBlock< ? > targetBlock;
+				if ( !isSourceEmpty )
+				{
+					targetBlock = isFullBlock
+							? N5SparkUtils.createDataBlock( dataType, cellDimensions.clone(), blockGridPosition, fullTargetData )
+							: dataType.createDataBlock( cellDimensions.clone(), blockGridPosition );
+					kernel.downsample( sourceBlock, targetBlock, downsamplingFactors );
+				}
+				else
+				{
+					targetBlock = null;
+				}
+
+				if ( targetBlock != null && !N5SparkUtils.isEmpty( targetBlock ) )
+					n5Local.writeBlock( outputDatasetPath, outputAttributes, targetBlock );
+				else if ( removeEmptyBlocks )
+					N5BlockWriter.removeBlock( n5Local, outputDatasetPath, blockGridPosition );
+			}
 
-			N5Utils.saveNonEmptyBlock( targetBlock, n5Local, outputDatasetPath, blockGridPosition, defaultValue );
-		} );
+			if ( completionTracker != null )
+				completionTracker.markCompleted( n5Local, partitionBlockIndexes );
+		};
 	}
 
-
 	public static void main( final String... args ) throws IOException, CmdLineException
 	{
 		final Arguments parsedArgs = new Arguments( args );
@@ -191,7 +546,10 @@ public class N5DownsamplerSpark
 					parsedArgs.getInputDatasetPath(),
 					outputDatasetPath[ 0 ],
 					downsamplingFactors[ 0 ],
-					parsedArgs.getBlockSize()
+					parsedArgs.getBlockSize(),
+					parsedArgs.isSparse(),
+					parsedArgs.isZOrder(),
+					parsedArgs.isResumable()
 				);
 
 			for ( int i = 1; i < downsamplingFactors.length; i++ )
@@ -202,7 +560,10 @@ public class N5DownsamplerSpark
 						outputDatasetPath[ i - 1 ],
 						outputDatasetPath[ i ],
 						downsamplingFactors[ i ],
-						parsedArgs.getBlockSize()
+						parsedArgs.getBlockSize(),
+						parsedArgs.isSparse(),
+						parsedArgs.isZOrder(),
+						parsedArgs.isResumable()
 					);
 			}
 		}
@@ -233,6 +594,18 @@ public class N5DownsamplerSpark
 				usage = "Block size for the output dataset (by default same as for input dataset).")
 		private String blockSize;
 
+		@Option(name = "-s", aliases = { "--sparse" }, required = false,
+				usage = "Scan the input dataset for existing blocks first and process only the output blocks affected by them (beneficial for largely empty datasets).")
+		private boolean sparse;
+
+		@Option(name = "-z", aliases = { "--zOrder" }, required = false,
+				usage = "Process the output blocks in Z-order and reuse the shared input blocks within each partition (beneficial if the input blocks are not aligned with the downsampled output blocks).")
+		private boolean zOrder;
+
+		@Option(name = "-r", aliases = { "--resumable" }, required = false,
+				usage = "Record the completed partitions of output blocks (one record per partition with its exact set of blocks), so a failed job can be resumed by running it again with the same parameters and input: the existing output dataset is re-opened and a partition is skipped only if exactly the same blocks have been completed as one partition before. With the same partitioning, only the unfinished partitions are processed, otherwise the changed partitions are processed again.")
+		private boolean resumable;
+
 		public Arguments( final String... args ) throws IllegalArgumentException
 		{
 			final CmdLineParser parser = new CmdLineParser( this );
@@ -253,5 +626,8 @@ public class N5DownsamplerSpark
 		public String[] getOutputDatasetPath() { return outputDatasetPath; }
 		public int[][] getDownsamplingFactors() { return CmdUtils.parseMultipleIntArrays( downsamplingFactors ); }
 		public int[] getBlockSize() { return CmdUtils.parseIntArray( blockSize ); }
+		public boolean isSparse() { return sparse; }
+		public boolean isZOrder() { return zOrder; }
+		public boolean isResumable() { return resumable; }
 	}
 }
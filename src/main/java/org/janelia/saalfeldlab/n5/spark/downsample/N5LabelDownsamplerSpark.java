@@ -3,42 +3,29 @@ package org.janelia.saalfeldlab.n5.spark.downsample;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+import org.janelia.saalfeldlab.n5.spark.util.ZOrderCurve;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import net.imglib2.Cursor;
-import net.imglib2.FinalInterval;
-import net.imglib2.Interval;
-import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessible;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.neighborhood.Neighborhood;
-import net.imglib2.algorithm.neighborhood.RectangleNeighborhoodFactory;
-import net.imglib2.algorithm.neighborhood.RectangleNeighborhoodUnsafe;
-import net.imglib2.algorithm.neighborhood.RectangleShape;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.util.Intervals;
-import net.imglib2.util.Util;
-import net.imglib2.view.Views;
 
 public class N5LabelDownsamplerSpark
 {
@@ -95,6 +82,44 @@ public class N5LabelDownsamplerSpark
 			final String outputDatasetPath,
 			final int[] downsamplingFactors,
 			final int[] blockSize ) throws IOException
+	{
+		downsampleLabel(
+				sparkContext,
+				n5Supplier,
+				inputDatasetPath,
+				outputDatasetPath,
+				downsamplingFactors,
+				blockSize,
+				false
+			);
+	}
+
+	/**
+	 * Downsamples the given input dataset with respect to the given downsampling factors.
+	 * Instead of averaging, it uses the value that is the most frequent in the neighborhood.
+	 * In case of equal frequencies, the smallest label value among them is used.
+	 * The output dataset will be created within the same N5 container with given block size.
+	 *
+	 * If {@code zOrder} is set, the output blocks are assigned to partitions along the Z-order curve instead of the raster order,
+	 * and the input blocks shared by neighboring output blocks are cached and read only once within each partition.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPath
+	 * @param downsamplingFactors
+	 * @param blockSize
+	 * @param zOrder
+	 * @throws IOException
+	 */
+	public static < T extends NativeType< T > & IntegerType< T > > void downsampleLabel(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final String outputDatasetPath,
+			final int[] downsamplingFactors,
+			final int[] blockSize,
+			final boolean zOrder ) throws IOException
 	{
 		final N5Writer n5 = n5Supplier.get();
 		if ( !n5.datasetExists( inputDatasetPath ) )
@@ -124,120 +149,268 @@ public class N5LabelDownsamplerSpark
 				inputAttributes.getCompression()
 			);
 
-		final CellGrid outputCellGrid = new CellGrid( outputDimensions, outputBlockSize );
-		final long numDownsampledBlocks = Intervals.numElements( outputCellGrid.getGridDimensions() );
-		final List< Long > blockIndexes = LongStream.range( 0, numDownsampledBlocks ).boxed().collect( Collectors.toList() );
+		final DataType dataType = inputAttributes.getDataType();
+		final DatasetAttributes outputAttributes = n5.getDatasetAttributes( outputDatasetPath );
+		final long[] outputGridDimensions = new CellGrid( outputDimensions, outputBlockSize ).getGridDimensions();
+		final JavaRDD< Long > blockIndexesRdd = zOrder
+				? ZOrderCurve.parallelizeBlockIndexes( sparkContext, outputGridDimensions, MAX_PARTITIONS )
+				: N5SparkUtils.parallelizeIndexRange( sparkContext, Intervals.numElements( outputGridDimensions ), MAX_PARTITIONS );
+
+		final int[] fullSourceDimensions = new int[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			fullSourceDimensions[ d ] = outputBlockSize[ d ] * downsamplingFactors[ d ];
+		final int blockCacheSize = zOrder ? N5BlockReader.getBlockCacheSize( fullSourceDimensions, inputAttributes.getBlockSize() ) : 0;
 
-		sparkContext.parallelize( blockIndexes, Math.min( blockIndexes.size(), MAX_PARTITIONS ) ).foreach( blockIndex ->
+		blockIndexesRdd.foreachPartition( blockIndexesIterator ->
 		{
+			// set up the resources once per partition, the buffers are reused for all full-size blocks
+			final N5Writer n5Local = n5Supplier.get();
+			final N5BlockReader reader = new N5BlockReader( n5Local, inputDatasetPath, inputAttributes, blockCacheSize );
+			final LabelDownsamplingKernel kernel = new LabelDownsamplingKernel( dataType );
 			final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
-			final long[] blockGridPosition = new long[ cellGrid.numDimensions() ];
-			cellGrid.getCellGridPositionFlat( blockIndex, blockGridPosition );
+			final DataBlock< ? > fullSourceBlock = dataType.createDataBlock( fullSourceDimensions, new long[ dim ] );
+			final Object fullTargetData = dataType.createDataBlock( outputBlockSize, new long[ dim ] ).getData();
+
+			final long[] sourceMin = new long[ dim ], targetMin = new long[ dim ];
+			final int[] cellDimensions = new int[ dim ], sourceDimensions = new int[ dim ];
 
-			final long[] sourceMin = new long[ dim ], sourceMax = new long[ dim ], targetMin = new long[ dim ], targetMax = new long[ dim ];
-			final int[] cellDimensions = new int[ dim ];
-			cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
-			for ( int d = 0; d < dim; ++d )
+			while ( blockIndexesIterator.hasNext() )
 			{
-				targetMax[ d ] = targetMin[ d ] + cellDimensions[ d ] - 1;
-				sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ];
-				sourceMax[ d ] = targetMax[ d ] * downsamplingFactors[ d ] + downsamplingFactors[ d ] - 1;
+				final long[] blockGridPosition = new long[ dim ];
+				cellGrid.getCellGridPositionFlat( blockIndexesIterator.next(), blockGridPosition );
+				cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
+				for ( int d = 0; d < dim; ++d )
+				{
+					sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ];
+					sourceDimensions[ d ] = cellDimensions[ d ] * downsamplingFactors[ d ];
+				}
+				final boolean isFullBlock = Arrays.equals( cellDimensions, outputBlockSize );
+
+				/* read the source blocks directly and skip if empty */
+				final DataBlock< ? > sourceBlock = isFullBlock ? fullSourceBlock : dataType.createDataBlock( sourceDimensions, new long[ dim ] );
+				if ( !reader.read( sourceMin, sourceBlock ) || N5SparkUtils.isEmpty( sourceBlock ) )
+					continue;
+
+				/* do if not empty */
+				final DataBlock< ? > targetBlock = isFullBlock
+						? N5SparkUtils.createDataBlock( dataType, cellDimensions.clone(), blockGridPosition, fullTargetData )
+						: dataType.createDataBlock( cellDimensions.clone(), blockGridPosition );
+				kernel.downsample( sourceBlock, targetBlock, downsamplingFactors );
+
+				if ( !N5SparkUtils.isEmpty( targetBlock ) )
+					n5Local.writeBlock( outputDatasetPath, outputAttributes, targetBlock );
 			}
-			final Interval sourceInterval = new FinalInterval( sourceMin, sourceMax );
-			final Interval targetInterval = new FinalInterval( targetMin, targetMax );
+		} );
+	}
+
+	/**
+	 * Downsamples the given input dataset with respect to the given downsampling factors.
+	 * Instead of selecting a single label, it stores the multiset of labels with their counts for each output voxel (see {@link LabelMultisetBlock}),
+	 * so small segments are not lost at coarse scale levels.
+	 * The input dataset can be either a regular label dataset, or a label multiset dataset produced by this method.
+	 * In the latter case the input multisets are merged, so the counts always refer to the full-resolution label data.
+	 * The output dataset will be created within the same N5 container with given block size.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPath
+	 * @param downsamplingFactors
+	 * @param blockSize
+	 * @throws IOException
+	 */
+	public static void downsampleLabelMultisets(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final String outputDatasetPath,
+			final int[] downsamplingFactors,
+			final int[] blockSize ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		if ( !n5.datasetExists( inputDatasetPath ) )
+			throw new IllegalArgumentException( "Input N5 dataset " + inputDatasetPath + " does not exist" );
+		if ( n5.datasetExists( outputDatasetPath ) )
+			throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " already exists" );
 
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
+		final int dim = inputAttributes.getNumDimensions();
+		final DataType dataType = inputAttributes.getDataType();
+		final boolean isInputLabelMultiset = LabelMultisetBlock.isLabelMultisetDataset( n5, inputDatasetPath );
+
+		if ( dim != downsamplingFactors.length )
+			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
+
+		if ( !isInputLabelMultiset && ( dataType == DataType.FLOAT32 || dataType == DataType.FLOAT64 ) )
+			throw new IllegalArgumentException( "Label downsampling is not supported for data type " + dataType );
+
+		final long[] outputDimensions = new long[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			outputDimensions[ d ] = inputAttributes.getDimensions()[ d ] / downsamplingFactors[ d ];
+
+		if ( Arrays.stream( outputDimensions ).min().getAsLong() < 1 )
+			throw new IllegalArgumentException( "Degenerate output dimensions: " + Arrays.toString( outputDimensions ) );
+
+		final int[] outputBlockSize = blockSize != null ? blockSize : inputAttributes.getBlockSize();
+		n5.createDataset(
+				outputDatasetPath,
+				outputDimensions,
+				outputBlockSize,
+				DataType.UINT8,
+				inputAttributes.getCompression()
+			);
+		n5.setAttribute( outputDatasetPath, LabelMultisetBlock.LABEL_MULTISET_ATTRIBUTE_KEY, true );
+
+		final DatasetAttributes outputAttributes = n5.getDatasetAttributes( outputDatasetPath );
+		final long[] outputGridDimensions = new CellGrid( outputDimensions, outputBlockSize ).getGridDimensions();
+		final JavaRDD< Long > blockIndexesRdd = N5SparkUtils.parallelizeIndexRange( sparkContext, Intervals.numElements( outputGridDimensions ), MAX_PARTITIONS );
+
+		final int[] fullSourceDimensions = new int[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			fullSourceDimensions[ d ] = outputBlockSize[ d ] * downsamplingFactors[ d ];
+
+		blockIndexesRdd.foreachPartition( blockIndexesIterator ->
+		{
 			final N5Writer n5Local = n5Supplier.get();
-			final RandomAccessibleInterval< T > source = N5Utils.open( n5Local, inputDatasetPath );
-			final RandomAccessibleInterval< T > sourceBlock = Views.offsetInterval( source, sourceInterval );
+			final N5BlockReader reader = isInputLabelMultiset ? null : new N5BlockReader( n5Local, inputDatasetPath, inputAttributes );
+			final DataBlock< ? > fullSourceBlock = isInputLabelMultiset ? null : dataType.createDataBlock( fullSourceDimensions, new long[ dim ] );
+			final LabelMultisetBlock.Builder builder = new LabelMultisetBlock.Builder();
+			final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
+
+			final long[] sourceMin = new long[ dim ], targetMin = new long[ dim ];
+			final int[] cellDimensions = new int[ dim ], sourceDimensions = new int[ dim ];
 
-			/* test if empty */
-			final T defaultValue = Util.getTypeFromInterval( sourceBlock ).createVariable();
-			boolean isEmpty = true;
-			for ( final T t : Views.iterable( sourceBlock ) )
+			while ( blockIndexesIterator.hasNext() )
 			{
-				isEmpty &= defaultValue.valueEquals( t );
-				if ( !isEmpty ) break;
-			}
-			if ( isEmpty )
-				return;
+				final long[] blockGridPosition = new long[ dim ];
+				cellGrid.getCellGridPositionFlat( blockIndexesIterator.next(), blockGridPosition );
+				cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
+				for ( int d = 0; d < dim; ++d )
+				{
+					sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ];
+					sourceDimensions[ d ] = cellDimensions[ d ] * downsamplingFactors[ d ];
+				}
 
-			/* do if not empty */
-			final RandomAccessibleInterval< T > targetBlock = new ArrayImgFactory<>( defaultValue ).create( targetInterval );
-			downsampleLabel( sourceBlock, targetBlock, downsamplingFactors );
+				if ( isInputLabelMultiset )
+				{
+					addLabelMultisets( n5Local, inputDatasetPath, inputAttributes, sourceMin, sourceDimensions, downsamplingFactors, cellDimensions, builder );
+				}
+				else
+				{
+					final DataBlock< ? > sourceBlock = Arrays.equals( cellDimensions, outputBlockSize ) ? fullSourceBlock : dataType.createDataBlock( sourceDimensions, new long[ dim ] );
+					if ( reader.read( sourceMin, sourceBlock ) )
+						addLabels( sourceBlock.getData(), dataType, sourceDimensions, downsamplingFactors, cellDimensions, builder );
+				}
 
-			N5Utils.saveNonEmptyBlock( targetBlock, n5Local, outputDatasetPath, blockGridPosition, defaultValue );
+				final LabelMultisetBlock targetBlock = builder.build( ( int ) Intervals.numElements( cellDimensions ) );
+				if ( targetBlock.getNumEntries() != 0 )
+					targetBlock.write( n5Local, outputDatasetPath, outputAttributes, blockGridPosition );
+			}
 		} );
 	}
 
 	/**
-	 * Based on {@link bdv.export.Downsample}.
+	 * Adds the labels of the source region to the multisets of the corresponding target voxels.
 	 */
-	private static < T extends IntegerType< T > > void downsampleLabel(
-			final RandomAccessible< T > input,
-			final RandomAccessibleInterval< T > output,
-			final int[] factor )
+	private static void addLabels(
+			final Object sourceData,
+			final DataType dataType,
+			final int[] sourceDimensions,
+			final int[] downsamplingFactors,
+			final int[] targetDimensions,
+			final LabelMultisetBlock.Builder builder )
 	{
-		assert input.numDimensions() == output.numDimensions();
-		assert input.numDimensions() == factor.length;
+		final int n = sourceDimensions.length;
+		final int[] position = new int[ n ];
+		final long numElements = Intervals.numElements( sourceDimensions );
+		for ( int i = 0; i < numElements; ++i )
+		{
+			int targetIndex = 0;
+			for ( int d = n - 1; d >= 0; --d )
+				targetIndex = targetIndex * targetDimensions[ d ] + position[ d ] / downsamplingFactors[ d ];
+			builder.add( targetIndex, LabelDownsamplingKernel.getLabel( sourceData, i, dataType ), 1 );
 
-		final int n = input.numDimensions();
-		final RectangleNeighborhoodFactory< T > f = RectangleNeighborhoodUnsafe.< T >factory();
-		final long[] dim = new long[ n ];
-		for ( int d = 0; d < n; ++d )
-			dim[ d ] = factor[ d ];
-		final Interval spanInterval = new FinalInterval( dim );
+			for ( int d = 0; d < n && ++position[ d ] == sourceDimensions[ d ]; ++d )
+				position[ d ] = 0;
+		}
+	}
 
-		final long[] minRequiredInput = new long[ n ];
-		final long[] maxRequiredInput = new long[ n ];
-		output.min( minRequiredInput );
-		output.max( maxRequiredInput );
+	/**
+	 * Adds the label multisets of the source region to the multisets of the corresponding target voxels.
+	 * Reads all input blocks that intersect with the source region, missing blocks are skipped.
+	 *
+	 * @param n5
+	 * @param inputDatasetPath
+	 * 			label multiset dataset
+	 * @param inputAttributes
+	 * @param sourceMin
+	 * @param sourceDimensions
+	 * @param downsamplingFactors
+	 * @param targetDimensions
+	 * @param builder
+	 * @throws IOException
+	 */
+	public static void addLabelMultisets(
+			final N5Reader n5,
+			final String inputDatasetPath,
+			final DatasetAttributes inputAttributes,
+			final long[] sourceMin,
+			final int[] sourceDimensions,
+			final int[] downsamplingFactors,
+			final int[] targetDimensions,
+			final LabelMultisetBlock.Builder builder ) throws IOException
+	{
+		final int n = sourceMin.length;
+		final int[] inputBlockSize = inputAttributes.getBlockSize();
+		final CellGrid inputGrid = new CellGrid( inputAttributes.getDimensions(), inputBlockSize );
+
+		final long[] gridMin = new long[ n ], gridMax = new long[ n ];
 		for ( int d = 0; d < n; ++d )
 		{
-			minRequiredInput[ d ] *= factor[ d ];
-			maxRequiredInput[ d ] *= factor[ d ];
-			maxRequiredInput[ d ] += factor[ d ] - 1;
+			gridMin[ d ] = sourceMin[ d ] / inputBlockSize[ d ];
+			gridMax[ d ] = ( sourceMin[ d ] + sourceDimensions[ d ] - 1 ) / inputBlockSize[ d ];
 		}
-		final RandomAccessibleInterval< T > requiredInput = Views.interval( input, new FinalInterval( minRequiredInput, maxRequiredInput ) );
-
-		final RectangleShape.NeighborhoodsAccessible< T > neighborhoods = new RectangleShape.NeighborhoodsAccessible<>( requiredInput, spanInterval, f );
-		final RandomAccess< Neighborhood< T > > block = neighborhoods.randomAccess();
-
-		final Cursor< T > out = Views.iterable( output ).localizingCursor();
 
-		final Map< Long, Integer > labelCount = new HashMap<>();
-
-		while( out.hasNext() )
+		final long[] gridPosition = gridMin.clone(), cellMin = new long[ n ];
+		final int[] cellDimensions = new int[ n ], position = new int[ n ];
+		while ( true )
 		{
-			final T o = out.next();
-			for ( int d = 0; d < n; ++d )
-				block.setPosition( out.getLongPosition( d ) * factor[ d ], d );
-
-			// find count for each label
-			labelCount.clear();
-			for ( final T i : block.get() )
-				labelCount.put( i.getIntegerLong(), labelCount.getOrDefault( i.getIntegerLong(), 0 ) + 1 );
-
-			// find the most frequent label, or in case of multiple labels with the same frequency, the smallest label among them
-			int maxCount = Integer.MIN_VALUE;
-			long labelWithMaxCount = Long.MIN_VALUE;
-			for ( final Entry< Long, Integer > entry : labelCount.entrySet() )
+			final LabelMultisetBlock inputBlock = LabelMultisetBlock.read( n5, inputDatasetPath, inputAttributes, gridPosition );
+			if ( inputBlock != null )
 			{
-				if ( maxCount < entry.getValue() )
-				{
-					maxCount = entry.getValue();
-					labelWithMaxCount = entry.getKey();
-				}
-				else if ( maxCount == entry.getValue() && labelWithMaxCount > entry.getKey() )
+				inputGrid.getCellDimensions( gridPosition, cellMin, cellDimensions );
+				if ( inputBlock.getNumVoxels() != Intervals.numElements( cellDimensions ) )
+					throw new RuntimeException( "Label multiset block " + Arrays.toString( gridPosition ) + " has " + inputBlock.getNumVoxels() + " voxels, expected " + Intervals.numElements( cellDimensions ) );
+
+				Arrays.fill( position, 0 );
+				for ( int v = 0; v < inputBlock.getNumVoxels(); ++v )
 				{
-					labelWithMaxCount = entry.getKey();
+					int targetIndex = 0;
+					for ( int d = n - 1; d >= 0 && targetIndex >= 0; --d )
+					{
+						final long sourcePosition = cellMin[ d ] + position[ d ] - sourceMin[ d ];
+						targetIndex = sourcePosition >= 0 && sourcePosition < sourceDimensions[ d ]
+								? targetIndex * targetDimensions[ d ] + ( int ) ( sourcePosition / downsamplingFactors[ d ] )
+								: -1;
+					}
+
+					if ( targetIndex >= 0 )
+						for ( int e = inputBlock.getEntriesStart( v ); e < inputBlock.getEntriesEnd( v ); ++e )
+							builder.add( targetIndex, inputBlock.getLabel( e ), inputBlock.getCount( e ) );
+
+					for ( int d = 0; d < n && ++position[ d ] == cellDimensions[ d ]; ++d )
+						position[ d ] = 0;
 				}
 			}
 
-			o.setInteger( labelWithMaxCount );
+			int d = 0;
+			for ( ; d < n && ++gridPosition[ d ] > gridMax[ d ]; ++d )
+				gridPosition[ d ] = gridMin[ d ];
+			if ( d == n )
+				break;
 		}
 	}
 
-
 	public static void main( final String... args ) throws IOException, CmdLineException
 	{
 		final Arguments parsedArgs = new Arguments( args );
@@ -248,14 +421,29 @@ public class N5LabelDownsamplerSpark
 			) )
 		{
 			final N5WriterSupplier n5Supplier = () -> new N5FSWriter( parsedArgs.getN5Path() );
-			downsampleLabel(
-					sparkContext,
-					n5Supplier,
-					parsedArgs.getInputDatasetPath(),
-					parsedArgs.getOutputDatasetPath(),
-					parsedArgs.getDownsamplingFactors(),
-					parsedArgs.getBlockSize()
-				);
+			if ( parsedArgs.isMultisets() )
+			{
+				downsampleLabelMultisets(
+						sparkContext,
+						n5Supplier,
+						parsedArgs.getInputDatasetPath(),
+						parsedArgs.getOutputDatasetPath(),
+						parsedArgs.getDownsamplingFactors(),
+						parsedArgs.getBlockSize()
+					);
+			}
+			else
+			{
+				downsampleLabel(
+						sparkContext,
+						n5Supplier,
+						parsedArgs.getInputDatasetPath(),
+						parsedArgs.getOutputDatasetPath(),
+						parsedArgs.getDownsamplingFactors(),
+						parsedArgs.getBlockSize(),
+						parsedArgs.isZOrder()
+					);
+			}
 		}
 		System.out.println( "Done" );
 	}
@@ -284,12 +472,23 @@ public class N5LabelDownsamplerSpark
 				usage = "Block size for the output dataset (by default same as for input dataset).")
 		private String blockSize;
 
+		@Option(name = "-z", aliases = { "--zOrder" }, required = false,
+				usage = "Process the output blocks in Z-order and reuse the shared input blocks within each partition (beneficial if the input blocks are not aligned with the downsampled output blocks).")
+		private boolean zOrder;
+
+		@Option(name = "-m", aliases = { "--multisets" }, required = false,
+				usage = "Store the multiset of labels with their counts for each output voxel instead of the most frequent label. The input dataset can be a label multiset dataset as well.")
+		private boolean multisets;
+
 		public Arguments( final String... args ) throws IllegalArgumentException
 		{
 			final CmdLineParser parser = new CmdLineParser( this );
 			try
 			{
 				parser.parseArgument( args );
+
+				if ( multisets && zOrder )
+					throw new IllegalArgumentException( "Z-order processing is not supported for label multisets." );
 			}
 			catch ( final CmdLineException e )
 			{
@@ -304,5 +503,7 @@ public class N5LabelDownsamplerSpark
 		public String getOutputDatasetPath() { return outputDatasetPath; }
 		public int[] getDownsamplingFactors() { return CmdUtils.parseIntArray( downsamplingFactors ); }
 		public int[] getBlockSize() { return CmdUtils.parseIntArray( blockSize ); }
+		public boolean isZOrder() { return zOrder; }
+		public boolean isMultisets() { return multisets; }
 	}
 }
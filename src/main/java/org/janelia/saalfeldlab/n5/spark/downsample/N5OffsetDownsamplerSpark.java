@@ -3,40 +3,30 @@ package org.janelia.saalfeldlab.n5.spark.downsample;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+import org.janelia.saalfeldlab.n5.spark.util.ZOrderCurve;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import bdv.export.Downsample;
-import net.imglib2.Cursor;
-import net.imglib2.FinalInterval;
-import net.imglib2.Interval;
-import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessible;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.neighborhood.Neighborhood;
-import net.imglib2.algorithm.neighborhood.RectangleNeighborhoodFactory;
-import net.imglib2.algorithm.neighborhood.RectangleNeighborhoodUnsafe;
-import net.imglib2.algorithm.neighborhood.RectangleShape;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
-import net.imglib2.view.Views;
 
 public class N5OffsetDownsamplerSpark
 {
@@ -102,6 +92,49 @@ public class N5OffsetDownsamplerSpark
 			final int[] downsamplingFactors,
 			final long[] offset,
 			final int[] blockSize ) throws IOException
+	{
+		downsampleWithOffset(
+				sparkContext,
+				n5Supplier,
+				inputDatasetPath,
+				outputDatasetPath,
+				downsamplingFactors,
+				offset,
+				blockSize,
+				false
+			);
+	}
+
+	/**
+	 * Downsamples the given input dataset with respect to the given downsampling factors and the given offset.
+	 * The output dataset will be created within the same N5 container with given block size.
+	 *
+	 * For example, if the input dataset dimensions are [9], the downsampling factor is [4], and the offset is [3],
+	 * the resulting accumulated pixels will be [(0),(1,2,3,4),(5,6,7,8)].
+	 * When downsampling without the offset in the same example, the result will be [(0,1,2,3),(4,5,6,7)].
+	 *
+	 * If {@code zOrder} is set, the output blocks are assigned to partitions along the Z-order curve instead of the raster order,
+	 * so the input blocks shared by neighboring output blocks are more likely to be reused from the cache within each partition.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPath
+	 * @param downsamplingFactors
+	 * @param offset
+	 * @param blockSize
+	 * @param zOrder
+	 * @throws IOException
+	 */
+	public static < T extends NativeType< T > & RealType< T > > void downsampleWithOffset(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final String outputDatasetPath,
+			final int[] downsamplingFactors,
+			final long[] offset,
+			final int[] blockSize,
+			final boolean zOrder ) throws IOException
 	{
 		final N5Writer n5 = n5Supplier.get();
 		if ( !n5.datasetExists( inputDatasetPath ) )
@@ -131,125 +164,250 @@ public class N5OffsetDownsamplerSpark
 				inputAttributes.getCompression()
 			);
 
-		final CellGrid outputCellGrid = new CellGrid( outputDimensions, outputBlockSize );
-		final long numDownsampledBlocks = Intervals.numElements( outputCellGrid.getGridDimensions() );
-		final List< Long > blockIndexes = LongStream.range( 0, numDownsampledBlocks ).boxed().collect( Collectors.toList() );
+		final DataType dataType = inputAttributes.getDataType();
+		final long[] inputDimensions = inputAttributes.getDimensions();
+		final DatasetAttributes outputAttributes = n5.getDatasetAttributes( outputDatasetPath );
+		final long[] outputGridDimensions = new CellGrid( outputDimensions, outputBlockSize ).getGridDimensions();
+		final JavaRDD< Long > blockIndexesRdd = zOrder
+				? ZOrderCurve.parallelizeBlockIndexes( sparkContext, outputGridDimensions, MAX_PARTITIONS )
+				: N5SparkUtils.parallelizeIndexRange( sparkContext, Intervals.numElements( outputGridDimensions ), MAX_PARTITIONS );
 
-		sparkContext.parallelize( blockIndexes, Math.min( blockIndexes.size(), MAX_PARTITIONS ) ).foreach( blockIndex ->
-		{
-			// downsampled block index to grid position
-			final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
-			final long[] blockGridPosition = new long[ cellGrid.numDimensions() ];
-			cellGrid.getCellGridPositionFlat( blockIndex, blockGridPosition );
-
-			// find corresponding source interval
-			final long[] sourceMin = new long[ dim ], sourceMax = new long[ dim ], targetMin = new long[ dim ], targetMax = new long[ dim ];
-			final int[] cellDimensions = new int[ dim ];
-			cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
-			for ( int d = 0; d < dim; ++d )
-			{
-				targetMax[ d ] = targetMin[ d ] + cellDimensions[ d ] - 1;
-				sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ];
-				sourceMax[ d ] = targetMax[ d ] * downsamplingFactors[ d ] + downsamplingFactors[ d ] - 1;
-			}
-			final Interval sourceInterval = new FinalInterval( sourceMin, sourceMax );
-			final Interval targetInterval = new FinalInterval( targetMin, targetMax );
+		final int[] fullSourceDimensions = new int[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			fullSourceDimensions[ d ] = outputBlockSize[ d ] * downsamplingFactors[ d ];
+		final int blockCacheSize = zOrder ? N5BlockReader.getBlockCacheSize( fullSourceDimensions, inputAttributes.getBlockSize() ) : 0;
 
+		blockIndexesRdd.foreachPartition( blockIndexesIterator ->
+		{
+			// set up the resources once per partition, the buffers are reused for all full-size interior blocks
 			final N5Writer n5Local = n5Supplier.get();
-			final RandomAccessibleInterval< T > source = N5Utils.open( n5Local, inputDatasetPath );
+			final N5BlockReader reader = new N5BlockReader( n5Local, inputDatasetPath, inputAttributes, blockCacheSize );
+			final DownsamplingKernel kernel = DownsamplingKernel.forDataType( dataType );
+			final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
+			final DataBlock< ? > fullSourceBlock = dataType.createDataBlock( fullSourceDimensions, new long[ dim ] );
+			final Object fullTargetData = dataType.createDataBlock( outputBlockSize, new long[ dim ] ).getData();
 
-			// apply offset to source to align it with respect to the target block
-			final RandomAccessibleInterval< T > translatedSource = Views.translate( source, offset );
-			final RandomAccessibleInterval< T > sourceBlock = Views.offsetInterval( translatedSource, sourceInterval );
+			final long[] sourceMin = new long[ dim ], sourceMax = new long[ dim ], targetMin = new long[ dim ];
+			final long[] definedSourceMin = new long[ dim ];
+			final int[] cellDimensions = new int[ dim ], definedSourceDimensions = new int[ dim ];
 
-			// now that the source block is aligned, find the interval where it is defined within the target block
-			final long[] definedSourceBlockMin = new long[ dim ], definedSourceBlockMax = new long[ dim ];
-			for ( int d = 0; d < dim; ++d )
+			while ( blockIndexesIterator.hasNext() )
 			{
-				definedSourceBlockMin[ d ] = Math.max( translatedSource.min( d ) - sourceMin[ d ], 0 );
-				definedSourceBlockMax[ d ] = Math.min( translatedSource.max( d ), sourceMax[ d ] ) - sourceMin[ d ];
-			}
-			final Interval definedSourceBlockInterval = new FinalInterval( definedSourceBlockMin, definedSourceBlockMax );
-			final RandomAccessibleInterval< T > definedSourceBlock = Views.interval( sourceBlock, definedSourceBlockInterval );
+				// downsampled block index to grid position
+				final long[] blockGridPosition = new long[ dim ];
+				cellGrid.getCellGridPositionFlat( blockIndexesIterator.next(), blockGridPosition );
+
+				// find corresponding source interval, shifted by the offset, and the part of it where the input dataset is defined
+				cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
+				boolean isInterior = true, isDefined = true;
+				for ( int d = 0; d < dim; ++d )
+				{
+					sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ] - offset[ d ];
+					sourceMax[ d ] = sourceMin[ d ] + ( long ) cellDimensions[ d ] * downsamplingFactors[ d ] - 1;
+					definedSourceMin[ d ] = Math.max( sourceMin[ d ], 0 );
+					definedSourceDimensions[ d ] = ( int ) ( Math.min( sourceMax[ d ], inputDimensions[ d ] - 1 ) - definedSourceMin[ d ] + 1 );
+					isInterior &= sourceMin[ d ] >= 0 && sourceMax[ d ] < inputDimensions[ d ];
+					isDefined &= definedSourceDimensions[ d ] > 0;
+				}
+				if ( !isDefined )
+					continue;
 
-			/* test if empty */
-			final T defaultValue = Util.getTypeFromInterval( source ).createVariable();
-			boolean isEmpty = true;
-			for ( final T t : Views.iterable( definedSourceBlock ) )
-			{
-				isEmpty &= defaultValue.valueEquals( t );
-				if ( !isEmpty ) break;
-			}
-			if ( isEmpty )
-				return;
+				/* read the defined part of the source interval directly and skip if empty */
+				final boolean isFullBlock = isInterior && Arrays.equals( cellDimensions, outputBlockSize );
+				final DataBlock< ? > sourceBlock = isFullBlock ? fullSourceBlock : dataType.createDataBlock( definedSourceDimensions.clone(), new long[ dim ] );
+				if ( !reader.read( definedSourceMin, sourceBlock ) || N5SparkUtils.isEmpty( sourceBlock ) )
+					continue;
 
-			/* do if not empty */
-			final RandomAccessibleInterval< T > targetBlock = new ArrayImgFactory<>( defaultValue ).create( targetInterval );
+				/* do if not empty */
+				final DataBlock< ? > targetBlock = isFullBlock
+						? N5SparkUtils.createDataBlock( dataType, cellDimensions.clone(), blockGridPosition, fullTargetData )
+						: dataType.createDataBlock( cellDimensions.clone(), blockGridPosition );
 
-			if ( Intervals.equalDimensions( definedSourceBlockInterval, sourceInterval ) )
-				Downsample.downsample( sourceBlock, targetBlock, downsamplingFactors );
-			else
-				downsampleIntervalOutOfBoundsCheck( sourceBlock, targetBlock, downsamplingFactors, definedSourceBlockInterval );
+				downsampleBlock( sourceBlock, targetBlock, dataType, kernel, downsamplingFactors, sourceMin, definedSourceMin );
 
-			N5Utils.saveNonEmptyBlock( targetBlock, n5Local, outputDatasetPath, blockGridPosition, defaultValue );
+				if ( !N5SparkUtils.isEmpty( targetBlock ) )
+					n5Local.writeBlock( outputDatasetPath, outputAttributes, targetBlock );
+			}
 		} );
 	}
 
 	/**
-	 * Based on {@link bdv.export.Downsample}.
+	 * Downsamples a single block with respect to the given downsampling factors and offset.
+	 * If the source interval of the block is entirely covered by the input dataset, the regular downsampling kernel is used.
+	 * Otherwise, the block is at the border of the input dataset and each target value is the average of the defined part of its window.
+	 *
+	 * @param source
+	 * 			defined part of the source interval, that is, the intersection of the source interval with the input dataset
+	 * @param target
+	 * @param dataType
+	 * @param kernel
+	 * 			downsampling kernel for the data type
+	 * @param factors
+	 * @param sourceMin
+	 * 			min of the full source interval in the input dataset (the target min multiplied by the factors and shifted by the offset)
+	 * @param definedSourceMin
+	 * 			min of the defined part of the source interval in the input dataset
 	 */
-	private static < T extends RealType< T > > void downsampleIntervalOutOfBoundsCheck(
-			final RandomAccessible< T > input,
-			final RandomAccessibleInterval< T > output,
-			final int[] factor,
-			final Interval definedInputInterval )
+	public static void downsampleBlock(
+			final DataBlock< ? > source,
+			final DataBlock< ? > target,
+			final DataType dataType,
+			final DownsamplingKernel kernel,
+			final int[] factors,
+			final long[] sourceMin,
+			final long[] definedSourceMin )
 	{
-		assert input.numDimensions() == output.numDimensions();
-		assert input.numDimensions() == factor.length;
+		boolean isInterior = true;
+		for ( int d = 0; d < factors.length; ++d )
+			isInterior &= sourceMin[ d ] == definedSourceMin[ d ] && source.getSize()[ d ] == target.getSize()[ d ] * factors[ d ];
+
+		if ( isInterior )
+			kernel.downsample( source, target, factors );
+		else
+			downsampleClipped( source, target, dataType, factors, sourceMin, definedSourceMin );
+	}
 
-		final int n = input.numDimensions();
-		final RectangleNeighborhoodFactory< T > f = RectangleNeighborhoodUnsafe.< T >factory();
-		final long[] dim = new long[ n ];
-		for ( int d = 0; d < n; ++d )
-			dim[ d ] = factor[ d ];
-		final Interval spanInterval = new FinalInterval( dim );
+	/**
+	 * Downsamples a block that is only partially covered by the input dataset.
+	 * The windows are clipped to the defined part of the source interval up front,
+	 * and each target value is the average of the values within its clipped window.
+	 * Windows that lie entirely outside of the input dataset are set to 0.
+	 *
+	 * @param source
+	 * 			defined part of the source interval
+	 * @param target
+	 * @param dataType
+	 * @param factors
+	 * @param sourceMin
+	 * 			min of the full (unclipped) source interval in the input dataset
+	 * @param definedSourceMin
+	 * 			min of the defined part of the source interval in the input dataset
+	 */
+	private static void downsampleClipped(
+			final DataBlock< ? > source,
+			final DataBlock< ? > target,
+			final DataType dataType,
+			final int[] factors,
+			final long[] sourceMin,
+			final long[] definedSourceMin )
+	{
+		final int[] sourceSize = source.getSize(), targetSize = target.getSize();
+		final int n = targetSize.length;
 
-		final long[] minRequiredInput = new long[ n ];
-		final long[] maxRequiredInput = new long[ n ];
-		output.min( minRequiredInput );
-		output.max( maxRequiredInput );
+		// clipped window bounds (inclusive) for each target position in each dimension, relative to the defined part of the source interval
+		final int[][] windowMin = new int[ n ][], windowMax = new int[ n ][];
 		for ( int d = 0; d < n; ++d )
 		{
-			minRequiredInput[ d ] *= factor[ d ];
-			maxRequiredInput[ d ] *= factor[ d ];
-			maxRequiredInput[ d ] += factor[ d ] - 1;
+			windowMin[ d ] = new int[ targetSize[ d ] ];
+			windowMax[ d ] = new int[ targetSize[ d ] ];
+			final long shift = sourceMin[ d ] - definedSourceMin[ d ];
+			for ( int x = 0; x < targetSize[ d ]; ++x )
+			{
+				windowMin[ d ][ x ] = ( int ) Math.max( shift + ( long ) x * factors[ d ], 0 );
+				windowMax[ d ][ x ] = ( int ) Math.min( shift + ( long ) x * factors[ d ] + factors[ d ] - 1, sourceSize[ d ] - 1 );
+			}
 		}
-		final RandomAccessibleInterval< T > requiredInput = Views.interval( input, new FinalInterval( minRequiredInput, maxRequiredInput ) );
 
-		final RectangleShape.NeighborhoodsAccessible< T > neighborhoods = new RectangleShape.NeighborhoodsAccessible<>( requiredInput, spanInterval, f );
-		final RandomAccess< Neighborhood< T > > block = neighborhoods.randomAccess();
+		final int[] sourceStrides = new int[ n ];
+		sourceStrides[ 0 ] = 1;
+		for ( int d = 1; d < n; ++d )
+			sourceStrides[ d ] = sourceStrides[ d - 1 ] * sourceSize[ d - 1 ];
 
-		final Cursor< T > out = Views.iterable( output ).localizingCursor();
-		while( out.hasNext() )
+		final Object sourceData = source.getData(), targetData = target.getData();
+		final UnsignedLongType unsignedLongValue = new UnsignedLongType();
+		final int[] targetPosition = new int[ n ], windowPosition = new int[ n ];
+		final long numTargetElements = Intervals.numElements( targetSize );
+		for ( int i = 0; i < numTargetElements; ++i )
 		{
-			final T o = out.next();
+			long count = 1;
 			for ( int d = 0; d < n; ++d )
-				block.setPosition( out.getLongPosition( d ) * factor[ d ], d );
-			final Cursor< T > neighborhoodCursor = block.get().localizingCursor();
+			{
+				windowPosition[ d ] = windowMin[ d ][ targetPosition[ d ] ];
+				count *= Math.max( windowMax[ d ][ targetPosition[ d ] ] - windowPosition[ d ] + 1, 0 );
+			}
 
 			double sum = 0;
-			long count = 0;
-			while ( neighborhoodCursor.hasNext() )
+			for ( long k = 0; k < count; ++k )
 			{
-				final T i = neighborhoodCursor.next();
-				if ( Intervals.contains( definedInputInterval, neighborhoodCursor ) )
-				{
-					++count;
-					sum += i.getRealDouble();
-				}
+				int sourceIndex = 0;
+				for ( int d = 0; d < n; ++d )
+					sourceIndex += windowPosition[ d ] * sourceStrides[ d ];
+				sum += getRealDouble( sourceData, sourceIndex, dataType, unsignedLongValue );
+
+				for ( int d = 0; d < n && ++windowPosition[ d ] > windowMax[ d ][ targetPosition[ d ] ]; ++d )
+					windowPosition[ d ] = windowMin[ d ][ targetPosition[ d ] ];
 			}
-			final double scale = 1.0 / count;
-			o.setReal( sum * scale );
+			setReal( targetData, i, count != 0 ? sum * ( 1.0 / count ) : 0, dataType, unsignedLongValue );
+
+			for ( int d = 0; d < n && ++targetPosition[ d ] == targetSize[ d ]; ++d )
+				targetPosition[ d ] = 0;
+		}
+	}
+
+	private static double getRealDouble( final Object data, final int index, final DataType dataType, final UnsignedLongType unsignedLongValue )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+			return ( ( byte[] ) data )[ index ];
+		case UINT8:
+			return ( ( byte[] ) data )[ index ] & 0xff;
+		case INT16:
+			return ( ( short[] ) data )[ index ];
+		case UINT16:
+			return ( ( short[] ) data )[ index ] & 0xffff;
+		case INT32:
+			return ( ( int[] ) data )[ index ];
+		case UINT32:
+			return ( ( int[] ) data )[ index ] & 0xffffffffL;
+		case INT64:
+			return ( ( long[] ) data )[ index ];
+		case UINT64:
+			unsignedLongValue.set( ( ( long[] ) data )[ index ] );
+			return unsignedLongValue.getRealDouble();
+		case FLOAT32:
+			return ( ( float[] ) data )[ index ];
+		case FLOAT64:
+			return ( ( double[] ) data )[ index ];
+		default:
+			throw new IllegalArgumentException( "Downsampling is not supported for data type " + dataType );
+		}
+	}
+
+	/**
+	 * Sets the value in the same way as {@link RealType#setReal(double)} of the corresponding imglib2 type, rounding to the nearest integer for integer types.
+	 */
+	private static void setReal( final Object data, final int index, final double value, final DataType dataType, final UnsignedLongType unsignedLongValue )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		case UINT8:
+			( ( byte[] ) data )[ index ] = ( byte ) Util.round( value );
+			break;
+		case INT16:
+		case UINT16:
+			( ( short[] ) data )[ index ] = ( short ) Util.round( value );
+			break;
+		case INT32:
+		case UINT32:
+			( ( int[] ) data )[ index ] = ( int ) Util.round( value );
+			break;
+		case INT64:
+			( ( long[] ) data )[ index ] = Util.round( value );
+			break;
+		case UINT64:
+			unsignedLongValue.setReal( value );
+			( ( long[] ) data )[ index ] = unsignedLongValue.get();
+			break;
+		case FLOAT32:
+			( ( float[] ) data )[ index ] = ( float ) value;
+			break;
+		case FLOAT64:
+			( ( double[] ) data )[ index ] = value;
+			break;
+		default:
+			throw new IllegalArgumentException( "Downsampling is not supported for data type " + dataType );
 		}
 	}
 
@@ -271,7 +429,8 @@ public class N5OffsetDownsamplerSpark
 					parsedArgs.getOutputDatasetPath(),
 					parsedArgs.getDownsamplingFactors(),
 					parsedArgs.getOffset(),
-					parsedArgs.getBlockSize()
+					parsedArgs.getBlockSize(),
+					parsedArgs.isZOrder()
 				);
 		}
 		System.out.println( "Done" );
@@ -305,6 +464,10 @@ public class N5OffsetDownsamplerSpark
 				usage = "Block size for the output dataset (by default same as for input dataset).")
 		private String blockSize;
 
+		@Option(name = "-z", aliases = { "--zOrder" }, required = false,
+				usage = "Process the output blocks in Z-order for better reuse of the input blocks within each partition.")
+		private boolean zOrder;
+
 		public Arguments( final String... args ) throws IllegalArgumentException
 		{
 			final CmdLineParser parser = new CmdLineParser( this );
@@ -326,5 +489,6 @@ public class N5OffsetDownsamplerSpark
 		public int[] getDownsamplingFactors() { return CmdUtils.parseIntArray( downsamplingFactors ); }
 		public int[] getBlockSize() { return CmdUtils.parseIntArray( blockSize ); }
 		public long[] getOffset() { return CmdUtils.parseLongArray( offset ); }
+		public boolean isZOrder() { return zOrder; }
 	}
 }
@@ -0,0 +1,454 @@
+package org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.spark.N5RemoveSpark;
+import org.janelia.saalfeldlab.n5.spark.downsample.LabelDownsamplingKernel;
+import org.janelia.saalfeldlab.n5.spark.downsample.LabelMultisetBlock;
+import org.janelia.saalfeldlab.n5.spark.downsample.N5DownsamplerSpark;
+import org.janelia.saalfeldlab.n5.spark.downsample.N5LabelDownsamplerSpark;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockWriter;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
+
+/**
+ * Generates a scale pyramid for a label dataset. Instead of averaging, each voxel of a scale level gets the label
+ * that is the most frequent in the corresponding region of the full-scale dataset (not the most frequent label of the previous scale level).
+ * In case of equal frequencies, the smallest label value among them is used.
+ *<p>
+ * Consecutive scale levels are computed in groups by a single task from one read of the corresponding input region.
+ * The first group reads the full-scale dataset, and each following group reads the label multisets (see {@link LabelMultisetBlock})
+ * of the last level of the previous group, which are stored temporarily. The labels are counted once for the first level of the group,
+ * and the per-voxel counts are merged for each following level, so the most frequent label is exact with respect to the full-scale dataset at every level.
+ */
+public class N5LabelScalePyramidSpark
+{
+	public static final int DEFAULT_FUSED_LEVELS = 2;
+
+	private static final int MAX_PARTITIONS = 15000;
+
+	/**
+	 * Generates a label scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
+	 * Reuses the block size of the input dataset. Stores the resulting datasets in the same group as the input dataset.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param downsamplingStepFactors
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleLabelScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final int[] downsamplingStepFactors ) throws IOException
+	{
+		final String outputGroupPath = ( Paths.get( datasetPath ).getParent() != null ? Paths.get( datasetPath ).getParent().toString() : "" );
+		return downsampleLabelScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				outputGroupPath,
+				downsamplingStepFactors
+			);
+	}
+
+	/**
+	 * Generates a label scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
+	 * Reuses the block size of the input dataset. Stores the resulting datasets in the given output group.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleLabelScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors ) throws IOException
+	{
+		return downsampleLabelScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				outputGroupPath,
+				downsamplingStepFactors,
+				DEFAULT_FUSED_LEVELS
+			);
+	}
+
+	/**
+	 * Generates a label scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
+	 * Reuses the block size of the input dataset. Stores the resulting datasets in the given output group.
+	 *<p>
+	 * Up to {@code fusedLevels} consecutive scale levels are computed by a single task from one read of the corresponding input region.
+	 * The first group of levels reads the full-scale dataset. The label multisets of the last level of each group are stored temporarily
+	 * as the input for the next group, and they are removed as soon as the next group has been processed.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @param fusedLevels
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleLabelScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final int fusedLevels ) throws IOException
+	{
+		if ( fusedLevels < 1 )
+			throw new IllegalArgumentException( "Number of fused levels should be positive, got " + fusedLevels );
+
+		final N5Writer n5 = n5Supplier.get();
+		if ( !n5.datasetExists( datasetPath ) )
+			throw new IllegalArgumentException( "Input N5 dataset " + datasetPath + " does not exist" );
+
+		final DatasetAttributes fullScaleAttributes = n5.getDatasetAttributes( datasetPath );
+		final long[] dimensions = fullScaleAttributes.getDimensions();
+		final int dim = dimensions.length;
+
+		if ( dim != downsamplingStepFactors.length )
+			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
+
+		final DataType dataType = fullScaleAttributes.getDataType();
+		if ( dataType == DataType.FLOAT32 || dataType == DataType.FLOAT64 )
+			throw new IllegalArgumentException( "Label downsampling is not supported for data type " + dataType );
+
+		final List< String > downsampledDatasets = new ArrayList<>();
+
+		for ( int scale = 1; ; ++scale )
+		{
+			final long[] scaleFactors = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				scaleFactors[ d ] = Math.round( Math.pow( downsamplingStepFactors[ d ], scale ) );
+
+			final long[] downsampledDimensions = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				downsampledDimensions[ d ] = dimensions[ d ] / scaleFactors[ d ];
+
+			if ( Arrays.stream( downsampledDimensions ).min().getAsLong() < 1 )
+				break;
+
+			downsampledDatasets.add( Paths.get( outputGroupPath, "s" + scale ).toString() );
+		}
+
+		for ( final String downsampledDatasetPath : downsampledDatasets )
+			if ( n5.datasetExists( downsampledDatasetPath ) )
+				throw new IllegalArgumentException( "Output N5 dataset " + downsampledDatasetPath + " already exists" );
+
+		final String intermediateOutputGroupPath = Paths.get( outputGroupPath, "intermediate-downsampling" ).toString();
+
+		// process the scale levels in groups of fusedLevels, each group starts from the label multisets of the last level of the previous group
+		String inputDatasetPath = datasetPath;
+		for ( int groupStart = 0; groupStart < downsampledDatasets.size(); groupStart += fusedLevels )
+		{
+			final int groupEnd = Math.min( groupStart + fusedLevels, downsampledDatasets.size() );
+			final String multisetOutputDatasetPath = groupEnd < downsampledDatasets.size() ? Paths.get( intermediateOutputGroupPath, "s" + groupEnd ).toString() : null;
+
+			downsampleLabelFused(
+					sparkContext,
+					n5Supplier,
+					datasetPath,
+					inputDatasetPath,
+					new ArrayList<>( downsampledDatasets.subList( groupStart, groupEnd ) ),
+					multisetOutputDatasetPath,
+					groupStart + 1,
+					downsamplingStepFactors
+				);
+
+			if ( !inputDatasetPath.equals( datasetPath ) )
+				N5RemoveSpark.remove( sparkContext, n5Supplier, inputDatasetPath );
+			inputDatasetPath = multisetOutputDatasetPath;
+		}
+
+		if ( n5.exists( intermediateOutputGroupPath ) )
+			n5.remove( intermediateOutputGroupPath );
+
+		return downsampledDatasets;
+	}
+
+	/**
+	 * Computes the given consecutive scale levels of the label scale pyramid from the scale level below the first of them.
+	 * Each region corresponds to a single block of the coarsest output dataset: the corresponding region of the input dataset is read once,
+	 * the labels are counted for each voxel of the first output level, and the counts are merged for each following level.
+	 * The input dataset is either the full-scale dataset, or the label multisets of the scale level below the first output level,
+	 * so the counts always refer to the full-scale dataset.
+	 * The output datasets are created with the same block size as the full-scale dataset.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param fullScaleDatasetPath
+	 * @param inputDatasetPath
+	 * 			full-scale dataset, or label multiset dataset of the scale level {@code firstScale - 1}
+	 * @param outputDatasetPaths
+	 * @param multisetOutputDatasetPath
+	 * 			label multiset dataset to store the last output level as the input for the next group of levels, can be {@code null}
+	 * @param firstScale
+	 * 			scale index of the first output dataset (1 for the first level of the pyramid)
+	 * @param downsamplingStepFactors
+	 * @throws IOException
+	 */
+	private static void downsampleLabelFused(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String fullScaleDatasetPath,
+			final String inputDatasetPath,
+			final List< String > outputDatasetPaths,
+			final String multisetOutputDatasetPath,
+			final int firstScale,
+			final int[] downsamplingStepFactors ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes fullScaleAttributes = n5.getDatasetAttributes( fullScaleDatasetPath );
+		final int dim = fullScaleAttributes.getNumDimensions();
+		final int[] blockSize = fullScaleAttributes.getBlockSize();
+		final DataType dataType = fullScaleAttributes.getDataType();
+		final int numLevels = outputDatasetPaths.size();
+
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
+		final boolean isInputLabelMultiset = LabelMultisetBlock.isLabelMultisetDataset( n5, inputDatasetPath );
+
+		// absolute downsampling factors and dimensions of each output dataset (levels 0..numLevels-1)
+		final long[][] levelFactors = new long[ numLevels ][ dim ];
+		final long[][] levelDimensions = new long[ numLevels ][ dim ];
+		final long[] levelWindowSizes = new long[ numLevels ];
+		for ( int level = 0; level < numLevels; ++level )
+		{
+			levelWindowSizes[ level ] = 1;
+			for ( int d = 0; d < dim; ++d )
+			{
+				levelFactors[ level ][ d ] = Math.round( Math.pow( downsamplingStepFactors[ d ], firstScale + level ) );
+				levelDimensions[ level ][ d ] = fullScaleAttributes.getDimensions()[ d ] / levelFactors[ level ][ d ];
+				levelWindowSizes[ level ] *= levelFactors[ level ][ d ];
+			}
+		}
+
+		final long[] coarsestGridDimensions = new CellGrid( levelDimensions[ numLevels - 1 ], blockSize ).getGridDimensions();
+		N5ScalePyramidSpark.validateFusedRegionSize( levelDimensions[ 0 ], coarsestGridDimensions, blockSize, downsamplingStepFactors, numLevels );
+
+		final int[] fullScaleAbsoluteDownsamplingFactors = n5.getAttribute( fullScaleDatasetPath, N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class );
+		final List< DatasetAttributes > outputAttributes = new ArrayList<>();
+		for ( int level = 0; level < numLevels; ++level )
+		{
+			final String outputDatasetPath = outputDatasetPaths.get( level );
+			n5.createDataset(
+					outputDatasetPath,
+					levelDimensions[ level ],
+					blockSize,
+					dataType,
+					fullScaleAttributes.getCompression()
+				);
+
+			final int[] outputAbsoluteDownsamplingFactors = new int[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				outputAbsoluteDownsamplingFactors[ d ] = ( int ) ( levelFactors[ level ][ d ] * ( fullScaleAbsoluteDownsamplingFactors != null ? fullScaleAbsoluteDownsamplingFactors[ d ] : 1 ) );
+			n5.setAttribute( outputDatasetPath, N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, outputAbsoluteDownsamplingFactors );
+			outputAttributes.add( n5.getDatasetAttributes( outputDatasetPath ) );
+		}
+
+		final DatasetAttributes multisetOutputAttributes;
+		if ( multisetOutputDatasetPath != null )
+		{
+			// the dataset may be left over from a failed run
+			if ( n5.datasetExists( multisetOutputDatasetPath ) )
+				N5RemoveSpark.remove( sparkContext, n5Supplier, multisetOutputDatasetPath );
+
+			n5.createDataset(
+					multisetOutputDatasetPath,
+					levelDimensions[ numLevels - 1 ],
+					blockSize,
+					DataType.UINT8,
+					fullScaleAttributes.getCompression()
+				);
+			n5.setAttribute( multisetOutputDatasetPath, LabelMultisetBlock.LABEL_MULTISET_ATTRIBUTE_KEY, true );
+			multisetOutputAttributes = n5.getDatasetAttributes( multisetOutputDatasetPath );
+		}
+		else
+		{
+			multisetOutputAttributes = null;
+		}
+
+		// each region corresponds to a single block of the coarsest level, the regions are processed in batches per partition
+		final long numRegions = Intervals.numElements( coarsestGridDimensions );
+
+		N5SparkUtils.parallelizeIndexRange( sparkContext, numRegions, MAX_PARTITIONS ).foreachPartition( regionIndexesIterator ->
+		{
+			final N5Writer n5Local = n5Supplier.get();
+			final N5BlockReader reader = isInputLabelMultiset ? null : new N5BlockReader( n5Local, inputDatasetPath, inputAttributes );
+			final List< N5BlockWriter > writers = new ArrayList<>();
+			for ( int level = 0; level < numLevels; ++level )
+				writers.add( new N5BlockWriter( n5Local, outputDatasetPaths.get( level ), outputAttributes.get( level ) ) );
+
+			// the builder is reset by build(), so the same buffers are reused for all regions of the partition
+			final LabelMultisetBlock.Builder builder = isInputLabelMultiset ? new LabelMultisetBlock.Builder() : null;
+			final CellGrid cellGrid = new CellGrid( levelDimensions[ numLevels - 1 ], blockSize );
+
+			while ( regionIndexesIterator.hasNext() )
+			{
+				final long[] regionGridPosition = new long[ dim ];
+				cellGrid.getCellGridPositionFlat( regionIndexesIterator.next(), regionGridPosition );
+
+				// find the region at each level, the region at the finer level is aligned with the region at the coarser level
+				// the last region extends to the end of each level, as the finer levels may be larger than the coarsest grid multiplied by the factors
+				final long[][] regionMin = new long[ numLevels ][ dim ];
+				final int[][] regionSize = new int[ numLevels ][ dim ];
+				final long[] inputRegionMin = new long[ dim ];
+				final int[] inputRegionSize = new int[ dim ];
+				for ( int d = 0; d < dim; ++d )
+				{
+					final boolean isLastRegion = regionGridPosition[ d ] == cellGrid.getGridDimensions()[ d ] - 1;
+					long levelBlockSize = blockSize[ d ];
+					for ( int level = numLevels - 1; level >= 0; --level )
+					{
+						regionMin[ level ][ d ] = regionGridPosition[ d ] * levelBlockSize;
+						regionSize[ level ][ d ] = ( int ) ( isLastRegion
+								? levelDimensions[ level ][ d ] - regionMin[ level ][ d ]
+								: Math.min( levelBlockSize, levelDimensions[ level ][ d ] - regionMin[ level ][ d ] ) );
+						levelBlockSize *= downsamplingStepFactors[ d ];
+					}
+					inputRegionMin[ d ] = regionMin[ 0 ][ d ] * downsamplingStepFactors[ d ];
+					inputRegionSize[ d ] = regionSize[ 0 ][ d ] * downsamplingStepFactors[ d ];
+				}
+
+				/* count the labels of the input region for the first level and skip if empty */
+				LabelMultisetBlock levelMultisets;
+				if ( isInputLabelMultiset )
+				{
+					N5LabelDownsamplerSpark.addLabelMultisets( n5Local, inputDatasetPath, inputAttributes, inputRegionMin, inputRegionSize, downsamplingStepFactors, regionSize[ 0 ], builder );
+					levelMultisets = builder.build( ( int ) Intervals.numElements( regionSize[ 0 ] ) );
+					if ( levelMultisets.getNumEntries() == 0 )
+						continue;
+				}
+				else
+				{
+					final DataBlock< ? > inputRegion = dataType.createDataBlock( inputRegionSize, new long[ dim ] );
+					if ( !reader.read( inputRegionMin, inputRegion ) || N5SparkUtils.isEmpty( inputRegion ) )
+						continue;
+					levelMultisets = LabelMultisetBlock.fromLabels( inputRegion.getData(), dataType, inputRegionSize, regionSize[ 0 ], downsamplingStepFactors );
+				}
+
+				/* do if not empty */
+				for ( int level = 0; level < numLevels; ++level )
+				{
+					if ( level > 0 )
+						levelMultisets = levelMultisets.downsample( regionSize[ level - 1 ], regionSize[ level ], downsamplingStepFactors );
+
+					final DataBlock< ? > levelRegion = dataType.createDataBlock( regionSize[ level ], new long[ dim ] );
+					final Object levelData = levelRegion.getData();
+					for ( int v = 0; v < levelMultisets.getNumVoxels(); ++v )
+						LabelDownsamplingKernel.setLabel( levelData, v, levelMultisets.getMostFrequentLabel( v, levelWindowSizes[ level ] ), dataType );
+
+					writers.get( level ).write( regionMin[ level ], levelRegion, true );
+				}
+
+				// the region of the coarsest level is a single block
+				if ( multisetOutputDatasetPath != null && levelMultisets.getNumEntries() != 0 )
+					levelMultisets.write( n5Local, multisetOutputDatasetPath, multisetOutputAttributes, regionGridPosition );
+			}
+		} );
+	}
+
+	public static void main( final String... args ) throws IOException
+	{
+		final Arguments parsedArgs = new Arguments( args );
+
+		try ( final JavaSparkContext sparkContext = new JavaSparkContext( new SparkConf()
+				.setAppName( "N5LabelScalePyramidSpark" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			) )
+		{
+			final N5WriterSupplier n5Supplier = () -> new N5FSWriter( parsedArgs.getN5Path() );
+			final String outputGroupPath = parsedArgs.getOutputGroupPath() != null
+					? parsedArgs.getOutputGroupPath()
+					: ( Paths.get( parsedArgs.getInputDatasetPath() ).getParent() != null ? Paths.get( parsedArgs.getInputDatasetPath() ).getParent().toString() : "" );
+
+			downsampleLabelScalePyramid(
+					sparkContext,
+					n5Supplier,
+					parsedArgs.getInputDatasetPath(),
+					outputGroupPath,
+					parsedArgs.getDownsamplingFactors(),
+					parsedArgs.getFusedLevels()
+				);
+		}
+		System.out.println( "Done" );
+	}
+
+	private static class Arguments implements Serializable
+	{
+		private static final long serialVersionUID = 5414397282631960735L;
+
+		@Option(name = "-n", aliases = { "--n5Path" }, required = true,
+				usage = "Path to an N5 container.")
+		private String n5Path;
+
+		@Option(name = "-i", aliases = { "--inputDatasetPath" }, required = true,
+				usage = "Path to an input label dataset within the N5 container (e.g. data/group/s0).")
+		private String inputDatasetPath;
+
+		@Option(name = "-o", aliases = { "--outputGroupPath" }, required = false,
+				usage = "Path to a group within the N5 container to store the output datasets (e.g. data/group/scale-pyramid).")
+		private String outputGroupPath;
+
+		@Option(name = "-f", aliases = { "--factors" }, required = true,
+				usage = "Downsampling factors.")
+		private String downsamplingFactors;
+
+		@Option(name = "-l", aliases = { "--fusedLevels" }, required = false,
+				usage = "Number of scale levels to compute in a single pass from one read of the input region (2 by default). Larger values mean fewer passes and fewer temporarily stored levels, but larger regions per task.")
+		private int fusedLevels = DEFAULT_FUSED_LEVELS;
+
+		public Arguments( final String... args ) throws IllegalArgumentException
+		{
+			final CmdLineParser parser = new CmdLineParser( this );
+			try
+			{
+				parser.parseArgument( args );
+			}
+			catch ( final CmdLineException e )
+			{
+				System.err.println( e.getMessage() );
+				parser.printUsage( System.err );
+				System.exit( 1 );
+			}
+		}
+
+		public String getN5Path() { return n5Path; }
+		public String getInputDatasetPath() { return inputDatasetPath; }
+		public String getOutputGroupPath() { return outputGroupPath; }
+		public int[] getDownsamplingFactors() { return CmdUtils.parseIntArray( downsamplingFactors ); }
+		public int getFusedLevels() { return fusedLevels; }
+	}
+}
@@ -9,17 +9,25 @@ import java.util.List;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.spark.N5RemoveSpark;
+import org.janelia.saalfeldlab.n5.spark.downsample.DownsamplingKernel;
 import org.janelia.saalfeldlab.n5.spark.downsample.N5DownsamplerSpark;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockWriter;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 
 public class N5NonIsotropicScalePyramidSpark
@@ -52,6 +60,7 @@ public class N5NonIsotropicScalePyramidSpark
 		private static final double EPSILON = 1e-10;
 
 		public final List< NonIsotropicMetadata3D > scalesMetadata;
+		public final List< ScalePyramidPlanner.LevelPlan > levelPlans;
 		public final MainDimension mainDimension;
 		public final boolean isPowerOfTwo;
 		private final double pixelResolutionRatio;
@@ -61,6 +70,31 @@ public class N5NonIsotropicScalePyramidSpark
 				final int[] fullScaleCellSize3D,
 				final double[] pixelResolution,
 				final boolean isPowerOfTwo )
+		{
+			this( fullScaleDimensions3D, fullScaleCellSize3D, pixelResolution, isPowerOfTwo, null, null );
+		}
+
+		/**
+		 * If the {@code planner} is given, the cell size of each scale level is chosen by the planner.
+		 * The planned cell keeps the shape of the cell that would be chosen otherwise (close to isotropic in physical space),
+		 * but takes up the target number of bytes and is split until the scale level has enough blocks for all executor cores.
+		 *
+		 * @param fullScaleDimensions3D
+		 * @param fullScaleCellSize3D
+		 * @param pixelResolution
+		 * @param isPowerOfTwo
+		 * @param planner
+		 * 			optional block size planner
+		 * @param dataType
+		 * 			data type of the dataset, required if the planner is given
+		 */
+		public NonIsotropicScalePyramidMetadata3D(
+				final long[] fullScaleDimensions3D,
+				final int[] fullScaleCellSize3D,
+				final double[] pixelResolution,
+				final boolean isPowerOfTwo,
+				final ScalePyramidPlanner planner,
+				final DataType dataType )
 		{
 			if ( fullScaleDimensions3D.length != 3 || fullScaleCellSize3D.length != 3 || ( pixelResolution != null && pixelResolution.length != 3 ) )
 				throw new IllegalArgumentException( "Expected fullScaleDimensions3D, fullScaleCellSize3D, pixelResolution arrays of length 3" );
@@ -84,12 +118,16 @@ public class N5NonIsotropicScalePyramidSpark
 				);
 
 			scalesMetadata = new ArrayList<>();
-			init( fullScaleDimensions3D, fullScaleCellSize3D );
+			levelPlans = new ArrayList<>();
+			init( fullScaleDimensions3D, fullScaleCellSize3D, planner, dataType );
 		}
 
-		private void init( final long[] fullScaleDimensions, final int[] fullScaleCellSize )
+		private void init( final long[] fullScaleDimensions, final int[] fullScaleCellSize, final ScalePyramidPlanner planner, final DataType dataType )
 		{
 			scalesMetadata.add( new NonIsotropicMetadata3D( fullScaleDimensions.clone(), fullScaleCellSize.clone(), new int[] { 1, 1, 1 } ) );
+
+			// the shape of the cell at the previous scale level, the planned cell sizes do not affect the shape of the next scale level
+			int[] previousCellShape = fullScaleCellSize.clone();
 			for ( int scale = 1; ; ++scale )
 			{
 				final int mainDownsamplingFactor = 1 << scale;
@@ -111,12 +149,12 @@ public class N5NonIsotropicScalePyramidSpark
 				if ( mainDimension == MainDimension.XY )
 				{
 					mainCellSize = Math.max( fullScaleCellSize[ 0 ], fullScaleCellSize[ 1 ] );
-					dependentPreviousCellSize = scalesMetadata.get( scale - 1 ).cellSize[ 2 ];
+					dependentPreviousCellSize = previousCellShape[ 2 ];
 				}
 				else
 				{
 					mainCellSize = fullScaleCellSize[ 2 ];
-					dependentPreviousCellSize = Math.max( scalesMetadata.get( scale - 1 ).cellSize[ 0 ], scalesMetadata.get( scale - 1 ).cellSize[ 1 ] );
+					dependentPreviousCellSize = Math.max( previousCellShape[ 0 ], previousCellShape[ 1 ] );
 				}
 				final int dependentFullScaleOptimalCellSize = ( int ) Math.round( mainCellSize / pixelResolutionRatio );
 				final int dependentOptimalCellSize = ( int ) Math.round( ( long ) dependentFullScaleOptimalCellSize * mainDownsamplingFactor / ( double ) dependentDownsamplingFactor );
@@ -129,7 +167,33 @@ public class N5NonIsotropicScalePyramidSpark
 				else
 					downsampledCellSize = new int[] { dependentAdjustedCellSize, dependentAdjustedCellSize, fullScaleCellSize[ 2 ] };
 
-				scalesMetadata.add( new NonIsotropicMetadata3D( downsampledDimensions, downsampledCellSize, downsamplingFactors ) );
+				final int[] cellSize;
+				if ( planner != null )
+				{
+					// the input region of an output block is larger than the block by the factors relative to the previous scale level
+					final NonIsotropicMetadata3D previousScaleMetadata = scalesMetadata.get( scale - 1 );
+					final int[] relativeDownsamplingFactors = new int[ downsamplingFactors.length ];
+					for ( int d = 0; d < relativeDownsamplingFactors.length; ++d )
+						relativeDownsamplingFactors[ d ] = ( downsamplingFactors[ d ] + previousScaleMetadata.downsamplingFactors[ d ] - 1 ) / previousScaleMetadata.downsamplingFactors[ d ];
+
+					final ScalePyramidPlanner.LevelPlan levelPlan = planner.planLevel(
+							scale,
+							previousScaleMetadata.dimensions,
+							downsampledDimensions,
+							downsampledCellSize,
+							dataType,
+							relativeDownsamplingFactors
+						);
+					levelPlans.add( levelPlan );
+					cellSize = levelPlan.blockSize;
+				}
+				else
+				{
+					cellSize = downsampledCellSize;
+				}
+
+				scalesMetadata.add( new NonIsotropicMetadata3D( downsampledDimensions, cellSize, downsamplingFactors ) );
+				previousCellShape = downsampledCellSize;
 			}
 		}
 
@@ -176,6 +240,8 @@ public class N5NonIsotropicScalePyramidSpark
 
 	private static final String PIXEL_RESOLUTION_ATTRIBUTE_KEY = "pixelResolution";
 
+	private static final int MAX_PARTITIONS = 15000;
+
 	/**
 	 * Generates a scale pyramid for a given dataset. Assumes that the pixel resolution is the same in X and Y.
 	 * The scale pyramid is constructed in the following way depending on the pixel resolution of the data:<br>
@@ -238,6 +304,101 @@ public class N5NonIsotropicScalePyramidSpark
 			final String outputGroupPath,
 			final double[] pixelResolution,
 			final boolean isPowerOfTwo ) throws IOException
+	{
+		return downsampleNonIsotropicScalePyramid(
+				sparkContext,
+				n5Supplier,
+				fullScaleDatasetPath,
+				outputGroupPath,
+				pixelResolution,
+				isPowerOfTwo,
+				false
+			);
+	}
+
+	/**
+	 * Generates a scale pyramid for a given dataset. Assumes that the pixel resolution is the same in X and Y.
+	 * The scale pyramid is constructed in the following way depending on the pixel resolution of the data:<br>
+	 * - if the resolution is better in X/Y than in Z: each scale level is downsampled by 2 in X/Y, and by the corresponding factors in Z to be as close as possible to isotropic<br>
+	 * - if the resolution is better in Z than in X/Y: each scale level is downsampled by 2 in Z, and by the corresponding factors in X/Y to be as close as possible to isotropic<br>
+	 *<p>
+	 * Adjusts the block size to be consistent with the scaling factors. Stores the resulting datasets in the given output group.
+	 *<p>
+	 * If {@code isPipelined} is set, the scale levels that do not require intermediate downsampling are computed with {@link ScalePyramidPipeline},
+	 * so each part of a scale level is computed as soon as the corresponding part of the previous scale level is done.
+	 * The scale levels that require intermediate downsampling are computed one after another.
+	 *<p>
+	 * Works only with 3D and higher dimensionality data. Only the first three dimensions are used for non-isotropic downsampling, and the rest of the dimensions are written out as is.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param fullScaleDatasetPath
+	 * @param outputGroupPath
+	 * @param pixelResolution
+	 * @param isPowerOfTwo
+	 * @param isPipelined
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleNonIsotropicScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String fullScaleDatasetPath,
+			final String outputGroupPath,
+			final double[] pixelResolution,
+			final boolean isPowerOfTwo,
+			final boolean isPipelined ) throws IOException
+	{
+		return downsampleNonIsotropicScalePyramid(
+				sparkContext,
+				n5Supplier,
+				fullScaleDatasetPath,
+				outputGroupPath,
+				pixelResolution,
+				isPowerOfTwo,
+				isPipelined,
+				null
+			);
+	}
+
+	/**
+	 * Generates a scale pyramid for a given dataset. Assumes that the pixel resolution is the same in X and Y.
+	 * The scale pyramid is constructed in the following way depending on the pixel resolution of the data:<br>
+	 * - if the resolution is better in X/Y than in Z: each scale level is downsampled by 2 in X/Y, and by the corresponding factors in Z to be as close as possible to isotropic<br>
+	 * - if the resolution is better in Z than in X/Y: each scale level is downsampled by 2 in Z, and by the corresponding factors in X/Y to be as close as possible to isotropic<br>
+	 *<p>
+	 * Adjusts the block size to be consistent with the scaling factors. Stores the resulting datasets in the given output group.
+	 *<p>
+	 * If {@code isPipelined} is set, the scale levels that do not require intermediate downsampling are computed with {@link ScalePyramidPipeline},
+	 * so each part of a scale level is computed as soon as the corresponding part of the previous scale level is done.
+	 * The scale levels that require intermediate downsampling are computed one after another.
+	 *<p>
+	 * If the {@code planner} is given, the block size of each scale level is chosen by the planner with the shape that the block would have otherwise,
+	 * and the plan is printed before running.
+	 *<p>
+	 * Works only with 3D and higher dimensionality data. Only the first three dimensions are used for non-isotropic downsampling, and the rest of the dimensions are written out as is.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param fullScaleDatasetPath
+	 * @param outputGroupPath
+	 * @param pixelResolution
+	 * @param isPowerOfTwo
+	 * @param isPipelined
+	 * @param planner
+	 * 			optional block size planner, if {@code null} the block size is adjusted to the scaling factors only
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleNonIsotropicScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String fullScaleDatasetPath,
+			final String outputGroupPath,
+			final double[] pixelResolution,
+			final boolean isPowerOfTwo,
+			final boolean isPipelined,
+			final ScalePyramidPlanner planner ) throws IOException
 	{
 		if ( pixelResolution.length != 3 )
 			throw new IllegalArgumentException( "Expected pixelResolution array of length 3, got " + pixelResolution.length );
@@ -258,9 +419,18 @@ public class N5NonIsotropicScalePyramidSpark
 				getDimensions3D( fullScaleDimensions ),
 				getBlockSizes3D( fullScaleCellSize ),
 				pixelResolution,
-				isPowerOfTwo
+				isPowerOfTwo,
+				planner,
+				fullScaleAttributes.getDataType()
 			);
 
+		if ( planner != null )
+		{
+			System.out.println( "Scale pyramid plan:" );
+			for ( final ScalePyramidPlanner.LevelPlan levelPlan : scalePyramidMetadata3D.levelPlans )
+				System.out.println( "  " + levelPlan );
+		}
+
 		// prepare for intermediate downsampling if required
 		final String intermediateGroupPath;
 		if ( !scalePyramidMetadata3D.isPowerOfTwo )
@@ -287,7 +457,40 @@ public class N5NonIsotropicScalePyramidSpark
 		}
 
 		final List< String > downsampledDatasets = new ArrayList<>();
-		for ( int scale = 1; scale < scalePyramidMetadata3D.getNumScales(); ++scale )
+
+		// the leading scale levels that do not require intermediate downsampling can be computed without waiting for each previous scale level to be finished
+		if ( isPipelined )
+		{
+			final List< int[] > pipelinedDownsamplingFactors = new ArrayList<>();
+			final List< int[] > pipelinedBlockSizes = new ArrayList<>();
+			for ( int scale = 1; scale < scalePyramidMetadata3D.getNumScales(); ++scale )
+			{
+				if ( !scalePyramidMetadata3D.isPowerOfTwo && scalePyramidMetadata3D.getDependentDownsamplingFactor( scale ) != 1 )
+					break;
+
+				downsampledDatasets.add( Paths.get( outputGroupPath, "s" + scale ).toString() );
+				pipelinedDownsamplingFactors.add( appendDownsamplingFactorsForUnchangedDimensions( getRelativeDownsamplingFactors3D( scalePyramidMetadata3D, scale ), fullScaleAttributes.getNumDimensions() ) );
+				pipelinedBlockSizes.add( appendBlockSizesForUnchangedDimensions( scalePyramidMetadata3D.getScaleMetadata( scale ).cellSize, fullScaleCellSize ) );
+			}
+
+			if ( !downsampledDatasets.isEmpty() )
+			{
+				ScalePyramidPipeline.downsample(
+						sparkContext,
+						n5Supplier,
+						fullScaleDatasetPath,
+						downsampledDatasets,
+						pipelinedDownsamplingFactors,
+						pipelinedBlockSizes,
+						ScalePyramidPipeline.DEFAULT_MAX_CHUNKS_PER_LEVEL
+					);
+
+				for ( final String outputDatasetPath : downsampledDatasets )
+					n5.setAttribute( outputDatasetPath, PIXEL_RESOLUTION_ATTRIBUTE_KEY, pixelResolution );
+			}
+		}
+
+		for ( int scale = downsampledDatasets.size() + 1; scale < scalePyramidMetadata3D.getNumScales(); ++scale )
 		{
 			final NonIsotropicMetadata3D scaleMetadata3D = scalePyramidMetadata3D.getScaleMetadata( scale );
 			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
@@ -297,21 +500,12 @@ public class N5NonIsotropicScalePyramidSpark
 				final String inputDatasetPath = scale == 1 ? fullScaleDatasetPath : Paths.get( outputGroupPath, "s" + ( scale - 1 ) ).toString();
 
 				// intermediate downsampling is not happening yet at this scale level, or is not required at all
-				final NonIsotropicMetadata3D previousScaleMetadata3D = scalePyramidMetadata3D.getScaleMetadata( scale - 1 );
-				final int[] relativeDownsamplingFactors3D = new int[ scaleMetadata3D.downsamplingFactors.length ];
-				for ( int d = 0; d < relativeDownsamplingFactors3D.length; ++d )
-				{
-					if ( scaleMetadata3D.downsamplingFactors[ d ] % previousScaleMetadata3D.downsamplingFactors[ d ] != 0 )
-						throw new RuntimeException( "something went wrong, expected divisible downsampling factors" );
-					relativeDownsamplingFactors3D[ d ] = scaleMetadata3D.downsamplingFactors[ d ] / previousScaleMetadata3D.downsamplingFactors[ d ];
-				}
-
 				N5DownsamplerSpark.downsample(
 						sparkContext,
 						n5Supplier,
 						inputDatasetPath,
 						outputDatasetPath,
-						appendDownsamplingFactorsForUnchangedDimensions( relativeDownsamplingFactors3D, fullScaleAttributes.getNumDimensions() ),
+						appendDownsamplingFactorsForUnchangedDimensions( getRelativeDownsamplingFactors3D( scalePyramidMetadata3D, scale ), fullScaleAttributes.getNumDimensions() ),
 						appendBlockSizesForUnchangedDimensions( scaleMetadata3D.cellSize, fullScaleCellSize )
 					);
 			}
@@ -329,32 +523,35 @@ public class N5NonIsotropicScalePyramidSpark
 					inputDatasetPath = Paths.get( intermediateGroupPath, "s" + ( scale - 1 ) ).toString();
 				}
 
-				final String intermediateDatasetPath = Paths.get( intermediateGroupPath, "s" + scale ).toString();
+				// the intermediate scale level is stored only if it is required as the input for the next scale level
+				final String intermediateDatasetPath = scale + 1 < scalePyramidMetadata3D.getNumScales() ? Paths.get( intermediateGroupPath, "s" + scale ).toString() : null;
 				final int[] intermediateDownsamplingFactors3D = scalePyramidMetadata3D.getIntermediateDownsamplingFactors( scale );
 
-				// downsample and store in the intermediate export group
-				N5DownsamplerSpark.downsample(
-						sparkContext,
-						n5Supplier,
-						inputDatasetPath,
-						intermediateDatasetPath,
-						appendDownsamplingFactorsForUnchangedDimensions( intermediateDownsamplingFactors3D, fullScaleAttributes.getNumDimensions() ),
-						appendBlockSizesForUnchangedDimensions( scaleMetadata3D.cellSize, fullScaleCellSize )
-					);
-
 				final int[] relativeDownsamplingFactors3D = new int[ intermediateDownsamplingFactors3D.length ];
 				for ( int d = 0; d < relativeDownsamplingFactors3D.length; ++d )
 					relativeDownsamplingFactors3D[ d ] = intermediateDownsamplingFactors3D[ d ] == 1 ? scaleMetadata3D.downsamplingFactors[ d ] : 1;
 
-				// downsample and store in the output group
-				N5DownsamplerSpark.downsample(
+				// downsample in the main dimension(s) and then in the dependent dimension(s) in memory, and store in the output group
+				downsampleWithIntermediate(
 						sparkContext,
 						n5Supplier,
-						intermediateDatasetPath,
+						inputDatasetPath,
 						outputDatasetPath,
+						intermediateDatasetPath,
+						appendDownsamplingFactorsForUnchangedDimensions( intermediateDownsamplingFactors3D, fullScaleAttributes.getNumDimensions() ),
 						appendDownsamplingFactorsForUnchangedDimensions( relativeDownsamplingFactors3D, fullScaleAttributes.getNumDimensions() ),
 						appendBlockSizesForUnchangedDimensions( scaleMetadata3D.cellSize, fullScaleCellSize )
 					);
+
+				n5.setAttribute(
+						outputDatasetPath,
+						N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY,
+						appendDownsamplingFactorsForUnchangedDimensions( scaleMetadata3D.downsamplingFactors, fullScaleAttributes.getNumDimensions() )
+					);
+
+				// the intermediate scale level of the previous scale level is not needed anymore
+				if ( scalePyramidMetadata3D.getDependentDownsamplingFactor( scale - 1 ) != 1 )
+					N5RemoveSpark.remove( sparkContext, n5Supplier, inputDatasetPath );
 			}
 
 			n5.setAttribute( outputDatasetPath, PIXEL_RESOLUTION_ATTRIBUTE_KEY, pixelResolution );
@@ -368,6 +565,144 @@ public class N5NonIsotropicScalePyramidSpark
 		return downsampledDatasets;
 	}
 
+	/**
+	 * Downsamples the given input dataset in the main dimension(s) into the intermediate scale level, and then in the dependent dimension(s) into the output dataset.
+	 * Both steps are done in memory for each output block, so the intermediate scale level does not need to be stored and read back.
+	 *<p>
+	 * The intermediate scale level is stored only if the output path for it is given. Its block size is the output block size
+	 * multiplied by the dependent downsampling factors, so the intermediate blocks corresponding to each output block are written along with it.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPath
+	 * @param intermediateDatasetPath
+	 * 			path to store the intermediate scale level, or {@code null} if it is not required
+	 * @param intermediateDownsamplingFactors
+	 * 			downsampling factors from the input dataset to the intermediate scale level
+	 * @param dependentDownsamplingFactors
+	 * 			downsampling factors from the intermediate scale level to the output dataset
+	 * @param outputBlockSize
+	 * @throws IOException
+	 */
+	private static void downsampleWithIntermediate(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final String outputDatasetPath,
+			final String intermediateDatasetPath,
+			final int[] intermediateDownsamplingFactors,
+			final int[] dependentDownsamplingFactors,
+			final int[] outputBlockSize ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
+		final int dim = inputAttributes.getNumDimensions();
+		final DataType dataType = inputAttributes.getDataType();
+
+		final long[] intermediateDimensions = new long[ dim ], outputDimensions = new long[ dim ];
+		final int[] intermediateBlockSize = new int[ dim ];
+		for ( int d = 0; d < dim; ++d )
+		{
+			intermediateDimensions[ d ] = inputAttributes.getDimensions()[ d ] / intermediateDownsamplingFactors[ d ];
+			outputDimensions[ d ] = intermediateDimensions[ d ] / dependentDownsamplingFactors[ d ];
+			intermediateBlockSize[ d ] = outputBlockSize[ d ] * dependentDownsamplingFactors[ d ];
+		}
+
+		if ( Arrays.stream( outputDimensions ).min().getAsLong() < 1 )
+			throw new IllegalArgumentException( "Degenerate output dimensions: " + Arrays.toString( outputDimensions ) );
+
+		n5.createDataset( outputDatasetPath, outputDimensions, outputBlockSize, dataType, inputAttributes.getCompression() );
+		final DatasetAttributes outputAttributes = n5.getDatasetAttributes( outputDatasetPath );
+
+		final DatasetAttributes intermediateAttributes;
+		if ( intermediateDatasetPath != null )
+		{
+			n5.createDataset( intermediateDatasetPath, intermediateDimensions, intermediateBlockSize, dataType, inputAttributes.getCompression() );
+			intermediateAttributes = n5.getDatasetAttributes( intermediateDatasetPath );
+		}
+		else
+		{
+			intermediateAttributes = null;
+		}
+
+		final long numBlocks = Intervals.numElements( new CellGrid( outputDimensions, outputBlockSize ).getGridDimensions() );
+		N5SparkUtils.parallelizeIndexRange( sparkContext, numBlocks, MAX_PARTITIONS ).foreachPartition( blockIndexesIterator ->
+		{
+			final N5Writer n5Local = n5Supplier.get();
+			final N5BlockReader reader = new N5BlockReader( n5Local, inputDatasetPath, inputAttributes );
+			final N5BlockWriter intermediateWriter = intermediateDatasetPath != null ? new N5BlockWriter( n5Local, intermediateDatasetPath, intermediateAttributes ) : null;
+			final DownsamplingKernel kernel = DownsamplingKernel.forDataType( dataType );
+
+			final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
+
+			while ( blockIndexesIterator.hasNext() )
+			{
+				final long[] blockGridPosition = new long[ dim ];
+				cellGrid.getCellGridPositionFlat( blockIndexesIterator.next(), blockGridPosition );
+
+				final long[] outputMin = new long[ dim ];
+				final int[] outputSize = new int[ dim ];
+				cellGrid.getCellDimensions( blockGridPosition, outputMin, outputSize );
+
+				// intermediate region corresponding to the output block,
+				// the last block extends to the end of the intermediate scale level if it is stored, as it may be larger than the output multiplied by the factors
+				final long[] intermediateMin = new long[ dim ], sourceMin = new long[ dim ];
+				final int[] intermediateSize = new int[ dim ], sourceSize = new int[ dim ];
+				for ( int d = 0; d < dim; ++d )
+				{
+					final boolean isLastBlock = blockGridPosition[ d ] == cellGrid.getGridDimensions()[ d ] - 1;
+					intermediateMin[ d ] = outputMin[ d ] * dependentDownsamplingFactors[ d ];
+					intermediateSize[ d ] = intermediateDatasetPath != null && isLastBlock
+							? ( int ) ( intermediateDimensions[ d ] - intermediateMin[ d ] )
+							: outputSize[ d ] * dependentDownsamplingFactors[ d ];
+					sourceMin[ d ] = intermediateMin[ d ] * intermediateDownsamplingFactors[ d ];
+					sourceSize[ d ] = intermediateSize[ d ] * intermediateDownsamplingFactors[ d ];
+				}
+
+				/* read the source region directly and skip if empty */
+				final DataBlock< ? > sourceBlock = dataType.createDataBlock( sourceSize, new long[ dim ] );
+				if ( !reader.read( sourceMin, sourceBlock ) || N5SparkUtils.isEmpty( sourceBlock ) )
+					continue;
+
+				/* do if not empty */
+				final DataBlock< ? > intermediateBlock = dataType.createDataBlock( intermediateSize, new long[ dim ] );
+				kernel.downsample( sourceBlock, intermediateBlock, intermediateDownsamplingFactors );
+
+				// if the intermediate region has been extended, the trailing part of it is ignored by the kernel
+				final DataBlock< ? > outputBlock = dataType.createDataBlock( outputSize, blockGridPosition );
+				kernel.downsample( intermediateBlock, outputBlock, dependentDownsamplingFactors );
+
+				if ( !N5SparkUtils.isEmpty( outputBlock ) )
+					n5Local.writeBlock( outputDatasetPath, outputAttributes, outputBlock );
+
+				if ( intermediateDatasetPath != null )
+					intermediateWriter.write( intermediateMin, intermediateBlock, true );
+			}
+		} );
+	}
+
+	/**
+	 * Returns the downsampling factors of the given scale level relative to the previous scale level.
+	 *
+	 * @param scalePyramidMetadata3D
+	 * @param scale
+	 * @return XYZ downsampling factors relative to the previous scale level
+	 */
+	private static int[] getRelativeDownsamplingFactors3D( final NonIsotropicScalePyramidMetadata3D scalePyramidMetadata3D, final int scale )
+	{
+		final NonIsotropicMetadata3D scaleMetadata3D = scalePyramidMetadata3D.getScaleMetadata( scale );
+		final NonIsotropicMetadata3D previousScaleMetadata3D = scalePyramidMetadata3D.getScaleMetadata( scale - 1 );
+		final int[] relativeDownsamplingFactors3D = new int[ scaleMetadata3D.downsamplingFactors.length ];
+		for ( int d = 0; d < relativeDownsamplingFactors3D.length; ++d )
+		{
+			if ( scaleMetadata3D.downsamplingFactors[ d ] % previousScaleMetadata3D.downsamplingFactors[ d ] != 0 )
+				throw new RuntimeException( "something went wrong, expected divisible downsampling factors" );
+			relativeDownsamplingFactors3D[ d ] = scaleMetadata3D.downsamplingFactors[ d ] / previousScaleMetadata3D.downsamplingFactors[ d ];
+		}
+		return relativeDownsamplingFactors3D;
+	}
+
 	/**
 	 * Returns a new array containing the first 3 entries of the given dimensions.
 	 *
@@ -456,6 +791,9 @@ public class N5NonIsotropicScalePyramidSpark
 			) )
 		{
 			final N5WriterSupplier n5Supplier = () -> new N5FSWriter( parsedArgs.getN5Path() );
+			final ScalePyramidPlanner planner = parsedArgs.getTargetBlockBytes() != null
+					? new ScalePyramidPlanner( parsedArgs.getTargetBlockBytes(), parsedArgs.getCompressionRatio(), sparkContext.defaultParallelism() )
+					: null;
 
 			if ( parsedArgs.getOutputGroupPath() != null )
 			{
@@ -465,17 +803,23 @@ public class N5NonIsotropicScalePyramidSpark
 						parsedArgs.getInputDatasetPath(),
 						parsedArgs.getOutputGroupPath(),
 						parsedArgs.getPixelResolution(),
-						parsedArgs.getIsPowerOfTwo()
+						parsedArgs.getIsPowerOfTwo(),
+						parsedArgs.isPipelined(),
+						planner
 					);
 			}
 			else
 			{
+				final String outputGroupPath = ( Paths.get( parsedArgs.getInputDatasetPath() ).getParent() != null ? Paths.get( parsedArgs.getInputDatasetPath() ).getParent().toString() : "" );
 				downsampleNonIsotropicScalePyramid(
 						sparkContext,
 						n5Supplier,
 						parsedArgs.getInputDatasetPath(),
+						outputGroupPath,
 						parsedArgs.getPixelResolution(),
-						parsedArgs.getIsPowerOfTwo()
+						parsedArgs.getIsPowerOfTwo(),
+						parsedArgs.isPipelined(),
+						planner
 					);
 			}
 		}
@@ -505,6 +849,18 @@ public class N5NonIsotropicScalePyramidSpark
 				usage = "Forces to generate a power-of-two scale pyramid that is as close to isotropic as possible.")
 		private boolean isPowerOfTwo;
 
+		@Option(name = "-pl", aliases = { "--pipelined" }, required = false,
+				usage = "Start computing each part of a scale level as soon as the corresponding part of the previous scale level is done, for the scale levels that do not require intermediate downsampling.")
+		private boolean pipelined;
+
+		@Option(name = "-tb", aliases = { "--targetBlockBytes" }, required = false,
+				usage = "Desired size of a stored block in bytes. If specified, the block size of each scale level is planned to keep all executor cores busy, keeping the block shape adjusted to the scaling factors.")
+		private Long targetBlockBytes;
+
+		@Option(name = "-cr", aliases = { "--compressionRatio" }, required = false,
+				usage = "Expected ratio between the uncompressed and the compressed size of a block, used together with --targetBlockBytes (1 by default).")
+		private double compressionRatio = ScalePyramidPlanner.DEFAULT_COMPRESSION_RATIO;
+
 		public Arguments( final String... args ) throws IllegalArgumentException
 		{
 			final CmdLineParser parser = new CmdLineParser( this );
@@ -525,5 +881,8 @@ public class N5NonIsotropicScalePyramidSpark
 		public String getOutputGroupPath() { return outputGroupPath; }
 		public double[] getPixelResolution() { return CmdUtils.parseDoubleArray( pixelResolution ); }
 		public boolean getIsPowerOfTwo() { return isPowerOfTwo; }
+		public boolean isPipelined() { return pipelined; }
+		public Long getTargetBlockBytes() { return targetBlockBytes; }
+		public double getCompressionRatio() { return compressionRatio; }
 	}
 }
@@ -8,23 +8,42 @@ import java.util.Arrays;
 import java.util.List;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.storage.StorageLevel;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.spark.N5RemoveSpark;
+import org.janelia.saalfeldlab.n5.spark.downsample.DownsamplingKernel;
 import org.janelia.saalfeldlab.n5.spark.downsample.N5OffsetDownsamplerSpark;
+import org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid.ScalePyramidInMemory.Block;
+import org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid.ScalePyramidInMemory.LazyBlockIterator;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockWriter;
+import org.janelia.saalfeldlab.n5.spark.util.N5GridPartitioner;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import scala.Tuple2;
+
 public class N5OffsetScalePyramidSpark
 {
 	public static final String DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY = "downsamplingFactors";
 	public static final String OFFSETS_ATTRIBUTE_KEY = "offsets";
 
+	public static final int DEFAULT_FUSED_LEVELS = 2;
+
+	private static final int MAX_PARTITIONS = 15000;
+
 	/**
 	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors with half-pixel offset.
 	 * Reuses the block size of the input dataset. Stores the resulting datasets in the same group as the input dataset.
@@ -76,72 +95,590 @@ public class N5OffsetScalePyramidSpark
 			final int[] downsamplingStepFactors,
 			final boolean[] dimensionsWithOffset ) throws IOException
 	{
-		final N5Writer n5 = n5Supplier.get();
-		final DatasetAttributes fullScaleAttributes = n5.getDatasetAttributes( datasetPath );
-		final long[] dimensions = fullScaleAttributes.getDimensions();
-		final int dim = dimensions.length;
-
-		final String intermediateOutputGroupPath = Paths.get( outputGroupPath, "intermediate-downsampling" ).toString();
-
-		// generate regular scale pyramid
-		N5ScalePyramidSpark.downsampleScalePyramid(
+		return downsampleOffsetScalePyramid(
 				sparkContext,
 				n5Supplier,
 				datasetPath,
-				intermediateOutputGroupPath,
-				downsamplingStepFactors
+				outputGroupPath,
+				downsamplingStepFactors,
+				dimensionsWithOffset,
+				DEFAULT_FUSED_LEVELS
 			);
+	}
+
+	/**
+	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors with half-pixel offset.
+	 * Reuses the block size of the input dataset. Stores the resulting datasets in the given output group.
+	 *<p>
+	 * Each offset scale level is computed from the regular (non-shifted) scale level below it.
+	 * Up to {@code fusedLevels} consecutive scale levels are computed by a single task from one read of the corresponding input region:
+	 * the regular scale levels are computed in memory along with the offset scale levels, so they do not have to be stored.
+	 * The regular scale level at the end of each group of levels is the input for the next group: it is not stored in the N5 container,
+	 * but kept as an RDD of blocks persisted with {@link StorageLevel#MEMORY_AND_DISK_SER()} until the next group has been processed,
+	 * in the same way as in {@link ScalePyramidInMemory}.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @param dimensionsWithOffset
+	 * @param fusedLevels
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleOffsetScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final boolean[] dimensionsWithOffset,
+			final int fusedLevels ) throws IOException
+	{
+		if ( fusedLevels < 1 )
+			throw new IllegalArgumentException( "Number of fused levels should be positive, got " + fusedLevels );
+
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes fullScaleAttributes = n5.getDatasetAttributes( datasetPath );
+		final long[] dimensions = fullScaleAttributes.getDimensions();
+		final int dim = dimensions.length;
 
 		final long[] relativeOffset = new long[ dim ];
 		for ( int d = 0; d < dim; ++d )
 			if ( dimensionsWithOffset[ d ] )
 				relativeOffset[ d ] = 1;
 
+		// an offset scale level is generated if its dimensions and the dimensions of the regular scale level below it are non-degenerate
 		final List< String > downsampledDatasets = new ArrayList<>();
-
-		// generate half-pixel shifted scale pyramid
 		for ( int scale = 1; ; ++scale )
 		{
-			final int[] scaleFactors = new int[ dim ];
+			final long[] downsampledDimensions = new long[ dim ], regularDimensions = new long[ dim ];
 			for ( int d = 0; d < dim; ++d )
-				scaleFactors[ d ] = ( int ) Math.round( Math.pow( downsamplingStepFactors[ d ], scale ) );
-
-			final long[] downsampledDimensions = new long[ dim ];
-			for ( int d = 0; d < dim; ++d )
-				downsampledDimensions[ d ] = ( dimensions[ d ] + relativeOffset[ d ] ) / scaleFactors[ d ];
-
-			if ( Arrays.stream( downsampledDimensions ).min().getAsLong() < 1 )
-				break;
+			{
+				downsampledDimensions[ d ] = ( dimensions[ d ] + relativeOffset[ d ] ) / Math.round( Math.pow( downsamplingStepFactors[ d ], scale ) );
+				regularDimensions[ d ] = dimensions[ d ] / Math.round( Math.pow( downsamplingStepFactors[ d ], scale - 1 ) );
+			}
 
-			final String inputDatasetPath = scale == 1 ? datasetPath : Paths.get( intermediateOutputGroupPath, "s" + ( scale - 1 ) ).toString();
-			if ( !n5.datasetExists( inputDatasetPath ) )
+			if ( Arrays.stream( downsampledDimensions ).min().getAsLong() < 1 || Arrays.stream( regularDimensions ).min().getAsLong() < 1 )
 				break;
 
 			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
+			if ( n5.datasetExists( outputDatasetPath ) )
+				throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " already exists" );
 
-			N5OffsetDownsamplerSpark.downsampleWithOffset(
+			downsampledDatasets.add( outputDatasetPath );
+		}
+
+		// process the scale levels in groups of fusedLevels, each group starts from the regular scale level computed by the previous group,
+		// which is kept in memory until the next group is done instead of being stored in the N5 container
+		long[] inputDimensions = dimensions;
+		JavaPairRDD< Long, Block > inputBlocks = null;
+		for ( int groupStart = 0; groupStart < downsampledDatasets.size(); groupStart += fusedLevels )
+		{
+			final int groupEnd = Math.min( groupStart + fusedLevels, downsampledDatasets.size() );
+			final boolean keepRegularLevel = groupEnd < downsampledDatasets.size();
+
+			final JavaPairRDD< Long, Block > regularBlocks = downsampleOffsetFused(
 					sparkContext,
 					n5Supplier,
-					inputDatasetPath,
-					outputDatasetPath,
+					datasetPath,
+					inputBlocks,
+					inputDimensions,
+					new ArrayList<>( downsampledDatasets.subList( groupStart, groupEnd ) ),
+					keepRegularLevel,
 					downsamplingStepFactors,
 					relativeOffset
 				);
 
-			final long[] offset = new long[ dim ];
-			for ( int d = 0; d < dim; ++d )
-				offset[ d ] = Math.round( Math.pow( downsamplingStepFactors[ d ], scale - 1 ) );
+			if ( keepRegularLevel )
+				regularBlocks.persist( StorageLevel.MEMORY_AND_DISK_SER() );
 
-			n5.setAttribute( outputDatasetPath, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, scaleFactors );
-			n5.setAttribute( outputDatasetPath, OFFSETS_ATTRIBUTE_KEY, offset );
+			// the offset scale levels are written to the N5 container while the RDD is computed
+			regularBlocks.count();
 
-			downsampledDatasets.add( outputDatasetPath );
+			for ( int scale = groupStart + 1; scale <= groupEnd; ++scale )
+			{
+				final int[] scaleFactors = new int[ dim ];
+				final long[] offset = new long[ dim ];
+				for ( int d = 0; d < dim; ++d )
+				{
+					scaleFactors[ d ] = ( int ) Math.round( Math.pow( downsamplingStepFactors[ d ], scale ) );
+					offset[ d ] = Math.round( Math.pow( downsamplingStepFactors[ d ], scale - 1 ) );
+				}
+
+				n5.setAttribute( downsampledDatasets.get( scale - 1 ), DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, scaleFactors );
+				n5.setAttribute( downsampledDatasets.get( scale - 1 ), OFFSETS_ATTRIBUTE_KEY, offset );
+			}
+
+			if ( inputBlocks != null )
+				inputBlocks.unpersist();
+			inputBlocks = keepRegularLevel ? regularBlocks : null;
+
+			final long[] regularDimensions = inputDimensions.clone();
+			for ( int scale = groupStart + 1; scale <= groupEnd; ++scale )
+				for ( int d = 0; d < dim; ++d )
+					regularDimensions[ d ] /= downsamplingStepFactors[ d ];
+			inputDimensions = regularDimensions;
 		}
 
-		N5RemoveSpark.remove( sparkContext, n5Supplier, intermediateOutputGroupPath );
 		return downsampledDatasets;
 	}
 
+	/**
+	 * Computes the given consecutive offset scale levels from the given regular scale level.
+	 * Each region corresponds to a single block of the coarsest output dataset: the required region of the regular scale level is assembled once,
+	 * and the regular scale levels for this region are computed in memory. Each offset scale level is computed from the regular scale level below it.
+	 * The output datasets are created with the same block size as the full scale dataset.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * 			full scale dataset, which is also the regular scale level to start from if {@code inputBlocks} is {@code null}
+	 * @param inputBlocks
+	 * 			blocks of the regular scale level to start from as returned for the previous group, or {@code null} to start from the full scale dataset
+	 * @param inputDimensions
+	 * 			dimensions of the regular scale level to start from
+	 * @param outputDatasetPaths
+	 * 			offset scale levels to be computed
+	 * @param keepRegularLevel
+	 * 			whether the blocks of the regular scale level corresponding to the last offset scale level are needed
+	 * @param downsamplingStepFactors
+	 * @param relativeOffset
+	 * @return blocks of the regular scale level corresponding to the last offset scale level (empty if it is not needed),
+	 * 			the offset scale levels are written to the N5 container while the RDD is computed
+	 * @throws IOException
+	 */
+	private static JavaPairRDD< Long, Block > downsampleOffsetFused(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final JavaPairRDD< Long, Block > inputBlocks,
+			final long[] inputDimensions,
+			final List< String > outputDatasetPaths,
+			final boolean keepRegularLevel,
+			final int[] downsamplingStepFactors,
+			final long[] relativeOffset ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes fullScaleAttributes = n5.getDatasetAttributes( datasetPath );
+		final int dim = fullScaleAttributes.getNumDimensions();
+		final int[] blockSize = fullScaleAttributes.getBlockSize();
+		final DataType dataType = fullScaleAttributes.getDataType();
+		final int numLevels = outputDatasetPaths.size();
+
+		if ( dim != downsamplingStepFactors.length )
+			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
+
+		// dimensions of the regular scale levels (0 is the input) and of the offset scale levels (1..numLevels)
+		final long[][] regularDimensions = new long[ numLevels + 1 ][ dim ];
+		final long[][] offsetDimensions = new long[ numLevels + 1 ][ dim ];
+		regularDimensions[ 0 ] = inputDimensions.clone();
+		for ( int level = 1; level <= numLevels; ++level )
+		{
+			for ( int d = 0; d < dim; ++d )
+			{
+				regularDimensions[ level ][ d ] = regularDimensions[ level - 1 ][ d ] / downsamplingStepFactors[ d ];
+				offsetDimensions[ level ][ d ] = ( regularDimensions[ level - 1 ][ d ] + relativeOffset[ d ] ) / downsamplingStepFactors[ d ];
+			}
+		}
+
+		final OffsetRegions regions = new OffsetRegions( blockSize, regularDimensions, offsetDimensions, downsamplingStepFactors, relativeOffset, keepRegularLevel );
+		N5ScalePyramidSpark.validateFusedRegionSize( offsetDimensions[ 1 ], regions.gridDimensions, blockSize, downsamplingStepFactors, numLevels );
+
+		final List< DatasetAttributes > outputAttributes = new ArrayList<>();
+		for ( int level = 1; level <= numLevels; ++level )
+		{
+			n5.createDataset(
+					outputDatasetPaths.get( level - 1 ),
+					offsetDimensions[ level ],
+					blockSize,
+					dataType,
+					fullScaleAttributes.getCompression()
+				);
+			outputAttributes.add( n5.getDatasetAttributes( outputDatasetPaths.get( level - 1 ) ) );
+		}
+
+		// each region corresponds to a single block of the coarsest offset level, the regions are processed in batches per partition
+		final long numRegions = Intervals.numElements( regions.gridDimensions );
+
+		if ( inputBlocks == null )
+		{
+			return N5SparkUtils.parallelizeIndexRange( sparkContext, numRegions, MAX_PARTITIONS ).mapPartitionsToPair( regionIndexesIterator ->
+				{
+					final N5Writer n5Local = n5Supplier.get();
+					final N5BlockReader reader = new N5BlockReader( n5Local, datasetPath, fullScaleAttributes );
+					final OffsetRegionDownsampler downsampler = new OffsetRegionDownsampler( n5Local, outputDatasetPaths, outputAttributes, regions, dataType );
+					return new LazyBlockIterator<>( regionIndexesIterator, regionIndex -> downsampler.downsample( regionIndex, reader::read ) );
+				} );
+		}
+
+		return inputBlocks
+			// send each block of the regular scale level to the regions whose input it overlaps
+			.flatMapToPair( blockIndexAndBlock ->
+				{
+					final Block inputBlock = blockIndexAndBlock._2();
+					final List< Tuple2< Long, Block > > regionInputBlocks = new ArrayList<>();
+					for ( final Long regionIndex : regions.getInputRegionIndexes( inputBlock.min, inputBlock.size ) )
+						regionInputBlocks.add( new Tuple2<>( regionIndex, inputBlock ) );
+					return regionInputBlocks.iterator();
+				} )
+			.groupByKey( new N5GridPartitioner( numRegions, MAX_PARTITIONS ) )
+			// assemble the input of each region from the received blocks, the missing blocks are empty
+			.mapPartitionsToPair( regionIndexesAndInputBlocksIterator ->
+				{
+					final N5Writer n5Local = n5Supplier.get();
+					final OffsetRegionDownsampler downsampler = new OffsetRegionDownsampler( n5Local, outputDatasetPaths, outputAttributes, regions, dataType );
+					return new LazyBlockIterator<>( regionIndexesAndInputBlocksIterator, regionIndexAndInputBlocks -> downsampler.downsample(
+							regionIndexAndInputBlocks._1(),
+							( min, target ) -> copyBlocks( regionIndexAndInputBlocks._2(), min, target )
+						) );
+				} );
+	}
+
+	/**
+	 * Copies the overlapping parts of the given blocks into the target region.
+	 *
+	 * @param blocks
+	 * @param min
+	 * 			position of the target region
+	 * @param target
+	 * @return true if any of the blocks overlaps the target region
+	 */
+	private static boolean copyBlocks( final Iterable< Block > blocks, final long[] min, final DataBlock< ? > target )
+	{
+		final int n = min.length;
+		final int[] targetSize = target.getSize();
+		final int[] blockPosition = new int[ n ], targetPosition = new int[ n ], overlapSize = new int[ n ];
+		boolean copied = false;
+		for ( final Block block : blocks )
+		{
+			boolean overlaps = true;
+			for ( int d = 0; d < n; ++d )
+			{
+				final long overlapMin = Math.max( block.min[ d ], min[ d ] );
+				final long overlapMax = Math.min( block.min[ d ] + block.size[ d ], min[ d ] + targetSize[ d ] );
+				blockPosition[ d ] = ( int ) ( overlapMin - block.min[ d ] );
+				targetPosition[ d ] = ( int ) ( overlapMin - min[ d ] );
+				overlapSize[ d ] = ( int ) ( overlapMax - overlapMin );
+				overlaps &= overlapMin < overlapMax;
+			}
+
+			if ( overlaps )
+			{
+				N5SparkUtils.copy( block.data, block.size, blockPosition, target.getData(), targetSize, targetPosition, overlapSize );
+				copied = true;
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Reads the given region of the regular scale level to start from.
+	 */
+	@FunctionalInterface
+	private interface RegionReader
+	{
+		/**
+		 * @param min
+		 * @param target
+		 * @return false if no data exists in the region
+		 * @throws IOException
+		 */
+		boolean read( long[] min, DataBlock< ? > target ) throws IOException;
+	}
+
+	/**
+	 * Regions of the offset and regular scale levels processed by a single task, one per block of the coarsest offset scale level.
+	 * The region of the coarsest level is extended to the end of each level for the last region,
+	 * as the finer levels may be larger than the coarsest grid multiplied by the factors.
+	 */
+	private static class OffsetRegions implements Serializable
+	{
+		private static final long serialVersionUID = -3016583839946562373L;
+
+		final int[] blockSize;
+		final long[][] regularDimensions, offsetDimensions;
+		final int[] downsamplingStepFactors;
+		final long[] relativeOffset;
+		final boolean keepRegularLevel;
+		final int numLevels;
+		final long[] gridDimensions;
+
+		// region of the regular scale level to start from for every grid coordinate along each dimension (max is exclusive)
+		private final long[][] inputMin, inputMax;
+
+		OffsetRegions(
+				final int[] blockSize,
+				final long[][] regularDimensions,
+				final long[][] offsetDimensions,
+				final int[] downsamplingStepFactors,
+				final long[] relativeOffset,
+				final boolean keepRegularLevel )
+		{
+			this.blockSize = blockSize;
+			this.regularDimensions = regularDimensions;
+			this.offsetDimensions = offsetDimensions;
+			this.downsamplingStepFactors = downsamplingStepFactors;
+			this.relativeOffset = relativeOffset;
+			this.keepRegularLevel = keepRegularLevel;
+			numLevels = offsetDimensions.length - 1;
+			gridDimensions = new CellGrid( offsetDimensions[ numLevels ], blockSize ).getGridDimensions();
+
+			final int dim = blockSize.length;
+			inputMin = new long[ dim ][];
+			inputMax = new long[ dim ][];
+			final long[][] offsetMin = new long[ numLevels + 1 ][ dim ], offsetMax = new long[ numLevels + 1 ][ dim ];
+			final long[][] regularMin = new long[ numLevels + 1 ][ dim ], regularMax = new long[ numLevels + 1 ][ dim ];
+			for ( int d = 0; d < dim; ++d )
+			{
+				inputMin[ d ] = new long[ ( int ) gridDimensions[ d ] ];
+				inputMax[ d ] = new long[ ( int ) gridDimensions[ d ] ];
+				for ( int g = 0; g < gridDimensions[ d ]; ++g )
+				{
+					getRegion( d, g, offsetMin, offsetMax, regularMin, regularMax );
+					inputMin[ d ][ g ] = regularMin[ 0 ][ d ];
+					inputMax[ d ][ g ] = regularMax[ 0 ][ d ];
+				}
+			}
+		}
+
+		/**
+		 * Computes the regions of the offset levels (1..numLevels) and of the regular levels (0..numLevels) for the given grid position (max is exclusive).
+		 * The region of the regular level at numLevels is empty if the regular level is not kept.
+		 */
+		void getRegion( final long[] regionGridPosition, final long[][] offsetMin, final long[][] offsetMax, final long[][] regularMin, final long[][] regularMax )
+		{
+			for ( int d = 0; d < regionGridPosition.length; ++d )
+				getRegion( d, regionGridPosition[ d ], offsetMin, offsetMax, regularMin, regularMax );
+		}
+
+		private void getRegion( final int d, final long gridPosition, final long[][] offsetMin, final long[][] offsetMax, final long[][] regularMin, final long[][] regularMax )
+		{
+			final boolean isLastRegion = gridPosition == gridDimensions[ d ] - 1;
+			long levelBlockSize = blockSize[ d ];
+			for ( int level = numLevels; level > 0; --level )
+			{
+				offsetMin[ level ][ d ] = gridPosition * levelBlockSize;
+				offsetMax[ level ][ d ] = isLastRegion ? offsetDimensions[ level ][ d ] : Math.min( offsetMin[ level ][ d ] + levelBlockSize, offsetDimensions[ level ][ d ] );
+				levelBlockSize *= downsamplingStepFactors[ d ];
+			}
+
+			regularMin[ numLevels ][ d ] = regularMax[ numLevels ][ d ] = 0;
+			if ( keepRegularLevel )
+			{
+				regularMin[ numLevels ][ d ] = gridPosition * blockSize[ d ];
+				regularMax[ numLevels ][ d ] = isLastRegion ? regularDimensions[ numLevels ][ d ] : Math.min( regularMin[ numLevels ][ d ] + blockSize[ d ], regularDimensions[ numLevels ][ d ] );
+			}
+
+			// the region of each regular level covers the source of the offset level above it and the region of the regular level above it
+			for ( int level = numLevels - 1; level >= 0; --level )
+			{
+				long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+				if ( offsetMin[ level + 1 ][ d ] < offsetMax[ level + 1 ][ d ] )
+				{
+					min = offsetMin[ level + 1 ][ d ] * downsamplingStepFactors[ d ] - relativeOffset[ d ];
+					max = offsetMax[ level + 1 ][ d ] * downsamplingStepFactors[ d ] - relativeOffset[ d ];
+				}
+				if ( regularMin[ level + 1 ][ d ] < regularMax[ level + 1 ][ d ] )
+				{
+					min = Math.min( min, regularMin[ level + 1 ][ d ] * downsamplingStepFactors[ d ] );
+					max = Math.max( max, regularMax[ level + 1 ][ d ] * downsamplingStepFactors[ d ] );
+				}
+				regularMin[ level ][ d ] = Math.max( min, 0 );
+				regularMax[ level ][ d ] = Math.min( max, regularDimensions[ level ][ d ] );
+			}
+		}
+
+		/**
+		 * Finds the regions whose input from the regular scale level to start from overlaps the given block.
+		 *
+		 * @param blockMin
+		 * @param blockSize
+		 * @return indexes of the regions
+		 */
+		List< Long > getInputRegionIndexes( final long[] blockMin, final int[] blockSize )
+		{
+			final int dim = blockMin.length;
+			final List< Long > regionIndexes = new ArrayList<>();
+			final int[] gridMin = new int[ dim ], gridMax = new int[ dim ];
+			for ( int d = 0; d < dim; ++d )
+			{
+				gridMin[ d ] = Integer.MAX_VALUE;
+				gridMax[ d ] = Integer.MIN_VALUE;
+				for ( int g = 0; g < gridDimensions[ d ]; ++g )
+				{
+					if ( inputMin[ d ][ g ] < inputMax[ d ][ g ] && inputMin[ d ][ g ] < blockMin[ d ] + blockSize[ d ] && blockMin[ d ] < inputMax[ d ][ g ] )
+					{
+						gridMin[ d ] = Math.min( gridMin[ d ], g );
+						gridMax[ d ] = Math.max( gridMax[ d ], g );
+					}
+				}
+
+				if ( gridMin[ d ] > gridMax[ d ] )
+					return regionIndexes;
+			}
+
+			// the input regions are ordered along each dimension, so the overlapping regions form a contiguous range of the grid
+			final long[] gridPosition = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				gridPosition[ d ] = gridMin[ d ];
+			while ( true )
+			{
+				regionIndexes.add( IntervalIndexer.positionToIndex( gridPosition, gridDimensions ) );
+
+				int d = 0;
+				while ( d < dim && ++gridPosition[ d ] > gridMax[ d ] )
+					gridPosition[ d ] = gridMin[ d++ ];
+				if ( d == dim )
+					break;
+			}
+			return regionIndexes;
+		}
+	}
+
+	/**
+	 * Computes the offset scale levels of a region and the regular scale level to be kept, reusing the writers and the kernel within a partition.
+	 */
+	private static class OffsetRegionDownsampler
+	{
+		private final List< N5BlockWriter > writers = new ArrayList<>();
+		private final OffsetRegions regions;
+		private final DataType dataType;
+		private final DownsamplingKernel kernel;
+		private final CellGrid cellGrid;
+
+		OffsetRegionDownsampler(
+				final N5Writer n5,
+				final List< String > outputDatasetPaths,
+				final List< DatasetAttributes > outputAttributes,
+				final OffsetRegions regions,
+				final DataType dataType )
+		{
+			for ( int level = 1; level <= regions.numLevels; ++level )
+				writers.add( new N5BlockWriter( n5, outputDatasetPaths.get( level - 1 ), outputAttributes.get( level - 1 ) ) );
+			this.regions = regions;
+			this.dataType = dataType;
+			kernel = DownsamplingKernel.forDataType( dataType );
+			cellGrid = new CellGrid( regions.offsetDimensions[ regions.numLevels ], regions.blockSize );
+		}
+
+		/**
+		 * Writes the offset scale levels of the given region.
+		 *
+		 * @param regionIndex
+		 * @param regionReader
+		 * 			reads the input from the regular scale level to start from
+		 * @return block of the regular scale level to be kept, or {@code null} if it is not kept or empty
+		 * @throws IOException
+		 */
+		Tuple2< Long, Block > downsample( final long regionIndex, final RegionReader regionReader ) throws IOException
+		{
+			final int dim = regions.blockSize.length;
+			final int numLevels = regions.numLevels;
+			final int[] downsamplingStepFactors = regions.downsamplingStepFactors;
+			final long[] relativeOffset = regions.relativeOffset;
+
+			final long[] regionGridPosition = new long[ dim ];
+			cellGrid.getCellGridPositionFlat( regionIndex, regionGridPosition );
+
+			final long[][] offsetMin = new long[ numLevels + 1 ][ dim ], offsetMax = new long[ numLevels + 1 ][ dim ];
+			final long[][] regularMin = new long[ numLevels + 1 ][ dim ], regularMax = new long[ numLevels + 1 ][ dim ];
+			regions.getRegion( regionGridPosition, offsetMin, offsetMax, regularMin, regularMax );
+
+			if ( isEmptyInterval( regularMin[ 0 ], regularMax[ 0 ] ) )
+				return null;
+
+			/* read the required region of the input directly and skip if empty */
+			DataBlock< ? > regularRegion = dataType.createDataBlock( getIntervalSize( regularMin[ 0 ], regularMax[ 0 ] ), new long[ dim ] );
+			if ( !regionReader.read( regularMin[ 0 ], regularRegion ) || N5SparkUtils.isEmpty( regularRegion ) )
+				return null;
+
+			/* do if not empty */
+			final long[] sourceMin = new long[ dim ], sourceMax = new long[ dim ], definedSourceMin = new long[ dim ];
+			for ( int level = 1; level <= numLevels; ++level )
+			{
+				// offset level from the regular level below it
+				if ( !isEmptyInterval( offsetMin[ level ], offsetMax[ level ] ) )
+				{
+					for ( int d = 0; d < dim; ++d )
+					{
+						sourceMin[ d ] = offsetMin[ level ][ d ] * downsamplingStepFactors[ d ] - relativeOffset[ d ];
+						sourceMax[ d ] = Math.min( offsetMax[ level ][ d ] * downsamplingStepFactors[ d ] - relativeOffset[ d ], regions.regularDimensions[ level - 1 ][ d ] );
+						definedSourceMin[ d ] = Math.max( sourceMin[ d ], 0 );
+					}
+
+					if ( !isEmptyInterval( definedSourceMin, sourceMax ) )
+					{
+						final DataBlock< ? > sourceBlock = getSubRegion( regularRegion, regularMin[ level - 1 ], definedSourceMin, sourceMax, dataType );
+						final DataBlock< ? > offsetRegion = dataType.createDataBlock( getIntervalSize( offsetMin[ level ], offsetMax[ level ] ), new long[ dim ] );
+						N5OffsetDownsamplerSpark.downsampleBlock( sourceBlock, offsetRegion, dataType, kernel, downsamplingStepFactors, sourceMin, definedSourceMin );
+						writers.get( level - 1 ).write( offsetMin[ level ], offsetRegion, true );
+					}
+				}
+
+				// regular level from the regular level below it, if it is needed for the next offset level or has to be kept
+				if ( isEmptyInterval( regularMin[ level ], regularMax[ level ] ) )
+					break;
+
+				for ( int d = 0; d < dim; ++d )
+				{
+					sourceMin[ d ] = regularMin[ level ][ d ] * downsamplingStepFactors[ d ];
+					sourceMax[ d ] = regularMax[ level ][ d ] * downsamplingStepFactors[ d ];
+				}
+				final DataBlock< ? > sourceBlock = getSubRegion( regularRegion, regularMin[ level - 1 ], sourceMin, sourceMax, dataType );
+				regularRegion = dataType.createDataBlock( getIntervalSize( regularMin[ level ], regularMax[ level ] ), new long[ dim ] );
+				kernel.downsample( sourceBlock, regularRegion, downsamplingStepFactors );
+			}
+
+			if ( isEmptyInterval( regularMin[ numLevels ], regularMax[ numLevels ] ) || N5SparkUtils.isEmpty( regularRegion ) )
+				return null;
+
+			return new Tuple2<>( regionIndex, new Block( regularMin[ numLevels ], regularRegion.getSize(), regularRegion.getData() ) );
+		}
+	}
+
+	private static boolean isEmptyInterval( final long[] min, final long[] max )
+	{
+		for ( int d = 0; d < min.length; ++d )
+			if ( min[ d ] >= max[ d ] )
+				return true;
+		return false;
+	}
+
+	private static int[] getIntervalSize( final long[] min, final long[] max )
+	{
+		final int[] size = new int[ min.length ];
+		for ( int d = 0; d < min.length; ++d )
+			size[ d ] = ( int ) ( max[ d ] - min[ d ] );
+		return size;
+	}
+
+	/**
+	 * Copies the given part of the region into a new buffer.
+	 *
+	 * @param region
+	 * @param regionMin
+	 * 			position of the region
+	 * @param min
+	 * 			min of the part to be copied
+	 * @param max
+	 * 			max of the part to be copied (exclusive)
+	 * @param dataType
+	 * @return buffer with the part of the region
+	 */
+	private static DataBlock< ? > getSubRegion( final DataBlock< ? > region, final long[] regionMin, final long[] min, final long[] max, final DataType dataType )
+	{
+		final int n = min.length;
+		final int[] size = getIntervalSize( min, max ), position = new int[ n ];
+		for ( int d = 0; d < n; ++d )
+			position[ d ] = ( int ) ( min[ d ] - regionMin[ d ] );
+
+		final DataBlock< ? > subRegion = dataType.createDataBlock( size, new long[ n ] );
+		N5SparkUtils.copy( region.getData(), region.getSize(), position, subRegion.getData(), size, new int[ n ], size );
+		return subRegion;
+	}
+
 
 	public static void main( final String... args ) throws IOException
 	{
@@ -165,27 +702,21 @@ public class N5OffsetScalePyramidSpark
 		{
 			final N5WriterSupplier n5Supplier = () -> new N5FSWriter( parsedArgs.getN5Path() );
 
+			final String outputGroupPath;
 			if ( parsedArgs.getOutputGroupPath() != null )
-			{
-				downsampleOffsetScalePyramid(
-						sparkContext,
-						n5Supplier,
-						parsedArgs.getInputDatasetPath(),
-						parsedArgs.getOutputGroupPath(),
-						parsedArgs.getDownsamplingFactors(),
-						dimensionsWithOffset
-					);
-			}
+				outputGroupPath = parsedArgs.getOutputGroupPath();
 			else
-			{
-				downsampleOffsetScalePyramid(
-						sparkContext,
-						n5Supplier,
-						parsedArgs.getInputDatasetPath(),
-						parsedArgs.getDownsamplingFactors(),
-						dimensionsWithOffset
-					);
-			}
+				outputGroupPath = ( Paths.get( parsedArgs.getInputDatasetPath() ).getParent() != null ? Paths.get( parsedArgs.getInputDatasetPath() ).getParent().toString() : "" );
+
+			downsampleOffsetScalePyramid(
+					sparkContext,
+					n5Supplier,
+					parsedArgs.getInputDatasetPath(),
+					outputGroupPath,
+					parsedArgs.getDownsamplingFactors(),
+					dimensionsWithOffset,
+					parsedArgs.getFusedLevels()
+				);
 		}
 	}
 
@@ -213,6 +744,10 @@ public class N5OffsetScalePyramidSpark
 				usage = "Offset.")
 		private String offset;
 
+		@Option(name = "-l", aliases = { "--fusedLevels" }, required = false,
+				usage = "Number of consecutive scale levels to compute from a single read of the input region (default is " + DEFAULT_FUSED_LEVELS + ").")
+		private int fusedLevels = DEFAULT_FUSED_LEVELS;
+
 		public Arguments( final String... args ) throws IllegalArgumentException
 		{
 			final CmdLineParser parser = new CmdLineParser( this );
@@ -226,6 +761,9 @@ public class N5OffsetScalePyramidSpark
 				parser.printUsage( System.err );
 				System.exit( 1 );
 			}
+
+			if ( fusedLevels < 1 )
+				throw new IllegalArgumentException( "Number of fused levels should be positive" );
 		}
 
 		public String getN5Path() { return n5Path; }
@@ -233,5 +771,6 @@ public class N5OffsetScalePyramidSpark
 		public String getOutputGroupPath() { return outputGroupPath; }
 		public int[] getDownsamplingFactors() { return CmdUtils.parseIntArray( downsamplingFactors ); }
 		public long[] getOffset() { return CmdUtils.parseLongArray( offset ); }
+		public int getFusedLevels() { return fusedLevels; }
 	}
 }
@@ -2,25 +2,40 @@ package org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.spark.downsample.DownsamplingKernel;
 import org.janelia.saalfeldlab.n5.spark.downsample.N5DownsamplerSpark;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockWriter;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparseBlockScanner;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
 public class N5ScalePyramidSpark
 {
+	private static final int MAX_PARTITIONS = 15000;
+
 	/**
 	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
 	 * Reuses the block size of the input dataset. Stores the resulting datasets in the same group as the input dataset.
@@ -67,11 +82,457 @@ public class N5ScalePyramidSpark
 			final String outputGroupPath,
 			final int[] downsamplingStepFactors ) throws IOException
 	{
+		return downsampleScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				outputGroupPath,
+				downsamplingStepFactors,
+				1
+			);
+	}
+
+	/**
+	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
+	 * Reuses the block size of the input dataset. Stores the resulting datasets in the same group as the input dataset.
+	 *<p>
+	 * Up to {@code fusedLevels} consecutive scale levels are computed by a single task from one read of the corresponding input region,
+	 * so intermediate scale levels do not have to be read back from disk.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param downsamplingStepFactors
+	 * @param fusedLevels
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final int[] downsamplingStepFactors,
+			final int fusedLevels ) throws IOException
+	{
+		final String outputGroupPath = ( Paths.get( datasetPath ).getParent() != null ? Paths.get( datasetPath ).getParent().toString() : "" );
+		return downsampleScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				outputGroupPath,
+				downsamplingStepFactors,
+				fusedLevels
+			);
+	}
+
+	/**
+	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
+	 * Reuses the block size of the input dataset. Stores the resulting datasets in the given output group.
+	 *<p>
+	 * Up to {@code fusedLevels} consecutive scale levels are computed by a single task from one read of the corresponding input region,
+	 * so intermediate scale levels do not have to be read back from disk.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @param fusedLevels
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final int fusedLevels ) throws IOException
+	{
+		return downsampleScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				outputGroupPath,
+				downsamplingStepFactors,
+				fusedLevels,
+				null
+			);
+	}
+
+	/**
+	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
+	 * Stores the resulting datasets in the given output group.
+	 *<p>
+	 * Up to {@code fusedLevels} consecutive scale levels are computed by a single task from one read of the corresponding input region,
+	 * so intermediate scale levels do not have to be read back from disk.
+	 *<p>
+	 * If the {@code planner} is given, the block size of each scale level is chosen by the planner, and the plan is printed before running.
+	 * Otherwise, the block size of the input dataset is reused.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @param fusedLevels
+	 * @param planner
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final int fusedLevels,
+			final ScalePyramidPlanner planner ) throws IOException
+	{
+		if ( fusedLevels < 1 )
+			throw new IllegalArgumentException( "Number of fused levels should be positive, got " + fusedLevels );
+
 		final N5Writer n5 = n5Supplier.get();
 		final DatasetAttributes fullScaleAttributes = n5.getDatasetAttributes( datasetPath );
 		final long[] dimensions = fullScaleAttributes.getDimensions();
+
+		final List< String > downsampledDatasets = getDownsampledDatasetPaths( dimensions, downsamplingStepFactors, outputGroupPath );
+		final List< ScalePyramidPlanner.LevelPlan > plan = planBlockSizes( planner, fullScaleAttributes, downsamplingStepFactors, fusedLevels );
+
+		// process the scale levels in groups of fusedLevels, the last group contains the remaining coarse levels
+		for ( int groupStart = 0; groupStart < downsampledDatasets.size(); groupStart += fusedLevels )
+		{
+			final String inputDatasetPath = groupStart == 0 ? datasetPath : downsampledDatasets.get( groupStart - 1 );
+			final List< String > outputDatasetPaths = downsampledDatasets.subList( groupStart, Math.min( groupStart + fusedLevels, downsampledDatasets.size() ) );
+			final int[] outputBlockSize = plan != null ? plan.get( groupStart ).blockSize : null;
+
+			if ( outputDatasetPaths.size() == 1 )
+			{
+				N5DownsamplerSpark.downsample(
+						sparkContext,
+						n5Supplier,
+						inputDatasetPath,
+						outputDatasetPaths.get( 0 ),
+						downsamplingStepFactors,
+						outputBlockSize
+					);
+			}
+			else
+			{
+				downsampleFused(
+						sparkContext,
+						n5Supplier,
+						inputDatasetPath,
+						new ArrayList<>( outputDatasetPaths ),
+						downsamplingStepFactors,
+						outputBlockSize
+					);
+			}
+		}
+
+		return downsampledDatasets;
+	}
+
+	/**
+	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
+	 * Stores the resulting datasets in the given output group.
+	 *<p>
+	 * Unlike {@link #downsampleScalePyramid(JavaSparkContext, N5WriterSupplier, String, String, int[], int, ScalePyramidPlanner)},
+	 * the scale levels are not computed one after another. Each scale level is divided into chunks that are submitted as separate Spark jobs
+	 * as soon as the chunks of the previous scale level they depend on are done (see {@link ScalePyramidPipeline}),
+	 * so the coarser scale levels can use the executors that would otherwise stay idle while the last tasks of the finer scale level are running.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @param planner
+	 * 			optional block size planner, if {@code null} the block size of the input dataset is reused
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleScalePyramidPipelined(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final ScalePyramidPlanner planner ) throws IOException
+	{
+		return downsampleScaleLevelChain(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				outputGroupPath,
+				downsamplingStepFactors,
+				planner,
+				false
+			);
+	}
+
+	/**
+	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
+	 * Stores the resulting datasets in the given output group.
+	 *<p>
+	 * Only the input dataset is read from the N5 container. Each scale level is stored in the N5 container and is also kept in memory
+	 * as the input for the next scale level (see {@link ScalePyramidInMemory}), so it does not have to be read back and decoded.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @param planner
+	 * 			optional block size planner, if {@code null} the block size of the input dataset is reused
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleScalePyramidInMemory(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final ScalePyramidPlanner planner ) throws IOException
+	{
+		return downsampleScaleLevelChain(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				outputGroupPath,
+				downsamplingStepFactors,
+				planner,
+				true
+			);
+	}
+
+	private static List< String > downsampleScaleLevelChain(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final ScalePyramidPlanner planner,
+			final boolean inMemory ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes fullScaleAttributes = n5.getDatasetAttributes( datasetPath );
+
+		final List< String > downsampledDatasets = getDownsampledDatasetPaths( fullScaleAttributes.getDimensions(), downsamplingStepFactors, outputGroupPath );
+		final List< ScalePyramidPlanner.LevelPlan > plan = planBlockSizes( planner, fullScaleAttributes, downsamplingStepFactors, 1 );
+
+		final List< int[] > downsamplingFactors = new ArrayList<>();
+		final List< int[] > blockSizes = new ArrayList<>();
+		for ( int i = 0; i < downsampledDatasets.size(); ++i )
+		{
+			downsamplingFactors.add( downsamplingStepFactors );
+			blockSizes.add( plan != null ? plan.get( i ).blockSize : null );
+		}
+
+		if ( inMemory )
+		{
+			ScalePyramidInMemory.downsample(
+					sparkContext,
+					n5Supplier,
+					datasetPath,
+					downsampledDatasets,
+					downsamplingFactors,
+					blockSizes
+				);
+		}
+		else
+		{
+			ScalePyramidPipeline.downsample(
+					sparkContext,
+					n5Supplier,
+					datasetPath,
+					downsampledDatasets,
+					downsamplingFactors,
+					blockSizes,
+					ScalePyramidPipeline.DEFAULT_MAX_CHUNKS_PER_LEVEL
+				);
+		}
+
+		return downsampledDatasets;
+	}
+
+	/**
+	 * Updates an existing scale pyramid after the given region of the full-scale dataset has been modified.
+	 * At each scale level, only the blocks affected by the modified region are recomputed from the previous scale level,
+	 * so the cost of the update is proportional to the size of the modified region rather than the size of the dataset.
+	 * The scale levels are expected to be stored in the given group as {@code s1}, {@code s2}, ..., as generated by
+	 * {@link #downsampleScalePyramid(JavaSparkContext, N5WriterSupplier, String, String, int[])} with the same factors.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @param modifiedMin
+	 * 			min corner of the modified region of the full-scale dataset
+	 * @param modifiedMax
+	 * 			max corner of the modified region of the full-scale dataset (inclusive)
+	 * @return N5 paths to updated datasets
+	 * @throws IOException
+	 */
+	public static List< String > updateScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final long[] modifiedMin,
+			final long[] modifiedMax ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = n5.getDatasetAttributes( datasetPath ).getDimensions();
 		final int dim = dimensions.length;
 
+		if ( dim != downsamplingStepFactors.length || dim != modifiedMin.length || dim != modifiedMax.length )
+			throw new IllegalArgumentException( "Update parameters do not match data dimensionality." );
+
+		// find the modified region at each scale level, the levels beyond the one where it is cropped out are not affected
+		final long[] min = new long[ dim ], max = new long[ dim ];
+		for ( int d = 0; d < dim; ++d )
+		{
+			min[ d ] = Math.max( modifiedMin[ d ], 0 );
+			max[ d ] = Math.min( modifiedMax[ d ], dimensions[ d ] - 1 );
+			if ( min[ d ] > max[ d ] )
+				throw new IllegalArgumentException( "Modified region " + Arrays.toString( modifiedMin ) + "-" + Arrays.toString( modifiedMax ) + " does not intersect with the dataset" );
+		}
+
+		final List< String > updatedDatasets = new ArrayList<>();
+		String inputDatasetPath = datasetPath;
+		for ( final String outputDatasetPath : getScaleLevelDatasets( n5, outputGroupPath ) )
+		{
+			final DatasetAttributes outputAttributes = n5.getDatasetAttributes( outputDatasetPath );
+			final long[] outputDimensions = outputAttributes.getDimensions();
+			final int[] outputBlockSize = outputAttributes.getBlockSize();
+
+			boolean isCroppedOut = false;
+			final long[] gridMin = new long[ dim ], gridMax = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+			{
+				min[ d ] /= downsamplingStepFactors[ d ];
+				max[ d ] = Math.min( max[ d ] / downsamplingStepFactors[ d ], outputDimensions[ d ] - 1 );
+				isCroppedOut |= min[ d ] > max[ d ];
+				gridMin[ d ] = min[ d ] / outputBlockSize[ d ];
+				gridMax[ d ] = max[ d ] / outputBlockSize[ d ];
+			}
+			if ( isCroppedOut )
+				break;
+
+			final long[] gridDimensions = new CellGrid( outputDimensions, outputBlockSize ).getGridDimensions();
+			N5DownsamplerSpark.updateDownsampledBlocks(
+					n5Supplier,
+					inputDatasetPath,
+					outputDatasetPath,
+					downsamplingStepFactors,
+					parallelizeGridRegion( sparkContext, gridMin, gridMax, gridDimensions )
+				);
+
+			updatedDatasets.add( outputDatasetPath );
+			inputDatasetPath = outputDatasetPath;
+		}
+		return updatedDatasets;
+	}
+
+	/**
+	 * Updates an existing scale pyramid after the given blocks of the full-scale dataset have been modified.
+	 * At each scale level, only the blocks affected by the modified blocks of the previous scale level are recomputed,
+	 * so the cost of the update is proportional to the number of modified blocks rather than the size of the dataset.
+	 * The scale levels are expected to be stored in the given group as {@code s1}, {@code s2}, ..., as generated by
+	 * {@link #downsampleScalePyramid(JavaSparkContext, N5WriterSupplier, String, String, int[])} with the same factors.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @param modifiedBlockGridPositions
+	 * 			grid positions of the modified blocks of the full-scale dataset
+	 * @return N5 paths to updated datasets
+	 * @throws IOException
+	 */
+	public static List< String > updateScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final List< long[] > modifiedBlockGridPositions ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( datasetPath );
+		final int dim = inputAttributes.getNumDimensions();
+
+		if ( dim != downsamplingStepFactors.length )
+			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
+		for ( final long[] gridPosition : modifiedBlockGridPositions )
+			if ( gridPosition.length != dim )
+				throw new IllegalArgumentException( "Modified block grid position " + Arrays.toString( gridPosition ) + " does not match data dimensionality." );
+
+		final List< String > updatedDatasets = new ArrayList<>();
+		String inputDatasetPath = datasetPath;
+		int[] inputBlockSize = inputAttributes.getBlockSize();
+		JavaRDD< long[] > modifiedBlocks = sparkContext.parallelize( modifiedBlockGridPositions, Math.max( Math.min( modifiedBlockGridPositions.size(), MAX_PARTITIONS ), 1 ) );
+		JavaRDD< Long > previousAffectedBlockIndexes = null;
+		for ( final String outputDatasetPath : getScaleLevelDatasets( n5, outputGroupPath ) )
+		{
+			final DatasetAttributes outputAttributes = n5.getDatasetAttributes( outputDatasetPath );
+			final long[] outputDimensions = outputAttributes.getDimensions();
+			final int[] outputBlockSize = outputAttributes.getBlockSize();
+
+			// the affected blocks are used for the update and for finding the affected blocks at the next level
+			final JavaRDD< Long > affectedBlockIndexes = N5SparseBlockScanner.getAffectedOutputBlockIndexes(
+					modifiedBlocks,
+					inputBlockSize,
+					downsamplingStepFactors,
+					outputDimensions,
+					outputBlockSize
+				).cache();
+
+			if ( affectedBlockIndexes.isEmpty() )
+				break;
+
+			N5DownsamplerSpark.updateDownsampledBlocks(
+					n5Supplier,
+					inputDatasetPath,
+					outputDatasetPath,
+					downsamplingStepFactors,
+					affectedBlockIndexes
+				);
+
+			if ( previousAffectedBlockIndexes != null )
+				previousAffectedBlockIndexes.unpersist();
+			previousAffectedBlockIndexes = affectedBlockIndexes;
+
+			final long[] gridDimensions = new CellGrid( outputDimensions, outputBlockSize ).getGridDimensions();
+			modifiedBlocks = affectedBlockIndexes.map( blockIndex ->
+				{
+					final long[] gridPosition = new long[ gridDimensions.length ];
+					IntervalIndexer.indexToPosition( blockIndex, gridDimensions, gridPosition );
+					return gridPosition;
+				} );
+
+			updatedDatasets.add( outputDatasetPath );
+			inputDatasetPath = outputDatasetPath;
+			inputBlockSize = outputBlockSize;
+		}
+
+		if ( previousAffectedBlockIndexes != null )
+			previousAffectedBlockIndexes.unpersist();
+
+		return updatedDatasets;
+	}
+
+	private static List< String > getDownsampledDatasetPaths(
+			final long[] dimensions,
+			final int[] downsamplingStepFactors,
+			final String outputGroupPath )
+	{
+		final int dim = dimensions.length;
 		final List< String > downsampledDatasets = new ArrayList<>();
 
 		for ( int scale = 1; ; ++scale )
@@ -87,21 +548,239 @@ public class N5ScalePyramidSpark
 			if ( Arrays.stream( downsampledDimensions ).min().getAsLong() < 1 )
 				break;
 
-			final String inputDatasetPath = scale == 1 ? datasetPath : Paths.get( outputGroupPath, "s" + ( scale - 1 ) ).toString();
-			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
+			downsampledDatasets.add( Paths.get( outputGroupPath, "s" + scale ).toString() );
+		}
 
-			N5DownsamplerSpark.downsample(
-					sparkContext,
-					n5Supplier,
-					inputDatasetPath,
+		return downsampledDatasets;
+	}
+
+	private static List< ScalePyramidPlanner.LevelPlan > planBlockSizes(
+			final ScalePyramidPlanner planner,
+			final DatasetAttributes fullScaleAttributes,
+			final int[] downsamplingStepFactors,
+			final int fusedLevels )
+	{
+		if ( planner == null )
+			return null;
+
+		final List< ScalePyramidPlanner.LevelPlan > plan = planner.plan(
+				fullScaleAttributes.getDimensions(),
+				fullScaleAttributes.getBlockSize(),
+				fullScaleAttributes.getDataType(),
+				downsamplingStepFactors,
+				fusedLevels
+			);
+		System.out.println( "Scale pyramid plan:" );
+		for ( final ScalePyramidPlanner.LevelPlan levelPlan : plan )
+			System.out.println( "  " + levelPlan );
+		return plan;
+	}
+
+	/**
+	 * Returns the scale level datasets {@code s1}, {@code s2}, ... that exist in the given group.
+	 */
+	private static List< String > getScaleLevelDatasets( final N5Writer n5, final String groupPath ) throws IOException
+	{
+		final List< String > scaleLevelDatasets = new ArrayList<>();
+		for ( int scale = 1; n5.datasetExists( Paths.get( groupPath, "s" + scale ).toString() ); ++scale )
+			scaleLevelDatasets.add( Paths.get( groupPath, "s" + scale ).toString() );
+
+		if ( scaleLevelDatasets.isEmpty() )
+			throw new IllegalArgumentException( "No scale levels found in the group " + groupPath );
+
+		return scaleLevelDatasets;
+	}
+
+	/**
+	 * Creates an RDD of flat indexes of the blocks within the given region of the block grid.
+	 */
+	private static JavaRDD< Long > parallelizeGridRegion(
+			final JavaSparkContext sparkContext,
+			final long[] gridMin,
+			final long[] gridMax,
+			final long[] gridDimensions )
+	{
+		final long[] regionGridDimensions = new long[ gridMin.length ];
+		for ( int d = 0; d < gridMin.length; ++d )
+			regionGridDimensions[ d ] = gridMax[ d ] - gridMin[ d ] + 1;
+
+		return N5SparkUtils.parallelizeIndexRange( sparkContext, Intervals.numElements( regionGridDimensions ), MAX_PARTITIONS ).map( regionBlockIndex ->
+			{
+				final long[] gridPosition = new long[ gridMin.length ];
+				IntervalIndexer.indexToPosition( regionBlockIndex, regionGridDimensions, gridPosition );
+				for ( int d = 0; d < gridPosition.length; ++d )
+					gridPosition[ d ] += gridMin[ d ];
+				return IntervalIndexer.positionToIndex( gridPosition, gridDimensions );
+			} );
+	}
+
+	/**
+	 * Checks that the input region of a single block of the coarsest fused level fits into a single array.
+	 * The region spans the block size multiplied by the factors of all fused levels, and the last region also covers the remainder.
+	 *
+	 * @param firstLevelDimensions
+	 * 			dimensions of the first fused level
+	 * @param coarsestGridDimensions
+	 * 			grid dimensions of the coarsest fused level
+	 * @param blockSize
+	 * @param downsamplingStepFactors
+	 * @param numLevels
+	 * 			number of fused levels
+	 */
+	static void validateFusedRegionSize(
+			final long[] firstLevelDimensions,
+			final long[] coarsestGridDimensions,
+			final int[] blockSize,
+			final int[] downsamplingStepFactors,
+			final int numLevels )
+	{
+		long maxInputRegionNumElements = 1;
+		for ( int d = 0; d < firstLevelDimensions.length; ++d )
+		{
+			final long regionSize = blockSize[ d ] * Math.round( Math.pow( downsamplingStepFactors[ d ], numLevels - 1 ) );
+			final long lastRegionSize = firstLevelDimensions[ d ] - ( coarsestGridDimensions[ d ] - 1 ) * regionSize;
+			maxInputRegionNumElements *= Math.max( Math.min( regionSize, firstLevelDimensions[ d ] ), lastRegionSize ) * downsamplingStepFactors[ d ];
+			if ( maxInputRegionNumElements > Integer.MAX_VALUE )
+				throw new IllegalArgumentException( "Input region of " + numLevels + " fused levels is too large for a single array, fuse fewer levels" );
+		}
+	}
+
+	/**
+	 * Downsamples the given input dataset several times in a row with respect to the given downsampling factors.
+	 * Each region corresponds to a single block of the coarsest output dataset: the corresponding region of the input dataset is read once,
+	 * and all scale levels for this region are computed in memory, writing out the blocks of every scale level.
+	 * The output datasets are created with the same block size as the input dataset.
+	 * The input region has to fit into a single array,
+	 * otherwise an {@link IllegalArgumentException} is thrown and fewer levels should be fused.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPaths
+	 * @param downsamplingStepFactors
+	 * @param outputBlockSize
+	 * 			block size for the output datasets (if {@code null}, the block size of the input dataset is used)
+	 * @throws IOException
+	 */
+	private static void downsampleFused(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final List< String > outputDatasetPaths,
+			final int[] downsamplingStepFactors,
+			final int[] outputBlockSize ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		if ( !n5.datasetExists( inputDatasetPath ) )
+			throw new IllegalArgumentException( "Input N5 dataset " + inputDatasetPath + " does not exist" );
+		for ( final String outputDatasetPath : outputDatasetPaths )
+			if ( n5.datasetExists( outputDatasetPath ) )
+				throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " already exists" );
+
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
+		final int dim = inputAttributes.getNumDimensions();
+		final int[] blockSize = outputBlockSize != null ? outputBlockSize : inputAttributes.getBlockSize();
+		final int numLevels = outputDatasetPaths.size();
+
+		if ( dim != downsamplingStepFactors.length )
+			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
+
+		// dimensions of the input dataset (level 0) and of each output dataset (levels 1..numLevels)
+		final long[][] levelDimensions = new long[ numLevels + 1 ][];
+		levelDimensions[ 0 ] = inputAttributes.getDimensions();
+		for ( int level = 1; level <= numLevels; ++level )
+		{
+			levelDimensions[ level ] = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				levelDimensions[ level ][ d ] = levelDimensions[ level - 1 ][ d ] / downsamplingStepFactors[ d ];
+
+			if ( Arrays.stream( levelDimensions[ level ] ).min().getAsLong() < 1 )
+				throw new IllegalArgumentException( "Degenerate output dimensions: " + Arrays.toString( levelDimensions[ level ] ) );
+		}
+
+		final long[] coarsestGridDimensions = new CellGrid( levelDimensions[ numLevels ], blockSize ).getGridDimensions();
+		validateFusedRegionSize( levelDimensions[ 1 ], coarsestGridDimensions, blockSize, downsamplingStepFactors, numLevels );
+
+		final int[] inputAbsoluteDownsamplingFactors = n5.getAttribute( inputDatasetPath, N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class );
+		final int[] outputAbsoluteDownsamplingFactors = new int[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			outputAbsoluteDownsamplingFactors[ d ] = inputAbsoluteDownsamplingFactors != null ? inputAbsoluteDownsamplingFactors[ d ] : 1;
+
+		final List< DatasetAttributes > outputAttributes = new ArrayList<>();
+		for ( int level = 1; level <= numLevels; ++level )
+		{
+			final String outputDatasetPath = outputDatasetPaths.get( level - 1 );
+			n5.createDataset(
 					outputDatasetPath,
-					downsamplingStepFactors
+					levelDimensions[ level ],
+					blockSize,
+					inputAttributes.getDataType(),
+					inputAttributes.getCompression()
 				);
 
-			downsampledDatasets.add( outputDatasetPath );
+			for ( int d = 0; d < dim; ++d )
+				outputAbsoluteDownsamplingFactors[ d ] *= downsamplingStepFactors[ d ];
+			n5.setAttribute( outputDatasetPath, N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, outputAbsoluteDownsamplingFactors );
+			outputAttributes.add( n5.getDatasetAttributes( outputDatasetPath ) );
 		}
 
-		return downsampledDatasets;
+		// each region corresponds to a single block of the coarsest level, the regions are processed in batches per partition
+		final DataType dataType = inputAttributes.getDataType();
+		final long numRegions = Intervals.numElements( coarsestGridDimensions );
+
+		N5SparkUtils.parallelizeIndexRange( sparkContext, numRegions, MAX_PARTITIONS ).foreachPartition( regionIndexesIterator ->
+		{
+			final N5Writer n5Local = n5Supplier.get();
+			final N5BlockReader reader = new N5BlockReader( n5Local, inputDatasetPath, inputAttributes );
+			final List< N5BlockWriter > writers = new ArrayList<>();
+			for ( int level = 1; level <= numLevels; ++level )
+				writers.add( new N5BlockWriter( n5Local, outputDatasetPaths.get( level - 1 ), outputAttributes.get( level - 1 ) ) );
+			final DownsamplingKernel kernel = DownsamplingKernel.forDataType( dataType );
+
+			final CellGrid cellGrid = new CellGrid( levelDimensions[ numLevels ], blockSize );
+			final long[] regionGridPosition = new long[ dim ];
+
+			while ( regionIndexesIterator.hasNext() )
+			{
+				cellGrid.getCellGridPositionFlat( regionIndexesIterator.next(), regionGridPosition );
+
+				// find the region at each level, the region at the finer level is aligned with the region at the coarser level
+				// the last region extends to the end of each level, as the finer levels may be larger than the coarsest grid multiplied by the factors
+				final long[][] regionMin = new long[ numLevels + 1 ][ dim ];
+				final int[][] regionSize = new int[ numLevels + 1 ][ dim ];
+				for ( int d = 0; d < dim; ++d )
+				{
+					final boolean isLastRegion = regionGridPosition[ d ] == cellGrid.getGridDimensions()[ d ] - 1;
+					long levelBlockSize = blockSize[ d ];
+					for ( int level = numLevels; level > 0; --level )
+					{
+						regionMin[ level ][ d ] = regionGridPosition[ d ] * levelBlockSize;
+						regionSize[ level ][ d ] = ( int ) ( isLastRegion
+								? levelDimensions[ level ][ d ] - regionMin[ level ][ d ]
+								: Math.min( levelBlockSize, levelDimensions[ level ][ d ] - regionMin[ level ][ d ] ) );
+						levelBlockSize *= downsamplingStepFactors[ d ];
+					}
+					regionMin[ 0 ][ d ] = regionMin[ 1 ][ d ] * downsamplingStepFactors[ d ];
+					regionSize[ 0 ][ d ] = regionSize[ 1 ][ d ] * downsamplingStepFactors[ d ];
+				}
+
+				/* read the source region directly and skip if empty */
+				final DataBlock< ? > sourceRegion = dataType.createDataBlock( regionSize[ 0 ], new long[ dim ] );
+				if ( !reader.read( regionMin[ 0 ], sourceRegion ) || N5SparkUtils.isEmpty( sourceRegion ) )
+					continue;
+
+				/* do if not empty */
+				DataBlock< ? > previousLevelRegion = sourceRegion;
+				for ( int level = 1; level <= numLevels; ++level )
+				{
+					final DataBlock< ? > levelRegion = dataType.createDataBlock( regionSize[ level ], new long[ dim ] );
+					kernel.downsample( previousLevelRegion, levelRegion, downsamplingStepFactors );
+
+					writers.get( level - 1 ).write( regionMin[ level ], levelRegion, true );
+					previousLevelRegion = levelRegion;
+				}
+			}
+		} );
 	}
 
 
@@ -116,24 +795,87 @@ public class N5ScalePyramidSpark
 		{
 			final N5WriterSupplier n5Supplier = () -> new N5FSWriter( parsedArgs.getN5Path() );
 
-			if ( parsedArgs.getOutputGroupPath() != null )
+			if ( parsedArgs.isUpdate() )
 			{
-				downsampleScalePyramid(
-						sparkContext,
-						n5Supplier,
-						parsedArgs.getInputDatasetPath(),
-						parsedArgs.getOutputGroupPath(),
-						parsedArgs.getDownsamplingFactors()
-					);
+				final String outputGroupPath = parsedArgs.getOutputGroupPath() != null
+						? parsedArgs.getOutputGroupPath()
+						: ( Paths.get( parsedArgs.getInputDatasetPath() ).getParent() != null ? Paths.get( parsedArgs.getInputDatasetPath() ).getParent().toString() : "" );
+
+				final List< String > updatedDatasets;
+				if ( parsedArgs.getUpdateBlocksPath() != null )
+				{
+					final List< long[] > modifiedBlockGridPositions = new ArrayList<>();
+					for ( final String line : Files.readAllLines( Paths.get( parsedArgs.getUpdateBlocksPath() ) ) )
+						if ( !line.trim().isEmpty() )
+							modifiedBlockGridPositions.add( CmdUtils.parseLongArray( line.trim() ) );
+
+					updatedDatasets = updateScalePyramid(
+							sparkContext,
+							n5Supplier,
+							parsedArgs.getInputDatasetPath(),
+							outputGroupPath,
+							parsedArgs.getDownsamplingFactors(),
+							modifiedBlockGridPositions
+						);
+				}
+				else
+				{
+					updatedDatasets = updateScalePyramid(
+							sparkContext,
+							n5Supplier,
+							parsedArgs.getInputDatasetPath(),
+							outputGroupPath,
+							parsedArgs.getDownsamplingFactors(),
+							parsedArgs.getUpdateMin(),
+							parsedArgs.getUpdateMax()
+						);
+				}
+				System.out.println( "Updated scale levels: " + updatedDatasets );
 			}
 			else
 			{
-				downsampleScalePyramid(
-						sparkContext,
-						n5Supplier,
-						parsedArgs.getInputDatasetPath(),
-						parsedArgs.getDownsamplingFactors()
-					);
+				final String outputGroupPath = parsedArgs.getOutputGroupPath() != null
+						? parsedArgs.getOutputGroupPath()
+						: ( Paths.get( parsedArgs.getInputDatasetPath() ).getParent() != null ? Paths.get( parsedArgs.getInputDatasetPath() ).getParent().toString() : "" );
+
+				final ScalePyramidPlanner planner = parsedArgs.getTargetBlockBytes() != null
+						? new ScalePyramidPlanner( parsedArgs.getTargetBlockBytes(), parsedArgs.getCompressionRatio(), sparkContext.defaultParallelism() )
+						: null;
+
+				if ( parsedArgs.isInMemory() )
+				{
+					downsampleScalePyramidInMemory(
+							sparkContext,
+							n5Supplier,
+							parsedArgs.getInputDatasetPath(),
+							outputGroupPath,
+							parsedArgs.getDownsamplingFactors(),
+							planner
+						);
+				}
+				else if ( parsedArgs.isPipelined() )
+				{
+					downsampleScalePyramidPipelined(
+							sparkContext,
+							n5Supplier,
+							parsedArgs.getInputDatasetPath(),
+							outputGroupPath,
+							parsedArgs.getDownsamplingFactors(),
+							planner
+						);
+				}
+				else
+				{
+					downsampleScalePyramid(
+							sparkContext,
+							n5Supplier,
+							parsedArgs.getInputDatasetPath(),
+							outputGroupPath,
+							parsedArgs.getDownsamplingFactors(),
+							parsedArgs.getFusedLevels(),
+							planner
+						);
+				}
 			}
 		}
 	}
@@ -158,12 +900,59 @@ public class N5ScalePyramidSpark
 				usage = "Downsampling factors.")
 		private String downsamplingFactors;
 
+		@Option(name = "-l", aliases = { "--fusedLevels" }, required = false,
+				usage = "Number of scale levels to compute in a single pass from one read of the input region (1 by default, meaning that each scale level is computed separately).")
+		private int fusedLevels = 1;
+
+		@Option(name = "-um", aliases = { "--updateMin" }, required = false,
+				usage = "Min corner of the modified region of the input dataset. If specified together with --updateMax, the existing scale pyramid is updated only where affected by this region.")
+		private String updateMin;
+
+		@Option(name = "-uM", aliases = { "--updateMax" }, required = false,
+				usage = "Max corner (inclusive) of the modified region of the input dataset. If specified together with --updateMin, the existing scale pyramid is updated only where affected by this region.")
+		private String updateMax;
+
+		@Option(name = "-ub", aliases = { "--updateBlocks" }, required = false,
+				usage = "Path to a text file listing grid positions of the modified blocks of the input dataset, one comma-separated position per line. If specified, the existing scale pyramid is updated only where affected by these blocks.")
+		private String updateBlocksPath;
+
+		@Option(name = "-tb", aliases = { "--targetBlockBytes" }, required = false,
+				usage = "Desired size of a stored block in bytes. If specified, the block size of each scale level is planned to keep all executor cores busy, instead of reusing the block size of the input dataset.")
+		private Long targetBlockBytes;
+
+		@Option(name = "-cr", aliases = { "--compressionRatio" }, required = false,
+				usage = "Expected ratio between the uncompressed and the compressed size of a block, used together with --targetBlockBytes (1 by default).")
+		private double compressionRatio = ScalePyramidPlanner.DEFAULT_COMPRESSION_RATIO;
+
+		@Option(name = "-pl", aliases = { "--pipelined" }, required = false,
+				usage = "Start computing each part of a scale level as soon as the corresponding part of the previous scale level is done, instead of waiting for the entire previous scale level.")
+		private boolean pipelined;
+
+		@Option(name = "-m", aliases = { "--inMemory" }, required = false,
+				usage = "Keep each scale level in memory (spilling to disk if needed) as the input for the next scale level, instead of reading it back from the N5 container.")
+		private boolean inMemory;
+
 		public Arguments( final String... args ) throws IllegalArgumentException
 		{
 			final CmdLineParser parser = new CmdLineParser( this );
 			try
 			{
 				parser.parseArgument( args );
+
+				if ( ( updateMin == null ) != ( updateMax == null ) )
+					throw new IllegalArgumentException( "updateMin and updateMax should be either both specified or omitted." );
+				if ( updateMin != null && updateBlocksPath != null )
+					throw new IllegalArgumentException( "Either the modified region or the modified blocks can be specified, but not both." );
+				if ( targetBlockBytes != null && ( updateMin != null || updateBlocksPath != null ) )
+					throw new IllegalArgumentException( "The block size cannot be planned when updating an existing scale pyramid." );
+				if ( pipelined && fusedLevels != 1 )
+					throw new IllegalArgumentException( "Pipelined mode cannot be combined with fused scale levels." );
+				if ( pipelined && ( updateMin != null || updateBlocksPath != null ) )
+					throw new IllegalArgumentException( "Pipelined mode cannot be used when updating an existing scale pyramid." );
+				if ( inMemory && ( pipelined || fusedLevels != 1 ) )
+					throw new IllegalArgumentException( "In-memory mode cannot be combined with pipelined mode or fused scale levels." );
+				if ( inMemory && ( updateMin != null || updateBlocksPath != null ) )
+					throw new IllegalArgumentException( "In-memory mode cannot be used when updating an existing scale pyramid." );
 			}
 			catch ( final CmdLineException e )
 			{
@@ -177,5 +966,14 @@ public class N5ScalePyramidSpark
 		public String getInputDatasetPath() { return inputDatasetPath; }
 		public String getOutputGroupPath() { return outputGroupPath; }
 		public int[] getDownsamplingFactors() { return CmdUtils.parseIntArray( downsamplingFactors ); }
+		public int getFusedLevels() { return fusedLevels; }
+		public boolean isUpdate() { return updateMin != null || updateBlocksPath != null; }
+		public long[] getUpdateMin() { return CmdUtils.parseLongArray( updateMin ); }
+		public long[] getUpdateMax() { return CmdUtils.parseLongArray( updateMax ); }
+		public String getUpdateBlocksPath() { return updateBlocksPath; }
+		public Long getTargetBlockBytes() { return targetBlockBytes; }
+		public double getCompressionRatio() { return compressionRatio; }
+		public boolean isPipelined() { return pipelined; }
+		public boolean isInMemory() { return inMemory; }
 	}
 }
@@ -0,0 +1,326 @@
+package org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.storage.StorageLevel;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.spark.downsample.DownsamplingKernel;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.N5BlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5GridPartitioner;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import scala.Tuple2;
+
+/**
+ * Computes a chain of downsampled datasets (such as the scale levels of a scale pyramid) where every dataset except the first one
+ * is computed from the blocks of the previous dataset kept in memory, instead of reading them back from the N5 container.
+ *<p>
+ * The blocks of each dataset are stored in the N5 container, and are also kept as an RDD of primitive arrays
+ * persisted with {@link StorageLevel#MEMORY_AND_DISK_SER()} until the next dataset is done.
+ * The blocks are sent to the tasks computing the overlapping blocks of the next dataset with a partitioner that assigns
+ * contiguous ranges of the block grid to each partition. Empty blocks are neither stored nor kept in memory.
+ */
+public class ScalePyramidInMemory
+{
+	private static final int MAX_PARTITIONS = 15000;
+
+	/**
+	 * Data of a block together with its position in pixel coordinates.
+	 */
+	static class Block implements Serializable
+	{
+		private static final long serialVersionUID = -4410985744186785620L;
+
+		final long[] min;
+		final int[] size;
+		final Object data;
+
+		Block( final long[] min, final int[] size, final Object data )
+		{
+			this.min = min;
+			this.size = size;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Downsamples the input dataset into the first output dataset, the first output dataset into the second one, and so on.
+	 * The output datasets are created with the given block sizes.
+	 *<p>
+	 * Only the input dataset is read from the N5 container, the following datasets are computed from the blocks kept in memory.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPaths
+	 * @param downsamplingFactors
+	 * 			downsampling factors of each output dataset relative to the previous one
+	 * @param blockSizes
+	 * 			block size of each output dataset (if an entry is {@code null}, the block size of the previous dataset is used)
+	 * @throws IOException
+	 */
+	public static void downsample(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final List< String > outputDatasetPaths,
+			final List< int[] > downsamplingFactors,
+			final List< int[] > blockSizes ) throws IOException
+	{
+		final List< DatasetAttributes > levelAttributes = ScalePyramidPipeline.createDownsampledDatasets(
+				n5Supplier.get(),
+				inputDatasetPath,
+				outputDatasetPaths,
+				downsamplingFactors,
+				blockSizes
+			);
+
+		JavaPairRDD< Long, Block > previousLevelBlocks = null;
+		for ( int level = 1; level <= outputDatasetPaths.size(); ++level )
+		{
+			final JavaPairRDD< Long, Block > levelBlocks;
+			if ( level == 1 )
+			{
+				levelBlocks = downsampleFromN5(
+						sparkContext,
+						n5Supplier,
+						inputDatasetPath,
+						levelAttributes.get( 0 ),
+						outputDatasetPaths.get( 0 ),
+						levelAttributes.get( 1 ),
+						downsamplingFactors.get( 0 )
+					);
+			}
+			else
+			{
+				levelBlocks = downsampleFromMemory(
+						previousLevelBlocks,
+						n5Supplier,
+						outputDatasetPaths.get( level - 1 ),
+						levelAttributes.get( level ),
+						downsamplingFactors.get( level - 1 )
+					);
+			}
+
+			// the blocks are kept only if they are required as the input for the next level
+			if ( level < outputDatasetPaths.size() )
+				levelBlocks.persist( StorageLevel.MEMORY_AND_DISK_SER() );
+
+			// the blocks are written to the N5 container while the RDD is computed
+			levelBlocks.count();
+
+			if ( previousLevelBlocks != null )
+				previousLevelBlocks.unpersist();
+			previousLevelBlocks = levelBlocks;
+		}
+
+		if ( previousLevelBlocks != null )
+			previousLevelBlocks.unpersist();
+	}
+
+	private static JavaPairRDD< Long, Block > downsampleFromN5(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final DatasetAttributes inputAttributes,
+			final String outputDatasetPath,
+			final DatasetAttributes outputAttributes,
+			final int[] downsamplingFactors )
+	{
+		final int dim = inputAttributes.getNumDimensions();
+		final DataType dataType = inputAttributes.getDataType();
+		final long[] outputDimensions = outputAttributes.getDimensions();
+		final int[] outputBlockSize = outputAttributes.getBlockSize();
+		final long numOutputBlocks = Intervals.numElements( new CellGrid( outputDimensions, outputBlockSize ).getGridDimensions() );
+
+		return N5SparkUtils.parallelizeIndexRange( sparkContext, numOutputBlocks, MAX_PARTITIONS ).mapPartitionsToPair( blockIndexesIterator ->
+			{
+				final N5Writer n5Local = n5Supplier.get();
+				final N5BlockReader reader = new N5BlockReader( n5Local, inputDatasetPath, inputAttributes );
+				final DownsamplingKernel kernel = DownsamplingKernel.forDataType( dataType );
+				final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
+
+				return new LazyBlockIterator<>( blockIndexesIterator, blockIndex ->
+					{
+						final long[] blockGridPosition = new long[ dim ], targetMin = new long[ dim ], sourceMin = new long[ dim ];
+						final int[] cellDimensions = new int[ dim ], sourceDimensions = new int[ dim ];
+						cellGrid.getCellGridPositionFlat( blockIndex, blockGridPosition );
+						cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
+						for ( int d = 0; d < dim; ++d )
+						{
+							sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ];
+							sourceDimensions[ d ] = cellDimensions[ d ] * downsamplingFactors[ d ];
+						}
+
+						final DataBlock< ? > sourceBlock = dataType.createDataBlock( sourceDimensions, new long[ dim ] );
+						if ( !reader.read( sourceMin, sourceBlock ) || N5SparkUtils.isEmpty( sourceBlock ) )
+							return null;
+
+						final DataBlock< ? > targetBlock = dataType.createDataBlock( cellDimensions, blockGridPosition );
+						kernel.downsample( sourceBlock, targetBlock, downsamplingFactors );
+						if ( N5SparkUtils.isEmpty( targetBlock ) )
+							return null;
+
+						n5Local.writeBlock( outputDatasetPath, outputAttributes, targetBlock );
+						return new Tuple2<>( blockIndex, new Block( targetMin, cellDimensions, targetBlock.getData() ) );
+					} );
+			} );
+	}
+
+	private static JavaPairRDD< Long, Block > downsampleFromMemory(
+			final JavaPairRDD< Long, Block > inputBlocks,
+			final N5WriterSupplier n5Supplier,
+			final String outputDatasetPath,
+			final DatasetAttributes outputAttributes,
+			final int[] downsamplingFactors )
+	{
+		final int dim = outputAttributes.getNumDimensions();
+		final DataType dataType = outputAttributes.getDataType();
+		final long[] outputDimensions = outputAttributes.getDimensions();
+		final int[] outputBlockSize = outputAttributes.getBlockSize();
+		final long[] outputGridDimensions = new CellGrid( outputDimensions, outputBlockSize ).getGridDimensions();
+		final long numOutputBlocks = Intervals.numElements( outputGridDimensions );
+
+		return inputBlocks
+			// send each input block to the output blocks whose input region it overlaps
+			.flatMapToPair( blockIndexAndBlock ->
+				{
+					final Block inputBlock = blockIndexAndBlock._2();
+					final List< Tuple2< Long, Block > > outputBlocks = new ArrayList<>();
+					final long[] gridMin = new long[ dim ], gridMax = new long[ dim ];
+					for ( int d = 0; d < dim; ++d )
+					{
+						final long outputBlockSourceSize = ( long ) outputBlockSize[ d ] * downsamplingFactors[ d ];
+						gridMin[ d ] = inputBlock.min[ d ] / outputBlockSourceSize;
+						gridMax[ d ] = Math.min( ( inputBlock.min[ d ] + inputBlock.size[ d ] - 1 ) / outputBlockSourceSize, outputGridDimensions[ d ] - 1 );
+
+						// the input block lies within the trailing pixels that do not contribute to the output
+						if ( gridMin[ d ] > gridMax[ d ] )
+							return outputBlocks.iterator();
+					}
+
+					final long[] gridPosition = gridMin.clone();
+					while ( true )
+					{
+						outputBlocks.add( new Tuple2<>( IntervalIndexer.positionToIndex( gridPosition, outputGridDimensions ), inputBlock ) );
+
+						int d = 0;
+						while ( d < dim && ++gridPosition[ d ] > gridMax[ d ] )
+							gridPosition[ d ] = gridMin[ d++ ];
+						if ( d == dim )
+							break;
+					}
+					return outputBlocks.iterator();
+				} )
+			.groupByKey( new N5GridPartitioner( numOutputBlocks, MAX_PARTITIONS ) )
+			// assemble the input region of each output block from the received input blocks and downsample it
+			.mapPartitionsToPair( blockIndexesAndInputBlocksIterator ->
+				{
+					final N5Writer n5Local = n5Supplier.get();
+					final DownsamplingKernel kernel = DownsamplingKernel.forDataType( dataType );
+					final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
+
+					return new LazyBlockIterator<>( blockIndexesAndInputBlocksIterator, blockIndexAndInputBlocks ->
+					{
+						final long[] blockGridPosition = new long[ dim ], targetMin = new long[ dim ], sourceMin = new long[ dim ];
+						final int[] cellDimensions = new int[ dim ], sourceDimensions = new int[ dim ];
+						cellGrid.getCellGridPositionFlat( blockIndexAndInputBlocks._1(), blockGridPosition );
+						cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
+						for ( int d = 0; d < dim; ++d )
+						{
+							sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ];
+							sourceDimensions[ d ] = cellDimensions[ d ] * downsamplingFactors[ d ];
+						}
+
+						// the missing input blocks are empty, so the remaining parts of the source region stay zero
+						final Object sourceData = dataType.createDataBlock( sourceDimensions, new long[ dim ] ).getData();
+						final int[] inputBlockPosition = new int[ dim ], sourcePosition = new int[ dim ], overlapSize = new int[ dim ];
+						for ( final Block inputBlock : blockIndexAndInputBlocks._2() )
+						{
+							for ( int d = 0; d < dim; ++d )
+							{
+								final long overlapMin = Math.max( inputBlock.min[ d ], sourceMin[ d ] );
+								final long overlapMax = Math.min( inputBlock.min[ d ] + inputBlock.size[ d ], sourceMin[ d ] + sourceDimensions[ d ] );
+								inputBlockPosition[ d ] = ( int ) ( overlapMin - inputBlock.min[ d ] );
+								sourcePosition[ d ] = ( int ) ( overlapMin - sourceMin[ d ] );
+								overlapSize[ d ] = ( int ) ( overlapMax - overlapMin );
+							}
+							N5SparkUtils.copy( inputBlock.data, inputBlock.size, inputBlockPosition, sourceData, sourceDimensions, sourcePosition, overlapSize );
+						}
+
+						final DataBlock< ? > targetBlock = dataType.createDataBlock( cellDimensions, blockGridPosition );
+						kernel.downsample( sourceData, sourceDimensions, targetBlock.getData(), cellDimensions, downsamplingFactors );
+						if ( N5SparkUtils.isEmpty( targetBlock ) )
+							return null;
+
+						n5Local.writeBlock( outputDatasetPath, outputAttributes, targetBlock );
+						return new Tuple2<>( blockIndexAndInputBlocks._1(), new Block( targetMin, cellDimensions, targetBlock.getData() ) );
+					} );
+				} );
+	}
+
+	/**
+	 * Computes the output block for an element of the input partition, or returns {@code null} if the output block is empty.
+	 */
+	@FunctionalInterface
+	interface BlockComputer< I >
+	{
+		Tuple2< Long, Block > compute( I input ) throws IOException;
+	}
+
+	/**
+	 * Computes the output blocks on demand while the partition is being consumed, skipping the empty ones,
+	 * so the output blocks of a partition are never held in memory all at once.
+	 */
+	static class LazyBlockIterator< I > implements Iterator< Tuple2< Long, Block > >
+	{
+		private final Iterator< I > inputIterator;
+		private final BlockComputer< I > blockComputer;
+		private Tuple2< Long, Block > next;
+
+		public LazyBlockIterator( final Iterator< I > inputIterator, final BlockComputer< I > blockComputer )
+		{
+			this.inputIterator = inputIterator;
+			this.blockComputer = blockComputer;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			try
+			{
+				while ( next == null && inputIterator.hasNext() )
+					next = blockComputer.compute( inputIterator.next() );
+			}
+			catch ( final IOException e )
+			{
+				throw new RuntimeException( e );
+			}
+			return next != null;
+		}
+
+		@Override
+		public Tuple2< Long, Block > next()
+		{
+			if ( !hasNext() )
+				throw new NoSuchElementException();
+			final Tuple2< Long, Block > current = next;
+			next = null;
+			return current;
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.spark.api.java.JavaFutureAction;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.spark.downsample.N5DownsamplerSpark;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Computes a chain of downsampled datasets (such as the scale levels of a scale pyramid) without waiting for each dataset to be finished
+ * before starting the next one.
+ *<p>
+ * Each dataset is divided into chunks of blocks, and each chunk is computed by a separate asynchronous Spark job.
+ * A chunk is submitted as soon as all chunks of the previous dataset that overlap with its input region are done,
+ * so the tasks of the coarser levels can run on the executors that become idle at the tail of the finer levels.
+ * The chunks are submitted in the order of the levels, so the FIFO scheduler of Spark gives precedence to the finer levels.
+ */
+public class ScalePyramidPipeline
+{
+	public static final int DEFAULT_MAX_CHUNKS_PER_LEVEL = 64;
+
+	private static final int MAX_PARTITIONS = 15000;
+
+	/**
+	 * Box of blocks of an output dataset. The blocks of the chunk are identified by the range {@code [0, numBlocks)} of their indexes within the chunk,
+	 * which are mapped to the block indexes of the dataset only when the chunk is processed, so the block indexes are never collected on the driver.
+	 * The {@code min} and {@code max} of the chunk are inclusive.
+	 */
+	private static class Chunk
+	{
+		final int level;
+		final long[] min, max;
+		final long[] blockGridMin, blockGridSize;
+		final long numBlocks;
+		final List< Chunk > dependencies = new ArrayList<>();
+
+		JavaFutureAction< Void > future;
+		boolean isDone;
+
+		Chunk( final int level, final long[] min, final long[] max, final long[] blockGridMin, final long[] blockGridSize )
+		{
+			this.level = level;
+			this.min = min;
+			this.max = max;
+			this.blockGridMin = blockGridMin;
+			this.blockGridSize = blockGridSize;
+			this.numBlocks = Intervals.numElements( blockGridSize );
+		}
+
+		boolean isReady()
+		{
+			for ( final Chunk dependency : dependencies )
+				if ( !dependency.isDone )
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * Downsamples the input dataset into the first output dataset, the first output dataset into the second one, and so on.
+	 * The output datasets are created with the given block sizes.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPaths
+	 * @param downsamplingFactors
+	 * 			downsampling factors of each output dataset relative to the previous one
+	 * @param blockSizes
+	 * 			block size of each output dataset (if an entry is {@code null}, the block size of the previous dataset is used)
+	 * @param maxChunksPerLevel
+	 * 			max number of chunks (separate Spark jobs) per output dataset
+	 * @throws IOException
+	 */
+	public static void downsample(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final List< String > outputDatasetPaths,
+			final List< int[] > downsamplingFactors,
+			final List< int[] > blockSizes,
+			final int maxChunksPerLevel ) throws IOException
+	{
+		if ( maxChunksPerLevel < 1 )
+			throw new IllegalArgumentException( "Max number of chunks per level should be positive, got " + maxChunksPerLevel );
+
+		final List< DatasetAttributes > levelAttributes = createDownsampledDatasets(
+				n5Supplier.get(),
+				inputDatasetPath,
+				outputDatasetPaths,
+				downsamplingFactors,
+				blockSizes
+			);
+
+		// divide the output datasets into chunks and find the chunks of the previous level that each chunk depends on
+		final List< Chunk > pendingChunks = new ArrayList<>();
+		final List< CellGrid > chunkGrids = new ArrayList<>();
+		final List< List< Chunk > > levelChunks = new ArrayList<>();
+		chunkGrids.add( null );
+		levelChunks.add( null );
+		for ( int level = 1; level <= outputDatasetPaths.size(); ++level )
+		{
+			final DatasetAttributes attributes = levelAttributes.get( level );
+			final List< Chunk > chunks = createChunks( level, attributes, maxChunksPerLevel, chunkGrids );
+			if ( level > 1 )
+				for ( final Chunk chunk : chunks )
+					findDependencies( chunk, downsamplingFactors.get( level - 1 ), chunkGrids.get( level - 1 ), levelChunks.get( level - 1 ) );
+
+			levelChunks.add( chunks );
+			pendingChunks.addAll( chunks );
+		}
+
+		// the futures of the running chunks are waited on by separate driver threads, so the chunks are collected as soon as any of them is finished
+		final ExecutorService waitingExecutor = Executors.newCachedThreadPool();
+		final CompletionService< Chunk > finishedChunks = new ExecutorCompletionService<>( waitingExecutor );
+		final List< Chunk > runningChunks = new ArrayList<>();
+		try
+		{
+			while ( !pendingChunks.isEmpty() || !runningChunks.isEmpty() )
+			{
+				// submit the chunks whose input is ready, in the order of the levels
+				for ( final Iterator< Chunk > it = pendingChunks.iterator(); it.hasNext(); )
+				{
+					final Chunk chunk = it.next();
+					if ( chunk.isReady() )
+					{
+						chunk.future = N5DownsamplerSpark.downsampleBlocksAsync(
+								n5Supplier,
+								chunk.level == 1 ? inputDatasetPath : outputDatasetPaths.get( chunk.level - 2 ),
+								outputDatasetPaths.get( chunk.level - 1 ),
+								downsamplingFactors.get( chunk.level - 1 ),
+								parallelizeBlockIndexes( sparkContext, chunk, levelAttributes.get( chunk.level ) )
+							);
+						finishedChunks.submit( () ->
+							{
+								chunk.future.get();
+								return chunk;
+							} );
+						runningChunks.add( chunk );
+						it.remove();
+					}
+				}
+
+				// wait until one of the running chunks is finished
+				final Chunk finishedChunk = finishedChunks.take().get();
+				finishedChunk.isDone = true;
+				runningChunks.remove( finishedChunk );
+			}
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			for ( final Chunk chunk : runningChunks )
+				chunk.future.cancel( true );
+			throw new RuntimeException( e );
+		}
+		finally
+		{
+			waitingExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Creates the output datasets for a chain of downsampled datasets and sets their downsampling factors attribute.
+	 *
+	 * @param n5
+	 * @param inputDatasetPath
+	 * @param outputDatasetPaths
+	 * @param downsamplingFactors
+	 * 			downsampling factors of each output dataset relative to the previous one
+	 * @param blockSizes
+	 * 			block size of each output dataset (if an entry is {@code null}, the block size of the previous dataset is used)
+	 * @return attributes of the input dataset followed by the attributes of each output dataset
+	 * @throws IOException
+	 */
+	static List< DatasetAttributes > createDownsampledDatasets(
+			final N5Writer n5,
+			final String inputDatasetPath,
+			final List< String > outputDatasetPaths,
+			final List< int[] > downsamplingFactors,
+			final List< int[] > blockSizes ) throws IOException
+	{
+		if ( outputDatasetPaths.size() != downsamplingFactors.size() || outputDatasetPaths.size() != blockSizes.size() )
+			throw new IllegalArgumentException( "Number of output datasets does not match downsampling factors and block sizes" );
+
+		if ( !n5.datasetExists( inputDatasetPath ) )
+			throw new IllegalArgumentException( "Input N5 dataset " + inputDatasetPath + " does not exist" );
+		for ( final String outputDatasetPath : outputDatasetPaths )
+			if ( n5.datasetExists( outputDatasetPath ) )
+				throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " already exists" );
+
+		final List< DatasetAttributes > levelAttributes = new ArrayList<>();
+		levelAttributes.add( n5.getDatasetAttributes( inputDatasetPath ) );
+		for ( int level = 1; level <= outputDatasetPaths.size(); ++level )
+		{
+			final String previousDatasetPath = level == 1 ? inputDatasetPath : outputDatasetPaths.get( level - 2 );
+			final DatasetAttributes previousAttributes = levelAttributes.get( level - 1 );
+			final int[] factors = downsamplingFactors.get( level - 1 );
+			final int dim = previousAttributes.getNumDimensions();
+			if ( dim != factors.length )
+				throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
+
+			final long[] dimensions = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				dimensions[ d ] = previousAttributes.getDimensions()[ d ] / factors[ d ];
+			if ( Arrays.stream( dimensions ).min().getAsLong() < 1 )
+				throw new IllegalArgumentException( "Degenerate output dimensions: " + Arrays.toString( dimensions ) );
+
+			final String outputDatasetPath = outputDatasetPaths.get( level - 1 );
+			n5.createDataset(
+					outputDatasetPath,
+					dimensions,
+					blockSizes.get( level - 1 ) != null ? blockSizes.get( level - 1 ) : previousAttributes.getBlockSize(),
+					previousAttributes.getDataType(),
+					previousAttributes.getCompression()
+				);
+
+			final int[] previousAbsoluteFactors = n5.getAttribute( previousDatasetPath, N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class );
+			final int[] absoluteFactors = new int[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				absoluteFactors[ d ] = factors[ d ] * ( previousAbsoluteFactors != null ? previousAbsoluteFactors[ d ] : 1 );
+			n5.setAttribute( outputDatasetPath, N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, absoluteFactors );
+
+			levelAttributes.add( n5.getDatasetAttributes( outputDatasetPath ) );
+		}
+
+		return levelAttributes;
+	}
+
+	/**
+	 * Divides the dataset into at most {@code maxChunks} chunks aligned with its blocks.
+	 */
+	private static List< Chunk > createChunks(
+			final int level,
+			final DatasetAttributes attributes,
+			final int maxChunks,
+			final List< CellGrid > chunkGrids )
+	{
+		final int dim = attributes.getNumDimensions();
+		final long[] dimensions = attributes.getDimensions();
+		final int[] blockSize = attributes.getBlockSize();
+		final CellGrid blockGrid = new CellGrid( dimensions, blockSize );
+		final long[] blockGridDimensions = blockGrid.getGridDimensions();
+
+		// the same number of chunks in each dimension, unless there are fewer blocks
+		final long chunksPerDimension = Math.max( ( long ) Math.floor( Math.pow( maxChunks, 1. / dim ) + 1e-9 ), 1 );
+		final int[] chunkSize = new int[ dim ];
+		for ( int d = 0; d < dim; ++d )
+		{
+			final long chunkSizeInBlocks = ( blockGridDimensions[ d ] + chunksPerDimension - 1 ) / chunksPerDimension;
+			chunkSize[ d ] = ( int ) Math.min( chunkSizeInBlocks * blockSize[ d ], dimensions[ d ] );
+		}
+		final CellGrid chunkGrid = new CellGrid( dimensions, chunkSize );
+		chunkGrids.add( chunkGrid );
+
+		final long[] chunkGridDimensions = chunkGrid.getGridDimensions();
+		final long numChunks = Arrays.stream( chunkGridDimensions ).reduce( 1, ( a, b ) -> a * b );
+		final List< Chunk > chunks = new ArrayList<>();
+		final long[] chunkGridPosition = new long[ dim ];
+		for ( long chunkIndex = 0; chunkIndex < numChunks; ++chunkIndex )
+		{
+			chunkGrid.getCellGridPositionFlat( chunkIndex, chunkGridPosition );
+			final long[] min = new long[ dim ], max = new long[ dim ], blockGridMin = new long[ dim ], blockGridSize = new long[ dim ];
+			final int[] size = new int[ dim ];
+			chunkGrid.getCellDimensions( chunkGridPosition, min, size );
+			for ( int d = 0; d < dim; ++d )
+			{
+				max[ d ] = min[ d ] + size[ d ] - 1;
+				blockGridMin[ d ] = min[ d ] / blockSize[ d ];
+				blockGridSize[ d ] = max[ d ] / blockSize[ d ] - blockGridMin[ d ] + 1;
+			}
+			chunks.add( new Chunk( level, min, max, blockGridMin, blockGridSize ) );
+		}
+		return chunks;
+	}
+
+	/**
+	 * Creates an RDD of the block indexes of the given chunk. The range of the indexes within the chunk is parallelized lazily,
+	 * and each index is converted to the block index of the dataset on the workers.
+	 */
+	private static JavaRDD< Long > parallelizeBlockIndexes(
+			final JavaSparkContext sparkContext,
+			final Chunk chunk,
+			final DatasetAttributes attributes )
+	{
+		final long[] blockGridDimensions = new CellGrid( attributes.getDimensions(), attributes.getBlockSize() ).getGridDimensions();
+		final long[] blockGridMin = chunk.blockGridMin, blockGridSize = chunk.blockGridSize;
+		return N5SparkUtils.parallelizeIndexRange( sparkContext, chunk.numBlocks, MAX_PARTITIONS ).map( chunkBlockIndex ->
+			{
+				final long[] blockGridPosition = new long[ blockGridMin.length ];
+				IntervalIndexer.indexToPositionWithOffset( chunkBlockIndex, blockGridSize, blockGridMin, blockGridPosition );
+				return IntervalIndexer.positionToIndex( blockGridPosition, blockGridDimensions );
+			} );
+	}
+
+	/**
+	 * Finds the chunks of the previous level that overlap with the input region of the given chunk.
+	 */
+	private static void findDependencies(
+			final Chunk chunk,
+			final int[] downsamplingFactors,
+			final CellGrid previousChunkGrid,
+			final List< Chunk > previousChunks )
+	{
+		final int dim = chunk.min.length;
+		final long[] previousChunkGridDimensions = previousChunkGrid.getGridDimensions();
+		final long[] gridMin = new long[ dim ], gridMax = new long[ dim ], gridPosition = new long[ dim ];
+		for ( int d = 0; d < dim; ++d )
+		{
+			final long previousChunkSize = previousChunkGrid.cellDimension( d );
+			gridMin[ d ] = chunk.min[ d ] * downsamplingFactors[ d ] / previousChunkSize;
+			gridMax[ d ] = Math.min( ( ( chunk.max[ d ] + 1 ) * downsamplingFactors[ d ] - 1 ) / previousChunkSize, previousChunkGridDimensions[ d ] - 1 );
+		}
+
+		System.arraycopy( gridMin, 0, gridPosition, 0, dim );
+		while ( true )
+		{
+			chunk.dependencies.add( previousChunks.get( ( int ) IntervalIndexer.positionToIndex( gridPosition, previousChunkGridDimensions ) ) );
+
+			int d = 0;
+			while ( d < dim && ++gridPosition[ d ] > gridMax[ d ] )
+				gridPosition[ d ] = gridMin[ d++ ];
+			if ( d == dim )
+				break;
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.DataType;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
+
+/**
+ * Chooses the block size of each scale level of a scale pyramid, and thereby the number of tasks that compute it.
+ *<p>
+ * If the block size of the input dataset is kept at every scale level, the coarse levels consist of only a few blocks,
+ * so only a few executor cores are busy while they are computed. Instead, the planner starts from a block
+ * that is expected to take up the target number of bytes on disk (given the expected compression ratio) and has the same shape as the input block.
+ * Then the block is split in half along its longest side until the scale level has enough blocks to keep all cores busy,
+ * or until the block becomes too small to be worth a separate task.
+ *<p>
+ * The scale levels that are computed together in a single pass share the block size, and each task computes one block of the coarsest level in the group,
+ * so the plan for a group of fused levels is based on its coarsest level.
+ *<p>
+ * A single scale level can also be planned with a block shape other than the shape of the input block,
+ * which is used by the non-isotropic scale pyramid to keep its blocks close to isotropic in physical space.
+ */
+public class ScalePyramidPlanner
+{
+	public static class LevelPlan
+	{
+		public final int scale;
+		public final long[] dimensions;
+		public final int[] blockSize;
+		public final long numBlocks;
+		public final long numTasks;
+		public final long bytesPerTask;
+
+		public LevelPlan(
+				final int scale,
+				final long[] dimensions,
+				final int[] blockSize,
+				final long numBlocks,
+				final long numTasks,
+				final long bytesPerTask )
+		{
+			this.scale = scale;
+			this.dimensions = dimensions;
+			this.blockSize = blockSize;
+			this.numBlocks = numBlocks;
+			this.numTasks = numTasks;
+			this.bytesPerTask = bytesPerTask;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format(
+					"s%d: dimensions=%s, blockSize=%s, %d blocks, %d tasks, %.1f MB per task (uncompressed input)",
+					scale,
+					Arrays.toString( dimensions ),
+					Arrays.toString( blockSize ),
+					numBlocks,
+					numTasks,
+					bytesPerTask / ( 1024. * 1024. ) );
+		}
+	}
+
+	public static final double DEFAULT_COMPRESSION_RATIO = 1;
+
+	// more tasks than cores allow the faster cores to pick up the remaining work
+	private static final int TASKS_PER_CORE = 2;
+
+	// blocks are not split further than to this fraction of the target size
+	private static final int MAX_BLOCK_SPLIT = 8;
+
+	private final long targetBlockBytes;
+	private final double compressionRatio;
+	private final int numCores;
+
+	/**
+	 * @param targetBlockBytes
+	 * 			desired size of a stored (compressed) block in bytes
+	 * @param compressionRatio
+	 * 			expected ratio between the uncompressed and the compressed size of a block
+	 * @param numCores
+	 * 			number of executor cores available for the job
+	 */
+	public ScalePyramidPlanner( final long targetBlockBytes, final double compressionRatio, final int numCores )
+	{
+		if ( targetBlockBytes <= 0 )
+			throw new IllegalArgumentException( "Target block size in bytes should be positive, got " + targetBlockBytes );
+		if ( compressionRatio <= 0 )
+			throw new IllegalArgumentException( "Compression ratio should be positive, got " + compressionRatio );
+		if ( numCores <= 0 )
+			throw new IllegalArgumentException( "Number of cores should be positive, got " + numCores );
+
+		this.targetBlockBytes = targetBlockBytes;
+		this.compressionRatio = compressionRatio;
+		this.numCores = numCores;
+	}
+
+	/**
+	 * Plans the block size for each scale level of the scale pyramid that is generated with the given downsampling factors.
+	 *
+	 * @param fullScaleDimensions
+	 * @param fullScaleBlockSize
+	 * @param dataType
+	 * @param downsamplingStepFactors
+	 * @param fusedLevels
+	 * 			number of scale levels computed together in a single pass
+	 * @return plan for each scale level starting from s1
+	 */
+	public List< LevelPlan > plan(
+			final long[] fullScaleDimensions,
+			final int[] fullScaleBlockSize,
+			final DataType dataType,
+			final int[] downsamplingStepFactors,
+			final int fusedLevels )
+	{
+		final int dim = fullScaleDimensions.length;
+		if ( dim != fullScaleBlockSize.length || dim != downsamplingStepFactors.length )
+			throw new IllegalArgumentException( "Scale pyramid parameters do not match data dimensionality." );
+		if ( fusedLevels < 1 )
+			throw new IllegalArgumentException( "Number of fused levels should be positive, got " + fusedLevels );
+
+		// dimensions of all scale levels including the full scale
+		final List< long[] > levelDimensions = new ArrayList<>();
+		levelDimensions.add( fullScaleDimensions.clone() );
+		while ( true )
+		{
+			final long[] previousDimensions = levelDimensions.get( levelDimensions.size() - 1 );
+			final long[] dimensions = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				dimensions[ d ] = previousDimensions[ d ] / downsamplingStepFactors[ d ];
+
+			if ( Arrays.stream( dimensions ).min().getAsLong() < 1 )
+				break;
+
+			levelDimensions.add( dimensions );
+		}
+
+		final int bytesPerElement = getBytesPerElement( dataType );
+
+		final List< LevelPlan > plan = new ArrayList<>();
+		for ( int groupStart = 1; groupStart < levelDimensions.size(); groupStart += fusedLevels )
+		{
+			final int groupEnd = Math.min( groupStart + fusedLevels, levelDimensions.size() ) - 1;
+			final long[] inputDimensions = levelDimensions.get( groupStart - 1 );
+			final long[] coarsestDimensions = levelDimensions.get( groupEnd );
+
+			final int[] blockSize = planBlockSize( fullScaleBlockSize, levelDimensions.get( groupStart ), coarsestDimensions, bytesPerElement );
+
+			// each task reads the input region for one block of the coarsest level in the group
+			final long[] groupFactors = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				groupFactors[ d ] = Math.round( Math.pow( downsamplingStepFactors[ d ], groupEnd - groupStart + 1 ) );
+			final long numTasks = getNumBlocks( coarsestDimensions, blockSize );
+			final long bytesPerTask = getElementsPerTask( blockSize, groupFactors, inputDimensions ) * bytesPerElement;
+
+			for ( int scale = groupStart; scale <= groupEnd; ++scale )
+			{
+				plan.add( new LevelPlan(
+						scale,
+						levelDimensions.get( scale ),
+						blockSize.clone(),
+						getNumBlocks( levelDimensions.get( scale ), blockSize ),
+						numTasks,
+						bytesPerTask ) );
+			}
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Plans the block size for a single scale level that is computed from the previous scale level with the given downsampling factors.
+	 * The planned block has the shape of the given block, which allows to keep the block shape chosen for this scale level by other means
+	 * (such as the blocks that are close to isotropic in physical space in a non-isotropic scale pyramid).
+	 *
+	 * @param scale
+	 * @param inputDimensions
+	 * 			dimensions of the previous scale level
+	 * @param dimensions
+	 * @param shapeBlockSize
+	 * 			block that defines the shape of the planned block
+	 * @param dataType
+	 * @param downsamplingFactors
+	 * 			downsampling factors relative to the previous scale level
+	 * @return plan for the scale level
+	 */
+	public LevelPlan planLevel(
+			final int scale,
+			final long[] inputDimensions,
+			final long[] dimensions,
+			final int[] shapeBlockSize,
+			final DataType dataType,
+			final int[] downsamplingFactors )
+	{
+		final int dim = dimensions.length;
+		if ( dim != inputDimensions.length || dim != shapeBlockSize.length || dim != downsamplingFactors.length )
+			throw new IllegalArgumentException( "Scale level parameters do not match data dimensionality." );
+
+		final int bytesPerElement = getBytesPerElement( dataType );
+		final int[] blockSize = planBlockSize( shapeBlockSize, dimensions, dimensions, bytesPerElement );
+		final long[] factors = new long[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			factors[ d ] = downsamplingFactors[ d ];
+
+		final long numBlocks = getNumBlocks( dimensions, blockSize );
+		return new LevelPlan(
+				scale,
+				dimensions.clone(),
+				blockSize,
+				numBlocks,
+				numBlocks,
+				getElementsPerTask( blockSize, factors, inputDimensions ) * bytesPerElement );
+	}
+
+	/**
+	 * Starts from a block of the target size with the given shape (but not larger than the finest level),
+	 * and splits it along the longest side until the coarsest level has enough blocks for all cores.
+	 */
+	private int[] planBlockSize(
+			final int[] shapeBlockSize,
+			final long[] finestDimensions,
+			final long[] coarsestDimensions,
+			final int bytesPerElement )
+	{
+		final int dim = shapeBlockSize.length;
+		final long targetBlockElements = Math.max( Math.round( targetBlockBytes * compressionRatio / bytesPerElement ), 1 );
+		final long minBlockElements = Math.max( targetBlockElements / MAX_BLOCK_SPLIT, 1 );
+		final long minTasks = ( long ) numCores * TASKS_PER_CORE;
+		final double scaling = Math.pow( targetBlockElements / ( double ) Intervals.numElements( shapeBlockSize ), 1. / dim );
+
+		// block of the target size with the given shape, but not larger than the finest level
+		final int[] blockSize = new int[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			blockSize[ d ] = ( int ) Math.max( Math.min( Math.round( shapeBlockSize[ d ] * scaling ), finestDimensions[ d ] ), 1 );
+
+		// split the block along the longest side until there are enough tasks
+		while ( getNumBlocks( coarsestDimensions, blockSize ) < minTasks )
+		{
+			int longestDimension = -1;
+			long longestSide = 1;
+			for ( int d = 0; d < dim; ++d )
+			{
+				final long side = Math.min( blockSize[ d ], coarsestDimensions[ d ] );
+				if ( side > longestSide )
+				{
+					longestDimension = d;
+					longestSide = side;
+				}
+			}
+			if ( longestDimension == -1 )
+				break;
+
+			final int[] splitBlockSize = blockSize.clone();
+			splitBlockSize[ longestDimension ] = ( int ) ( ( longestSide + 1 ) / 2 );
+			if ( Intervals.numElements( splitBlockSize ) < minBlockElements )
+				break;
+
+			System.arraycopy( splitBlockSize, 0, blockSize, 0, dim );
+		}
+
+		return blockSize;
+	}
+
+	private static long getElementsPerTask( final int[] blockSize, final long[] downsamplingFactors, final long[] inputDimensions )
+	{
+		long elementsPerTask = 1;
+		for ( int d = 0; d < blockSize.length; ++d )
+			elementsPerTask *= Math.min( blockSize[ d ] * downsamplingFactors[ d ], inputDimensions[ d ] );
+		return elementsPerTask;
+	}
+
+	private static long getNumBlocks( final long[] dimensions, final int[] blockSize )
+	{
+		return Intervals.numElements( new CellGrid( dimensions, blockSize ).getGridDimensions() );
+	}
+
+	private static int getBytesPerElement( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		case UINT8:
+			return 1;
+		case INT16:
+		case UINT16:
+			return 2;
+		case INT32:
+		case UINT32:
+		case FLOAT32:
+			return 4;
+		case INT64:
+		case UINT64:
+		case FLOAT64:
+			return 8;
+		default:
+			throw new IllegalArgumentException( "Block size planning is not supported for data type " + dataType );
+		}
+	}
+}
@@ -0,0 +1,393 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5ReaderSupplier;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+
+/**
+ * Base class for the caches of decoded N5 blocks shared by all tasks running in the same JVM (i.e. on the same Spark executor).
+ * The cache is bounded by the total size of the cached blocks in bytes, and the least recently used blocks are evicted first.
+ * Missing blocks are cached as well, so the same block is not looked up repeatedly.
+ *<p>
+ * The subclasses define how the blocks are stored in the cache, and provide the methods for wrapping {@link N5ReaderSupplier}s and {@link N5WriterSupplier}s:
+ * the blocks read with {@link N5Reader#readBlock(String, DatasetAttributes, long[])} through the supplied readers are then served from the cache when possible.
+ * Each wrapped supplier gets a separate namespace for the cached blocks, so the wrapped supplier identifies the container.
+ *
+ * @param <B>
+ * 			type of the cached blocks
+ */
+public abstract class N5BlockCache< B >
+{
+	/**
+	 * Identifies a block of a dataset in a container.
+	 */
+	static class Key
+	{
+		private final String containerId;
+		private final String datasetPath;
+		private final long[] gridPosition;
+		private final int hashCode;
+
+		Key( final String containerId, final String datasetPath, final long[] gridPosition )
+		{
+			this.containerId = containerId;
+			this.datasetPath = datasetPath;
+			this.gridPosition = gridPosition.clone();
+			hashCode = 31 * ( 31 * containerId.hashCode() + datasetPath.hashCode() ) + Arrays.hashCode( gridPosition );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key other = ( Key ) obj;
+			return containerId.equals( other.containerId ) && datasetPath.equals( other.datasetPath ) && Arrays.equals( gridPosition, other.gridPosition );
+		}
+	}
+
+	/**
+	 * Creates the handler for a wrapped reader. The factory is sent to the executors along with the wrapped supplier.
+	 */
+	@FunctionalInterface
+	protected interface HandlerFactory extends Serializable
+	{
+		InvocationHandler create( N5Reader n5, String containerId );
+	}
+
+	/**
+	 * Handles the calls to the wrapped readers: reads the blocks through the cache and passes all other calls to the underlying reader.
+	 *
+	 * @param <C>
+	 * 			type of the cache
+	 */
+	public static class CachingHandler< C extends N5BlockCache< ? > > implements InvocationHandler
+	{
+		protected final N5Reader n5;
+		protected final String containerId;
+		protected final C cache;
+
+		protected CachingHandler( final N5Reader n5, final String containerId, final C cache )
+		{
+			this.n5 = n5;
+			this.containerId = containerId;
+			this.cache = cache;
+		}
+
+		@Override
+		public Object invoke( final Object proxy, final Method method, final Object[] args ) throws Throwable
+		{
+			if ( method.getName().equals( "readBlock" ) && args != null && args.length == 3 && args[ 2 ] instanceof long[] )
+				return readBlock( ( String ) args[ 0 ], ( DatasetAttributes ) args[ 1 ], ( long[] ) args[ 2 ] );
+
+			try
+			{
+				return method.invoke( n5, args );
+			}
+			catch ( final InvocationTargetException e )
+			{
+				throw e.getCause();
+			}
+		}
+
+		/**
+		 * @return the underlying reader that is not cached
+		 */
+		public N5Reader getReader()
+		{
+			return n5;
+		}
+
+		/**
+		 * Reads the block through the cache.
+		 *
+		 * @param datasetPath
+		 * @param attributes
+		 * @param gridPosition
+		 * @return block, or {@code null} if the block does not exist
+		 * @throws IOException
+		 */
+		public DataBlock< ? > readBlock( final String datasetPath, final DatasetAttributes attributes, final long[] gridPosition ) throws IOException
+		{
+			return cache.readBlock( n5, containerId, datasetPath, attributes, gridPosition );
+		}
+	}
+
+	// approximate memory taken by a cache entry on the heap in addition to the block data, so that the missing blocks are accounted for as well
+	protected static final long ENTRY_OVERHEAD_BYTES = 128;
+
+	private static final Map< Class< ? >, N5BlockCache< ? > > instances = new HashMap<>();
+
+	private final String name;
+	private final LinkedHashMap< Key, B > blocks = new LinkedHashMap<>( 16, 0.75f, true );
+	private long maxBytes;
+	private long sizeInBytes;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * @param name
+	 * 			used in {@link #toString()}
+	 * @param maxBytes
+	 * 			max total size of the cached blocks in bytes
+	 */
+	protected N5BlockCache( final String name, final long maxBytes )
+	{
+		this.name = name;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the cache instance of the given class in this JVM, creating it if necessary.
+	 * If the instance already exists and the given size is larger than its current size, the cache is enlarged.
+	 *
+	 * @param cacheClass
+	 * @param maxBytes
+	 * 			max total size of the cached blocks in bytes
+	 * @param factory
+	 * 			creates the cache of the given size
+	 * @return cache instance
+	 */
+	@SuppressWarnings( "unchecked" )
+	protected static synchronized < C extends N5BlockCache< ? > > C getInstance( final Class< C > cacheClass, final long maxBytes, final LongFunction< C > factory )
+	{
+		final N5BlockCache< ? > instance = instances.get( cacheClass );
+		if ( instance == null )
+		{
+			final C newInstance = factory.apply( maxBytes );
+			instances.put( cacheClass, newInstance );
+			return newInstance;
+		}
+
+		instance.ensureMaxBytes( maxBytes );
+		return ( C ) instance;
+	}
+
+	/**
+	 * Wraps the given supplier so that the supplied readers pass their calls to the handlers created by the given factory.
+	 * If the supplied readers are {@link N5Writer}s, the wrapped readers implement {@link N5Writer} as well.
+	 *
+	 * @param n5Supplier
+	 * @param maxBytes
+	 * 			max total size of the cached blocks in bytes
+	 * @param handlerFactory
+	 * @return wrapped supplier
+	 */
+	protected static N5ReaderSupplier wrap( final N5ReaderSupplier n5Supplier, final long maxBytes, final HandlerFactory handlerFactory )
+	{
+		final String containerId = createContainerId( maxBytes );
+		return () -> createProxy( n5Supplier.get(), containerId, handlerFactory );
+	}
+
+	/**
+	 * Wraps the given supplier so that the supplied writers pass their calls to the handlers created by the given factory.
+	 *
+	 * @param n5Supplier
+	 * @param maxBytes
+	 * 			max total size of the cached blocks in bytes
+	 * @param handlerFactory
+	 * @return wrapped supplier
+	 */
+	protected static N5WriterSupplier wrap( final N5WriterSupplier n5Supplier, final long maxBytes, final HandlerFactory handlerFactory )
+	{
+		final String containerId = createContainerId( maxBytes );
+		return () -> ( N5Writer ) createProxy( n5Supplier.get(), containerId, handlerFactory );
+	}
+
+	/**
+	 * Returns the underlying reader if the given reader has been wrapped by one of the block caches, or the given reader otherwise.
+	 * Allows to access the features of the N5 backend that are not exposed by the {@link N5Reader} and {@link N5Writer} interfaces (such as the base path of the container).
+	 *
+	 * @param n5
+	 * @return underlying reader
+	 */
+	public static N5Reader unwrap( final N5Reader n5 )
+	{
+		if ( Proxy.isProxyClass( n5.getClass() ) )
+		{
+			final InvocationHandler handler = Proxy.getInvocationHandler( n5 );
+			if ( handler instanceof CachingHandler )
+				return ( ( CachingHandler< ? > ) handler ).getReader();
+		}
+		return n5;
+	}
+
+	/**
+	 * Returns the cached block, or reads it with the given reader and adds it to the cache.
+	 *
+	 * @param n5
+	 * @param containerId
+	 * @param datasetPath
+	 * @param attributes
+	 * @param gridPosition
+	 * @return block, or {@code null} if the block does not exist
+	 * @throws IOException
+	 */
+	public abstract DataBlock< ? > readBlock(
+			final N5Reader n5,
+			final String containerId,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final long[] gridPosition ) throws IOException;
+
+	/**
+	 * Converts the block that has been read into the form stored in the cache.
+	 *
+	 * @param block
+	 * 			block, or {@code null} if the block does not exist
+	 * @return cached block
+	 */
+	protected abstract B toCachedBlock( final DataBlock< ? > block );
+
+	/**
+	 * @param cachedBlock
+	 * @return size of the data of the cached block in bytes, 0 if the block does not exist
+	 */
+	protected abstract long getDataSizeInBytes( final B cachedBlock );
+
+	/**
+	 * Returns the cached block, or reads it with the given reader and adds it to the cache.
+	 *
+	 * @param n5
+	 * @param containerId
+	 * @param datasetPath
+	 * @param attributes
+	 * @param gridPosition
+	 * @return cached block
+	 * @throws IOException
+	 */
+	protected B get(
+			final N5Reader n5,
+			final String containerId,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final long[] gridPosition ) throws IOException
+	{
+		final Key key = new Key( containerId, datasetPath, gridPosition );
+		synchronized ( this )
+		{
+			if ( blocks.containsKey( key ) )
+			{
+				hitCount.incrementAndGet();
+				return blocks.get( key );
+			}
+		}
+
+		// the block is read outside of the lock, so the tasks are not blocked by each other (the same block may occasionally be read twice)
+		missCount.incrementAndGet();
+		final B cachedBlock = toCachedBlock( n5.readBlock( datasetPath, attributes, gridPosition ) );
+		put( key, cachedBlock );
+		return cachedBlock;
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictionCount.get();
+	}
+
+	public synchronized long getSizeInBytes()
+	{
+		return sizeInBytes;
+	}
+
+	public synchronized long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Removes all cached blocks and resets the counters.
+	 */
+	public synchronized void clear()
+	{
+		blocks.clear();
+		sizeInBytes = 0;
+		hitCount.set( 0 );
+		missCount.set( 0 );
+		evictionCount.set( 0 );
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%s: %d hits, %d misses, %d evictions, %d of %d bytes used", name, getHitCount(), getMissCount(), getEvictionCount(), getSizeInBytes(), getMaxBytes() );
+	}
+
+	private synchronized void ensureMaxBytes( final long newMaxBytes )
+	{
+		maxBytes = Math.max( maxBytes, newMaxBytes );
+	}
+
+	private synchronized void put( final Key key, final B cachedBlock )
+	{
+		if ( blocks.containsKey( key ) )
+			sizeInBytes -= getSizeInBytes( blocks.get( key ) );
+		blocks.put( key, cachedBlock );
+		sizeInBytes += getSizeInBytes( cachedBlock );
+
+		for ( final Iterator< Map.Entry< Key, B > > it = blocks.entrySet().iterator(); sizeInBytes > maxBytes && it.hasNext(); )
+		{
+			final Map.Entry< Key, B > eldest = it.next();
+			sizeInBytes -= getSizeInBytes( eldest.getValue() );
+			it.remove();
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	private long getSizeInBytes( final B cachedBlock )
+	{
+		return ENTRY_OVERHEAD_BYTES + getDataSizeInBytes( cachedBlock );
+	}
+
+	private static String createContainerId( final long maxBytes )
+	{
+		if ( maxBytes <= 0 )
+			throw new IllegalArgumentException( "Cache size should be positive, got " + maxBytes );
+		return UUID.randomUUID().toString();
+	}
+
+	private static N5Reader createProxy( final N5Reader n5, final String containerId, final HandlerFactory handlerFactory )
+	{
+		return ( N5Reader ) Proxy.newProxyInstance(
+				N5BlockCache.class.getClassLoader(),
+				n5 instanceof N5Writer ? new Class< ? >[] { N5Writer.class } : new Class< ? >[] { N5Reader.class },
+				handlerFactory.create( n5, containerId )
+			);
+	}
+}
@@ -0,0 +1,205 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Reads arbitrary regions of an N5 dataset into dense primitive buffers.
+ * The blocks intersecting the requested region are read directly with {@link N5Reader#readBlock(String, DatasetAttributes, long[])}
+ * and copied into the buffer, without creating intermediate imglib2 images or caches.
+ * Missing blocks are treated as empty (filled with zeros).
+ *<p>
+ * The dataset attributes are passed in or read only once on construction, so the same instance can be used for reading many regions.
+ * Optionally, the most recently used blocks are kept in a bounded cache, so the blocks shared by neighboring regions
+ * are read and decoded only once when these regions are processed one after another.
+ * If the reader has been wrapped with {@link N5OffHeapBlockCache#wrap}, the regions are copied directly from the off-heap cache instead.
+ */
+public class N5BlockReader
+{
+	private final N5Reader n5;
+	private final String datasetPath;
+	private final DatasetAttributes attributes;
+	private final long[] gridDimensions;
+	private final Map< Long, DataBlock< ? > > blockCache;
+	private final N5OffHeapBlockCache.CachedReader offHeapReader;
+
+	public N5BlockReader( final N5Reader n5, final String datasetPath ) throws IOException
+	{
+		this( n5, datasetPath, n5.getDatasetAttributes( datasetPath ) );
+	}
+
+	public N5BlockReader( final N5Reader n5, final String datasetPath, final DatasetAttributes attributes )
+	{
+		this( n5, datasetPath, attributes, 0 );
+	}
+
+	/**
+	 * @param n5
+	 * @param datasetPath
+	 * @param attributes
+	 * @param blockCacheSize
+	 * 			max number of blocks to keep in the cache (including the missing ones), or 0 to disable caching
+	 */
+	public N5BlockReader( final N5Reader n5, final String datasetPath, final DatasetAttributes attributes, final int blockCacheSize )
+	{
+		this.n5 = n5;
+		this.datasetPath = datasetPath;
+		this.attributes = attributes;
+		offHeapReader = N5OffHeapBlockCache.getCachedReader( n5 );
+
+		gridDimensions = new CellGrid( attributes.getDimensions(), attributes.getBlockSize() ).getGridDimensions();
+		blockCache = blockCacheSize > 0 ? new LinkedHashMap< Long, DataBlock< ? > >( 16, 0.75f, true )
+			{
+				private static final long serialVersionUID = -7009446271569355474L;
+
+				@Override
+				protected boolean removeEldestEntry( final Map.Entry< Long, DataBlock< ? > > eldest )
+				{
+					return size() > blockCacheSize;
+				}
+			} : null;
+	}
+
+	/**
+	 * Returns the cache size that allows to reuse all blocks shared by neighboring regions of the given size
+	 * when they are processed in compact groups of 2^n regions (as happens with {@link ZOrderCurve}).
+	 * The regions are assumed to be placed on a regular grid with the spacing equal to their size.
+	 *
+	 * @param regionSize
+	 * @param blockSize
+	 * @return number of blocks, or 0 if the regions are aligned with the blocks and do not share any of them
+	 */
+	public static int getBlockCacheSize( final int[] regionSize, final int[] blockSize )
+	{
+		boolean aligned = true;
+		long numBlocks = 1;
+		for ( int d = 0; d < regionSize.length; ++d )
+		{
+			aligned &= regionSize[ d ] % blockSize[ d ] == 0;
+			// max number of blocks intersecting with two neighboring regions at an arbitrary offset
+			numBlocks *= ( 2L * regionSize[ d ] + blockSize[ d ] - 2 ) / blockSize[ d ] + 1;
+		}
+		return aligned ? 0 : ( int ) Math.min( numBlocks, Integer.MAX_VALUE );
+	}
+
+	public DatasetAttributes getAttributes()
+	{
+		return attributes;
+	}
+
+	/**
+	 * Returns grid positions of all blocks of the dataset that intersect with the given interval.
+	 *
+	 * @param min
+	 * @param max
+	 * @return block grid positions
+	 */
+	public List< long[] > getIntersectingBlockGridPositions( final long[] min, final long[] max )
+	{
+		final int[] blockSize = attributes.getBlockSize();
+		final int n = blockSize.length;
+		final long[] gridMin = new long[ n ], gridMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			gridMin[ d ] = min[ d ] / blockSize[ d ];
+			gridMax[ d ] = max[ d ] / blockSize[ d ];
+		}
+
+		final List< long[] > gridPositions = new ArrayList<>();
+		final long[] gridPosition = gridMin.clone();
+		while ( true )
+		{
+			gridPositions.add( gridPosition.clone() );
+
+			int d = 0;
+			for ( ; d < n && ++gridPosition[ d ] > gridMax[ d ]; ++d )
+				gridPosition[ d ] = gridMin[ d ];
+			if ( d == n )
+				break;
+		}
+		return gridPositions;
+	}
+
+	/**
+	 * Reads the region of the dataset starting at the given position into the given buffer.
+	 * The size of the region is defined by the size of the buffer, and the grid position of the buffer is ignored.
+	 * The region has to be contained within the dataset.
+	 *
+	 * @param min
+	 * 			position of the region in the dataset
+	 * @param target
+	 * 			buffer of the same data type as the dataset
+	 * @return {@code true} if at least one of the dataset blocks intersecting with the region exists, {@code false} otherwise
+	 * @throws IOException
+	 */
+	public boolean read( final long[] min, final DataBlock< ? > target ) throws IOException
+	{
+		final int[] blockSize = attributes.getBlockSize();
+		final int[] targetSize = target.getSize();
+		final int n = targetSize.length;
+
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			max[ d ] = min[ d ] + targetSize[ d ] - 1;
+
+		final int[] sourcePosition = new int[ n ], targetPosition = new int[ n ], copySize = new int[ n ];
+		boolean anyBlockExists = false;
+		for ( final long[] gridPosition : getIntersectingBlockGridPositions( min, max ) )
+		{
+			for ( int d = 0; d < n; ++d )
+			{
+				final long blockMin = gridPosition[ d ] * blockSize[ d ];
+				final long intersectionMin = Math.max( blockMin, min[ d ] );
+				final long intersectionMax = Math.min( blockMin + blockSize[ d ] - 1, max[ d ] );
+				sourcePosition[ d ] = ( int ) ( intersectionMin - blockMin );
+				targetPosition[ d ] = ( int ) ( intersectionMin - min[ d ] );
+				copySize[ d ] = ( int ) ( intersectionMax - intersectionMin + 1 );
+			}
+
+			if ( offHeapReader != null )
+			{
+				// the blocks are cached already, copy the region without creating the blocks on the heap
+				anyBlockExists |= offHeapReader.copy( datasetPath, attributes, gridPosition, sourcePosition, target.getData(), targetSize, targetPosition, copySize );
+			}
+			else
+			{
+				final DataBlock< ? > block = readBlock( gridPosition );
+				anyBlockExists |= block != null;
+				N5SparkUtils.copy(
+						block != null ? block.getData() : null,
+						block != null ? block.getSize() : null,
+						sourcePosition,
+						target.getData(),
+						targetSize,
+						targetPosition,
+						copySize
+					);
+			}
+		}
+		return anyBlockExists;
+	}
+
+	private DataBlock< ? > readBlock( final long[] gridPosition ) throws IOException
+	{
+		if ( blockCache == null )
+			return n5.readBlock( datasetPath, attributes, gridPosition );
+
+		final long blockIndex = IntervalIndexer.positionToIndex( gridPosition, gridDimensions );
+		if ( blockCache.containsKey( blockIndex ) )
+			return blockCache.get( blockIndex );
+
+		final DataBlock< ? > block = n5.readBlock( datasetPath, attributes, gridPosition );
+		blockCache.put( blockIndex, block );
+		return block;
+	}
+}
@@ -0,0 +1,147 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * Writes dense primitive buffers covering one or more blocks of an N5 dataset.
+ * The buffer is split into dataset blocks that are written directly with {@link N5Writer#writeBlock(String, DatasetAttributes, DataBlock)}.
+ *<p>
+ * The dataset attributes are passed in or read only once on construction, so the same instance can be used for writing many regions.
+ */
+public class N5BlockWriter
+{
+	private final N5Writer n5;
+	private final String datasetPath;
+	private final DatasetAttributes attributes;
+
+	public N5BlockWriter( final N5Writer n5, final String datasetPath ) throws IOException
+	{
+		this( n5, datasetPath, n5.getDatasetAttributes( datasetPath ) );
+	}
+
+	public N5BlockWriter( final N5Writer n5, final String datasetPath, final DatasetAttributes attributes )
+	{
+		this.n5 = n5;
+		this.datasetPath = datasetPath;
+		this.attributes = attributes;
+	}
+
+	public DatasetAttributes getAttributes()
+	{
+		return attributes;
+	}
+
+	/**
+	 * Writes the given buffer into the dataset at the given position.
+	 * The position has to be aligned with the block grid of the dataset, and the buffer has to be contained within the dataset.
+	 * The grid position of the buffer is ignored.
+	 *
+	 * @param min
+	 * 			position of the region in the dataset
+	 * @param source
+	 * 			buffer of the same data type as the dataset
+	 * @param skipEmpty
+	 * 			if {@code true}, blocks that contain only zeros are not written
+	 * @return number of written blocks
+	 * @throws IOException
+	 */
+	public int write( final long[] min, final DataBlock< ? > source, final boolean skipEmpty ) throws IOException
+	{
+		return write( min, source, skipEmpty, false );
+	}
+
+	/**
+	 * Writes the given buffer into the dataset at the given position.
+	 * The position has to be aligned with the block grid of the dataset, and the buffer has to be contained within the dataset.
+	 * The grid position of the buffer is ignored.
+	 *
+	 * @param min
+	 * 			position of the region in the dataset
+	 * @param source
+	 * 			buffer of the same data type as the dataset
+	 * @param skipEmpty
+	 * 			if {@code true}, blocks that contain only zeros are not written
+	 * @param removeEmpty
+	 * 			if {@code true}, existing blocks are removed in place of the skipped empty blocks (only makes sense together with {@code skipEmpty})
+	 * @return number of written blocks
+	 * @throws IOException
+	 */
+	public int write( final long[] min, final DataBlock< ? > source, final boolean skipEmpty, final boolean removeEmpty ) throws IOException
+	{
+		final long[] dimensions = attributes.getDimensions();
+		final int[] blockSize = attributes.getBlockSize();
+		final int[] sourceSize = source.getSize();
+		final int n = sourceSize.length;
+
+		final long[] gridMin = new long[ n ], gridMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( min[ d ] % blockSize[ d ] != 0 )
+				throw new IllegalArgumentException( "Region is not aligned with the block grid: " + min[ d ] + " in dimension " + d );
+			gridMin[ d ] = min[ d ] / blockSize[ d ];
+			gridMax[ d ] = ( min[ d ] + sourceSize[ d ] - 1 ) / blockSize[ d ];
+		}
+
+		final int[] sourcePosition = new int[ n ], targetPosition = new int[ n ], targetSize = new int[ n ];
+		final long[] gridPosition = gridMin.clone();
+		int numWrittenBlocks = 0;
+		while ( true )
+		{
+			for ( int d = 0; d < n; ++d )
+			{
+				final long blockMin = gridPosition[ d ] * blockSize[ d ];
+				sourcePosition[ d ] = ( int ) ( blockMin - min[ d ] );
+				targetSize[ d ] = ( int ) Math.min( blockSize[ d ], dimensions[ d ] - blockMin );
+				if ( sourcePosition[ d ] + targetSize[ d ] > sourceSize[ d ] )
+					throw new IllegalArgumentException( "Region does not cover the entire block " + gridPosition[ d ] + " in dimension " + d );
+			}
+
+			final DataBlock< ? > block = attributes.getDataType().createDataBlock( targetSize, gridPosition.clone() );
+			N5SparkUtils.copy( source.getData(), sourceSize, sourcePosition, block.getData(), targetSize, targetPosition, targetSize );
+
+			if ( !skipEmpty || !N5SparkUtils.isEmpty( block ) )
+			{
+				n5.writeBlock( datasetPath, attributes, block );
+				++numWrittenBlocks;
+			}
+			else if ( removeEmpty )
+			{
+				removeBlock( n5, datasetPath, gridPosition );
+			}
+
+			int d = 0;
+			for ( ; d < n && ++gridPosition[ d ] > gridMax[ d ]; ++d )
+				gridPosition[ d ] = gridMin[ d ];
+			if ( d == n )
+				break;
+		}
+		return numWrittenBlocks;
+	}
+
+	/**
+	 * Removes the block at the given grid position if it exists.
+	 * This relies on the block layout of the N5 filesystem backend (see {@link N5SparseBlockScanner#getBlockFilePath(N5Reader, String, long[])}):
+	 * the block file is deleted directly, as {@link N5Writer#exists(String)} only reports groups and datasets.
+	 * For writers that are not backed by the filesystem, the block path is passed to {@link N5Writer#remove(String)}.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @param gridPosition
+	 * @throws IOException
+	 */
+	public static void removeBlock( final N5Writer n5, final String datasetPath, final long[] gridPosition ) throws IOException
+	{
+		final Path blockFilePath = N5SparseBlockScanner.getBlockFilePath( n5, datasetPath, gridPosition );
+		if ( blockFilePath != null )
+			Files.deleteIfExists( blockFilePath );
+		else
+			n5.remove( N5SparseBlockScanner.getBlockPath( datasetPath, gridPosition ) );
+	}
+}
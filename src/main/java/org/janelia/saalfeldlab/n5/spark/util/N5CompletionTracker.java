@@ -0,0 +1,178 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Keeps track of the partitions of processing blocks that have been fully written by a resumable job,
+ * so the job can be restarted after a failure and skip the partitions that are already done.
+ *<p>
+ * The completion records are stored in a hidden dataset within the output dataset, with one block per partition
+ * placed at the grid position of the processing block with the smallest index in the partition, so the number of records does not grow with the number of blocks.
+ * Each record contains the exact set of processing blocks of the partition (as ranges of flat block indexes),
+ * and a partition is skipped only if the record under its key contains exactly the same blocks.
+ * The partitioning does not have to be the same when the job is resumed (it may depend on sampling, as in {@link ZOrderCurve#sortBlockIndexes(org.apache.spark.api.java.JavaRDD, long[])}):
+ * the partitions that do not match a record of the previous job are simply processed again.
+ * A record is written only after all processing blocks of the partition have been written completely,
+ * so the partitions that have been processed only partially are not recorded and will be processed again.
+ * The tracker dataset is supposed to be removed once the job has finished.
+ */
+public class N5CompletionTracker implements Serializable
+{
+	private static final long serialVersionUID = -2858165264325394851L;
+
+	private static final String TRACKER_DATASET_NAME = ".completed";
+
+	private final String trackerDatasetPath;
+	private final DatasetAttributes trackerAttributes;
+
+	private N5CompletionTracker( final String trackerDatasetPath, final DatasetAttributes trackerAttributes )
+	{
+		this.trackerDatasetPath = trackerDatasetPath;
+		this.trackerAttributes = trackerAttributes;
+	}
+
+	/**
+	 * Checks if there is a record of a resumable job for the given output dataset.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @return {@code true} if the tracker exists
+	 * @throws IOException
+	 */
+	public static boolean exists( final N5Reader n5, final String datasetPath ) throws IOException
+	{
+		return n5.datasetExists( getTrackerDatasetPath( datasetPath ) );
+	}
+
+	/**
+	 * Opens the tracker of the given output dataset, or creates a new one if it does not exist yet.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * 			output dataset
+	 * @param gridDimensions
+	 * 			dimensions of the grid of the processing blocks
+	 * @return tracker
+	 * @throws IOException
+	 */
+	public static N5CompletionTracker openOrCreate( final N5Writer n5, final String datasetPath, final long[] gridDimensions ) throws IOException
+	{
+		final String trackerDatasetPath = getTrackerDatasetPath( datasetPath );
+		if ( n5.datasetExists( trackerDatasetPath ) )
+		{
+			final DatasetAttributes trackerAttributes = n5.getDatasetAttributes( trackerDatasetPath );
+			if ( !Arrays.equals( trackerAttributes.getDimensions(), gridDimensions ) )
+				throw new IllegalArgumentException( "The existing job record for " + datasetPath + " has a different block grid: " +
+						Arrays.toString( trackerAttributes.getDimensions() ) + ", expected " + Arrays.toString( gridDimensions ) );
+			return new N5CompletionTracker( trackerDatasetPath, trackerAttributes );
+		}
+
+		final int[] recordSize = new int[ gridDimensions.length ];
+		Arrays.fill( recordSize, 1 );
+		n5.createDataset( trackerDatasetPath, gridDimensions, recordSize, DataType.INT64, new GzipCompression() );
+		return new N5CompletionTracker( trackerDatasetPath, n5.getDatasetAttributes( trackerDatasetPath ) );
+	}
+
+	public static String getTrackerDatasetPath( final String datasetPath )
+	{
+		return Paths.get( datasetPath, TRACKER_DATASET_NAME ).toString();
+	}
+
+	public String getTrackerDatasetPath()
+	{
+		return trackerDatasetPath;
+	}
+
+	/**
+	 * Collects the flat block indexes of a partition, keeping their order.
+	 *
+	 * @param blockIndexesIterator
+	 * @return block indexes
+	 */
+	public static long[] collectBlockIndexes( final Iterator< Long > blockIndexesIterator )
+	{
+		final List< Long > blockIndexes = new ArrayList<>();
+		blockIndexesIterator.forEachRemaining( blockIndexes::add );
+		return blockIndexes.stream().mapToLong( Long::longValue ).toArray();
+	}
+
+	/**
+	 * @param n5
+	 * @param blockIndexes
+	 * 			flat indexes of all processing blocks of the partition, in any order
+	 * @return {@code true} if exactly the same set of blocks has been completed as a single partition
+	 * @throws IOException
+	 */
+	public boolean isCompleted( final N5Reader n5, final long[] blockIndexes ) throws IOException
+	{
+		if ( blockIndexes.length == 0 )
+			return false;
+
+		final long[] ranges = toRanges( blockIndexes );
+		final DataBlock< ? > record = n5.readBlock( trackerDatasetPath, trackerAttributes, getRecordGridPosition( ranges ) );
+		return record != null && Arrays.equals( ( long[] ) record.getData(), ranges );
+	}
+
+	/**
+	 * Records the partition as completed. Should be called after all processing blocks of the partition have been written.
+	 * Replaces the record of a partition of the previous job that had the same first block.
+	 *
+	 * @param n5
+	 * @param blockIndexes
+	 * 			flat indexes of all processing blocks of the partition, in any order
+	 * @throws IOException
+	 */
+	public void markCompleted( final N5Writer n5, final long[] blockIndexes ) throws IOException
+	{
+		if ( blockIndexes.length == 0 )
+			return;
+
+		final long[] ranges = toRanges( blockIndexes );
+		n5.writeBlock( trackerDatasetPath, trackerAttributes, new LongArrayDataBlock( trackerAttributes.getBlockSize(), getRecordGridPosition( ranges ), ranges ) );
+	}
+
+	private long[] getRecordGridPosition( final long[] ranges )
+	{
+		final long[] gridPosition = new long[ trackerAttributes.getNumDimensions() ];
+		IntervalIndexer.indexToPosition( ranges[ 0 ], trackerAttributes.getDimensions(), gridPosition );
+		return gridPosition;
+	}
+
+	/**
+	 * Converts the given block indexes into a sorted list of ranges {@code [start, end)}, stored as {@code start0, end0, start1, end1, ...}.
+	 * The partitions usually consist of a few contiguous ranges of the grid, so the records stay small.
+	 */
+	private static long[] toRanges( final long[] blockIndexes )
+	{
+		final long[] sortedBlockIndexes = blockIndexes.clone();
+		Arrays.sort( sortedBlockIndexes );
+
+		final List< Long > ranges = new ArrayList<>();
+		for ( int i = 0; i < sortedBlockIndexes.length; )
+		{
+			final long start = sortedBlockIndexes[ i ];
+			long end = start + 1;
+			for ( ++i; i < sortedBlockIndexes.length && sortedBlockIndexes[ i ] <= end; ++i )
+				end = sortedBlockIndexes[ i ] + 1;
+			ranges.add( start );
+			ranges.add( end );
+		}
+		return ranges.stream().mapToLong( Long::longValue ).toArray();
+	}
+}
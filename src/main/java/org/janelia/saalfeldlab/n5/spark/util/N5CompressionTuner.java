@@ -0,0 +1,372 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.Function0;
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5ReaderSupplier;
+
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Measures the compression ratio and the encoding and decoding throughput of the available compression schemes on a sample of blocks,
+ * and selects the compression scheme with the best ratio among those that are fast enough.
+ *<p>
+ * The blocks are sampled from an existing dataset in the same way as in {@link N5ValueRangeEstimator}, and they are cut using the block size of
+ * the dataset to be written, so the measurements reflect the blocks that will actually be stored. Missing and empty blocks are skipped.
+ * Throughput is measured in a single thread and refers to the uncompressed size of the blocks.
+ */
+public class N5CompressionTuner
+{
+	public static final int DEFAULT_MAX_SAMPLED_BLOCKS = 100;
+	public static final double DEFAULT_MIN_ENCODING_THROUGHPUT = 20;
+	public static final double DEFAULT_MIN_DECODING_THROUGHPUT = 100;
+
+	private static final int MAX_PARTITIONS = 15000;
+
+	/**
+	 * Compression scheme with its parameters and a readable name.
+	 */
+	public static class Candidate implements Serializable
+	{
+		private static final long serialVersionUID = -3496325180429128254L;
+
+		private final String name;
+		private final Compression compression;
+
+		public Candidate( final String name, final Compression compression )
+		{
+			this.name = name;
+			this.compression = compression;
+		}
+
+		public String getName() { return name; }
+		public Compression getCompression() { return compression; }
+	}
+
+	/**
+	 * Measurements for a single compression scheme, accumulated over the sampled blocks.
+	 */
+	public static class Result implements Serializable
+	{
+		private static final long serialVersionUID = 1917312740523306423L;
+
+		private final Candidate candidate;
+		private final long rawBytes, encodedBytes;
+		private final long encodingNanos, decodingNanos;
+
+		public Result( final Candidate candidate, final long rawBytes, final long encodedBytes, final long encodingNanos, final long decodingNanos )
+		{
+			this.candidate = candidate;
+			this.rawBytes = rawBytes;
+			this.encodedBytes = encodedBytes;
+			this.encodingNanos = encodingNanos;
+			this.decodingNanos = decodingNanos;
+		}
+
+		public Candidate getCandidate() { return candidate; }
+
+		/**
+		 * @return uncompressed size divided by compressed size
+		 */
+		public double getRatio() { return ( double ) rawBytes / encodedBytes; }
+
+		/**
+		 * @return encoding throughput in MB/s of uncompressed data
+		 */
+		public double getEncodingThroughput() { return getThroughput( encodingNanos ); }
+
+		/**
+		 * @return decoding throughput in MB/s of uncompressed data
+		 */
+		public double getDecodingThroughput() { return getThroughput( decodingNanos ); }
+
+		private double getThroughput( final long nanos )
+		{
+			return nanos != 0 ? rawBytes / 1e6 / ( nanos / 1e9 ) : Double.POSITIVE_INFINITY;
+		}
+
+		private Result merge( final Result other )
+		{
+			return new Result(
+					candidate,
+					rawBytes + other.rawBytes,
+					encodedBytes + other.encodedBytes,
+					encodingNanos + other.encodingNanos,
+					decodingNanos + other.decodingNanos
+				);
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( "%-16s ratio %6.2f   encoding %8.1f MB/s   decoding %8.1f MB/s", candidate.getName(), getRatio(), getEncodingThroughput(), getDecodingThroughput() );
+		}
+	}
+
+	/**
+	 * @return the available compression schemes with a few representative parameter values for each of them
+	 */
+	public static List< Candidate > getDefaultCandidates()
+	{
+		return Arrays.asList(
+				new Candidate( "raw", new RawCompression() ),
+				new Candidate( "lz4", new Lz4Compression() ),
+				new Candidate( "gzip (level 1)", new GzipCompression( 1 ) ),
+				new Candidate( "gzip (level 6)", new GzipCompression( 6 ) ),
+				new Candidate( "gzip (level 9)", new GzipCompression( 9 ) ),
+				new Candidate( "bzip2 (100k)", new Bzip2Compression( 1 ) ),
+				new Candidate( "bzip2 (900k)", new Bzip2Compression( 9 ) ),
+				new Candidate( "xz (preset 1)", new XzCompression( 1 ) ),
+				new Candidate( "xz (preset 6)", new XzCompression( 6 ) )
+			);
+	}
+
+	/**
+	 * Measures the default compression schemes on a sample of blocks of the given dataset.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param blockSize
+	 * 			size of the sampled blocks (typically the block size of the dataset to be written)
+	 * @param maxSampledBlocks
+	 * @return measurements for each compression scheme, or {@code null} if all sampled blocks are missing or empty
+	 * @throws IOException
+	 */
+	public static List< Result > benchmark(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5Supplier,
+			final String datasetPath,
+			final int[] blockSize,
+			final int maxSampledBlocks ) throws IOException
+	{
+		return benchmark( sparkContext, n5Supplier, datasetPath, blockSize, maxSampledBlocks, null, getDefaultCandidates() );
+	}
+
+	/**
+	 * Measures the given compression schemes on a sample of blocks of the given dataset.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param blockSize
+	 * 			size of the sampled blocks (typically the block size of the dataset to be written)
+	 * @param maxSampledBlocks
+	 * @param blockConverterFactory
+	 * 			creates a converter (once per partition) that is applied to each sampled block before the measurements
+	 * 			(for example, to convert it to the data type of the dataset to be written), can be {@code null}
+	 * @param candidates
+	 * @return measurements for each compression scheme, or {@code null} if all sampled blocks are missing or empty
+	 * @throws IOException
+	 */
+	public static List< Result > benchmark(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5Supplier,
+			final String datasetPath,
+			final int[] blockSize,
+			final int maxSampledBlocks,
+			final Function0< Function< DataBlock< ? >, DataBlock< ? > > > blockConverterFactory,
+			final List< Candidate > candidates ) throws IOException
+	{
+		if ( maxSampledBlocks <= 0 )
+			throw new IllegalArgumentException( "Max number of sampled blocks should be positive, got " + maxSampledBlocks );
+
+		final DatasetAttributes attributes = n5Supplier.get().getDatasetAttributes( datasetPath );
+		if ( blockSize.length != attributes.getNumDimensions() )
+			throw new IllegalArgumentException( "Block size dimensionality does not match the dataset" );
+
+		final long[] dimensions = attributes.getDimensions();
+		final List< long[] > sampledBlockGridPositions = N5SparkUtils.sampleBlockGrid( new CellGrid( dimensions, blockSize ).getGridDimensions(), maxSampledBlocks );
+		System.out.println( "Measuring " + candidates.size() + " compression schemes on " + sampledBlockGridPositions.size() + " blocks of " + datasetPath );
+
+		final Result[] results = sparkContext
+				.parallelize( sampledBlockGridPositions, Math.min( sampledBlockGridPositions.size(), MAX_PARTITIONS ) )
+				.mapPartitions( blockGridPositionsIterator ->
+					{
+						final N5BlockReader reader = new N5BlockReader( n5Supplier.get(), datasetPath, attributes );
+						final Function< DataBlock< ? >, DataBlock< ? > > blockConverter = blockConverterFactory != null ? blockConverterFactory.call() : null;
+						final CellGrid blockGrid = new CellGrid( dimensions, blockSize );
+						final long[] blockMin = new long[ blockSize.length ];
+						final int[] blockDimensions = new int[ blockSize.length ];
+
+						final List< DataBlock< ? > > blocks = new ArrayList<>();
+						while ( blockGridPositionsIterator.hasNext() )
+						{
+							final long[] blockGridPosition = blockGridPositionsIterator.next();
+							blockGrid.getCellDimensions( blockGridPosition, blockMin, blockDimensions );
+							final DataBlock< ? > block = attributes.getDataType().createDataBlock( blockDimensions.clone(), blockGridPosition );
+							if ( reader.read( blockMin, block ) && !N5SparkUtils.isEmpty( block ) )
+								blocks.add( blockConverter != null ? blockConverter.call( block ) : block );
+						}
+
+						return blocks.isEmpty() ? new ArrayList< Result[] >().iterator() : Arrays.asList( measure( blocks, candidates ) ).iterator();
+					} )
+				.fold( null, ( results1, results2 ) ->
+					{
+						if ( results1 == null )
+							return results2;
+						if ( results2 == null )
+							return results1;
+
+						final Result[] mergedResults = new Result[ results1.length ];
+						for ( int i = 0; i < mergedResults.length; ++i )
+							mergedResults[ i ] = results1[ i ].merge( results2[ i ] );
+						return mergedResults;
+					} );
+
+		return results != null ? Arrays.asList( results ) : null;
+	}
+
+	/**
+	 * Measures the given compression schemes on the given blocks.
+	 * Each block is encoded and decoded once without measuring the time first to exclude the warm-up of the code.
+	 *
+	 * @param blocks
+	 * @param candidates
+	 * @return measurements for each compression scheme
+	 * @throws IOException
+	 */
+	public static Result[] measure( final List< DataBlock< ? > > blocks, final List< Candidate > candidates ) throws IOException
+	{
+		final Result[] results = new Result[ candidates.size() ];
+		for ( int i = 0; i < results.length; ++i )
+		{
+			final Candidate candidate = candidates.get( i );
+			long rawBytes = 0, encodedBytes = 0, encodingNanos = 0, decodingNanos = 0;
+			for ( final DataBlock< ? > block : blocks )
+			{
+				final DatasetAttributes blockAttributes = new DatasetAttributes(
+						Arrays.stream( block.getSize() ).asLongStream().toArray(),
+						block.getSize(),
+						getDataType( block ),
+						candidate.getCompression()
+					);
+
+				final ByteArrayOutputStream encodedBlock = new ByteArrayOutputStream();
+				DefaultBlockWriter.writeBlock( encodedBlock, blockAttributes, block );
+				DefaultBlockReader.readBlock( new ByteArrayInputStream( encodedBlock.toByteArray() ), blockAttributes, block.getGridPosition() );
+				encodedBlock.reset();
+
+				final long encodingStart = System.nanoTime();
+				DefaultBlockWriter.writeBlock( encodedBlock, blockAttributes, block );
+				encodingNanos += System.nanoTime() - encodingStart;
+
+				final byte[] encodedBytesArray = encodedBlock.toByteArray();
+				final long decodingStart = System.nanoTime();
+				DefaultBlockReader.readBlock( new ByteArrayInputStream( encodedBytesArray ), blockAttributes, block.getGridPosition() );
+				decodingNanos += System.nanoTime() - decodingStart;
+
+				rawBytes += block.toByteBuffer().capacity();
+				encodedBytes += encodedBytesArray.length;
+			}
+			results[ i ] = new Result( candidate, rawBytes, encodedBytes, encodingNanos, decodingNanos );
+		}
+		return results;
+	}
+
+	/**
+	 * Selects the compression scheme with the best ratio among those that satisfy the given throughput requirements.
+	 * If none of them is fast enough, selects the one with the fastest decoding.
+	 *
+	 * @param results
+	 * @param minEncodingThroughput
+	 * 			in MB/s
+	 * @param minDecodingThroughput
+	 * 			in MB/s
+	 * @return selected measurements
+	 */
+	public static Result select( final List< Result > results, final double minEncodingThroughput, final double minDecodingThroughput )
+	{
+		Result best = null;
+		for ( final Result result : results )
+			if ( result.getEncodingThroughput() >= minEncodingThroughput && result.getDecodingThroughput() >= minDecodingThroughput )
+				if ( best == null || result.getRatio() > best.getRatio() )
+					best = result;
+
+		if ( best == null )
+			for ( final Result result : results )
+				if ( best == null || result.getDecodingThroughput() > best.getDecodingThroughput() )
+					best = result;
+
+		return best;
+	}
+
+	/**
+	 * Measures the default compression schemes on a sample of blocks of the given dataset, prints the measurements,
+	 * and returns the compression scheme with the best ratio among those that satisfy the given throughput requirements.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param blockSize
+	 * 			size of the sampled blocks (typically the block size of the dataset to be written)
+	 * @param blockConverterFactory
+	 * 			creates a converter (once per partition) that is applied to each sampled block before the measurements
+	 * 			(for example, to convert it to the data type of the dataset to be written), can be {@code null}
+	 * @param minEncodingThroughput
+	 * 			in MB/s
+	 * @param minDecodingThroughput
+	 * 			in MB/s
+	 * @return selected compression, or {@code null} if all sampled blocks are missing or empty
+	 * @throws IOException
+	 */
+	public static Compression selectCompression(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5Supplier,
+			final String datasetPath,
+			final int[] blockSize,
+			final Function0< Function< DataBlock< ? >, DataBlock< ? > > > blockConverterFactory,
+			final double minEncodingThroughput,
+			final double minDecodingThroughput ) throws IOException
+	{
+		final List< Result > results = benchmark( sparkContext, n5Supplier, datasetPath, blockSize, DEFAULT_MAX_SAMPLED_BLOCKS, blockConverterFactory, getDefaultCandidates() );
+		if ( results == null )
+		{
+			System.out.println( "Cannot select compression: sampled blocks are empty" );
+			return null;
+		}
+
+		final Result selected = select( results, minEncodingThroughput, minDecodingThroughput );
+		for ( final Result result : results )
+			System.out.println( ( result == selected ? " * " : "   " ) + result );
+		System.out.println( "Selected compression: " + selected.getCandidate().getName() );
+		return selected.getCandidate().getCompression();
+	}
+
+	private static DataType getDataType( final DataBlock< ? > block )
+	{
+		final Object data = block.getData();
+		if ( data instanceof byte[] )
+			return DataType.INT8;
+		if ( data instanceof short[] )
+			return DataType.INT16;
+		if ( data instanceof int[] )
+			return DataType.INT32;
+		if ( data instanceof long[] )
+			return DataType.INT64;
+		if ( data instanceof float[] )
+			return DataType.FLOAT32;
+		if ( data instanceof double[] )
+			return DataType.FLOAT64;
+		throw new IllegalArgumentException( "Unsupported block data: " + data.getClass() );
+	}
+}
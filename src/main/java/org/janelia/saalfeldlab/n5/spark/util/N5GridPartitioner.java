@@ -0,0 +1,44 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import org.apache.spark.Partitioner;
+
+/**
+ * Partitions the data keyed by flat block indexes of a block grid.
+ * Assigns contiguous ranges of block indexes to the partitions, so the blocks that are close to each other are processed together.
+ */
+public class N5GridPartitioner extends Partitioner
+{
+	private static final long serialVersionUID = 5373384264574530530L;
+
+	private final long numBlocks;
+	private final int numPartitions;
+
+	/**
+	 * @param numBlocks
+	 * 			total number of blocks in the grid
+	 * @param maxPartitions
+	 * 			max number of partitions (the number of partitions does not exceed the number of blocks)
+	 */
+	public N5GridPartitioner( final long numBlocks, final int maxPartitions )
+	{
+		if ( numBlocks <= 0 )
+			throw new IllegalArgumentException( "Number of blocks should be positive, got " + numBlocks );
+		if ( maxPartitions <= 0 )
+			throw new IllegalArgumentException( "Number of partitions should be positive, got " + maxPartitions );
+
+		this.numBlocks = numBlocks;
+		this.numPartitions = ( int ) Math.min( numBlocks, maxPartitions );
+	}
+
+	@Override
+	public int numPartitions()
+	{
+		return numPartitions;
+	}
+
+	@Override
+	public int getPartition( final Object key )
+	{
+		return ( int ) ( ( Long ) key * numPartitions / numBlocks );
+	}
+}
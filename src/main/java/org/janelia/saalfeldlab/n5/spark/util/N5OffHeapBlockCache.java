@@ -0,0 +1,318 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5ReaderSupplier;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+
+/**
+ * Cache of decoded N5 blocks shared by all tasks running in the same JVM, similar to {@link N5SharedBlockCache},
+ * but the block data is stored in direct {@link ByteBuffer}s outside of the Java heap. This allows to keep a large amount of decoded data
+ * without increasing the heap size and the time spent in garbage collection. The direct memory available to the JVM
+ * (set with {@code -XX:MaxDirectMemorySize}) has to be larger than the cache size.
+ *<p>
+ * The cache is used by wrapping the {@link N5ReaderSupplier} or {@link N5WriterSupplier} passed to a Spark job with {@link #wrap(N5ReaderSupplier, long)}.
+ * {@link N5BlockReader} recognizes the wrapped readers and copies the requested regions directly from the cached buffers into its target buffer,
+ * so the cache should be used with the code that reads the blocks through {@link N5BlockReader}.
+ * Other code reading the blocks with {@link N5Reader#readBlock(String, DatasetAttributes, long[])} through the wrapped readers
+ * (such as {@link N5SparkUtils#openWithBoundedCache(N5Reader, String, int)}) receives a copy of the cached block on the heap for every read.
+ * The direct memory of the evicted blocks is released when their buffers are garbage collected.
+ *<p>
+ * The cache should be used only for datasets that are not written while they are read.
+ */
+public class N5OffHeapBlockCache extends N5BlockCache< N5OffHeapBlockCache.OffHeapBlock >
+{
+	/**
+	 * Cached block: dimensions and the data in native byte order, or {@code null} data if the block does not exist.
+	 */
+	static class OffHeapBlock
+	{
+		private final int[] size;
+		private final ByteBuffer data;
+
+		OffHeapBlock( final int[] size, final ByteBuffer data )
+		{
+			this.size = size;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Handles the calls to the wrapped readers: reads the blocks through the cache and passes all other calls to the underlying reader.
+	 * Also allows to copy regions of the cached blocks without creating the blocks on the heap.
+	 */
+	public static class CachedReader extends CachingHandler< N5OffHeapBlockCache >
+	{
+		CachedReader( final N5Reader n5, final String containerId, final N5OffHeapBlockCache cache )
+		{
+			super( n5, containerId, cache );
+		}
+
+		/**
+		 * Copies a box from the cached block into the given primitive array in the same way as {@link N5SparkUtils#copy(Object, int[], int[], Object, int[], int[], int[])},
+		 * without copying the entire block to the heap first. If the block does not exist, the box is filled with zeros.
+		 *
+		 * @param datasetPath
+		 * @param attributes
+		 * @param gridPosition
+		 * @param sourcePosition
+		 * 			position of the box in the block
+		 * @param target
+		 * @param targetSize
+		 * 			dimensions of the target array
+		 * @param targetPosition
+		 * 			position of the box in the target array
+		 * @param size
+		 * 			dimensions of the box
+		 * @return {@code true} if the block exists, {@code false} otherwise
+		 * @throws IOException
+		 */
+		public boolean copy(
+				final String datasetPath,
+				final DatasetAttributes attributes,
+				final long[] gridPosition,
+				final int[] sourcePosition,
+				final Object target,
+				final int[] targetSize,
+				final int[] targetPosition,
+				final int[] size ) throws IOException
+		{
+			final OffHeapBlock cachedBlock = cache.get( n5, containerId, datasetPath, attributes, gridPosition );
+			if ( cachedBlock.data == null )
+			{
+				N5SparkUtils.copy( null, null, sourcePosition, target, targetSize, targetPosition, size );
+				return false;
+			}
+
+			final int n = size.length;
+			for ( int d = 0; d < n; ++d )
+				if ( size[ d ] <= 0 )
+					return true;
+
+			final int[] sourceStrides = new int[ n ], targetStrides = new int[ n ];
+			int sourceOffset = 0, targetOffset = 0;
+			for ( int d = 0, sourceStride = 1, targetStride = 1; d < n; ++d )
+			{
+				sourceStrides[ d ] = sourceStride;
+				sourceOffset += sourcePosition[ d ] * sourceStride;
+				sourceStride *= cachedBlock.size[ d ];
+				targetStrides[ d ] = targetStride;
+				targetOffset += targetPosition[ d ] * targetStride;
+				targetStride *= targetSize[ d ];
+			}
+
+			final Buffer view = getView( cachedBlock.data, target );
+			final int[] rowPosition = new int[ n ];
+			while ( true )
+			{
+				copyRow( view, sourceOffset, target, targetOffset, size[ 0 ] );
+
+				int d = 1;
+				for ( ; d < n; ++d )
+				{
+					sourceOffset += sourceStrides[ d ];
+					targetOffset += targetStrides[ d ];
+					if ( ++rowPosition[ d ] < size[ d ] )
+						break;
+					sourceOffset -= size[ d ] * sourceStrides[ d ];
+					targetOffset -= size[ d ] * targetStrides[ d ];
+					rowPosition[ d ] = 0;
+				}
+				if ( d == n )
+					break;
+			}
+			return true;
+		}
+	}
+
+	N5OffHeapBlockCache( final long maxBytes )
+	{
+		super( "off-heap block cache", maxBytes );
+	}
+
+	/**
+	 * Returns the cache instance of this JVM, creating it if necessary.
+	 * If the instance already exists and the given size is larger than its current size, the cache is enlarged.
+	 *
+	 * @param maxBytes
+	 * 			max total size of the cached blocks in bytes
+	 * @return cache instance
+	 */
+	public static N5OffHeapBlockCache getInstance( final long maxBytes )
+	{
+		return getInstance( N5OffHeapBlockCache.class, maxBytes, N5OffHeapBlockCache::new );
+	}
+
+	/**
+	 * Wraps the given supplier so that the blocks read through the supplied readers are cached in the off-heap cache of the executor.
+	 * If the supplied readers are {@link N5Writer}s, the wrapped readers implement {@link N5Writer} as well, but only reading is cached.
+	 *
+	 * @param n5Supplier
+	 * @param maxBytes
+	 * 			max total size of the cached blocks in bytes
+	 * @return wrapped supplier
+	 */
+	public static N5ReaderSupplier wrap( final N5ReaderSupplier n5Supplier, final long maxBytes )
+	{
+		return wrap( n5Supplier, maxBytes, ( n5, containerId ) -> new CachedReader( n5, containerId, getInstance( maxBytes ) ) );
+	}
+
+	/**
+	 * Wraps the given supplier so that the blocks read through the supplied writers are cached in the off-heap cache of the executor.
+	 * Only reading is cached, so the datasets that are read should not be written with the supplied writers.
+	 *
+	 * @param n5Supplier
+	 * @param maxBytes
+	 * 			max total size of the cached blocks in bytes
+	 * @return wrapped supplier
+	 */
+	public static N5WriterSupplier wrap( final N5WriterSupplier n5Supplier, final long maxBytes )
+	{
+		return wrap( n5Supplier, maxBytes, ( n5, containerId ) -> new CachedReader( n5, containerId, getInstance( maxBytes ) ) );
+	}
+
+	/**
+	 * @param n5
+	 * @return the handler of the given reader if it has been wrapped with {@link #wrap(N5ReaderSupplier, long)}, or {@code null} otherwise
+	 */
+	public static CachedReader getCachedReader( final N5Reader n5 )
+	{
+		if ( Proxy.isProxyClass( n5.getClass() ) )
+		{
+			final InvocationHandler handler = Proxy.getInvocationHandler( n5 );
+			if ( handler instanceof CachedReader )
+				return ( CachedReader ) handler;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a copy of the cached block on the heap.
+	 */
+	@Override
+	public DataBlock< ? > readBlock(
+			final N5Reader n5,
+			final String containerId,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final long[] gridPosition ) throws IOException
+	{
+		final OffHeapBlock cachedBlock = get( n5, containerId, datasetPath, attributes, gridPosition );
+		if ( cachedBlock.data == null )
+			return null;
+
+		final DataBlock< ? > block = attributes.getDataType().createDataBlock( cachedBlock.size.clone(), gridPosition.clone() );
+		copyRow( getView( cachedBlock.data, block.getData() ), 0, block.getData(), 0, Array.getLength( block.getData() ) );
+		return block;
+	}
+
+	@Override
+	protected OffHeapBlock toCachedBlock( final DataBlock< ? > block )
+	{
+		return block != null ? new OffHeapBlock( block.getSize().clone(), toDirectBuffer( block.getData() ) ) : new OffHeapBlock( null, null );
+	}
+
+	@Override
+	protected long getDataSizeInBytes( final OffHeapBlock cachedBlock )
+	{
+		return cachedBlock.data != null ? cachedBlock.data.capacity() : 0;
+	}
+
+	private static ByteBuffer toDirectBuffer( final Object data )
+	{
+		final ByteBuffer buffer;
+		if ( data instanceof byte[] )
+		{
+			final byte[] array = ( byte[] ) data;
+			buffer = ByteBuffer.allocateDirect( array.length ).order( ByteOrder.nativeOrder() );
+			buffer.duplicate().put( array );
+		}
+		else if ( data instanceof short[] )
+		{
+			final short[] array = ( short[] ) data;
+			buffer = ByteBuffer.allocateDirect( array.length * Short.BYTES ).order( ByteOrder.nativeOrder() );
+			buffer.asShortBuffer().put( array );
+		}
+		else if ( data instanceof int[] )
+		{
+			final int[] array = ( int[] ) data;
+			buffer = ByteBuffer.allocateDirect( array.length * Integer.BYTES ).order( ByteOrder.nativeOrder() );
+			buffer.asIntBuffer().put( array );
+		}
+		else if ( data instanceof long[] )
+		{
+			final long[] array = ( long[] ) data;
+			buffer = ByteBuffer.allocateDirect( array.length * Long.BYTES ).order( ByteOrder.nativeOrder() );
+			buffer.asLongBuffer().put( array );
+		}
+		else if ( data instanceof float[] )
+		{
+			final float[] array = ( float[] ) data;
+			buffer = ByteBuffer.allocateDirect( array.length * Float.BYTES ).order( ByteOrder.nativeOrder() );
+			buffer.asFloatBuffer().put( array );
+		}
+		else if ( data instanceof double[] )
+		{
+			final double[] array = ( double[] ) data;
+			buffer = ByteBuffer.allocateDirect( array.length * Double.BYTES ).order( ByteOrder.nativeOrder() );
+			buffer.asDoubleBuffer().put( array );
+		}
+		else
+		{
+			throw new IllegalArgumentException( "Unsupported block data: " + data.getClass() );
+		}
+		return buffer;
+	}
+
+	/**
+	 * Creates a view of the cached data of the same type as the given array. The views have independent positions, so the cached buffer can be read concurrently.
+	 */
+	private static Buffer getView( final ByteBuffer data, final Object array )
+	{
+		if ( array instanceof byte[] )
+			return data.duplicate();
+		if ( array instanceof short[] )
+			return data.asShortBuffer();
+		if ( array instanceof int[] )
+			return data.asIntBuffer();
+		if ( array instanceof long[] )
+			return data.asLongBuffer();
+		if ( array instanceof float[] )
+			return data.asFloatBuffer();
+		if ( array instanceof double[] )
+			return data.asDoubleBuffer();
+		throw new IllegalArgumentException( "Unsupported array: " + array.getClass() );
+	}
+
+	private static void copyRow( final Buffer view, final int sourceOffset, final Object target, final int targetOffset, final int length )
+	{
+		view.position( sourceOffset );
+		if ( target instanceof byte[] )
+			( ( ByteBuffer ) view ).get( ( byte[] ) target, targetOffset, length );
+		else if ( target instanceof short[] )
+			( ( ShortBuffer ) view ).get( ( short[] ) target, targetOffset, length );
+		else if ( target instanceof int[] )
+			( ( IntBuffer ) view ).get( ( int[] ) target, targetOffset, length );
+		else if ( target instanceof long[] )
+			( ( LongBuffer ) view ).get( ( long[] ) target, targetOffset, length );
+		else if ( target instanceof float[] )
+			( ( FloatBuffer ) view ).get( ( float[] ) target, targetOffset, length );
+		else
+			( ( DoubleBuffer ) view ).get( ( double[] ) target, targetOffset, length );
+	}
+}
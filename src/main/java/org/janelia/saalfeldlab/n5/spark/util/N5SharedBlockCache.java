@@ -0,0 +1,110 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5ReaderSupplier;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+
+/**
+ * Cache of decoded N5 blocks shared by all tasks running in the same JVM (i.e. on the same Spark executor).
+ * The cache is bounded by the total size of the block data in bytes, and the least recently used blocks are evicted first.
+ * Missing blocks are cached as well, so the same block is not looked up repeatedly.
+ *<p>
+ * The cache is used by wrapping the {@link N5ReaderSupplier} or {@link N5WriterSupplier} passed to a Spark job with {@link #wrap(N5ReaderSupplier, long)}:
+ * the blocks read with {@link N5Reader#readBlock(String, DatasetAttributes, long[])} through the supplied readers are then
+ * served from the cache when possible. This also applies to {@link N5BlockReader} and {@link N5SparkUtils#openWithBoundedCache(N5Reader, String, int)}.
+ * Each call to {@link #wrap(N5ReaderSupplier, long)} creates a separate namespace for the cached blocks, so the wrapped supplier identifies the container.
+ *<p>
+ * The cached blocks are shared between tasks and must not be modified. The cache should be used only for datasets that are not written while they are read.
+ */
+public class N5SharedBlockCache extends N5BlockCache< DataBlock< ? > >
+{
+	N5SharedBlockCache( final long maxBytes )
+	{
+		super( "shared block cache", maxBytes );
+	}
+
+	/**
+	 * Returns the cache instance of this JVM, creating it if necessary.
+	 * If the instance already exists and the given size is larger than its current size, the cache is enlarged.
+	 *
+	 * @param maxBytes
+	 * 			max total size of the cached blocks in bytes
+	 * @return cache instance
+	 */
+	public static N5SharedBlockCache getInstance( final long maxBytes )
+	{
+		return getInstance( N5SharedBlockCache.class, maxBytes, N5SharedBlockCache::new );
+	}
+
+	/**
+	 * Wraps the given supplier so that the blocks read through the supplied readers are cached in the shared cache of the executor.
+	 * If the supplied readers are {@link N5Writer}s, the wrapped readers implement {@link N5Writer} as well, but only reading is cached.
+	 *
+	 * @param n5Supplier
+	 * @param maxBytes
+	 * 			max total size of the cached blocks in bytes
+	 * @return wrapped supplier
+	 */
+	public static N5ReaderSupplier wrap( final N5ReaderSupplier n5Supplier, final long maxBytes )
+	{
+		return wrap( n5Supplier, maxBytes, ( n5, containerId ) -> new CachingHandler<>( n5, containerId, getInstance( maxBytes ) ) );
+	}
+
+	/**
+	 * Wraps the given supplier so that the blocks read through the supplied writers are cached in the shared cache of the executor.
+	 * Only reading is cached, so the datasets that are read should not be written with the supplied writers.
+	 *
+	 * @param n5Supplier
+	 * @param maxBytes
+	 * 			max total size of the cached blocks in bytes
+	 * @return wrapped supplier
+	 */
+	public static N5WriterSupplier wrap( final N5WriterSupplier n5Supplier, final long maxBytes )
+	{
+		return wrap( n5Supplier, maxBytes, ( n5, containerId ) -> new CachingHandler<>( n5, containerId, getInstance( maxBytes ) ) );
+	}
+
+	@Override
+	public DataBlock< ? > readBlock(
+			final N5Reader n5,
+			final String containerId,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final long[] gridPosition ) throws IOException
+	{
+		return get( n5, containerId, datasetPath, attributes, gridPosition );
+	}
+
+	@Override
+	protected DataBlock< ? > toCachedBlock( final DataBlock< ? > block )
+	{
+		return block;
+	}
+
+	@Override
+	protected long getDataSizeInBytes( final DataBlock< ? > block )
+	{
+		if ( block == null || block.getData() == null )
+			return 0;
+
+		final Object data = block.getData();
+		final long numElements = Array.getLength( data );
+		final Class< ? > componentType = data.getClass().getComponentType();
+		final int elementBytes;
+		if ( componentType == byte.class )
+			elementBytes = Byte.BYTES;
+		else if ( componentType == short.class )
+			elementBytes = Short.BYTES;
+		else if ( componentType == int.class || componentType == float.class )
+			elementBytes = Integer.BYTES;
+		else
+			elementBytes = Long.BYTES;
+		return numElements * elementBytes;
+	}
+}
@@ -1,13 +1,27 @@
 package org.janelia.saalfeldlab.n5.spark.util;
 
 import java.io.IOException;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
 import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
 import org.janelia.saalfeldlab.n5.imglib2.N5CellLoader;
 
 import net.imglib2.FinalInterval;
@@ -19,7 +33,10 @@ import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.cache.img.LoadedCellCacheLoader;
 import net.imglib2.cache.ref.BoundedSoftRefLoaderCache;
 import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
 import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.cell.LazyCellImg;
@@ -40,8 +57,113 @@ import scala.Tuple2;
 
 public class N5SparkUtils
 {
+	private static final int MAX_PARTITIONS = 15000;
+
 	private N5SparkUtils() { }
 
+	/**
+	 * Creates an RDD of the indexes in the range {@code [0, numIndexes)}, split into at most 15000 contiguous ranges.
+	 * Only the bounds of the ranges are materialized on the driver and sent to the workers,
+	 * each partition generates its indexes lazily while it is being processed.
+	 *
+	 * @param sparkContext
+	 * @param numIndexes
+	 * @return RDD of indexes
+	 */
+	public static JavaRDD< Long > parallelizeIndexRange( final JavaSparkContext sparkContext, final long numIndexes )
+	{
+		return parallelizeIndexRange( sparkContext, numIndexes, MAX_PARTITIONS );
+	}
+
+	/**
+	 * Creates an RDD of the indexes in the range {@code [0, numIndexes)}, split into at most {@code maxPartitions} contiguous ranges.
+	 * Only the bounds of the ranges are materialized on the driver and sent to the workers,
+	 * each partition generates its indexes lazily while it is being processed.
+	 *
+	 * @param sparkContext
+	 * @param numIndexes
+	 * @param maxPartitions
+	 * @return RDD of indexes
+	 */
+	public static JavaRDD< Long > parallelizeIndexRange( final JavaSparkContext sparkContext, final long numIndexes, final int maxPartitions )
+	{
+		if ( numIndexes < 0 )
+			throw new IllegalArgumentException( "Negative number of indexes: " + numIndexes );
+		if ( maxPartitions <= 0 )
+			throw new IllegalArgumentException( "Non-positive max number of partitions: " + maxPartitions );
+
+		final int numPartitions = ( int ) Math.max( Math.min( numIndexes, maxPartitions ), 1 );
+		final long rangeSize = numIndexes / numPartitions, remainder = numIndexes % numPartitions;
+		final List< Tuple2< Long, Long > > ranges = new ArrayList<>( numPartitions );
+		for ( long i = 0, start = 0; i < numPartitions; ++i )
+		{
+			// the first (numIndexes % numPartitions) ranges get one extra index
+			final long end = start + rangeSize + ( i < remainder ? 1 : 0 );
+			ranges.add( new Tuple2<>( start, end ) );
+			start = end;
+		}
+
+		return sparkContext
+				.parallelize( ranges, numPartitions )
+				.flatMap( range -> LongStream.range( range._1(), range._2() ).iterator() );
+	}
+
+	/**
+	 * Selects a stratified sample of blocks: divides the block grid into at most {@code maxSamples} strata of the same size,
+	 * and returns the grid position of the block in the middle of each stratum.
+	 *
+	 * @param gridDimensions
+	 * @param maxSamples
+	 * @return grid positions of the selected blocks
+	 */
+	public static List< long[] > sampleBlockGrid( final long[] gridDimensions, final int maxSamples )
+	{
+		final int dim = gridDimensions.length;
+		final long[] strides = new long[ dim ];
+		Arrays.fill( strides, 1 );
+
+		// increase the stride in the dimension with the most strata until the number of strata is small enough
+		while ( true )
+		{
+			long numStrata = 1;
+			int maxStrataDimension = 0;
+			for ( int d = 0; d < dim; ++d )
+			{
+				final long strataInDimension = ( gridDimensions[ d ] + strides[ d ] - 1 ) / strides[ d ];
+				numStrata *= strataInDimension;
+				if ( strataInDimension > ( gridDimensions[ maxStrataDimension ] + strides[ maxStrataDimension ] - 1 ) / strides[ maxStrataDimension ] )
+					maxStrataDimension = d;
+			}
+			if ( numStrata <= maxSamples )
+				break;
+			++strides[ maxStrataDimension ];
+		}
+
+		final List< long[] > samples = new ArrayList<>();
+		final long[] position = new long[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			position[ d ] = Math.min( strides[ d ] / 2, gridDimensions[ d ] - 1 );
+		while ( true )
+		{
+			samples.add( position.clone() );
+
+			int d = 0;
+			for ( ; d < dim; ++d )
+			{
+				final long stratumMin = position[ d ] / strides[ d ] * strides[ d ] + strides[ d ];
+				if ( stratumMin < gridDimensions[ d ] )
+				{
+					position[ d ] = Math.min( stratumMin + strides[ d ] / 2, gridDimensions[ d ] - 1 );
+					break;
+				}
+				position[ d ] = Math.min( strides[ d ] / 2, gridDimensions[ d ] - 1 );
+			}
+			if ( d == dim )
+				break;
+		}
+		return samples;
+	}
+
 	public static List< Tuple2< long[], long[] > > toMinMaxTuples( final List< ? extends Interval > intervals )
 	{
 		return new ArrayList<>(
@@ -65,6 +187,229 @@ public class N5SparkUtils
 			);
 	}
 
+	/**
+	 * Returns the primitive array backing the given {@link ArrayImg}.
+	 *
+	 * @param img
+	 * @return primitive array
+	 */
+	public static Object getStorageArray( final ArrayImg< ?, ? > img )
+	{
+		return ( ( ArrayDataAccess< ? > ) img.update( null ) ).getCurrentStorageArray();
+	}
+
+	/**
+	 * Copies a box of the given size between two primitive arrays of the same type.
+	 * The arrays are laid out in the same way as the data of N5 {@link DataBlock}s (the first dimension is the fastest varying one).
+	 * If the source array is {@code null}, the box in the target array is filled with zeros.
+	 *
+	 * @param source
+	 * @param sourceSize
+	 * 			dimensions of the source array
+	 * @param sourcePosition
+	 * 			position of the box in the source array
+	 * @param target
+	 * @param targetSize
+	 * 			dimensions of the target array
+	 * @param targetPosition
+	 * 			position of the box in the target array
+	 * @param size
+	 * 			dimensions of the box
+	 */
+	public static void copy(
+			final Object source,
+			final int[] sourceSize,
+			final int[] sourcePosition,
+			final Object target,
+			final int[] targetSize,
+			final int[] targetPosition,
+			final int[] size )
+	{
+		final int n = size.length;
+		for ( int d = 0; d < n; ++d )
+			if ( size[ d ] <= 0 )
+				return;
+
+		final int[] sourceStrides = new int[ n ], targetStrides = new int[ n ];
+		int sourceOffset = 0, targetOffset = 0;
+		for ( int d = 0, sourceStride = 1, targetStride = 1; d < n; ++d )
+		{
+			if ( source != null )
+			{
+				sourceStrides[ d ] = sourceStride;
+				sourceOffset += sourcePosition[ d ] * sourceStride;
+				sourceStride *= sourceSize[ d ];
+			}
+			targetStrides[ d ] = targetStride;
+			targetOffset += targetPosition[ d ] * targetStride;
+			targetStride *= targetSize[ d ];
+		}
+
+		final Object zeros = source == null ? Array.newInstance( target.getClass().getComponentType(), size[ 0 ] ) : null;
+		final int[] rowPosition = new int[ n ];
+		while ( true )
+		{
+			if ( source != null )
+				System.arraycopy( source, sourceOffset, target, targetOffset, size[ 0 ] );
+			else
+				System.arraycopy( zeros, 0, target, targetOffset, size[ 0 ] );
+
+			int d = 1;
+			for ( ; d < n; ++d )
+			{
+				sourceOffset += sourceStrides[ d ];
+				targetOffset += targetStrides[ d ];
+				if ( ++rowPosition[ d ] < size[ d ] )
+					break;
+				sourceOffset -= size[ d ] * sourceStrides[ d ];
+				targetOffset -= size[ d ] * targetStrides[ d ];
+				rowPosition[ d ] = 0;
+			}
+			if ( d == n )
+				break;
+		}
+	}
+
+	/**
+	 * Checks if the given data block contains only zeros.
+	 *
+	 * @param block
+	 * @return {@code true} if all values are zero
+	 */
+	public static boolean isEmpty( final DataBlock< ? > block )
+	{
+		return isEmpty( block.getData() );
+	}
+
+	/**
+	 * Checks if the given primitive array contains only zeros.
+	 *
+	 * @param data
+	 * @return {@code true} if all values are zero
+	 */
+	public static boolean isEmpty( final Object data )
+	{
+		if ( data instanceof byte[] )
+		{
+			for ( final byte value : ( byte[] ) data )
+				if ( value != 0 )
+					return false;
+		}
+		else if ( data instanceof short[] )
+		{
+			for ( final short value : ( short[] ) data )
+				if ( value != 0 )
+					return false;
+		}
+		else if ( data instanceof int[] )
+		{
+			for ( final int value : ( int[] ) data )
+				if ( value != 0 )
+					return false;
+		}
+		else if ( data instanceof long[] )
+		{
+			for ( final long value : ( long[] ) data )
+				if ( value != 0 )
+					return false;
+		}
+		else if ( data instanceof float[] )
+		{
+			for ( final float value : ( float[] ) data )
+				if ( value != 0 )
+					return false;
+		}
+		else if ( data instanceof double[] )
+		{
+			for ( final double value : ( double[] ) data )
+				if ( value != 0 )
+					return false;
+		}
+		else
+		{
+			throw new IllegalArgumentException( "Unsupported data: " + data );
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a data block of the given data type that uses the given primitive array as its data.
+	 * Allows to reuse the same array for writing multiple blocks of the same size.
+	 *
+	 * @param dataType
+	 * @param size
+	 * @param gridPosition
+	 * @param data
+	 * 			primitive array of the corresponding type, its length has to match the size of the block
+	 * @return data block
+	 */
+	public static DataBlock< ? > createDataBlock( final DataType dataType, final int[] size, final long[] gridPosition, final Object data )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		case UINT8:
+			return new ByteArrayDataBlock( size, gridPosition, ( byte[] ) data );
+		case INT16:
+		case UINT16:
+			return new ShortArrayDataBlock( size, gridPosition, ( short[] ) data );
+		case INT32:
+		case UINT32:
+			return new IntArrayDataBlock( size, gridPosition, ( int[] ) data );
+		case INT64:
+		case UINT64:
+			return new LongArrayDataBlock( size, gridPosition, ( long[] ) data );
+		case FLOAT32:
+			return new FloatArrayDataBlock( size, gridPosition, ( float[] ) data );
+		case FLOAT64:
+			return new DoubleArrayDataBlock( size, gridPosition, ( double[] ) data );
+		default:
+			throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+		}
+	}
+
+	/**
+	 * Wraps the data of the given block as an {@link ArrayImg} of the corresponding type without copying.
+	 *
+	 * @param block
+	 * @param dataType
+	 * @return array image backed by the block data
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static < T extends NativeType< T > > ArrayImg< T, ? > wrapAsArrayImg( final DataBlock< ? > block, final DataType dataType )
+	{
+		final int[] size = block.getSize();
+		final long[] dimensions = new long[ size.length ];
+		for ( int d = 0; d < size.length; ++d )
+			dimensions[ d ] = size[ d ];
+
+		switch ( dataType )
+		{
+		case INT8:
+			return ( ArrayImg ) ArrayImgs.bytes( ( byte[] ) block.getData(), dimensions );
+		case UINT8:
+			return ( ArrayImg ) ArrayImgs.unsignedBytes( ( byte[] ) block.getData(), dimensions );
+		case INT16:
+			return ( ArrayImg ) ArrayImgs.shorts( ( short[] ) block.getData(), dimensions );
+		case UINT16:
+			return ( ArrayImg ) ArrayImgs.unsignedShorts( ( short[] ) block.getData(), dimensions );
+		case INT32:
+			return ( ArrayImg ) ArrayImgs.ints( ( int[] ) block.getData(), dimensions );
+		case UINT32:
+			return ( ArrayImg ) ArrayImgs.unsignedInts( ( int[] ) block.getData(), dimensions );
+		case INT64:
+			return ( ArrayImg ) ArrayImgs.longs( ( long[] ) block.getData(), dimensions );
+		case UINT64:
+			return ( ArrayImg ) ArrayImgs.unsignedLongs( ( long[] ) block.getData(), dimensions );
+		case FLOAT32:
+			return ( ArrayImg ) ArrayImgs.floats( ( float[] ) block.getData(), dimensions );
+		case FLOAT64:
+			return ( ArrayImg ) ArrayImgs.doubles( ( double[] ) block.getData(), dimensions );
+		default:
+			throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+		}
+	}
+
 	/**
 	 * Open an N5 dataset as a memory cached {@link LazyCellImg} with bounded cache size.
 	 *
@@ -0,0 +1,226 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5ReaderSupplier;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Finds the blocks of an N5 dataset that actually exist in the container, without reading them.
+ * Allows to schedule the processing only for the blocks that contain data, and to treat missing blocks as empty.
+ *<p>
+ * The block directory tree ({@code dataset/x/y/z}) is listed level by level in a distributed way,
+ * and each directory on the last level is listed once in the filesystem under the base path of the container
+ * to find its block files ({@link N5Reader#list(String)} only reports groups and datasets, not block files).
+ * This relies on the block layout of the N5 filesystem backend, so only the containers stored in the filesystem are supported.
+ */
+public class N5SparseBlockScanner
+{
+	private static final int MAX_PARTITIONS = 15000;
+
+	private N5SparseBlockScanner() { }
+
+	/**
+	 * Returns grid positions of all existing blocks of the given dataset.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @return RDD of block grid positions
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 * 			if the container is not stored in the filesystem
+	 */
+	public static JavaRDD< long[] > scanExistingBlocks(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5Supplier,
+			final String datasetPath ) throws IOException
+	{
+		final N5Reader n5 = n5Supplier.get();
+		if ( getBlockFilePath( n5, datasetPath, new long[ 0 ] ) == null )
+			throw new IllegalArgumentException( "Scanning for existing blocks is supported only for the containers stored in the filesystem, got " + N5BlockCache.unwrap( n5 ).getClass().getName() );
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
+		final long[] gridDimensions = new CellGrid( attributes.getDimensions(), attributes.getBlockSize() ).getGridDimensions();
+		final int dim = gridDimensions.length;
+
+		// list the directories for all dimensions except the last one
+		List< long[] > gridPrefixes = Collections.singletonList( new long[ 0 ] );
+		for ( int d = 0; d < dim - 1; ++d )
+		{
+			final int prefixLength = d;
+			gridPrefixes = sparkContext.parallelize( gridPrefixes, Math.min( gridPrefixes.size(), MAX_PARTITIONS ) ).mapPartitions( gridPrefixesIterator ->
+				{
+					final N5Reader n5Local = n5Supplier.get();
+					final List< long[] > childGridPrefixes = new ArrayList<>();
+					while ( gridPrefixesIterator.hasNext() )
+					{
+						final long[] gridPrefix = gridPrefixesIterator.next();
+						final String gridPrefixPath = getBlockPath( datasetPath, gridPrefix );
+						if ( !n5Local.exists( gridPrefixPath ) )
+							continue;
+
+						for ( final String child : n5Local.list( gridPrefixPath ) )
+						{
+							final long gridCoordinate = parseGridCoordinate( child );
+							if ( gridCoordinate >= 0 && gridCoordinate < gridDimensions[ prefixLength ] )
+							{
+								final long[] childGridPrefix = Arrays.copyOf( gridPrefix, prefixLength + 1 );
+								childGridPrefix[ prefixLength ] = gridCoordinate;
+								childGridPrefixes.add( childGridPrefix );
+							}
+						}
+					}
+					return childGridPrefixes.iterator();
+				}
+			).collect();
+
+			if ( gridPrefixes.isEmpty() )
+				return sparkContext.emptyRDD();
+		}
+
+		// list the block files in the last dimension, each directory is listed once instead of checking every grid coordinate
+		return sparkContext.parallelize( gridPrefixes, Math.min( gridPrefixes.size(), MAX_PARTITIONS ) ).mapPartitions( gridPrefixesIterator ->
+			{
+				final N5Reader n5Local = n5Supplier.get();
+				final List< long[] > existingBlocks = new ArrayList<>();
+				while ( gridPrefixesIterator.hasNext() )
+				{
+					final long[] gridPrefix = gridPrefixesIterator.next();
+					final Path blockDirectoryPath = getBlockFilePath( n5Local, datasetPath, gridPrefix );
+					if ( !Files.isDirectory( blockDirectoryPath ) )
+						continue;
+
+					try ( final DirectoryStream< Path > blockFilePaths = Files.newDirectoryStream( blockDirectoryPath ) )
+					{
+						for ( final Path blockFilePath : blockFilePaths )
+						{
+							final long gridCoordinate = parseGridCoordinate( blockFilePath.getFileName().toString() );
+							if ( gridCoordinate >= 0 && gridCoordinate < gridDimensions[ dim - 1 ] )
+							{
+								final long[] gridPosition = Arrays.copyOf( gridPrefix, dim );
+								gridPosition[ dim - 1 ] = gridCoordinate;
+								existingBlocks.add( gridPosition );
+							}
+						}
+					}
+				}
+				return existingBlocks.iterator();
+			}
+		);
+	}
+
+	/**
+	 * Returns flat indexes of the output blocks that are affected by the given input blocks when downsampling
+	 * with the given factors. The output blocks that are not affected by any of the input blocks are expected to be empty.
+	 * Use downsampling factors of 1 if the output dataset has the same dimensions as the input dataset.
+	 *
+	 * @param inputBlockGridPositions
+	 * @param inputBlockSize
+	 * @param downsamplingFactors
+	 * @param outputDimensions
+	 * @param outputBlockSize
+	 * @return RDD of distinct flat output block indexes
+	 */
+	public static JavaRDD< Long > getAffectedOutputBlockIndexes(
+			final JavaRDD< long[] > inputBlockGridPositions,
+			final int[] inputBlockSize,
+			final int[] downsamplingFactors,
+			final long[] outputDimensions,
+			final int[] outputBlockSize )
+	{
+		final long[] outputGridDimensions = new CellGrid( outputDimensions, outputBlockSize ).getGridDimensions();
+		final int numPartitions = ( int ) Math.max( Math.min( Intervals.numElements( outputGridDimensions ), MAX_PARTITIONS ), 1 );
+		return inputBlockGridPositions.flatMap( inputBlockGridPosition ->
+			{
+				final int dim = inputBlockGridPosition.length;
+				final long[] outputGridMin = new long[ dim ], outputGridMax = new long[ dim ];
+				for ( int d = 0; d < dim; ++d )
+				{
+					final long inputMin = inputBlockGridPosition[ d ] * inputBlockSize[ d ];
+					final long inputMax = inputMin + inputBlockSize[ d ] - 1;
+					final long outputMin = inputMin / downsamplingFactors[ d ];
+					final long outputMax = Math.min( inputMax / downsamplingFactors[ d ], outputDimensions[ d ] - 1 );
+					if ( outputMin > outputMax )
+						return Collections.< Long >emptyIterator();
+					outputGridMin[ d ] = outputMin / outputBlockSize[ d ];
+					outputGridMax[ d ] = outputMax / outputBlockSize[ d ];
+				}
+
+				final List< Long > outputBlockIndexes = new ArrayList<>();
+				final long[] outputGridPosition = outputGridMin.clone();
+				while ( true )
+				{
+					outputBlockIndexes.add( IntervalIndexer.positionToIndex( outputGridPosition, outputGridDimensions ) );
+
+					int d = 0;
+					for ( ; d < dim && ++outputGridPosition[ d ] > outputGridMax[ d ]; ++d )
+						outputGridPosition[ d ] = outputGridMin[ d ];
+					if ( d == dim )
+						break;
+				}
+				return outputBlockIndexes.iterator();
+			}
+		).distinct( numPartitions );
+	}
+
+	/**
+	 * Returns the path of the block (or of the block directory, if only a prefix of the grid position is given) within the dataset.
+	 *
+	 * @param datasetPath
+	 * @param gridPosition
+	 * @return block path
+	 */
+	public static String getBlockPath( final String datasetPath, final long[] gridPosition )
+	{
+		final StringBuilder sb = new StringBuilder( datasetPath );
+		for ( final long gridCoordinate : gridPosition )
+			sb.append( '/' ).append( gridCoordinate );
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the location of the block file in the filesystem if the given reader is backed by the N5 filesystem backend.
+	 * The readers wrapped by the block caches are unwrapped first (see {@link N5BlockCache#unwrap(N5Reader)}).
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @param gridPosition
+	 * @return block file path, or {@code null} if the container is not stored in the filesystem
+	 */
+	public static Path getBlockFilePath( final N5Reader n5, final String datasetPath, final long[] gridPosition )
+	{
+		final N5Reader n5Unwrapped = N5BlockCache.unwrap( n5 );
+		if ( !( n5Unwrapped instanceof N5FSReader ) )
+			return null;
+		return Paths.get( ( ( N5FSReader ) n5Unwrapped ).getBasePath(), getBlockPath( datasetPath, gridPosition ) );
+	}
+
+	private static long parseGridCoordinate( final String name )
+	{
+		try
+		{
+			return Long.parseLong( name );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return -1;
+		}
+	}
+}
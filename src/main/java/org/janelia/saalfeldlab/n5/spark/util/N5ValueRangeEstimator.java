@@ -0,0 +1,268 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5ReaderSupplier;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+
+/**
+ * Estimates the range of values in a dataset as a pair of percentiles, for example to map the values to a smaller data type without losing contrast.
+ *<p>
+ * The values are collected from a stratified sample of the blocks: the block grid is divided into equal strata,
+ * and the block in the middle of each stratum is read. If the dataset is a level of a scale pyramid (such as {@code s0}),
+ * and a coarser level of the same pyramid is small enough, all blocks of that level are read instead.
+ * Missing blocks are skipped, so the empty background does not affect the estimate.
+ *<p>
+ * For 8-bit and 16-bit integer data, each sampled block is summarized as a histogram with one bin per value, and the histograms are merged,
+ * so the percentiles are exact for the sampled blocks. For other data types, a regularly spaced subset of the values of each sampled block is collected instead.
+ */
+public class N5ValueRangeEstimator
+{
+	public static final double DEFAULT_LOWER_PERCENTILE = 0.1;
+	public static final double DEFAULT_UPPER_PERCENTILE = 99.9;
+	public static final int DEFAULT_MAX_SAMPLED_BLOCKS = 1000;
+
+	private static final int MAX_VALUES_PER_BLOCK = 1024;
+
+	private static final int MAX_PARTITIONS = 15000;
+
+	private static final Pattern SCALE_LEVEL_PATTERN = Pattern.compile( "s(\\d+)" );
+
+	/**
+	 * Estimates the range of values in the given dataset with the default percentiles and number of sampled blocks.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @return lower and upper percentile of the values, or {@code null} if the sampled blocks do not exist
+	 * @throws IOException
+	 */
+	public static Pair< Double, Double > estimateValueRange(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5Supplier,
+			final String datasetPath ) throws IOException
+	{
+		return estimateValueRange(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				DEFAULT_LOWER_PERCENTILE,
+				DEFAULT_UPPER_PERCENTILE,
+				DEFAULT_MAX_SAMPLED_BLOCKS
+			);
+	}
+
+	/**
+	 * Estimates the range of values in the given dataset.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param lowerPercentile
+	 * 			percentile (in the range from 0 to 100) used as the min value
+	 * @param upperPercentile
+	 * 			percentile (in the range from 0 to 100) used as the max value
+	 * @param maxSampledBlocks
+	 * 			max number of blocks to read
+	 * @return lower and upper percentile of the values, or {@code null} if the sampled blocks do not exist
+	 * @throws IOException
+	 */
+	public static Pair< Double, Double > estimateValueRange(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5Supplier,
+			final String datasetPath,
+			final double lowerPercentile,
+			final double upperPercentile,
+			final int maxSampledBlocks ) throws IOException
+	{
+		if ( lowerPercentile < 0 || lowerPercentile >= upperPercentile || upperPercentile > 100 )
+			throw new IllegalArgumentException( "Expected percentiles 0 <= lower < upper <= 100, got " + lowerPercentile + " and " + upperPercentile );
+		if ( maxSampledBlocks <= 0 )
+			throw new IllegalArgumentException( "Max number of sampled blocks should be positive, got " + maxSampledBlocks );
+
+		final N5Reader n5 = n5Supplier.get();
+		final String sampledDatasetPath = findCoarseScaleLevel( n5, datasetPath, maxSampledBlocks );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( sampledDatasetPath );
+		final DataType dataType = attributes.getDataType();
+
+		final List< long[] > sampledBlockGridPositions = N5SparkUtils.sampleBlockGrid(
+				new CellGrid( attributes.getDimensions(), attributes.getBlockSize() ).getGridDimensions(),
+				maxSampledBlocks
+			);
+		System.out.println( "Estimating value range from " + sampledBlockGridPositions.size() + " blocks of " + sampledDatasetPath );
+
+		final JavaRDD< DataBlock< ? > > sampledBlocks = sparkContext
+				.parallelize( sampledBlockGridPositions, Math.min( sampledBlockGridPositions.size(), MAX_PARTITIONS ) )
+				.map( blockGridPosition -> n5Supplier.get().readBlock( sampledDatasetPath, attributes, blockGridPosition ) )
+				.filter( block -> block != null );
+
+		final long minTypeValue = getMinHistogramValue( dataType );
+		if ( minTypeValue != Long.MAX_VALUE )
+		{
+			final int numBins = getNumHistogramBins( dataType );
+			final long[] histogram = sampledBlocks
+					.map( block -> computeHistogram( block, dataType, numBins, minTypeValue ) )
+					.fold( new long[ numBins ], ( histogram1, histogram2 ) ->
+						{
+							final long[] mergedHistogram = new long[ numBins ];
+							for ( int i = 0; i < numBins; ++i )
+								mergedHistogram[ i ] = histogram1[ i ] + histogram2[ i ];
+							return mergedHistogram;
+						} );
+
+			final long numValues = Arrays.stream( histogram ).sum();
+			if ( numValues == 0 )
+				return null;
+
+			return new ValuePair<>(
+					( double ) ( getHistogramPercentile( histogram, numValues, lowerPercentile ) + minTypeValue ),
+					( double ) ( getHistogramPercentile( histogram, numValues, upperPercentile ) + minTypeValue )
+				);
+		}
+		else
+		{
+			final double[] values = sampledBlocks
+					.map( block -> sampleValues( block, dataType ) )
+					.fold( new double[ 0 ], ( values1, values2 ) ->
+						{
+							final double[] mergedValues = Arrays.copyOf( values1, values1.length + values2.length );
+							System.arraycopy( values2, 0, mergedValues, values1.length, values2.length );
+							return mergedValues;
+						} );
+
+			if ( values.length == 0 )
+				return null;
+
+			Arrays.sort( values );
+			return new ValuePair<>(
+					values[ ( int ) Math.round( lowerPercentile / 100 * ( values.length - 1 ) ) ],
+					values[ ( int ) Math.round( upperPercentile / 100 * ( values.length - 1 ) ) ]
+				);
+		}
+	}
+
+	/**
+	 * If the given dataset has more than the given number of blocks and it is a level of a scale pyramid named {@code s0}, {@code s1}, ...,
+	 * returns the finest coarser level that has at most the given number of blocks. Otherwise, returns the given dataset.
+	 */
+	private static String findCoarseScaleLevel( final N5Reader n5, final String datasetPath, final int maxBlocks ) throws IOException
+	{
+		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
+		if ( Intervals.numElements( new CellGrid( attributes.getDimensions(), attributes.getBlockSize() ).getGridDimensions() ) <= maxBlocks )
+			return datasetPath;
+
+		final Matcher matcher = SCALE_LEVEL_PATTERN.matcher( Paths.get( datasetPath ).getFileName().toString() );
+		if ( !matcher.matches() )
+			return datasetPath;
+
+		final String groupPath = Paths.get( datasetPath ).getParent() != null ? Paths.get( datasetPath ).getParent().toString() : "";
+		final DataType dataType = attributes.getDataType();
+		for ( int scale = Integer.parseInt( matcher.group( 1 ) ) + 1; ; ++scale )
+		{
+			final String scaleLevelPath = Paths.get( groupPath, "s" + scale ).toString();
+			if ( !n5.datasetExists( scaleLevelPath ) )
+				return datasetPath;
+
+			final DatasetAttributes scaleLevelAttributes = n5.getDatasetAttributes( scaleLevelPath );
+			if ( scaleLevelAttributes.getDataType() != dataType )
+				return datasetPath;
+
+			if ( Intervals.numElements( new CellGrid( scaleLevelAttributes.getDimensions(), scaleLevelAttributes.getBlockSize() ).getGridDimensions() ) <= maxBlocks )
+				return scaleLevelPath;
+		}
+	}
+
+	private static long getHistogramPercentile( final long[] histogram, final long numValues, final double percentile )
+	{
+		final double rank = percentile / 100 * ( numValues - 1 );
+		long cumulativeCount = 0;
+		for ( int i = 0; i < histogram.length; ++i )
+		{
+			cumulativeCount += histogram[ i ];
+			if ( cumulativeCount > rank )
+				return i;
+		}
+		return histogram.length - 1;
+	}
+
+	/**
+	 * Returns the min value of the data type if the values can be counted with one histogram bin per value, or {@code Long.MAX_VALUE} otherwise.
+	 */
+	private static long getMinHistogramValue( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+			return Byte.MIN_VALUE;
+		case INT16:
+			return Short.MIN_VALUE;
+		case UINT8:
+		case UINT16:
+			return 0;
+		default:
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private static int getNumHistogramBins( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		case UINT8:
+			return 1 << 8;
+		case INT16:
+		case UINT16:
+			return 1 << 16;
+		default:
+			throw new IllegalArgumentException( "Histogram is not supported for data type " + dataType );
+		}
+	}
+
+	private static < T extends NativeType< T > & RealType< T > > long[] computeHistogram(
+			final DataBlock< ? > block,
+			final DataType dataType,
+			final int numBins,
+			final long minValue )
+	{
+		final long[] histogram = new long[ numBins ];
+		final ArrayImg< T, ? > img = N5SparkUtils.wrapAsArrayImg( block, dataType );
+		for ( final T value : img )
+			++histogram[ ( int ) ( ( long ) value.getRealDouble() - minValue ) ];
+		return histogram;
+	}
+
+	private static < T extends NativeType< T > & RealType< T > > double[] sampleValues( final DataBlock< ? > block, final DataType dataType )
+	{
+		final int numElements = ( int ) Intervals.numElements( block.getSize() );
+		final int step = Math.max( numElements / MAX_VALUES_PER_BLOCK, 1 );
+		final double[] values = new double[ ( numElements + step - 1 ) / step ];
+		final ArrayImg< T, ? > img = N5SparkUtils.wrapAsArrayImg( block, dataType );
+		final Cursor< T > cursor = img.cursor();
+		for ( int i = 0; i < values.length; ++i )
+		{
+			cursor.jumpFwd( i == 0 ? 1 : step );
+			values[ i ] = cursor.get().getRealDouble();
+		}
+		return values;
+	}
+}
@@ -0,0 +1,253 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.stream.LongStream;
+
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Z-order (Morton) curve over a block grid of arbitrary size and dimensionality.
+ * The code of a grid position is obtained by interleaving the bits of its coordinates, starting with the first dimension.
+ * Dimensions that need fewer bits drop out of the interleaving once their bits are used up,
+ * so the code space is less than 2^n times bigger than the grid.
+ *<p>
+ * Used for assigning blocks to partitions such that each partition covers a compact region of the grid instead of a few rows of it,
+ * which allows to reuse the input data shared by neighboring blocks within the partition (see the block cache of {@link N5BlockReader}).
+ */
+public class ZOrderCurve implements Serializable
+{
+	private static final long serialVersionUID = 3395436720264391862L;
+
+	private static final int MAX_BITS = 62;
+
+	private final long[] gridDimensions;
+	private final int[] numBits;
+	private final int maxNumBits;
+	private final int totalNumBits;
+	private final int[] bitDimensions;
+
+	public ZOrderCurve( final long[] gridDimensions )
+	{
+		this.gridDimensions = gridDimensions.clone();
+
+		numBits = new int[ gridDimensions.length ];
+		int max = 0, total = 0;
+		for ( int d = 0; d < gridDimensions.length; ++d )
+		{
+			numBits[ d ] = Long.SIZE - Long.numberOfLeadingZeros( Math.max( gridDimensions[ d ] - 1, 0 ) );
+			max = Math.max( numBits[ d ], max );
+			total += numBits[ d ];
+		}
+
+		if ( total > MAX_BITS )
+			throw new IllegalArgumentException( "Block grid is too large for the Z-order curve: " + Arrays.toString( gridDimensions ) );
+
+		maxNumBits = max;
+		totalNumBits = total;
+
+		// dimension of each bit of the code, in the same order as in encode()
+		bitDimensions = new int[ totalNumBits ];
+		for ( int b = 0, i = 0; b < maxNumBits; ++b )
+			for ( int d = 0; d < numBits.length; ++d )
+				if ( b < numBits[ d ] )
+					bitDimensions[ i++ ] = d;
+	}
+
+	public long[] getGridDimensions()
+	{
+		return gridDimensions.clone();
+	}
+
+	/**
+	 * @return number of codes, including the codes that map to positions outside of the grid
+	 */
+	public long getCodeSpaceSize()
+	{
+		return 1L << totalNumBits;
+	}
+
+	public long encode( final long[] gridPosition )
+	{
+		long code = 0;
+		for ( int b = 0, i = 0; b < maxNumBits; ++b )
+			for ( int d = 0; d < numBits.length; ++d )
+				if ( b < numBits[ d ] )
+					code |= ( ( gridPosition[ d ] >>> b ) & 1L ) << i++;
+		return code;
+	}
+
+	/**
+	 * Decodes the given code into the grid position.
+	 *
+	 * @param code
+	 * @param gridPosition
+	 * @return {@code true} if the resulting position is within the grid, {@code false} otherwise
+	 */
+	public boolean decode( final long code, final long[] gridPosition )
+	{
+		Arrays.fill( gridPosition, 0 );
+		for ( int b = 0, i = 0; b < maxNumBits; ++b )
+			for ( int d = 0; d < numBits.length; ++d )
+				if ( b < numBits[ d ] )
+					gridPosition[ d ] |= ( ( code >>> i++ ) & 1L ) << b;
+
+		for ( int d = 0; d < gridPosition.length; ++d )
+			if ( gridPosition[ d ] >= gridDimensions[ d ] )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Counts the codes in the range {@code [0, codeEnd)} that map to positions within the grid.
+	 * The range is split into blocks of codes that share their high bits, and the positions of each such block of codes
+	 * form a box in the grid, so the number of positions within the grid is counted without iterating over the codes.
+	 *
+	 * @param codeEnd
+	 * @return number of codes within the grid
+	 */
+	public long countGridCodes( final long codeEnd )
+	{
+		if ( codeEnd >= getCodeSpaceSize() )
+			return Intervals.numElements( gridDimensions );
+
+		final long[] boxMin = new long[ gridDimensions.length ];
+		final int[] numFreeBits = new int[ gridDimensions.length ];
+		long count = 0;
+		for ( int i = 0; i < totalNumBits; ++i )
+		{
+			// the codes that have the same bits as codeEnd above bit i, 0 at bit i, and any bits below bit i
+			if ( ( ( codeEnd >>> i ) & 1L ) != 0 )
+			{
+				decode( ( codeEnd >>> ( i + 1 ) ) << ( i + 1 ), boxMin );
+				long boxCount = 1;
+				for ( int d = 0; d < gridDimensions.length; ++d )
+					boxCount *= Math.max( Math.min( boxMin[ d ] + ( 1L << numFreeBits[ d ] ), gridDimensions[ d ] ) - boxMin[ d ], 0 );
+				count += boxCount;
+			}
+			++numFreeBits[ bitDimensions[ i ] ];
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the smallest code such that the range {@code [0, code)} contains the given number of codes within the grid.
+	 *
+	 * @param numGridCodes
+	 * @return code
+	 */
+	public long findCode( final long numGridCodes )
+	{
+		long min = 0, max = getCodeSpaceSize();
+		while ( min < max )
+		{
+			final long mid = ( min + max ) >>> 1;
+			if ( countGridCodes( mid ) >= numGridCodes )
+				max = mid;
+			else
+				min = mid + 1;
+		}
+		return min;
+	}
+
+	/**
+	 * Creates an RDD of flat block indexes (as used by {@link net.imglib2.img.cell.CellGrid#getCellGridPositionFlat(long, long[])})
+	 * of all blocks in the given grid, ordered along the Z-order curve.
+	 * Each partition covers a contiguous range of the curve and generates its block indexes lazily.
+	 * The ranges are split by the number of blocks within the grid rather than by the number of codes,
+	 * so the partitions get the same number of blocks (within one) even if the grid dimensions are not powers of two.
+	 *
+	 * @param sparkContext
+	 * @param gridDimensions
+	 * @param maxPartitions
+	 * @return RDD of flat block indexes
+	 */
+	public static JavaRDD< Long > parallelizeBlockIndexes( final JavaSparkContext sparkContext, final long[] gridDimensions, final int maxPartitions )
+	{
+		final ZOrderCurve curve = new ZOrderCurve( gridDimensions );
+		final long numBlocks = Intervals.numElements( gridDimensions );
+		final int numPartitions = ( int ) Math.max( Math.min( numBlocks, maxPartitions ), 1 );
+		final long rangeSize = numBlocks / numPartitions, remainder = numBlocks % numPartitions;
+		return N5SparkUtils
+				.parallelizeIndexRange( sparkContext, numPartitions, numPartitions )
+				.flatMap( partitionIndex ->
+					{
+						// the first (numBlocks % numPartitions) partitions get one extra block, the code range of each partition is found on the worker
+						final long start = partitionIndex * rangeSize + Math.min( partitionIndex, remainder );
+						final long end = start + rangeSize + ( partitionIndex < remainder ? 1 : 0 );
+						return new BlockIndexIterator( curve, LongStream.range( curve.findCode( start ), curve.findCode( end ) ).iterator() );
+					} );
+	}
+
+	/**
+	 * Sorts the given flat block indexes along the Z-order curve, so that each partition covers a contiguous range of the curve.
+	 * Intended for arbitrary subsets of blocks, such as the ones found by {@link N5SparseBlockScanner}.
+	 *
+	 * @param blockIndexes
+	 * @param gridDimensions
+	 * @return RDD of flat block indexes
+	 */
+	public static JavaRDD< Long > sortBlockIndexes( final JavaRDD< Long > blockIndexes, final long[] gridDimensions )
+	{
+		final ZOrderCurve curve = new ZOrderCurve( gridDimensions );
+		return blockIndexes.sortBy(
+				blockIndex ->
+				{
+					final long[] gridPosition = new long[ gridDimensions.length ];
+					IntervalIndexer.indexToPosition( blockIndex, gridDimensions, gridPosition );
+					return curve.encode( gridPosition );
+				},
+				true,
+				blockIndexes.getNumPartitions()
+			);
+	}
+
+	/**
+	 * Maps codes to flat block indexes, skipping the codes that are outside of the grid.
+	 */
+	private static class BlockIndexIterator implements Iterator< Long >
+	{
+		private final ZOrderCurve curve;
+		private final Iterator< Long > codesIterator;
+		private final long[] gridPosition;
+		private Long next;
+
+		public BlockIndexIterator( final ZOrderCurve curve, final Iterator< Long > codesIterator )
+		{
+			this.curve = curve;
+			this.codesIterator = codesIterator;
+			gridPosition = new long[ curve.gridDimensions.length ];
+			next = findNext();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return next != null;
+		}
+
+		@Override
+		public Long next()
+		{
+			if ( next == null )
+				throw new NoSuchElementException();
+			final Long current = next;
+			next = findNext();
+			return current;
+		}
+
+		private Long findNext()
+		{
+			while ( codesIterator.hasNext() )
+				if ( curve.decode( codesIterator.next(), gridPosition ) )
+					return IntervalIndexer.positionToIndex( gridPosition, curve.gridDimensions );
+			return null;
+		}
+	}
+}
@@ -3,11 +3,14 @@ package org.janelia.saalfeldlab.n5.spark;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Optional;
+import java.util.Random;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
@@ -18,8 +21,10 @@ import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.RawCompression;
 import org.janelia.saalfeldlab.n5.XzCompression;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.N5ConvertSpark.BlockConverter;
 import org.janelia.saalfeldlab.n5.spark.N5ConvertSpark.ClampingConverter;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -31,13 +36,16 @@ import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.ShortType;
 import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
@@ -95,6 +103,68 @@ public class N5ConvertSparkTest
 		Assert.assertEquals( 4, getConvertedValue( converter, 1.0 ) );
 	}
 
+	@Test
+	public void testBlockConverter()
+	{
+		// lookup table
+		testBlockConverter( DataType.UINT16, DataType.UINT8, 1000, 20000 );
+		testBlockConverter( DataType.INT16, DataType.FLOAT32, -100, 70 );
+		testBlockConverter( DataType.INT8, DataType.UINT64, -50, 50 );
+		testBlockConverter( DataType.UINT8, DataType.INT16, 0, 255 );
+
+		// clamping and scaling loop
+		testBlockConverter( DataType.FLOAT32, DataType.UINT8, 0, 1 );
+		testBlockConverter( DataType.FLOAT64, DataType.INT64, -1, 1 );
+		testBlockConverter( DataType.UINT32, DataType.UINT16, 0, 3e9 );
+		testBlockConverter( DataType.INT32, DataType.INT8, -1e6, 1e6 );
+		testBlockConverter( DataType.INT64, DataType.UINT32, -1e12, 1e12 );
+
+		// unsigned 64-bit values
+		testBlockConverter( DataType.FLOAT32, DataType.UINT64, 0, 1 );
+	}
+
+	private < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void testBlockConverter(
+			final DataType inputDataType,
+			final DataType outputDataType,
+			final double minInputValue,
+			final double maxInputValue )
+	{
+		final O outputType = N5Utils.type( outputDataType );
+		final double minOutputValue = outputDataType == DataType.FLOAT32 ? 0 : outputType.getMinValue();
+		final double maxOutputValue = outputDataType == DataType.FLOAT32 ? 1 : outputType.getMaxValue();
+
+		// cover the full value range of integer input types and values around the boundaries of the input range
+		final int[] size = new int[] { 100, 101 };
+		final DataBlock< ? > inputBlock = inputDataType.createDataBlock( size, new long[ 2 ] );
+		final Random rnd = new Random( 42 );
+		final Cursor< I > inputCursor = N5SparkUtils.< I >wrapAsArrayImg( inputBlock, inputDataType ).cursor();
+		final double margin = ( maxInputValue - minInputValue ) * 0.1;
+		while ( inputCursor.hasNext() )
+		{
+			final I value = inputCursor.next();
+			if ( value instanceof IntegerType && rnd.nextBoolean() )
+				value.setReal( value.getMinValue() + rnd.nextDouble() * ( value.getMaxValue() - value.getMinValue() ) );
+			else
+				value.setReal( minInputValue - margin + rnd.nextDouble() * ( maxInputValue - minInputValue + 2 * margin ) );
+		}
+
+		final ClampingConverter< I, O > clampingConverter = new ClampingConverter<>( minInputValue, maxInputValue, minOutputValue, maxOutputValue );
+		final DataBlock< ? > expectedBlock = outputDataType.createDataBlock( size, new long[ 2 ] );
+		final Cursor< I > expectedInputCursor = N5SparkUtils.< I >wrapAsArrayImg( inputBlock, inputDataType ).cursor();
+		final Cursor< O > expectedOutputCursor = N5SparkUtils.< O >wrapAsArrayImg( expectedBlock, outputDataType ).cursor();
+		while ( expectedInputCursor.hasNext() )
+			clampingConverter.convert( expectedInputCursor.next(), expectedOutputCursor.next() );
+
+		final BlockConverter< I, O > blockConverter = new BlockConverter<>( inputDataType, outputDataType, minInputValue, maxInputValue, minOutputValue, maxOutputValue );
+		final DataBlock< ? > outputBlock = outputDataType.createDataBlock( size, new long[ 2 ] );
+		blockConverter.convert( inputBlock, outputBlock );
+
+		final Cursor< O > expectedCursor = N5SparkUtils.< O >wrapAsArrayImg( expectedBlock, outputDataType ).cursor();
+		final Cursor< O > outputCursor = N5SparkUtils.< O >wrapAsArrayImg( outputBlock, outputDataType ).cursor();
+		while ( expectedCursor.hasNext() )
+			Assert.assertEquals( inputDataType + " -> " + outputDataType, expectedCursor.next().getRealDouble(), outputCursor.next().getRealDouble(), 0 );
+	}
+
 	@Test
 	public void testShortToByte() throws IOException
 	{
@@ -199,6 +269,286 @@ public class N5ConvertSparkTest
 			);
 	}
 
+	@Test
+	public void testTranscoding() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 30, 30, 30 };
+		final int[] blockSize = new int[] { 6, 7, 8 };
+
+		// the first layer of blocks is empty
+		final short[] inputData = new short[ ( int ) Intervals.numElements( dimensions ) ];
+		for ( int i = 0; i < inputData.length; ++i )
+			inputData[ i ] = i < dimensions[ 0 ] * dimensions[ 1 ] * blockSize[ 2 ] ? 0 : ( short ) ( i + 1 );
+
+		N5Utils.save( ArrayImgs.shorts( inputData, dimensions ), n5, datasetPath, blockSize, new GzipCompression() );
+
+		// one of the blocks is missing: its file is deleted from the container
+		final long[] missingBlockGridPosition = new long[] { 1, 2, 3 };
+		Files.delete( Paths.get( basePath, datasetPath, "1", "2", "3" ) );
+		Assert.assertNull( n5.readBlock( datasetPath, n5.getDatasetAttributes( datasetPath ), missingBlockGridPosition ) );
+		final long[] position = new long[ 3 ];
+		for ( int i = 0; i < inputData.length; ++i )
+		{
+			IntervalIndexer.indexToPosition( i, dimensions, position );
+			boolean isInMissingBlock = true;
+			for ( int d = 0; d < 3; ++d )
+				isInMissingBlock &= position[ d ] / blockSize[ d ] == missingBlockGridPosition[ d ];
+			if ( isInMissingBlock )
+				inputData[ i ] = 0;
+		}
+
+		N5ConvertSpark.convert(
+				sparkContext,
+				() -> new N5FSReader( basePath ),
+				datasetPath,
+				n5Supplier,
+				convertedDatasetPath,
+				Optional.empty(),
+				Optional.of( new Lz4Compression() ),
+				Optional.empty(),
+				Optional.empty()
+			);
+
+		Assert.assertTrue( n5.datasetExists( convertedDatasetPath ) );
+
+		final DatasetAttributes convertedAttributes = n5.getDatasetAttributes( convertedDatasetPath );
+		Assert.assertArrayEquals( dimensions, convertedAttributes.getDimensions() );
+		Assert.assertArrayEquals( blockSize, convertedAttributes.getBlockSize() );
+		Assert.assertEquals( new Lz4Compression().getType(), convertedAttributes.getCompression().getType() );
+		Assert.assertEquals( DataType.INT16, convertedAttributes.getDataType() );
+
+		Assert.assertArrayEquals(
+				inputData,
+				( short[] ) ( ( ArrayDataAccess< ? > ) getImgFromRandomAccessibleInterval( N5Utils.open( n5Supplier.get(), convertedDatasetPath ), new ShortType() ).update( null ) ).getCurrentStorageArray()
+			);
+
+		// the missing and empty blocks are not written
+		Assert.assertNull( n5.readBlock( convertedDatasetPath, convertedAttributes, missingBlockGridPosition ) );
+		Assert.assertNull( n5.readBlock( convertedDatasetPath, convertedAttributes, new long[] { 1, 2, 0 } ) );
+		Assert.assertNotNull( n5.readBlock( convertedDatasetPath, convertedAttributes, new long[] { 1, 2, 1 } ) );
+	}
+
+	@Test
+	public void testShuffle() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 30, 30, 30 };
+
+		final short[] inputData = new short[ ( int ) Intervals.numElements( dimensions ) ];
+		for ( int i = 0; i < inputData.length; ++i )
+			inputData[ i ] = ( short ) ( i + 1 );
+
+		N5Utils.save( ArrayImgs.shorts( inputData, dimensions ), n5, datasetPath, new int[] { 6, 7, 8 }, new Lz4Compression() );
+
+		// the block sizes are not multiples of each other
+		N5ConvertSpark.convert(
+				sparkContext,
+				() -> new N5FSReader( basePath ),
+				datasetPath,
+				n5Supplier,
+				convertedDatasetPath,
+				Optional.of( new int[] { 4, 5, 10 } ),
+				Optional.empty(),
+				Optional.empty(),
+				Optional.empty(),
+				false,
+				false,
+				false,
+				false,
+				true
+			);
+
+		final DatasetAttributes convertedAttributes = n5.getDatasetAttributes( convertedDatasetPath );
+		Assert.assertArrayEquals( dimensions, convertedAttributes.getDimensions() );
+		Assert.assertArrayEquals( new int[] { 4, 5, 10 }, convertedAttributes.getBlockSize() );
+		Assert.assertEquals( DataType.INT16, convertedAttributes.getDataType() );
+
+		Assert.assertArrayEquals(
+				inputData,
+				( short[] ) ( ( ArrayDataAccess< ? > ) getImgFromRandomAccessibleInterval( N5Utils.open( n5Supplier.get(), convertedDatasetPath ), new ShortType() ).update( null ) ).getCurrentStorageArray()
+			);
+
+		// the values are converted in the same way as without shuffling
+		final String expectedDatasetPath = "expected-data";
+		for ( final boolean shuffle : new boolean[] { false, true } )
+		{
+			N5ConvertSpark.convert(
+					sparkContext,
+					() -> new N5FSReader( basePath ),
+					datasetPath,
+					n5Supplier,
+					shuffle ? convertedDatasetPath : expectedDatasetPath,
+					Optional.of( new int[] { 4, 5, 10 } ),
+					Optional.empty(),
+					Optional.of( DataType.UINT8 ),
+					Optional.of( new ValuePair<>( 1000., 20000. ) ),
+					true,
+					false,
+					false,
+					false,
+					shuffle
+				);
+		}
+
+		Assert.assertArrayEquals(
+				( int[] ) ( ( ArrayDataAccess< ? > ) getImgFromRandomAccessibleInterval( N5Utils.open( n5Supplier.get(), expectedDatasetPath ), new IntType() ).update( null ) ).getCurrentStorageArray(),
+				( int[] ) ( ( ArrayDataAccess< ? > ) getImgFromRandomAccessibleInterval( N5Utils.open( n5Supplier.get(), convertedDatasetPath ), new IntType() ).update( null ) ).getCurrentStorageArray()
+			);
+	}
+
+	@Test
+	public void testOverwrite() throws IOException
+	{
+		// the blocks are transcoded directly
+		testOverwrite( Optional.empty(), false );
+
+		// the blocks are converted by regions
+		testOverwrite( Optional.of( new int[] { 4, 5, 10 } ), false );
+
+		// the blocks are assembled from shuffled fragments
+		testOverwrite( Optional.of( new int[] { 4, 5, 10 } ), true );
+	}
+
+	private void testOverwrite( final Optional< int[] > blockSizeOptional, final boolean shuffle ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 20, 20, 20 };
+		final int[] blockSize = new int[] { 5, 5, 5 };
+
+		final short[] inputData = new short[ ( int ) Intervals.numElements( dimensions ) ];
+		for ( int i = 0; i < inputData.length; ++i )
+			inputData[ i ] = ( short ) ( i + 1 );
+		N5Utils.save( ArrayImgs.shorts( inputData, dimensions ), n5, datasetPath, blockSize, new GzipCompression() );
+
+		for ( final boolean sparse : new boolean[] { false, true } )
+		{
+			N5ConvertSpark.convert(
+					sparkContext,
+					() -> new N5FSReader( basePath ),
+					datasetPath,
+					n5Supplier,
+					convertedDatasetPath,
+					blockSizeOptional,
+					Optional.of( new Lz4Compression() ),
+					Optional.empty(),
+					Optional.empty(),
+					true,
+					false,
+					false,
+					false,
+					shuffle
+				);
+
+			// replace the input with a dataset that contains a single block
+			Assert.assertTrue( n5.remove( datasetPath ) );
+			n5.createDataset( datasetPath, dimensions, blockSize, DataType.INT16, new GzipCompression() );
+			final DataBlock< ? > inputBlock = DataType.INT16.createDataBlock( blockSize, new long[] { 1, 2, 3 } );
+			Arrays.fill( ( short[] ) inputBlock.getData(), ( short ) 7 );
+			n5.writeBlock( datasetPath, n5.getDatasetAttributes( datasetPath ), inputBlock );
+
+			// none of the previously converted blocks should remain: they are overwritten with empty blocks, or removed in sparse mode
+			N5ConvertSpark.convert(
+					sparkContext,
+					() -> new N5FSReader( basePath ),
+					datasetPath,
+					n5Supplier,
+					convertedDatasetPath,
+					blockSizeOptional,
+					Optional.of( new Lz4Compression() ),
+					Optional.empty(),
+					Optional.empty(),
+					true,
+					sparse,
+					false,
+					false,
+					shuffle
+				);
+
+			final DatasetAttributes convertedAttributes = n5.getDatasetAttributes( convertedDatasetPath );
+			final long[] convertedGridDimensions = new CellGrid( dimensions, convertedAttributes.getBlockSize() ).getGridDimensions();
+			final long[] convertedGridPosition = new long[ 3 ];
+			for ( long i = 0; i < Intervals.numElements( convertedGridDimensions ); ++i )
+			{
+				IntervalIndexer.indexToPosition( i, convertedGridDimensions, convertedGridPosition );
+				boolean intersectsInputBlock = true;
+				for ( int d = 0; d < 3; ++d )
+				{
+					final long min = convertedGridPosition[ d ] * convertedAttributes.getBlockSize()[ d ];
+					final long max = min + convertedAttributes.getBlockSize()[ d ] - 1;
+					intersectsInputBlock &= max >= inputBlock.getGridPosition()[ d ] * blockSize[ d ] && min < ( inputBlock.getGridPosition()[ d ] + 1 ) * blockSize[ d ];
+				}
+				final DataBlock< ? > convertedBlock = n5.readBlock( convertedDatasetPath, convertedAttributes, convertedGridPosition );
+				if ( intersectsInputBlock )
+					Assert.assertTrue( convertedBlock != null && !N5SparkUtils.isEmpty( convertedBlock ) );
+				else if ( sparse )
+					Assert.assertNull( convertedBlock );
+				else
+					Assert.assertTrue( convertedBlock == null || N5SparkUtils.isEmpty( convertedBlock ) );
+			}
+
+			Assert.assertTrue( n5.remove( datasetPath ) );
+			N5Utils.save( ArrayImgs.shorts( inputData, dimensions ), n5, datasetPath, blockSize, new GzipCompression() );
+		}
+
+		Assert.assertTrue( n5.remove( datasetPath ) );
+		Assert.assertTrue( n5.remove( convertedDatasetPath ) );
+	}
+
+	@Test
+	public void testConvertInPlace() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 20, 20, 20 };
+		final int[] blockSize = new int[] { 5, 5, 5 };
+
+		final short[] inputData = new short[ ( int ) Intervals.numElements( dimensions ) ];
+		for ( int i = 0; i < inputData.length; ++i )
+			inputData[ i ] = ( short ) ( i + 1 );
+		N5Utils.save( ArrayImgs.shorts( inputData, dimensions ), n5, datasetPath, blockSize, new GzipCompression() );
+
+		// the dataset cannot be converted onto itself in any mode, and is left untouched
+		for ( final boolean changeBlockSize : new boolean[] { false, true } )
+		{
+			for ( final int mode : new int[] { 0, 1, 2 } )
+			{
+				final boolean sparse = mode == 1, resumable = mode == 2;
+				try
+				{
+					N5ConvertSpark.convert(
+							sparkContext,
+							() -> new N5FSReader( basePath ),
+							datasetPath,
+							n5Supplier,
+							datasetPath,
+							changeBlockSize ? Optional.of( new int[] { 8, 8, 8 } ) : Optional.empty(),
+							Optional.of( new Lz4Compression() ),
+							Optional.empty(),
+							Optional.empty(),
+							true,
+							sparse,
+							false,
+							resumable
+						);
+					Assert.fail( "Converting the dataset in place should not be allowed" );
+				}
+				catch ( final IllegalArgumentException e )
+				{
+					Assert.assertTrue( n5.datasetExists( datasetPath ) );
+					Assert.assertArrayEquals( blockSize, n5.getDatasetAttributes( datasetPath ).getBlockSize() );
+					Assert.assertTrue( n5.getDatasetAttributes( datasetPath ).getCompression() instanceof GzipCompression );
+				}
+			}
+		}
+
+		Assert.assertArrayEquals(
+				inputData,
+				( short[] ) ( ( ArrayDataAccess< ? > ) getImgFromRandomAccessibleInterval( N5Utils.open( n5, datasetPath ), new ShortType() ).update( null ) ).getCurrentStorageArray()
+			);
+
+		Assert.assertTrue( n5.remove( datasetPath ) );
+	}
+
 	private < T extends NativeType< T > & RealType< T > > ArrayImg< T, ? > createImage( final T value, final long... dimensions )
 	{
 		final ArrayImg< T, ? > img = new ArrayImgFactory<>( value.createVariable() ).create( dimensions );
@@ -0,0 +1,112 @@
+package org.janelia.saalfeldlab.n5.spark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.TiffUtils;
+import org.janelia.saalfeldlab.n5.spark.util.TiffUtils.TiffCompression;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ij.ImagePlus;
+
+public class N5MaxIntensityProjectionSparkTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-mip-test";
+	static private final String datasetPath = "data";
+	static private final String outputPath = System.getProperty( "user.home" ) + "/tmp/n5-mip-test-output";
+
+	static private final N5WriterSupplier n5Supplier = () -> new N5FSWriter( basePath );
+
+	private JavaSparkContext sparkContext;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+
+		sparkContext = new JavaSparkContext( new SparkConf()
+				.setMaster( "local[*]" )
+				.setAppName( "N5MaxIntensityProjectionTest" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( sparkContext != null )
+			sparkContext.close();
+
+		if ( Files.exists( Paths.get( basePath ) ) )
+			Assert.assertTrue( n5Supplier.get().remove() );
+
+		if ( Files.exists( Paths.get( outputPath ) ) )
+		{
+			try ( final Stream< Path > outputFiles = Files.walk( Paths.get( outputPath ) ) )
+			{
+				for ( final Path outputFile : ( Iterable< Path > ) outputFiles.sorted( Comparator.reverseOrder() )::iterator )
+					Files.delete( outputFile );
+			}
+		}
+	}
+
+	@Test
+	public void testSparseSameAsDenseForSignedData() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 12, 10, 8 };
+		final int[] blockSize = new int[] { 4, 5, 4 };
+		n5.createDataset( datasetPath, dimensions, blockSize, DataType.INT8, new GzipCompression() );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
+
+		// only some of the blocks exist, one of them contains only negative values
+		final Random rnd = new Random( 42 );
+		final long[][] gridPositions = new long[][] { { 0, 0, 0 }, { 2, 1, 0 }, { 1, 0, 1 } };
+		for ( int i = 0; i < gridPositions.length; ++i )
+		{
+			final byte[] data = new byte[ blockSize[ 0 ] * blockSize[ 1 ] * blockSize[ 2 ] ];
+			for ( int j = 0; j < data.length; ++j )
+				data[ j ] = ( byte ) ( i == 0 ? -1 - rnd.nextInt( 128 ) : rnd.nextInt( 256 ) - 128 );
+			n5.writeBlock( datasetPath, attributes, new ByteArrayDataBlock( blockSize, gridPositions[ i ], data ) );
+		}
+
+		final int[] cellsInSingleMIP = new int[] { 1, 1, 1 };
+		final String denseOutputPath = Paths.get( outputPath, "dense" ).toString();
+		final String sparseOutputPath = Paths.get( outputPath, "sparse" ).toString();
+		N5MaxIntensityProjectionSpark.createMaxIntensityProjection( sparkContext, n5Supplier, datasetPath, cellsInSingleMIP, denseOutputPath, TiffCompression.NONE, false );
+		N5MaxIntensityProjectionSpark.createMaxIntensityProjection( sparkContext, n5Supplier, datasetPath, cellsInSingleMIP, sparseOutputPath, TiffCompression.NONE, true );
+
+		final String[] axes = new String[] { "x", "y", "z" };
+		for ( int d = 0; d < 3; ++d )
+		{
+			final long numMips = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+			for ( long mipStep = 0; mipStep < numMips; ++mipStep )
+			{
+				final String mipFilename = ( mipStep * blockSize[ d ] ) + ".tif";
+				final ImagePlus denseMip = TiffUtils.openTiff( Paths.get( denseOutputPath, axes[ d ], mipFilename ).toString() );
+				final ImagePlus sparseMip = TiffUtils.openTiff( Paths.get( sparseOutputPath, axes[ d ], mipFilename ).toString() );
+				Assert.assertNotNull( denseMip );
+				Assert.assertNotNull( sparseMip );
+				Assert.assertArrayEquals( ( byte[] ) denseMip.getProcessor().getPixels(), ( byte[] ) sparseMip.getProcessor().getPixels() );
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.export.Downsample;
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class DownsamplingKernelTest
+{
+	private static final int[][] FACTORS_3D = new int[][] { { 2, 2, 2 }, { 2, 2, 1 }, { 3, 1, 2 }, { 1, 1, 1 }, { 4, 3, 5 } };
+	private static final int[][] FACTORS_2D = new int[][] { { 2, 2 }, { 4, 2 }, { 3, 3 } };
+
+	private final Random rnd = new Random( 42 );
+
+	@Test
+	public void testSameAsDownsample()
+	{
+		testAllFactors( new ByteType(), DataType.INT8 );
+		testAllFactors( new UnsignedByteType(), DataType.UINT8 );
+		testAllFactors( new ShortType(), DataType.INT16 );
+		testAllFactors( new UnsignedShortType(), DataType.UINT16 );
+		testAllFactors( new IntType(), DataType.INT32 );
+		testAllFactors( new UnsignedIntType(), DataType.UINT32 );
+		testAllFactors( new LongType(), DataType.INT64 );
+		testAllFactors( new UnsignedLongType(), DataType.UINT64 );
+		testAllFactors( new FloatType(), DataType.FLOAT32 );
+		testAllFactors( new DoubleType(), DataType.FLOAT64 );
+	}
+
+	private < T extends NativeType< T > & RealType< T > > void testAllFactors( final T type, final DataType dataType )
+	{
+		for ( final int[] factors : FACTORS_3D )
+			testKernel( type, dataType, new long[] { 9, 7, 11 }, factors );
+		for ( final int[] factors : FACTORS_2D )
+			testKernel( type, dataType, new long[] { 13, 6 }, factors );
+	}
+
+	private < T extends NativeType< T > & RealType< T > > void testKernel( final T type, final DataType dataType, final long[] sourceDimensions, final int[] factors )
+	{
+		final double minValue = Math.max( type.getMinValue(), -1e6 ), maxValue = Math.min( type.getMaxValue(), 1e6 );
+		final ArrayImg< T, ? > source = new ArrayImgFactory<>( type ).create( sourceDimensions );
+		for ( final T t : source )
+			t.setReal( minValue + rnd.nextDouble() * ( maxValue - minValue ) );
+
+		final long[] targetDimensions = new long[ sourceDimensions.length ];
+		for ( int d = 0; d < targetDimensions.length; ++d )
+			targetDimensions[ d ] = sourceDimensions[ d ] / factors[ d ];
+
+		final ArrayImg< T, ? > expected = new ArrayImgFactory<>( type ).create( targetDimensions );
+		Downsample.downsample( source, expected, factors );
+
+		final ArrayImg< T, ? > actual = new ArrayImgFactory<>( type ).create( targetDimensions );
+		final int[] sourceSize = new int[ sourceDimensions.length ], targetSize = new int[ targetDimensions.length ];
+		for ( int d = 0; d < sourceSize.length; ++d )
+		{
+			sourceSize[ d ] = ( int ) sourceDimensions[ d ];
+			targetSize[ d ] = ( int ) targetDimensions[ d ];
+		}
+		DownsamplingKernel.forDataType( dataType ).downsample(
+				N5SparkUtils.getStorageArray( source ),
+				sourceSize,
+				N5SparkUtils.getStorageArray( actual ),
+				targetSize,
+				factors
+			);
+
+		final Cursor< T > expectedCursor = expected.cursor();
+		final Cursor< T > actualCursor = actual.cursor();
+		while ( expectedCursor.hasNext() )
+			Assert.assertTrue( dataType + ": values differ", expectedCursor.next().valueEquals( actualCursor.next() ) );
+	}
+}
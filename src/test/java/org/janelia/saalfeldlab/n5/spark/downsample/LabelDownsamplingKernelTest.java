@@ -0,0 +1,118 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+public class LabelDownsamplingKernelTest
+{
+	private static final int[][] FACTORS = new int[][] { { 2, 2, 2 }, { 2, 2, 1 }, { 1, 1, 1 }, { 3, 3, 3 }, { 4, 2, 3 } };
+
+	private final Random rnd = new Random( 42 );
+
+	@Test
+	public void testSameAsHistogram()
+	{
+		testAllFactors( new ByteType(), DataType.INT8 );
+		testAllFactors( new UnsignedByteType(), DataType.UINT8 );
+		testAllFactors( new ShortType(), DataType.INT16 );
+		testAllFactors( new UnsignedShortType(), DataType.UINT16 );
+		testAllFactors( new IntType(), DataType.INT32 );
+		testAllFactors( new UnsignedIntType(), DataType.UINT32 );
+		testAllFactors( new LongType(), DataType.INT64 );
+		testAllFactors( new UnsignedLongType(), DataType.UINT64 );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testFloatNotSupported()
+	{
+		new LabelDownsamplingKernel( DataType.FLOAT32 );
+	}
+
+	private < T extends NativeType< T > & IntegerType< T > > void testAllFactors( final T type, final DataType dataType )
+	{
+		// the same kernel is reused for different window sizes
+		final LabelDownsamplingKernel kernel = new LabelDownsamplingKernel( dataType );
+		for ( final int[] factors : FACTORS )
+			testKernel( kernel, type, new long[] { 9, 7, 11 }, factors );
+	}
+
+	private < T extends NativeType< T > & IntegerType< T > > void testKernel( final LabelDownsamplingKernel kernel, final T type, final long[] sourceDimensions, final int[] factors )
+	{
+		// a few distinct labels to get frequent ties, including negative values and values with the highest bit set for unsigned types
+		final long[] labels = new long[] { 0, 1, 5, 127, -1, -128, Long.MIN_VALUE, Long.MAX_VALUE };
+		final ArrayImg< T, ? > source = new ArrayImgFactory<>( type ).create( sourceDimensions );
+		for ( final T t : source )
+			t.setInteger( labels[ rnd.nextInt( labels.length ) ] );
+
+		final long[] targetDimensions = new long[ sourceDimensions.length ];
+		for ( int d = 0; d < targetDimensions.length; ++d )
+			targetDimensions[ d ] = sourceDimensions[ d ] / factors[ d ];
+
+		final ArrayImg< T, ? > actual = new ArrayImgFactory<>( type ).create( targetDimensions );
+		final int[] sourceSize = new int[ sourceDimensions.length ], targetSize = new int[ targetDimensions.length ];
+		for ( int d = 0; d < sourceSize.length; ++d )
+		{
+			sourceSize[ d ] = ( int ) sourceDimensions[ d ];
+			targetSize[ d ] = ( int ) targetDimensions[ d ];
+		}
+		kernel.downsample(
+				N5SparkUtils.getStorageArray( source ),
+				sourceSize,
+				N5SparkUtils.getStorageArray( actual ),
+				targetSize,
+				factors
+			);
+
+		final Cursor< T > actualCursor = actual.localizingCursor();
+		final Map< Long, Integer > labelCount = new HashMap<>();
+		final long[] windowMin = new long[ factors.length ], windowMax = new long[ factors.length ];
+		while ( actualCursor.hasNext() )
+		{
+			actualCursor.fwd();
+			for ( int d = 0; d < factors.length; ++d )
+			{
+				windowMin[ d ] = actualCursor.getLongPosition( d ) * factors[ d ];
+				windowMax[ d ] = windowMin[ d ] + factors[ d ] - 1;
+			}
+
+			labelCount.clear();
+			for ( final T t : Views.interval( source, windowMin, windowMax ) )
+				labelCount.merge( t.getIntegerLong(), 1, Integer::sum );
+
+			int maxCount = Integer.MIN_VALUE;
+			long expected = Long.MIN_VALUE;
+			for ( final Entry< Long, Integer > entry : labelCount.entrySet() )
+			{
+				if ( maxCount < entry.getValue() || ( maxCount == entry.getValue() && expected > entry.getKey() ) )
+				{
+					maxCount = entry.getValue();
+					expected = entry.getKey();
+				}
+			}
+
+			Assert.assertEquals( expected, actualCursor.get().getIntegerLong() );
+		}
+	}
+}
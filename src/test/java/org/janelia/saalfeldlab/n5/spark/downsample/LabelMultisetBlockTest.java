@@ -0,0 +1,47 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LabelMultisetBlockTest
+{
+	@Test
+	public void testCountsAboveIntRange()
+	{
+		// two voxels of a coarse scale level, each representing 2^32 full-resolution voxels
+		final long windowSize = 1L << 32;
+		final long count = Integer.MAX_VALUE + 2L;
+
+		final LabelMultisetBlock.Builder builder = new LabelMultisetBlock.Builder();
+		builder.add( 0, 5, count );
+		builder.add( 0, 7, windowSize - count );
+		builder.add( 1, 5, windowSize - count );
+		builder.add( 1, 7, count );
+		final LabelMultisetBlock block = builder.build( 2 );
+
+		Assert.assertEquals( 2, block.getNumEntries() / block.getNumVoxels() );
+		Assert.assertEquals( count, block.getCount( block.getEntriesStart( 0 ) ) );
+		Assert.assertEquals( 5, block.getMostFrequentLabel( 0, windowSize ) );
+		Assert.assertEquals( 7, block.getMostFrequentLabel( 1, windowSize ) );
+
+		// the counts are preserved by the serialization
+		final LabelMultisetBlock deserializedBlock = LabelMultisetBlock.deserialize( block.serialize() );
+		Assert.assertEquals( block.getNumEntries(), deserializedBlock.getNumEntries() );
+		for ( int e = 0; e < block.getNumEntries(); ++e )
+		{
+			Assert.assertEquals( block.getLabel( e ), deserializedBlock.getLabel( e ) );
+			Assert.assertEquals( block.getCount( e ), deserializedBlock.getCount( e ) );
+		}
+
+		// merging both voxels adds up the counts beyond the int range
+		final LabelMultisetBlock downsampledBlock = deserializedBlock.downsample( new int[] { 2 }, new int[] { 1 }, new int[] { 2 } );
+		Assert.assertEquals( 1, downsampledBlock.getNumVoxels() );
+		Assert.assertEquals( 2, downsampledBlock.getNumEntries() );
+		for ( int e = 0; e < downsampledBlock.getNumEntries(); ++e )
+			Assert.assertEquals( windowSize, downsampledBlock.getCount( e ) );
+
+		// the labels are tied, so the smaller one is selected, and the background wins if it is more frequent
+		Assert.assertEquals( 5, downsampledBlock.getMostFrequentLabel( 0, 2 * windowSize ) );
+		Assert.assertEquals( 0, downsampledBlock.getMostFrequentLabel( 0, 5 * windowSize ) );
+	}
+}
@@ -4,16 +4,23 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.N5CompletionTracker;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparseBlockScanner;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -22,7 +29,9 @@ import org.junit.Test;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
@@ -179,6 +188,192 @@ public class N5DownsamplerSparkTest
 		cleanup( n5 );
 	}
 
+	@Test
+	public void testSparseDownsampling() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 8, 6, 5 };
+		final int[] blockSize = new int[] { 2, 3, 2 };
+		n5.createDataset( datasetPath, dimensions, blockSize, DataType.INT32, new GzipCompression() );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
+
+		// write only a few blocks, the rest of the dataset is empty
+		final long[][] gridPositions = new long[][] { { 0, 0, 0 }, { 3, 1, 0 }, { 1, 0, 2 }, { 2, 1, 1 } };
+		for ( final long[] gridPosition : gridPositions )
+		{
+			final int[] size = new int[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				size[ d ] = ( int ) Math.min( blockSize[ d ], dimensions[ d ] - gridPosition[ d ] * blockSize[ d ] );
+			final DataBlock< ? > block = DataType.INT32.createDataBlock( size, gridPosition );
+			final int[] data = ( int[] ) block.getData();
+			for ( int i = 0; i < data.length; ++i )
+				data[ i ] = ( int ) ( gridPosition[ 0 ] * 100 + gridPosition[ 2 ] * 10 + i + 1 );
+			n5.writeBlock( datasetPath, attributes, block );
+		}
+
+		// the scan finds exactly the written blocks
+		final List< long[] > existingGridPositions = N5SparseBlockScanner.scanExistingBlocks( sparkContext, n5Supplier, datasetPath ).collect();
+		Assert.assertEquals( gridPositions.length, existingGridPositions.size() );
+		for ( final long[] gridPosition : gridPositions )
+			Assert.assertTrue( existingGridPositions.stream().anyMatch( existingGridPosition -> Arrays.equals( gridPosition, existingGridPosition ) ) );
+
+		final int[] downsamplingFactors = new int[] { 2, 2, 2 };
+		final int[] downsampledBlockSize = new int[] { 1, 2, 1 };
+		final String sparseDownsampledDatasetPath = downsampledDatasetPath + "-sparse";
+		N5DownsamplerSpark.downsample( sparkContext, n5Supplier, datasetPath, downsampledDatasetPath, downsamplingFactors, downsampledBlockSize, false );
+		N5DownsamplerSpark.downsample( sparkContext, n5Supplier, datasetPath, sparseDownsampledDatasetPath, downsamplingFactors, downsampledBlockSize, true );
+
+		final DatasetAttributes downsampledAttributes = n5.getDatasetAttributes( downsampledDatasetPath );
+		final DatasetAttributes sparseDownsampledAttributes = n5.getDatasetAttributes( sparseDownsampledDatasetPath );
+		Assert.assertArrayEquals( downsampledAttributes.getDimensions(), sparseDownsampledAttributes.getDimensions() );
+		Assert.assertArrayEquals(
+				getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasetPath ) ),
+				getArrayFromRandomAccessibleInterval( N5Utils.open( n5, sparseDownsampledDatasetPath ) )
+			);
+
+		final long[] downsampledGridDimensions = new CellGrid( downsampledAttributes.getDimensions(), downsampledBlockSize ).getGridDimensions();
+		final long[] downsampledGridPosition = new long[ 3 ];
+		int numSparseDownsampledBlocks = 0;
+		for ( long i = 0; i < Intervals.numElements( downsampledGridDimensions ); ++i )
+		{
+			IntervalIndexer.indexToPosition( i, downsampledGridDimensions, downsampledGridPosition );
+			final DataBlock< ? > sparseDownsampledBlock = n5.readBlock( sparseDownsampledDatasetPath, sparseDownsampledAttributes, downsampledGridPosition );
+			Assert.assertEquals(
+					n5.readBlock( downsampledDatasetPath, downsampledAttributes, downsampledGridPosition ) != null,
+					sparseDownsampledBlock != null
+				);
+			if ( sparseDownsampledBlock != null )
+			{
+				Assert.assertFalse( N5SparkUtils.isEmpty( sparseDownsampledBlock ) );
+				++numSparseDownsampledBlocks;
+			}
+		}
+		Assert.assertTrue( numSparseDownsampledBlocks > 0 );
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testZOrderDownsampling() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 13, 10, 9 };
+		final int[] blockSize = new int[] { 3, 4, 2 };
+		createDataset( n5, dimensions, blockSize );
+
+		// input blocks are not aligned with the downsampled blocks, so neighboring output blocks share input blocks
+		final int[] downsamplingFactors = new int[] { 2, 2, 3 };
+		final int[] downsampledBlockSize = new int[] { 2, 3, 1 };
+		final String zOrderDownsampledDatasetPath = downsampledDatasetPath + "-zorder";
+		N5DownsamplerSpark.downsample( sparkContext, n5Supplier, datasetPath, downsampledDatasetPath, downsamplingFactors, downsampledBlockSize, false, false );
+		N5DownsamplerSpark.downsample( sparkContext, n5Supplier, datasetPath, zOrderDownsampledDatasetPath, downsamplingFactors, downsampledBlockSize, false, true );
+
+		Assert.assertArrayEquals(
+				n5.getDatasetAttributes( downsampledDatasetPath ).getDimensions(),
+				n5.getDatasetAttributes( zOrderDownsampledDatasetPath ).getDimensions()
+			);
+		Assert.assertArrayEquals(
+				getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasetPath ) ),
+				getArrayFromRandomAccessibleInterval( N5Utils.open( n5, zOrderDownsampledDatasetPath ) )
+			);
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testResumableDownsampling() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 8, 8, 4 };
+		final int[] blockSize = new int[] { 2, 2, 2 };
+		createDataset( n5, dimensions, blockSize );
+
+		final int[] downsamplingFactors = new int[] { 2, 2, 2 };
+		final String resumedDatasetPath = downsampledDatasetPath + "-resumed";
+		N5DownsamplerSpark.downsample( sparkContext, n5Supplier, datasetPath, downsampledDatasetPath, downsamplingFactors );
+
+		// simulate a failed job: one partition has been completed, another one has been written only partially
+		// (there are 4 output blocks, so each of them is processed in a separate partition)
+		final long[] downsampledDimensions = n5.getDatasetAttributes( downsampledDatasetPath ).getDimensions();
+		final long[] gridDimensions = new CellGrid( downsampledDimensions, blockSize ).getGridDimensions();
+		final N5CompletionTracker completionTracker = N5CompletionTracker.openOrCreate( n5, resumedDatasetPath, gridDimensions );
+		n5.createDataset( resumedDatasetPath, downsampledDimensions, blockSize, DataType.INT32, new GzipCompression() );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( resumedDatasetPath );
+
+		final int[] completedBlockData = new int[ ( int ) Intervals.numElements( blockSize ) ];
+		Arrays.fill( completedBlockData, 7 );
+		n5.writeBlock( resumedDatasetPath, attributes, new IntArrayDataBlock( blockSize, new long[] { 0, 0, 0 }, completedBlockData ) );
+		completionTracker.markCompleted( n5, new long[] { 0 } );
+		Assert.assertTrue( completionTracker.isCompleted( n5, new long[] { 0 } ) );
+		Assert.assertFalse( completionTracker.isCompleted( n5, new long[] { 0, 1 } ) );
+		n5.writeBlock( resumedDatasetPath, attributes, new IntArrayDataBlock( blockSize, new long[] { 1, 0, 0 }, new int[ completedBlockData.length ] ) );
+
+		try
+		{
+			N5DownsamplerSpark.downsample( sparkContext, n5Supplier, datasetPath, resumedDatasetPath, downsamplingFactors, null, false, false, false );
+			Assert.fail( "Existing output dataset should not be reused when the job is not resumable" );
+		}
+		catch ( final IllegalArgumentException e ) {}
+
+		N5DownsamplerSpark.downsample( sparkContext, n5Supplier, datasetPath, resumedDatasetPath, downsamplingFactors, null, false, false, true );
+		Assert.assertFalse( N5CompletionTracker.exists( n5, resumedDatasetPath ) );
+
+		// the block of the completed partition is not processed again, all other blocks are recomputed
+		final long[] gridPosition = new long[ gridDimensions.length ];
+		for ( long blockIndex = 0; blockIndex < Intervals.numElements( gridDimensions ); ++blockIndex )
+		{
+			IntervalIndexer.indexToPosition( blockIndex, gridDimensions, gridPosition );
+			final int[] resumedBlockData = ( int[] ) n5.readBlock( resumedDatasetPath, attributes, gridPosition ).getData();
+			if ( blockIndex == 0 )
+				Assert.assertArrayEquals( completedBlockData, resumedBlockData );
+			else
+				Assert.assertArrayEquals( ( int[] ) n5.readBlock( downsampledDatasetPath, attributes, gridPosition ).getData(), resumedBlockData );
+		}
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testResumingWithDifferentPartitioning() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 8, 8, 4 };
+		final int[] blockSize = new int[] { 2, 2, 2 };
+		createDataset( n5, dimensions, blockSize );
+
+		final int[] downsamplingFactors = new int[] { 2, 2, 2 };
+		final String resumedDatasetPath = downsampledDatasetPath + "-resumed";
+		N5DownsamplerSpark.downsample( sparkContext, n5Supplier, datasetPath, downsampledDatasetPath, downsamplingFactors );
+
+		// simulate a failed job that was partitioned differently: the first two output blocks were processed in a single partition,
+		// but only the first block of this partition has been written when the job failed, so the partition was recorded with the wrong blocks
+		final long[] downsampledDimensions = n5.getDatasetAttributes( downsampledDatasetPath ).getDimensions();
+		final long[] gridDimensions = new CellGrid( downsampledDimensions, blockSize ).getGridDimensions();
+		final N5CompletionTracker completionTracker = N5CompletionTracker.openOrCreate( n5, resumedDatasetPath, gridDimensions );
+		n5.createDataset( resumedDatasetPath, downsampledDimensions, blockSize, DataType.INT32, new GzipCompression() );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( resumedDatasetPath );
+
+		final int[] staleBlockData = new int[ ( int ) Intervals.numElements( blockSize ) ];
+		Arrays.fill( staleBlockData, 7 );
+		n5.writeBlock( resumedDatasetPath, attributes, new IntArrayDataBlock( blockSize, new long[] { 0, 0, 0 }, staleBlockData ) );
+		n5.writeBlock( resumedDatasetPath, attributes, new IntArrayDataBlock( blockSize, new long[] { 1, 0, 0 }, staleBlockData ) );
+		completionTracker.markCompleted( n5, new long[] { 1, 0 } );
+
+		// the resumed job processes each output block in a separate partition, so none of them matches the record of the previous job
+		N5DownsamplerSpark.downsample( sparkContext, n5Supplier, datasetPath, resumedDatasetPath, downsamplingFactors, null, false, false, true );
+		Assert.assertFalse( N5CompletionTracker.exists( n5, resumedDatasetPath ) );
+
+		final long[] gridPosition = new long[ gridDimensions.length ];
+		for ( long blockIndex = 0; blockIndex < Intervals.numElements( gridDimensions ); ++blockIndex )
+		{
+			IntervalIndexer.indexToPosition( blockIndex, gridDimensions, gridPosition );
+			Assert.assertArrayEquals(
+					( int[] ) n5.readBlock( downsampledDatasetPath, attributes, gridPosition ).getData(),
+					( int[] ) n5.readBlock( resumedDatasetPath, attributes, gridPosition ).getData() );
+		}
+
+		cleanup( n5 );
+	}
 
 	private void createDataset( final N5Writer n5, final long[] dimensions, final int[] blockSize ) throws IOException
 	{
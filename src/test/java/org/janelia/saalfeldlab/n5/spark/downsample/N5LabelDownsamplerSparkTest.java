@@ -3,6 +3,8 @@ package org.janelia.saalfeldlab.n5.spark.downsample;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Random;
+import java.util.TreeMap;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
@@ -20,6 +22,7 @@ import org.junit.Test;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.numeric.integer.UnsignedLongType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
@@ -103,6 +106,70 @@ public class N5LabelDownsamplerSparkTest
 		cleanup( n5 );
 	}
 
+	@Test
+	public void testLabelMultisetDownsampling() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+
+		final long[] dimensions = new long[] { 8, 6, 4 };
+		final long[] labels = new long[] { 0, 1, 2, 3, 1000 };
+		final long[] data = new long[ ( int ) Intervals.numElements( dimensions ) ];
+		final Random rnd = new Random( 42 );
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = labels[ rnd.nextInt( labels.length ) ];
+		N5Utils.save( ArrayImgs.unsignedLongs( data, dimensions ), n5, datasetPath, new int[] { 3, 2, 2 }, new GzipCompression() );
+
+		// the second level is computed from the multisets of the first level
+		final String multisetDatasetPath = downsampledDatasetPath + "-multisets";
+		N5LabelDownsamplerSpark.downsampleLabelMultisets( sparkContext, n5Supplier, datasetPath, downsampledDatasetPath, new int[] { 2, 2, 2 }, new int[] { 2, 2, 1 } );
+		N5LabelDownsamplerSpark.downsampleLabelMultisets( sparkContext, n5Supplier, downsampledDatasetPath, multisetDatasetPath, new int[] { 2, 1, 2 }, new int[] { 1, 2, 1 } );
+		Assert.assertTrue( LabelMultisetBlock.isLabelMultisetDataset( n5, multisetDatasetPath ) );
+
+		final DatasetAttributes multisetAttributes = n5.getDatasetAttributes( multisetDatasetPath );
+		Assert.assertArrayEquals( new long[] { 2, 3, 1 }, multisetAttributes.getDimensions() );
+
+		// the counts refer to the full-resolution labels
+		final int[] absoluteFactors = new int[] { 4, 2, 4 };
+		final CellGrid cellGrid = new CellGrid( multisetAttributes.getDimensions(), multisetAttributes.getBlockSize() );
+		final long[] gridPosition = new long[ 3 ], cellMin = new long[ 3 ];
+		final int[] cellDimensions = new int[ 3 ];
+		for ( long blockIndex = 0; blockIndex < Intervals.numElements( cellGrid.getGridDimensions() ); ++blockIndex )
+		{
+			cellGrid.getCellGridPositionFlat( blockIndex, gridPosition );
+			cellGrid.getCellDimensions( gridPosition, cellMin, cellDimensions );
+			final LabelMultisetBlock block = LabelMultisetBlock.read( n5, multisetDatasetPath, multisetAttributes, gridPosition );
+			Assert.assertNotNull( block );
+			Assert.assertEquals( Intervals.numElements( cellDimensions ), block.getNumVoxels() );
+
+			final int[] position = new int[ 3 ];
+			for ( int v = 0; v < block.getNumVoxels(); ++v )
+			{
+				final TreeMap< Long, Long > expected = new TreeMap<>();
+				for ( int z = 0; z < absoluteFactors[ 2 ]; ++z )
+					for ( int y = 0; y < absoluteFactors[ 1 ]; ++y )
+						for ( int x = 0; x < absoluteFactors[ 0 ]; ++x )
+						{
+							final long sx = ( cellMin[ 0 ] + position[ 0 ] ) * absoluteFactors[ 0 ] + x;
+							final long sy = ( cellMin[ 1 ] + position[ 1 ] ) * absoluteFactors[ 1 ] + y;
+							final long sz = ( cellMin[ 2 ] + position[ 2 ] ) * absoluteFactors[ 2 ] + z;
+							final long label = data[ ( int ) ( ( sz * dimensions[ 1 ] + sy ) * dimensions[ 0 ] + sx ) ];
+							if ( label != 0 )
+								expected.merge( label, 1L, Long::sum );
+						}
+
+				final TreeMap< Long, Long > actual = new TreeMap<>();
+				for ( int e = block.getEntriesStart( v ); e < block.getEntriesEnd( v ); ++e )
+					actual.put( block.getLabel( e ), block.getCount( e ) );
+				Assert.assertEquals( expected, actual );
+
+				for ( int d = 0; d < 3 && ++position[ d ] == cellDimensions[ d ]; ++d )
+					position[ d ] = 0;
+			}
+		}
+
+		cleanup( n5 );
+	}
+
 	private long[] getArrayFromRandomAccessibleInterval( final RandomAccessibleInterval< UnsignedLongType > rai )
 	{
 		final long[] arr = new long[ ( int ) Intervals.numElements( rai ) ];
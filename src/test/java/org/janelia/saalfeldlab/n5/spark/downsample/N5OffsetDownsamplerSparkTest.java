@@ -21,6 +21,7 @@ import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
@@ -167,6 +168,51 @@ public class N5OffsetDownsamplerSparkTest
 		}
 	}
 
+	@Test
+	public void testDownsamplingWithOffset3D() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 11, 9, 7 };
+		createDataset( n5, dimensions, new int[] { 4, 3, 2 } );
+
+		// the output blocks are smaller than the input region, so there are both interior and border blocks
+		final int[] factors = new int[] { 2, 3, 2 };
+		final long[] offset = new long[] { 1, 2, -1 };
+		N5OffsetDownsamplerSpark.downsampleWithOffset(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				downsampledDatasetPath,
+				factors,
+				offset,
+				new int[] { 2, 2, 2 }
+			);
+
+		final long[] downsampledDimensions = new long[] { 6, 3, 3 };
+		Assert.assertArrayEquals( downsampledDimensions, n5.getDatasetAttributes( downsampledDatasetPath ).getDimensions() );
+
+		final int[] expected = new int[ ( int ) Intervals.numElements( downsampledDimensions ) ];
+		final long[] position = new long[ 3 ];
+		for ( int i = 0; i < expected.length; ++i )
+		{
+			IntervalIndexer.indexToPosition( i, downsampledDimensions, position );
+			double sum = 0;
+			int count = 0;
+			for ( long z = position[ 2 ] * factors[ 2 ] - offset[ 2 ]; z < ( position[ 2 ] + 1 ) * factors[ 2 ] - offset[ 2 ]; ++z )
+				for ( long y = position[ 1 ] * factors[ 1 ] - offset[ 1 ]; y < ( position[ 1 ] + 1 ) * factors[ 1 ] - offset[ 1 ]; ++y )
+					for ( long x = position[ 0 ] * factors[ 0 ] - offset[ 0 ]; x < ( position[ 0 ] + 1 ) * factors[ 0 ] - offset[ 0 ]; ++x )
+						if ( x >= 0 && x < dimensions[ 0 ] && y >= 0 && y < dimensions[ 1 ] && z >= 0 && z < dimensions[ 2 ] )
+						{
+							sum += IntervalIndexer.positionToIndex( new long[] { x, y, z }, dimensions ) + 1;
+							++count;
+						}
+			expected[ i ] = ( int ) Util.round( sum / count );
+		}
+		Assert.assertArrayEquals( expected, getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasetPath ) ) );
+
+		cleanup( n5 );
+	}
+
 
 	private void createDataset( final N5Writer n5, final long[] dimensions, final int[] blockSize ) throws IOException
 	{
@@ -0,0 +1,145 @@
+package org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.downsample.N5DownsamplerSpark;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class N5LabelScalePyramidSparkTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-label-scale-pyramid-test";
+	static private final String datasetPath = "data/s0";
+
+	static private final N5WriterSupplier n5Supplier = () -> new N5FSWriter( basePath );
+
+	private JavaSparkContext sparkContext;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+
+		sparkContext = new JavaSparkContext( new SparkConf()
+				.setMaster( "local[*]" )
+				.setAppName( "N5LabelScalePyramidTest" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( sparkContext != null )
+			sparkContext.close();
+
+		if ( Files.exists( Paths.get( basePath ) ) )
+			cleanup( n5Supplier.get() );
+	}
+
+	private void cleanup( final N5Writer n5 ) throws IOException
+	{
+		Assert.assertTrue( n5.remove() );
+	}
+
+	@Test
+	public void testLabelScalePyramid() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+
+		// a few labels including the background and a negative value to get frequent ties
+		final long[] dimensions = new long[] { 19, 10, 9 };
+		final long[] labels = new long[] { 0, 1, 2, -3, 1000 };
+		final long[] data = new long[ ( int ) Intervals.numElements( dimensions ) ];
+		final Random rnd = new Random( 42 );
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = labels[ rnd.nextInt( labels.length ) ];
+		N5Utils.save( ArrayImgs.longs( data, dimensions ), n5, datasetPath, new int[] { 3, 2, 2 }, new GzipCompression() );
+
+		// s1 and s2 are computed together, s3 is computed in a separate pass from the label multisets of s2
+		final int[] stepFactors = new int[] { 2, 2, 2 };
+		final List< String > downsampledDatasets = N5LabelScalePyramidSpark.downsampleLabelScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"data",
+				stepFactors,
+				2
+			);
+		Assert.assertEquals( Arrays.asList( "data/s1", "data/s2", "data/s3" ), downsampledDatasets );
+		Assert.assertFalse( n5.exists( "data/intermediate-downsampling" ) );
+
+		for ( int scale = 1; scale <= downsampledDatasets.size(); ++scale )
+		{
+			final String downsampledDatasetPath = downsampledDatasets.get( scale - 1 );
+			final int[] absoluteFactors = new int[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				absoluteFactors[ d ] = ( int ) Math.round( Math.pow( stepFactors[ d ], scale ) );
+
+			Assert.assertArrayEquals( absoluteFactors, n5.getAttribute( downsampledDatasetPath, N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class ) );
+			Assert.assertArrayEquals( new int[] { 3, 2, 2 }, n5.getDatasetAttributes( downsampledDatasetPath ).getBlockSize() );
+
+			final RandomAccessibleInterval< LongType > downsampled = N5Utils.open( n5, downsampledDatasetPath );
+			for ( int d = 0; d < 3; ++d )
+				Assert.assertEquals( dimensions[ d ] / absoluteFactors[ d ], downsampled.dimension( d ) );
+
+			// the most frequent label is computed with respect to the full-scale data
+			final Map< Long, Integer > labelCount = new HashMap<>();
+			final Cursor< LongType > cursor = Views.flatIterable( downsampled ).localizingCursor();
+			while ( cursor.hasNext() )
+			{
+				cursor.fwd();
+				labelCount.clear();
+				for ( int z = 0; z < absoluteFactors[ 2 ]; ++z )
+					for ( int y = 0; y < absoluteFactors[ 1 ]; ++y )
+						for ( int x = 0; x < absoluteFactors[ 0 ]; ++x )
+						{
+							final long sx = cursor.getLongPosition( 0 ) * absoluteFactors[ 0 ] + x;
+							final long sy = cursor.getLongPosition( 1 ) * absoluteFactors[ 1 ] + y;
+							final long sz = cursor.getLongPosition( 2 ) * absoluteFactors[ 2 ] + z;
+							labelCount.merge( data[ ( int ) ( ( sz * dimensions[ 1 ] + sy ) * dimensions[ 0 ] + sx ) ], 1, Integer::sum );
+						}
+
+				int maxCount = Integer.MIN_VALUE;
+				long expected = Long.MIN_VALUE;
+				for ( final Entry< Long, Integer > entry : labelCount.entrySet() )
+				{
+					if ( maxCount < entry.getValue() || ( maxCount == entry.getValue() && expected > entry.getKey() ) )
+					{
+						maxCount = entry.getValue();
+						expected = entry.getKey();
+					}
+				}
+
+				Assert.assertEquals( expected, cursor.get().get() );
+			}
+		}
+
+		cleanup( n5 );
+	}
+}
@@ -8,6 +8,7 @@ import java.util.List;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
@@ -218,6 +219,64 @@ public class N5NonIsotropicScalePyramidSparkTest
 		cleanup( n5 );
 	}
 
+	@Test
+	public void testNonIsotropicDownsampling_NotPowerOfTwo() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		createDataset( n5, new long[] { 40, 36, 11 }, new int[] { 4, 4, 2 } );
+
+		final double[] pixelResolution = new double[] { 0.1, 0.1, 0.3 };
+		final List< String > downsampledDatasets = N5NonIsotropicScalePyramidSpark.downsampleNonIsotropicScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"pyramid",
+				pixelResolution,
+				false
+			);
+		Assert.assertEquals( 5, downsampledDatasets.size() );
+		Assert.assertFalse( n5.exists( "pyramid/intermediate-downsampling-XY" ) );
+
+		// reference: the intermediate scale levels are downsampled in X/Y only, and each output scale level is downsampled from them in Z
+		final NonIsotropicScalePyramidMetadata3D scalePyramidMetadata = new NonIsotropicScalePyramidMetadata3D( new long[] { 40, 36, 11 }, new int[] { 4, 4, 2 }, pixelResolution, false );
+		Assert.assertEquals( 6, scalePyramidMetadata.getNumScales() );
+		for ( int scale = 1; scale < scalePyramidMetadata.getNumScales(); ++scale )
+		{
+			final NonIsotropicMetadata3D scaleMetadata = scalePyramidMetadata.getScaleMetadata( scale );
+			final String intermediateReferencePath = "reference/intermediate/s" + scale;
+			final String referencePath = "reference/s" + scale;
+			N5DownsamplerSpark.downsample(
+					sparkContext,
+					n5Supplier,
+					scale == 1 ? datasetPath : "reference/intermediate/s" + ( scale - 1 ),
+					intermediateReferencePath,
+					new int[] { 2, 2, 1 }
+				);
+			N5DownsamplerSpark.downsample(
+					sparkContext,
+					n5Supplier,
+					intermediateReferencePath,
+					referencePath,
+					new int[] { 1, 1, scaleMetadata.downsamplingFactors[ 2 ] }
+				);
+
+			final String downsampledDatasetPath = downsampledDatasets.get( scale - 1 );
+			Assert.assertEquals( Paths.get( "pyramid", "s" + scale ).toString(), downsampledDatasetPath );
+			Assert.assertArrayEquals( scaleMetadata.downsamplingFactors, n5.getAttribute( downsampledDatasetPath, N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class ) );
+
+			final DatasetAttributes downsampledAttributes = n5.getDatasetAttributes( downsampledDatasetPath );
+			Assert.assertArrayEquals( scaleMetadata.dimensions, downsampledAttributes.getDimensions() );
+			Assert.assertArrayEquals( scaleMetadata.cellSize, downsampledAttributes.getBlockSize() );
+
+			Assert.assertArrayEquals(
+					getArrayFromRandomAccessibleInterval( N5Utils.open( n5, referencePath ) ),
+					getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasetPath ) )
+				);
+		}
+
+		cleanup( n5 );
+	}
+
 	@Test
 	public void testScalePyramidMetadata_Isotropic()
 	{
@@ -326,6 +385,47 @@ public class N5NonIsotropicScalePyramidSparkTest
 		Assert.assertArrayEquals( new int[] { 64, 64, 32 }, scaleMetadata.downsamplingFactors );
 	}
 
+	@Test
+	public void testScalePyramidMetadata_Planned()
+	{
+		final long[] dimensions = new long[] { 4096, 4096, 1024 };
+		final int[] cellSize = new int[] { 64, 64, 16 };
+		final double[] pixelResolution = new double[] { 0.097, 0.097, 0.18 };
+		final NonIsotropicScalePyramidMetadata3D scalePyramidMetadata = new NonIsotropicScalePyramidMetadata3D( dimensions, cellSize, pixelResolution, false );
+		final NonIsotropicScalePyramidMetadata3D plannedScalePyramidMetadata = new NonIsotropicScalePyramidMetadata3D(
+				dimensions,
+				cellSize,
+				pixelResolution,
+				false,
+				new ScalePyramidPlanner( 1 << 20, 2, 16 ),
+				DataType.UINT8
+			);
+
+		// the planner changes only the cell sizes
+		Assert.assertTrue( scalePyramidMetadata.levelPlans.isEmpty() );
+		Assert.assertEquals( scalePyramidMetadata.getNumScales(), plannedScalePyramidMetadata.getNumScales() );
+		Assert.assertEquals( scalePyramidMetadata.getNumScales() - 1, plannedScalePyramidMetadata.levelPlans.size() );
+		Assert.assertArrayEquals( cellSize, plannedScalePyramidMetadata.getScaleMetadata( 0 ).cellSize );
+		for ( int scale = 1; scale < scalePyramidMetadata.getNumScales(); ++scale )
+		{
+			final NonIsotropicMetadata3D scaleMetadata = scalePyramidMetadata.getScaleMetadata( scale );
+			final NonIsotropicMetadata3D plannedScaleMetadata = plannedScalePyramidMetadata.getScaleMetadata( scale );
+			final ScalePyramidPlanner.LevelPlan levelPlan = plannedScalePyramidMetadata.levelPlans.get( scale - 1 );
+			Assert.assertEquals( scale, levelPlan.scale );
+			Assert.assertArrayEquals( scaleMetadata.dimensions, plannedScaleMetadata.dimensions );
+			Assert.assertArrayEquals( scaleMetadata.downsamplingFactors, plannedScaleMetadata.downsamplingFactors );
+			Assert.assertArrayEquals( levelPlan.blockSize, plannedScaleMetadata.cellSize );
+			for ( int d = 0; d < 3; ++d )
+				Assert.assertTrue( plannedScaleMetadata.cellSize[ d ] <= plannedScaleMetadata.dimensions[ d ] );
+		}
+
+		// the first scale level is large enough for blocks of the target size (2M voxels) in the shape of the unplanned block
+		final int[] firstScaleCellSize = scalePyramidMetadata.getScaleMetadata( 1 ).cellSize;
+		final int[] plannedFirstScaleCellSize = plannedScalePyramidMetadata.getScaleMetadata( 1 ).cellSize;
+		Assert.assertEquals( 2 << 20, Intervals.numElements( plannedFirstScaleCellSize ), ( 2 << 20 ) / 10 );
+		Assert.assertEquals( firstScaleCellSize[ 0 ] / ( double ) firstScaleCellSize[ 2 ], plannedFirstScaleCellSize[ 0 ] / ( double ) plannedFirstScaleCellSize[ 2 ], 0.1 );
+	}
+
 	@Test
 	public void testScalePyramidMetadata_NonIsotropic_3x()
 	{
@@ -13,6 +13,8 @@ import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.downsample.N5DownsamplerSpark;
+import org.janelia.saalfeldlab.n5.spark.downsample.N5OffsetDownsamplerSpark;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
 import org.junit.After;
 import org.junit.Assert;
@@ -104,6 +106,56 @@ public class N5OffsetScalePyramidSparkTest
 		cleanup( n5 );
 	}
 
+	@Test
+	public void testFusedDownsampling() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 21, 14, 9 };
+		final int[] stepFactors = new int[] { 2, 2, 2 };
+		final boolean[] dimensionsWithOffset = new boolean[] { true, true, false };
+		final long[] relativeOffset = new long[] { 1, 1, 0 };
+		createDataset( n5, dimensions, new int[] { 3, 2, 2 } );
+
+		// reference: each offset scale level is downsampled from the regular scale level below it
+		final int numLevels = 3;
+		for ( int scale = 1; scale <= numLevels; ++scale )
+		{
+			final String regularInputPath = scale == 1 ? datasetPath : "reference/regular/s" + ( scale - 1 );
+			N5OffsetDownsamplerSpark.downsampleWithOffset( sparkContext, n5Supplier, regularInputPath, "reference/offset/s" + scale, stepFactors, relativeOffset );
+			N5DownsamplerSpark.downsample( sparkContext, n5Supplier, regularInputPath, "reference/regular/s" + scale, stepFactors );
+		}
+
+		// fused groups of different sizes should produce the same result, and the intermediate regular scale levels should not be stored
+		for ( final int fusedLevels : new int[] { 1, 2, 3 } )
+		{
+			final String outputGroupPath = "pyramid-" + fusedLevels;
+			final List< String > scalePyramidDatasets = N5OffsetScalePyramidSpark.downsampleOffsetScalePyramid(
+					sparkContext,
+					n5Supplier,
+					datasetPath,
+					outputGroupPath,
+					stepFactors,
+					dimensionsWithOffset,
+					fusedLevels
+				);
+
+			Assert.assertEquals( numLevels, scalePyramidDatasets.size() );
+			Assert.assertFalse( n5.exists( Paths.get( outputGroupPath, "intermediate-downsampling" ).toString() ) );
+
+			for ( int scale = 1; scale <= numLevels; ++scale )
+			{
+				final String referencePath = "reference/offset/s" + scale;
+				final String outputPath = scalePyramidDatasets.get( scale - 1 );
+				Assert.assertArrayEquals( n5.getDatasetAttributes( referencePath ).getDimensions(), n5.getDatasetAttributes( outputPath ).getDimensions() );
+				Assert.assertArrayEquals(
+						getArrayFromRandomAccessibleInterval( N5Utils.open( n5, referencePath ) ),
+						getArrayFromRandomAccessibleInterval( N5Utils.open( n5, outputPath ) ) );
+			}
+		}
+
+		cleanup( n5 );
+	}
+
 	private void createDataset( final N5Writer n5, final long[] dimensions, final int[] blockSize ) throws IOException
 	{
 		final int[] data = new int[ ( int ) Intervals.numElements( dimensions ) ];
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.spark.SparkConf;
@@ -13,6 +14,7 @@ import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.downsample.N5DownsamplerSpark;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
 import org.junit.After;
 import org.junit.Assert;
@@ -20,9 +22,13 @@ import org.junit.Before;
 import org.junit.Test;
 
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
@@ -97,12 +103,255 @@ public class N5ScalePyramidSparkTest
 		cleanup( n5 );
 	}
 
-	private void createDataset( final N5Writer n5, final long[] dimensions, final int[] blockSize ) throws IOException
+	@Test
+	public void testFusedDownsampling() throws IOException
+	{
+		testFusedDownsampling( new long[] { 20, 17, 9 }, new int[] { 3, 2, 2 }, 3 );
+
+		// the finer levels extend beyond the coarsest block grid multiplied by the factors
+		testFusedDownsampling( new long[] { 14, 11, 5 }, new int[] { 1, 3, 2 }, 2 );
+	}
+
+	private void testFusedDownsampling( final long[] dimensions, final int[] blockSize, final int expectedNumLevels ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		createDataset( n5, dimensions, blockSize );
+
+		final List< String > downsampledDatasets = N5ScalePyramidSpark.downsampleScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"regular",
+				new int[] { 2, 2, 2 }
+			);
+
+		final List< String > fusedDownsampledDatasets = N5ScalePyramidSpark.downsampleScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"fused",
+				new int[] { 2, 2, 2 },
+				2
+			);
+
+		Assert.assertEquals( expectedNumLevels, downsampledDatasets.size() );
+		Assert.assertEquals( downsampledDatasets.size(), fusedDownsampledDatasets.size() );
+
+		for ( int i = 0; i < downsampledDatasets.size(); ++i )
+		{
+			final DatasetAttributes attributes = n5.getDatasetAttributes( downsampledDatasets.get( i ) );
+			final DatasetAttributes fusedAttributes = n5.getDatasetAttributes( fusedDownsampledDatasets.get( i ) );
+			Assert.assertArrayEquals( attributes.getDimensions(), fusedAttributes.getDimensions() );
+			Assert.assertArrayEquals( attributes.getBlockSize(), fusedAttributes.getBlockSize() );
+			Assert.assertArrayEquals(
+					n5.getAttribute( downsampledDatasets.get( i ), N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class ),
+					n5.getAttribute( fusedDownsampledDatasets.get( i ), N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class ) );
+			Assert.assertArrayEquals(
+					getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasets.get( i ) ) ),
+					getArrayFromRandomAccessibleInterval( N5Utils.open( n5, fusedDownsampledDatasets.get( i ) ) ) );
+		}
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testPipelinedDownsampling() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		createDataset( n5, new long[] { 20, 17, 9 }, new int[] { 3, 2, 2 } );
+
+		final List< String > downsampledDatasets = N5ScalePyramidSpark.downsampleScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"regular",
+				new int[] { 2, 2, 2 }
+			);
+
+		final List< String > pipelinedDownsampledDatasets = N5ScalePyramidSpark.downsampleScalePyramidPipelined(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"pipelined",
+				new int[] { 2, 2, 2 },
+				null
+			);
+
+		// the planned block sizes differ between the scale levels, so the chunks of consecutive levels are not aligned
+		final List< String > plannedPipelinedDownsampledDatasets = N5ScalePyramidSpark.downsampleScalePyramidPipelined(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"planned-pipelined",
+				new int[] { 2, 2, 2 },
+				new ScalePyramidPlanner( 16, 1, 4 )
+			);
+
+		Assert.assertEquals( 3, downsampledDatasets.size() );
+		Assert.assertEquals( downsampledDatasets.size(), pipelinedDownsampledDatasets.size() );
+		Assert.assertEquals( downsampledDatasets.size(), plannedPipelinedDownsampledDatasets.size() );
+
+		for ( int i = 0; i < downsampledDatasets.size(); ++i )
+		{
+			final DatasetAttributes attributes = n5.getDatasetAttributes( downsampledDatasets.get( i ) );
+			final DatasetAttributes pipelinedAttributes = n5.getDatasetAttributes( pipelinedDownsampledDatasets.get( i ) );
+			Assert.assertArrayEquals( attributes.getDimensions(), pipelinedAttributes.getDimensions() );
+			Assert.assertArrayEquals( attributes.getBlockSize(), pipelinedAttributes.getBlockSize() );
+			Assert.assertArrayEquals(
+					n5.getAttribute( downsampledDatasets.get( i ), N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class ),
+					n5.getAttribute( pipelinedDownsampledDatasets.get( i ), N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class ) );
+
+			final int[] expected = getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasets.get( i ) ) );
+			Assert.assertArrayEquals( expected, getArrayFromRandomAccessibleInterval( N5Utils.open( n5, pipelinedDownsampledDatasets.get( i ) ) ) );
+			Assert.assertArrayEquals( expected, getArrayFromRandomAccessibleInterval( N5Utils.open( n5, plannedPipelinedDownsampledDatasets.get( i ) ) ) );
+		}
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testInMemoryDownsampling() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 20, 17, 9 };
+		final int[] blockSize = new int[] { 3, 2, 2 };
+		final int[] data = createDataset( n5, dimensions, blockSize );
+
+		// clear a slab so some of the blocks are missing at every scale level
+		final long[] position = new long[ 3 ];
+		for ( int i = 0; i < data.length; ++i )
+		{
+			IntervalIndexer.indexToPosition( i, dimensions, position );
+			if ( position[ 1 ] >= 4 && position[ 1 ] < 12 )
+				data[ i ] = 0;
+		}
+		N5Utils.save( ArrayImgs.ints( data, dimensions ), n5, datasetPath, blockSize, new GzipCompression() );
+
+		final List< String > downsampledDatasets = N5ScalePyramidSpark.downsampleScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"regular",
+				new int[] { 2, 2, 2 }
+			);
+
+		final List< String > inMemoryDownsampledDatasets = N5ScalePyramidSpark.downsampleScalePyramidInMemory(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"in-memory",
+				new int[] { 2, 2, 2 },
+				null
+			);
+
+		// the planned block sizes differ between the scale levels, so the blocks of consecutive levels are not aligned
+		final List< String > plannedInMemoryDownsampledDatasets = N5ScalePyramidSpark.downsampleScalePyramidInMemory(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"planned-in-memory",
+				new int[] { 2, 2, 2 },
+				new ScalePyramidPlanner( 16, 1, 4 )
+			);
+
+		Assert.assertEquals( 3, downsampledDatasets.size() );
+		Assert.assertEquals( downsampledDatasets.size(), inMemoryDownsampledDatasets.size() );
+		Assert.assertEquals( downsampledDatasets.size(), plannedInMemoryDownsampledDatasets.size() );
+
+		for ( int i = 0; i < downsampledDatasets.size(); ++i )
+		{
+			final DatasetAttributes attributes = n5.getDatasetAttributes( downsampledDatasets.get( i ) );
+			final DatasetAttributes inMemoryAttributes = n5.getDatasetAttributes( inMemoryDownsampledDatasets.get( i ) );
+			Assert.assertArrayEquals( attributes.getDimensions(), inMemoryAttributes.getDimensions() );
+			Assert.assertArrayEquals( attributes.getBlockSize(), inMemoryAttributes.getBlockSize() );
+			Assert.assertArrayEquals(
+					n5.getAttribute( downsampledDatasets.get( i ), N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class ),
+					n5.getAttribute( inMemoryDownsampledDatasets.get( i ), N5DownsamplerSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class ) );
+
+			final int[] expected = getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasets.get( i ) ) );
+			Assert.assertArrayEquals( expected, getArrayFromRandomAccessibleInterval( N5Utils.open( n5, inMemoryDownsampledDatasets.get( i ) ) ) );
+			Assert.assertArrayEquals( expected, getArrayFromRandomAccessibleInterval( N5Utils.open( n5, plannedInMemoryDownsampledDatasets.get( i ) ) ) );
+
+			// empty blocks are not stored
+			final long[] gridDimensions = new CellGrid( attributes.getDimensions(), attributes.getBlockSize() ).getGridDimensions();
+			final long[] gridPosition = new long[ 3 ];
+			for ( long blockIndex = 0; blockIndex < Intervals.numElements( gridDimensions ); ++blockIndex )
+			{
+				IntervalIndexer.indexToPosition( blockIndex, gridDimensions, gridPosition );
+				Assert.assertEquals(
+						n5.readBlock( downsampledDatasets.get( i ), attributes, gridPosition ) != null,
+						n5.readBlock( inMemoryDownsampledDatasets.get( i ), attributes, gridPosition ) != null );
+			}
+		}
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testUpdate() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 20, 17, 9 };
+		final int[] blockSize = new int[] { 3, 2, 2 };
+		final int[] downsamplingFactors = new int[] { 2, 2, 2 };
+		final int[] data = createDataset( n5, dimensions, blockSize );
+
+		N5ScalePyramidSpark.downsampleScalePyramid( sparkContext, n5Supplier, datasetPath, "region", downsamplingFactors );
+		N5ScalePyramidSpark.downsampleScalePyramid( sparkContext, n5Supplier, datasetPath, "blocks", downsamplingFactors );
+
+		// clear a part of the dataset so some of the downsampled blocks become empty, and change the values around it
+		final long[] modifiedMin = new long[] { 4, 3, 0 }, modifiedMax = new long[] { 13, 12, 7 };
+		final long[] position = new long[ 3 ];
+		for ( int i = 0; i < data.length; ++i )
+		{
+			IntervalIndexer.indexToPosition( i, dimensions, position );
+			if ( Intervals.contains( new FinalInterval( modifiedMin, modifiedMax ), new Point( position ) ) )
+				data[ i ] = position[ 0 ] < 12 ? 0 : data[ i ] * 3;
+		}
+		N5Utils.save( ArrayImgs.ints( data, dimensions ), n5, datasetPath, blockSize, new GzipCompression() );
+
+		final List< String > expectedDatasets = N5ScalePyramidSpark.downsampleScalePyramid( sparkContext, n5Supplier, datasetPath, "expected", downsamplingFactors );
+		final List< String > regionUpdatedDatasets = N5ScalePyramidSpark.updateScalePyramid( sparkContext, n5Supplier, datasetPath, "region", downsamplingFactors, modifiedMin, modifiedMax );
+
+		final List< long[] > modifiedBlockGridPositions = new ArrayList<>();
+		for ( long z = modifiedMin[ 2 ] / blockSize[ 2 ]; z <= modifiedMax[ 2 ] / blockSize[ 2 ]; ++z )
+			for ( long y = modifiedMin[ 1 ] / blockSize[ 1 ]; y <= modifiedMax[ 1 ] / blockSize[ 1 ]; ++y )
+				for ( long x = modifiedMin[ 0 ] / blockSize[ 0 ]; x <= modifiedMax[ 0 ] / blockSize[ 0 ]; ++x )
+					modifiedBlockGridPositions.add( new long[] { x, y, z } );
+		final List< String > blocksUpdatedDatasets = N5ScalePyramidSpark.updateScalePyramid( sparkContext, n5Supplier, datasetPath, "blocks", downsamplingFactors, modifiedBlockGridPositions );
+
+		Assert.assertEquals( expectedDatasets.size(), regionUpdatedDatasets.size() );
+		Assert.assertEquals( expectedDatasets.size(), blocksUpdatedDatasets.size() );
+
+		for ( int i = 0; i < expectedDatasets.size(); ++i )
+		{
+			final int[] expected = getArrayFromRandomAccessibleInterval( N5Utils.open( n5, expectedDatasets.get( i ) ) );
+			Assert.assertArrayEquals( expected, getArrayFromRandomAccessibleInterval( N5Utils.open( n5, regionUpdatedDatasets.get( i ) ) ) );
+			Assert.assertArrayEquals( expected, getArrayFromRandomAccessibleInterval( N5Utils.open( n5, blocksUpdatedDatasets.get( i ) ) ) );
+
+			// blocks that became empty are removed
+			final DatasetAttributes attributes = n5.getDatasetAttributes( expectedDatasets.get( i ) );
+			final long[] gridDimensions = new CellGrid( attributes.getDimensions(), attributes.getBlockSize() ).getGridDimensions();
+			final long[] gridPosition = new long[ 3 ];
+			for ( long blockIndex = 0; blockIndex < Intervals.numElements( gridDimensions ); ++blockIndex )
+			{
+				IntervalIndexer.indexToPosition( blockIndex, gridDimensions, gridPosition );
+				final boolean expectedExists = n5.readBlock( expectedDatasets.get( i ), attributes, gridPosition ) != null;
+				Assert.assertEquals( expectedExists, n5.readBlock( regionUpdatedDatasets.get( i ), attributes, gridPosition ) != null );
+				Assert.assertEquals( expectedExists, n5.readBlock( blocksUpdatedDatasets.get( i ), attributes, gridPosition ) != null );
+			}
+		}
+
+		cleanup( n5 );
+	}
+
+	private int[] createDataset( final N5Writer n5, final long[] dimensions, final int[] blockSize ) throws IOException
 	{
 		final int[] data = new int[ ( int ) Intervals.numElements( dimensions ) ];
 		for ( int i = 0; i < data.length; ++i )
 			data[ i ] = i + 1;
 		N5Utils.save( ArrayImgs.ints( data, dimensions ), n5, datasetPath, blockSize, new GzipCompression() );
+		return data;
 	}
 
 	private int[] getArrayFromRandomAccessibleInterval( final RandomAccessibleInterval< IntType > rai )
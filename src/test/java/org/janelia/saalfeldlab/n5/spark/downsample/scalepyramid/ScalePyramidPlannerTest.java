@@ -0,0 +1,131 @@
+package org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid;
+
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid.ScalePyramidPlanner.LevelPlan;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.util.Intervals;
+
+public class ScalePyramidPlannerTest
+{
+	@Test
+	public void testTargetBlockSize()
+	{
+		// 1 MB per stored block with 2x compression is 2M voxels of uint8, which is 128^3 with the shape of the input block
+		final List< LevelPlan > plan = new ScalePyramidPlanner( 1 << 20, 2, 64 ).plan(
+				new long[] { 10000, 10000, 4000 },
+				new int[] { 64, 64, 64 },
+				DataType.UINT8,
+				new int[] { 2, 2, 2 },
+				1
+			);
+
+		Assert.assertEquals( 11, plan.size() );
+		Assert.assertEquals( 1, plan.get( 0 ).scale );
+		Assert.assertArrayEquals( new long[] { 5000, 5000, 2000 }, plan.get( 0 ).dimensions );
+		Assert.assertArrayEquals( new int[] { 128, 128, 128 }, plan.get( 0 ).blockSize );
+		Assert.assertEquals( 40 * 40 * 16, plan.get( 0 ).numBlocks );
+		Assert.assertEquals( plan.get( 0 ).numBlocks, plan.get( 0 ).numTasks );
+		Assert.assertEquals( 256 * 256 * 256, plan.get( 0 ).bytesPerTask );
+
+		// the same block size for 16-bit data is smaller
+		final List< LevelPlan > plan16 = new ScalePyramidPlanner( 1 << 20, 2, 64 ).plan(
+				new long[] { 10000, 10000, 4000 },
+				new int[] { 64, 64, 32 },
+				DataType.UINT16,
+				new int[] { 2, 2, 2 },
+				1
+			);
+		Assert.assertArrayEquals( new int[] { 128, 128, 64 }, plan16.get( 0 ).blockSize );
+	}
+
+	@Test
+	public void testEnoughTasks()
+	{
+		final int numCores = 64;
+		final long targetBlockElements = ( 1 << 20 ) * 2;
+		final List< LevelPlan > plan = new ScalePyramidPlanner( 1 << 20, 2, numCores ).plan(
+				new long[] { 10000, 10000, 4000 },
+				new int[] { 64, 64, 64 },
+				DataType.UINT8,
+				new int[] { 2, 2, 2 },
+				1
+			);
+
+		for ( final LevelPlan levelPlan : plan )
+		{
+			final long blockElements = Intervals.numElements( levelPlan.blockSize );
+			for ( int d = 0; d < 3; ++d )
+				Assert.assertTrue( levelPlan.blockSize[ d ] <= levelPlan.dimensions[ d ] );
+
+			// either the level keeps all cores busy, or its blocks cannot be split any further
+			Assert.assertTrue(
+					levelPlan.numTasks >= 2 * numCores ||
+					Intervals.numElements( levelPlan.dimensions ) <= blockElements ||
+					blockElements / 2 < targetBlockElements / 8 );
+		}
+
+		// the coarse levels are split into smaller blocks than the input block size would give
+		Assert.assertArrayEquals( new long[] { 625, 625, 250 }, plan.get( 3 ).dimensions );
+		Assert.assertTrue( plan.get( 3 ).numTasks >= 2 * numCores );
+	}
+
+	@Test
+	public void testFusedLevels()
+	{
+		final List< LevelPlan > plan = new ScalePyramidPlanner( 1 << 20, 2, 64 ).plan(
+				new long[] { 10000, 10000, 4000 },
+				new int[] { 64, 64, 64 },
+				DataType.UINT8,
+				new int[] { 2, 2, 2 },
+				3
+			);
+
+		Assert.assertEquals( 11, plan.size() );
+		for ( int groupStart = 0; groupStart < plan.size(); groupStart += 3 )
+		{
+			// the levels in a group share the block size, and the tasks process the blocks of the coarsest level in the group
+			final LevelPlan coarsestLevelPlan = plan.get( Math.min( groupStart + 2, plan.size() - 1 ) );
+			for ( int i = groupStart; i < Math.min( groupStart + 3, plan.size() ); ++i )
+			{
+				Assert.assertArrayEquals( plan.get( groupStart ).blockSize, plan.get( i ).blockSize );
+				Assert.assertEquals( coarsestLevelPlan.numBlocks, plan.get( i ).numTasks );
+			}
+		}
+	}
+
+	@Test
+	public void testPlanLevel()
+	{
+		// 512 KB per stored block with 2x compression is 1M voxels of uint8, which is twice the given block along each side
+		final ScalePyramidPlanner planner = new ScalePyramidPlanner( 1 << 19, 2, 64 );
+		final LevelPlan levelPlan = planner.planLevel(
+				1,
+				new long[] { 10000, 10000, 1000 },
+				new long[] { 5000, 5000, 1000 },
+				new int[] { 64, 64, 32 },
+				DataType.UINT8,
+				new int[] { 2, 2, 1 }
+			);
+		Assert.assertEquals( 1, levelPlan.scale );
+		Assert.assertArrayEquals( new int[] { 128, 128, 64 }, levelPlan.blockSize );
+		Assert.assertEquals( 40 * 40 * 16, levelPlan.numBlocks );
+		Assert.assertEquals( levelPlan.numBlocks, levelPlan.numTasks );
+		Assert.assertEquals( 256 * 256 * 64, levelPlan.bytesPerTask );
+
+		// a small level is split along the longest side until the block would be 8 times smaller than the target
+		final LevelPlan smallLevelPlan = planner.planLevel(
+				5,
+				new long[] { 200, 200, 50 },
+				new long[] { 100, 100, 50 },
+				new int[] { 64, 64, 32 },
+				DataType.UINT8,
+				new int[] { 2, 2, 1 }
+			);
+		Assert.assertArrayEquals( new int[] { 50, 100, 50 }, smallLevelPlan.blockSize );
+		Assert.assertEquals( 2, smallLevelPlan.numTasks );
+	}
+}
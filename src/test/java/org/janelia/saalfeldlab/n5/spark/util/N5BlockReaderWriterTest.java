@@ -0,0 +1,145 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+
+public class N5BlockReaderWriterTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-block-reader-writer-test";
+	static private final String datasetPath = "data";
+	static private final String outputDatasetPath = "output-data";
+
+	static private final long[] dimensions = new long[] { 7, 5, 4 };
+	static private final int[] blockSize = new int[] { 3, 2, 2 };
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( Files.exists( Paths.get( basePath ) ) )
+			Assert.assertTrue( new N5FSWriter( basePath ).remove() );
+	}
+
+	@Test
+	public void testReadRegion() throws IOException
+	{
+		final N5Writer n5 = new N5FSWriter( basePath );
+		final int[] data = createData();
+		N5Utils.save( ArrayImgs.ints( data, dimensions ), n5, datasetPath, blockSize, new GzipCompression() );
+
+		final N5BlockReader reader = new N5BlockReader( n5, datasetPath );
+		final long[] min = new long[] { 1, 1, 1 };
+		final int[] size = new int[] { 5, 3, 2 };
+		final DataBlock< ? > region = DataType.INT32.createDataBlock( size, new long[ 3 ] );
+		Assert.assertTrue( reader.read( min, region ) );
+
+		final int[] regionData = ( int[] ) region.getData();
+		for ( int z = 0, i = 0; z < size[ 2 ]; ++z )
+			for ( int y = 0; y < size[ 1 ]; ++y )
+				for ( int x = 0; x < size[ 0 ]; ++x, ++i )
+					Assert.assertEquals( data[ index( x + 1, y + 1, z + 1 ) ], regionData[ i ] );
+	}
+
+	@Test
+	public void testReadMissingBlocks() throws IOException
+	{
+		final N5Writer n5 = new N5FSWriter( basePath );
+		n5.createDataset( datasetPath, dimensions, blockSize, DataType.INT32, new GzipCompression() );
+
+		final DataBlock< ? > region = DataType.INT32.createDataBlock( new int[] { 4, 3, 3 }, new long[ 3 ] );
+		( ( int[] ) region.getData() )[ 5 ] = 1;
+		Assert.assertFalse( new N5BlockReader( n5, datasetPath ).read( new long[] { 2, 1, 0 }, region ) );
+		Assert.assertTrue( N5SparkUtils.isEmpty( region ) );
+	}
+
+	@Test
+	public void testWriteRegion() throws IOException
+	{
+		final N5Writer n5 = new N5FSWriter( basePath );
+		final int[] data = createData();
+		data[ index( 0, 0, 0 ) ] = data[ index( 1, 0, 0 ) ] = 0;
+		data[ index( 0, 1, 0 ) ] = data[ index( 1, 1, 0 ) ] = 0;
+		data[ index( 0, 0, 1 ) ] = data[ index( 1, 0, 1 ) ] = 0;
+		data[ index( 0, 1, 1 ) ] = data[ index( 1, 1, 1 ) ] = 0;
+		data[ index( 2, 0, 0 ) ] = data[ index( 2, 1, 0 ) ] = data[ index( 2, 0, 1 ) ] = data[ index( 2, 1, 1 ) ] = 0;
+		n5.createDataset( outputDatasetPath, dimensions, blockSize, DataType.INT32, new GzipCompression() );
+
+		final DataBlock< ? > region = DataType.INT32.createDataBlock( new int[] { ( int ) dimensions[ 0 ], ( int ) dimensions[ 1 ], ( int ) dimensions[ 2 ] }, new long[ 3 ] );
+		System.arraycopy( data, 0, region.getData(), 0, data.length );
+		final N5BlockWriter writer = new N5BlockWriter( n5, outputDatasetPath );
+		Assert.assertEquals( 3 * 3 * 2 - 1, writer.write( new long[ 3 ], region, true ) );
+		Assert.assertNull( n5.readBlock( outputDatasetPath, writer.getAttributes(), new long[] { 0, 0, 0 } ) );
+
+		final DataBlock< ? > readRegion = DataType.INT32.createDataBlock( region.getSize(), new long[ 3 ] );
+		Assert.assertTrue( new N5BlockReader( n5, outputDatasetPath ).read( new long[ 3 ], readRegion ) );
+		Assert.assertArrayEquals( data, ( int[] ) readRegion.getData() );
+	}
+
+	@Test
+	public void testRemoveBlock() throws IOException
+	{
+		final N5Writer n5 = new N5FSWriter( basePath );
+		final int[] data = createData();
+		N5Utils.save( ArrayImgs.ints( data, dimensions ), n5, datasetPath, blockSize, new GzipCompression() );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
+
+		final long[] gridPosition = new long[] { 1, 2, 0 };
+		Assert.assertNotNull( n5.readBlock( datasetPath, attributes, gridPosition ) );
+		N5BlockWriter.removeBlock( n5, datasetPath, gridPosition );
+		Assert.assertNull( n5.readBlock( datasetPath, attributes, gridPosition ) );
+		Assert.assertNotNull( n5.readBlock( datasetPath, attributes, new long[] { 0, 2, 0 } ) );
+
+		// removing a missing block has no effect
+		N5BlockWriter.removeBlock( n5, datasetPath, gridPosition );
+		Assert.assertNull( n5.readBlock( datasetPath, attributes, gridPosition ) );
+
+		// the blocks that have become empty are removed when writing with removeEmpty
+		final DataBlock< ? > region = DataType.INT32.createDataBlock( new int[] { 3, 2, 2 }, new long[ 3 ] );
+		new N5BlockWriter( n5, datasetPath ).write( new long[] { 3, 2, 2 }, region, true, true );
+		Assert.assertNull( n5.readBlock( datasetPath, attributes, new long[] { 1, 1, 1 } ) );
+		Assert.assertNotNull( n5.readBlock( datasetPath, attributes, new long[] { 1, 1, 0 } ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testWriteUnalignedRegion() throws IOException
+	{
+		final N5Writer n5 = new N5FSWriter( basePath );
+		n5.createDataset( outputDatasetPath, dimensions, blockSize, DataType.INT32, new GzipCompression() );
+		final DataBlock< ? > region = DataType.INT32.createDataBlock( new int[] { 3, 2, 2 }, new long[ 3 ] );
+		new N5BlockWriter( n5, outputDatasetPath ).write( new long[] { 1, 0, 0 }, region, false );
+	}
+
+	private static int[] createData()
+	{
+		final int[] data = new int[ ( int ) ( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ) ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = i + 1;
+		return data;
+	}
+
+	private static int index( final int x, final int y, final int z )
+	{
+		return ( int ) ( ( z * dimensions[ 1 ] + y ) * dimensions[ 0 ] + x );
+	}
+}
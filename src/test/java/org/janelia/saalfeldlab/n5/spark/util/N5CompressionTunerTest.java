@@ -0,0 +1,111 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.N5CompressionTuner.Candidate;
+import org.janelia.saalfeldlab.n5.spark.util.N5CompressionTuner.Result;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+
+public class N5CompressionTunerTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-compression-tuner-test";
+	static private final String datasetPath = "data";
+
+	static private final N5WriterSupplier n5Supplier = () -> new N5FSWriter( basePath );
+
+	private JavaSparkContext sparkContext;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+
+		sparkContext = new JavaSparkContext( new SparkConf()
+				.setMaster( "local[*]" )
+				.setAppName( "N5CompressionTunerTest" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( sparkContext != null )
+			sparkContext.close();
+
+		if ( Files.exists( Paths.get( basePath ) ) )
+			Assert.assertTrue( n5Supplier.get().remove() );
+	}
+
+	@Test
+	public void testBenchmark() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final short[] data = new short[ 32 * 32 * 32 ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( short ) ( i / 64 );
+		N5Utils.save( ArrayImgs.shorts( data, 32, 32, 32 ), n5, datasetPath, new int[] { 16, 16, 16 }, new GzipCompression() );
+
+		final List< Candidate > candidates = Arrays.asList(
+				new Candidate( "raw", new RawCompression() ),
+				new Candidate( "gzip", new GzipCompression() )
+			);
+		final List< Result > results = N5CompressionTuner.benchmark( sparkContext, n5Supplier, datasetPath, new int[] { 8, 8, 8 }, 10, null, candidates );
+		Assert.assertEquals( 2, results.size() );
+		Assert.assertEquals( "raw", results.get( 0 ).getCandidate().getName() );
+		Assert.assertEquals( "gzip", results.get( 1 ).getCandidate().getName() );
+
+		// the raw blocks have a small header, and the data is well compressible
+		Assert.assertTrue( results.get( 0 ).getRatio() < 1 );
+		Assert.assertTrue( results.get( 0 ).getRatio() > 0.9 );
+		Assert.assertTrue( results.get( 1 ).getRatio() > 2 );
+	}
+
+	@Test
+	public void testEmpty() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		n5.createDataset( datasetPath, new DatasetAttributes( new long[] { 20, 20 }, new int[] { 5, 5 }, DataType.UINT8, new GzipCompression() ) );
+		Assert.assertNull( N5CompressionTuner.benchmark( sparkContext, n5Supplier, datasetPath, new int[] { 10, 10 }, 10 ) );
+	}
+
+	@Test
+	public void testSelect()
+	{
+		final Result raw = new Result( new Candidate( "raw", new RawCompression() ), 1000000, 1000000, 1000000, 1000000 );
+		final Result gzip = new Result( new Candidate( "gzip", new GzipCompression() ), 1000000, 250000, 20000000, 5000000 );
+		final Result xz = new Result( new Candidate( "xz", new XzCompression() ), 1000000, 200000, 200000000, 20000000 );
+		final List< Result > results = Arrays.asList( raw, gzip, xz );
+
+		Assert.assertEquals( 1000, raw.getEncodingThroughput(), 1e-6 );
+		Assert.assertEquals( 4, gzip.getRatio(), 1e-6 );
+
+		Assert.assertSame( xz, N5CompressionTuner.select( results, 0, 0 ) );
+		Assert.assertSame( gzip, N5CompressionTuner.select( results, 10, 100 ) );
+		Assert.assertSame( raw, N5CompressionTuner.select( results, 100, 100 ) );
+
+		// none of them is fast enough: the fastest decoding is selected
+		Assert.assertSame( raw, N5CompressionTuner.select( results, 10000, 10000 ) );
+	}
+}
@@ -0,0 +1,141 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.N5OffHeapBlockCache.CachedReader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+
+public class N5OffHeapBlockCacheTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-off-heap-block-cache-test";
+	static private final String datasetPath = "data";
+
+	static private final N5WriterSupplier n5Supplier = () -> new N5FSWriter( basePath );
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+
+		final short[] data = new short[ 8 * 6 * 4 ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( short ) i;
+		N5Utils.save( ArrayImgs.shorts( data, 8, 6, 4 ), n5Supplier.get(), datasetPath, new int[] { 4, 3, 2 }, new GzipCompression() );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( Files.exists( Paths.get( basePath ) ) )
+			Assert.assertTrue( n5Supplier.get().remove() );
+	}
+
+	@Test
+	public void testWrappedSupplier() throws IOException
+	{
+		final N5OffHeapBlockCache cache = N5OffHeapBlockCache.getInstance( 1 << 20 );
+		cache.clear();
+
+		final N5Reader n5 = N5OffHeapBlockCache.wrap( n5Supplier, 1 << 20 ).get();
+		Assert.assertTrue( n5 instanceof N5Writer );
+		Assert.assertTrue( n5.datasetExists( datasetPath ) );
+		Assert.assertNotNull( N5OffHeapBlockCache.getCachedReader( n5 ) );
+		Assert.assertNull( N5OffHeapBlockCache.getCachedReader( n5Supplier.get() ) );
+
+		// read a region that is not aligned with the blocks, and compare it with the region read without the cache
+		final long[] min = new long[] { 1, 2, 1 };
+		final int[] size = new int[] { 6, 3, 3 };
+		final DataBlock< ? > expectedRegion = DataType.INT16.createDataBlock( size, new long[ 3 ] );
+		Assert.assertTrue( new N5BlockReader( n5Supplier.get(), datasetPath ).read( min, expectedRegion ) );
+
+		final DataBlock< ? > region = DataType.INT16.createDataBlock( size, new long[ 3 ] );
+		Assert.assertTrue( new N5BlockReader( n5, datasetPath ).read( min, region ) );
+		Assert.assertEquals( 0, cache.getHitCount() );
+		Assert.assertEquals( 8, cache.getMissCount() );
+		Assert.assertArrayEquals( ( short[] ) expectedRegion.getData(), ( short[] ) region.getData() );
+
+		final DataBlock< ? > cachedRegion = DataType.INT16.createDataBlock( size, new long[ 3 ] );
+		Assert.assertTrue( new N5BlockReader( n5, datasetPath ).read( min, cachedRegion ) );
+		Assert.assertEquals( 8, cache.getHitCount() );
+		Assert.assertEquals( 8, cache.getMissCount() );
+		Assert.assertArrayEquals( ( short[] ) expectedRegion.getData(), ( short[] ) cachedRegion.getData() );
+
+		// the blocks read directly through the wrapped reader are copied from the cache
+		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
+		final DataBlock< ? > block = n5.readBlock( datasetPath, attributes, new long[] { 1, 1, 1 } );
+		final DataBlock< ? > expectedBlock = n5Supplier.get().readBlock( datasetPath, attributes, new long[] { 1, 1, 1 } );
+		Assert.assertEquals( 9, cache.getHitCount() );
+		Assert.assertArrayEquals( expectedBlock.getSize(), block.getSize() );
+		Assert.assertArrayEquals( expectedBlock.getGridPosition(), block.getGridPosition() );
+		Assert.assertArrayEquals( ( short[] ) expectedBlock.getData(), ( short[] ) block.getData() );
+	}
+
+	@Test
+	public void testEviction() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
+
+		// each block takes 4 * 3 * 2 * 2 = 48 bytes, so two blocks fit into the cache with the per-entry overhead
+		final N5OffHeapBlockCache cache = new N5OffHeapBlockCache( 400 );
+		final CachedReader cachedReader = new CachedReader( n5, "container", cache );
+		cachedReader.readBlock( datasetPath, attributes, new long[] { 0, 0, 0 } );
+		cachedReader.readBlock( datasetPath, attributes, new long[] { 1, 0, 0 } );
+		Assert.assertEquals( 0, cache.getEvictionCount() );
+
+		// access the first block, so the second one is the least recently used
+		cachedReader.readBlock( datasetPath, attributes, new long[] { 0, 0, 0 } );
+		Assert.assertEquals( 1, cache.getHitCount() );
+
+		cachedReader.readBlock( datasetPath, attributes, new long[] { 0, 1, 0 } );
+		Assert.assertEquals( 1, cache.getEvictionCount() );
+		Assert.assertTrue( cache.getSizeInBytes() <= 400 );
+
+		cachedReader.readBlock( datasetPath, attributes, new long[] { 0, 0, 0 } );
+		Assert.assertEquals( 2, cache.getHitCount() );
+		cachedReader.readBlock( datasetPath, attributes, new long[] { 1, 0, 0 } );
+		Assert.assertEquals( 2, cache.getHitCount() );
+		Assert.assertEquals( 4, cache.getMissCount() );
+	}
+
+	@Test
+	public void testMissingBlocks() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes attributes = new DatasetAttributes( new long[] { 10, 10 }, new int[] { 5, 5 }, DataType.UINT8, new GzipCompression() );
+		n5.createDataset( "empty", attributes );
+
+		final N5OffHeapBlockCache cache = new N5OffHeapBlockCache( 1 << 20 );
+		final CachedReader cachedReader = new CachedReader( n5, "container", cache );
+		Assert.assertNull( cachedReader.readBlock( "empty", attributes, new long[] { 1, 1 } ) );
+
+		final byte[] target = new byte[ 4 * 4 ];
+		Arrays.fill( target, ( byte ) 1 );
+		Assert.assertFalse( cachedReader.copy( "empty", attributes, new long[] { 1, 1 }, new int[] { 1, 1 }, target, new int[] { 4, 4 }, new int[] { 1, 1 }, new int[] { 2, 2 } ) );
+		for ( int y = 0; y < 4; ++y )
+			for ( int x = 0; x < 4; ++x )
+				Assert.assertEquals( x >= 1 && x <= 2 && y >= 1 && y <= 2 ? 0 : 1, target[ y * 4 + x ] );
+
+		Assert.assertEquals( 1, cache.getHitCount() );
+		Assert.assertEquals( 1, cache.getMissCount() );
+		Assert.assertTrue( cache.getSizeInBytes() > 0 );
+	}
+}
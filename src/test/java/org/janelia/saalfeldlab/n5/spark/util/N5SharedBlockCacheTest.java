@@ -0,0 +1,139 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+
+public class N5SharedBlockCacheTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-shared-block-cache-test";
+	static private final String datasetPath = "data";
+
+	static private final N5WriterSupplier n5Supplier = () -> new N5FSWriter( basePath );
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+
+		final int[] data = new int[ 8 * 6 * 4 ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = i;
+		N5Utils.save( ArrayImgs.ints( data, 8, 6, 4 ), n5Supplier.get(), datasetPath, new int[] { 4, 3, 2 }, new GzipCompression() );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( Files.exists( Paths.get( basePath ) ) )
+			Assert.assertTrue( n5Supplier.get().remove() );
+	}
+
+	@Test
+	public void testWrappedSupplier() throws IOException
+	{
+		final N5SharedBlockCache cache = N5SharedBlockCache.getInstance( 1 << 20 );
+		cache.clear();
+
+		final N5Reader n5 = N5SharedBlockCache.wrap( n5Supplier, 1 << 20 ).get();
+		Assert.assertTrue( n5 instanceof N5Writer );
+		Assert.assertTrue( n5.datasetExists( datasetPath ) );
+
+		// read the entire dataset twice with different readers from the same wrapped supplier
+		final DataBlock< ? > region = DataType.INT32.createDataBlock( new int[] { 8, 6, 4 }, new long[ 3 ] );
+		Assert.assertTrue( new N5BlockReader( n5, datasetPath ).read( new long[ 3 ], region ) );
+		Assert.assertEquals( 0, cache.getHitCount() );
+		Assert.assertEquals( 8, cache.getMissCount() );
+
+		final DataBlock< ? > cachedRegion = DataType.INT32.createDataBlock( new int[] { 8, 6, 4 }, new long[ 3 ] );
+		Assert.assertTrue( new N5BlockReader( n5, datasetPath ).read( new long[ 3 ], cachedRegion ) );
+		Assert.assertEquals( 8, cache.getHitCount() );
+		Assert.assertEquals( 8, cache.getMissCount() );
+		Assert.assertArrayEquals( ( int[] ) region.getData(), ( int[] ) cachedRegion.getData() );
+
+		// a different wrapped supplier does not share the cached blocks
+		final N5Reader otherN5 = N5SharedBlockCache.wrap( n5Supplier, 1 << 20 ).get();
+		otherN5.readBlock( datasetPath, otherN5.getDatasetAttributes( datasetPath ), new long[ 3 ] );
+		Assert.assertEquals( 8, cache.getHitCount() );
+		Assert.assertEquals( 9, cache.getMissCount() );
+	}
+
+	@Test
+	public void testBlockFilesOfWrappedWriter() throws IOException
+	{
+		final N5SharedBlockCache cache = N5SharedBlockCache.getInstance( 1 << 20 );
+		cache.clear();
+
+		final N5Writer n5 = N5SharedBlockCache.wrap( n5Supplier, 1 << 20 ).get();
+		Assert.assertTrue( N5BlockCache.unwrap( n5 ) instanceof N5FSWriter );
+
+		// the block files are located in the filesystem without reading the blocks through the cache
+		final long[] gridPosition = new long[] { 1, 1, 0 };
+		Assert.assertEquals(
+				Paths.get( basePath, datasetPath, "1", "1", "0" ),
+				N5SparseBlockScanner.getBlockFilePath( n5, datasetPath, gridPosition ) );
+
+		N5BlockWriter.removeBlock( n5, datasetPath, gridPosition );
+		Assert.assertFalse( Files.exists( Paths.get( basePath, datasetPath, "1", "1", "0" ) ) );
+		Assert.assertEquals( 0, cache.getMissCount() );
+	}
+
+	@Test
+	public void testEviction() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
+
+		// each block takes 4 * 3 * 2 * 4 = 96 bytes, so two blocks fit into the cache with the per-entry overhead
+		final N5SharedBlockCache cache = new N5SharedBlockCache( 500 );
+		cache.readBlock( n5, "container", datasetPath, attributes, new long[] { 0, 0, 0 } );
+		cache.readBlock( n5, "container", datasetPath, attributes, new long[] { 1, 0, 0 } );
+		Assert.assertEquals( 0, cache.getEvictionCount() );
+
+		// access the first block, so the second one is the least recently used
+		cache.readBlock( n5, "container", datasetPath, attributes, new long[] { 0, 0, 0 } );
+		Assert.assertEquals( 1, cache.getHitCount() );
+
+		cache.readBlock( n5, "container", datasetPath, attributes, new long[] { 0, 1, 0 } );
+		Assert.assertEquals( 1, cache.getEvictionCount() );
+		Assert.assertTrue( cache.getSizeInBytes() <= 500 );
+
+		cache.readBlock( n5, "container", datasetPath, attributes, new long[] { 0, 0, 0 } );
+		Assert.assertEquals( 2, cache.getHitCount() );
+		cache.readBlock( n5, "container", datasetPath, attributes, new long[] { 1, 0, 0 } );
+		Assert.assertEquals( 2, cache.getHitCount() );
+		Assert.assertEquals( 4, cache.getMissCount() );
+	}
+
+	@Test
+	public void testMissingBlocks() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes attributes = new DatasetAttributes( new long[] { 10, 10 }, new int[] { 5, 5 }, DataType.UINT8, new GzipCompression() );
+		n5.createDataset( "empty", attributes );
+
+		final N5SharedBlockCache cache = new N5SharedBlockCache( 1 << 20 );
+		Assert.assertNull( cache.readBlock( n5, "container", "empty", attributes, new long[] { 1, 1 } ) );
+		Assert.assertNull( cache.readBlock( n5, "container", "empty", attributes, new long[] { 1, 1 } ) );
+		Assert.assertEquals( 1, cache.getHitCount() );
+		Assert.assertEquals( 1, cache.getMissCount() );
+		Assert.assertTrue( cache.getSizeInBytes() > 0 );
+	}
+}
@@ -0,0 +1,59 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class N5SparkUtilsTest
+{
+	private JavaSparkContext sparkContext;
+
+	@Before
+	public void setUp()
+	{
+		sparkContext = new JavaSparkContext( new SparkConf()
+				.setMaster( "local[*]" )
+				.setAppName( "N5SparkUtilsTest" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			);
+	}
+
+	@After
+	public void tearDown()
+	{
+		if ( sparkContext != null )
+			sparkContext.close();
+	}
+
+	@Test
+	public void testParallelizeIndexRange()
+	{
+		testIndexRange( 0, 3, 1 );
+		testIndexRange( 1, 3, 1 );
+		testIndexRange( 5, 3, 3 );
+		testIndexRange( 100, 7, 7 );
+		testIndexRange( 4, 10, 4 );
+	}
+
+	private void testIndexRange( final long numIndexes, final int maxPartitions, final int expectedNumPartitions )
+	{
+		final JavaRDD< Long > indexes = N5SparkUtils.parallelizeIndexRange( sparkContext, numIndexes, maxPartitions );
+		Assert.assertEquals( expectedNumPartitions, indexes.getNumPartitions() );
+
+		final List< Long > expected = LongStream.range( 0, numIndexes ).boxed().collect( Collectors.toList() );
+		Assert.assertEquals( expected, indexes.collect() );
+
+		// partition sizes differ by at most one
+		final List< Integer > partitionSizes = indexes.glom().map( List::size ).collect();
+		for ( final int partitionSize : partitionSizes )
+			Assert.assertTrue( Math.abs( partitionSize - numIndexes / expectedNumPartitions ) <= 1 );
+	}
+}
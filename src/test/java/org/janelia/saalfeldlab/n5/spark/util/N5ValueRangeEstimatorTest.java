@@ -0,0 +1,137 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.util.Pair;
+
+public class N5ValueRangeEstimatorTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-value-range-estimator-test";
+	static private final String datasetPath = "data";
+
+	static private final N5WriterSupplier n5Supplier = () -> new N5FSWriter( basePath );
+
+	private JavaSparkContext sparkContext;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+
+		sparkContext = new JavaSparkContext( new SparkConf()
+				.setMaster( "local[*]" )
+				.setAppName( "N5ValueRangeEstimatorTest" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( sparkContext != null )
+			sparkContext.close();
+
+		if ( Files.exists( Paths.get( basePath ) ) )
+			Assert.assertTrue( n5Supplier.get().remove() );
+	}
+
+	@Test
+	public void testHistogram() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 40, 40, 40 };
+		final short[] data = new short[ 40 * 40 * 40 ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( short ) ( 1000 + i % 1000 );
+		N5Utils.save( ArrayImgs.unsignedShorts( data, dimensions ), n5, datasetPath, new int[] { 10, 10, 10 }, new GzipCompression() );
+
+		// missing blocks should not affect the estimate: the file of one of the blocks is deleted from the container
+		Files.delete( Paths.get( basePath, datasetPath, "1", "2", "3" ) );
+		Assert.assertNull( n5.readBlock( datasetPath, n5.getDatasetAttributes( datasetPath ), new long[] { 1, 2, 3 } ) );
+
+		final Pair< Double, Double > fullRange = N5ValueRangeEstimator.estimateValueRange( sparkContext, n5Supplier, datasetPath, 0, 100, 1000 );
+		Assert.assertEquals( 1000, fullRange.getA(), 0 );
+		Assert.assertEquals( 1999, fullRange.getB(), 0 );
+
+		final Pair< Double, Double > percentileRange = N5ValueRangeEstimator.estimateValueRange( sparkContext, n5Supplier, datasetPath, 10, 90, 1000 );
+		Assert.assertEquals( 1100, percentileRange.getA(), 2 );
+		Assert.assertEquals( 1900, percentileRange.getB(), 2 );
+
+		// only a subset of the blocks is read
+		final Pair< Double, Double > sampledRange = N5ValueRangeEstimator.estimateValueRange( sparkContext, n5Supplier, datasetPath, 10, 90, 8 );
+		Assert.assertEquals( 1100, sampledRange.getA(), 20 );
+		Assert.assertEquals( 1900, sampledRange.getB(), 20 );
+	}
+
+	@Test
+	public void testSampledValues() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 30, 30, 30 };
+		final float[] data = new float[ 30 * 30 * 30 ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = i / ( float ) data.length;
+		N5Utils.save( ArrayImgs.floats( data, dimensions ), n5, datasetPath, new int[] { 15, 15, 15 }, new GzipCompression() );
+
+		final Pair< Double, Double > range = N5ValueRangeEstimator.estimateValueRange( sparkContext, n5Supplier, datasetPath, 5, 95, 1000 );
+		Assert.assertEquals( 0.05, range.getA(), 0.01 );
+		Assert.assertEquals( 0.95, range.getB(), 0.01 );
+	}
+
+	@Test
+	public void testCoarseScaleLevel() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final byte[] fullScaleData = new byte[ 40 * 40 * 40 ];
+		Arrays.fill( fullScaleData, ( byte ) 10 );
+		N5Utils.save( ArrayImgs.unsignedBytes( fullScaleData, 40, 40, 40 ), n5, "pyramid/s0", new int[] { 10, 10, 10 }, new GzipCompression() );
+
+		// mark the coarser level with a different value to check which level has been used for the estimate
+		final byte[] coarseScaleData = new byte[ 20 * 20 * 20 ];
+		Arrays.fill( coarseScaleData, ( byte ) 20 );
+		N5Utils.save( ArrayImgs.unsignedBytes( coarseScaleData, 20, 20, 20 ), n5, "pyramid/s1", new int[] { 10, 10, 10 }, new GzipCompression() );
+
+		final Pair< Double, Double > fullScaleRange = N5ValueRangeEstimator.estimateValueRange( sparkContext, n5Supplier, "pyramid/s0", 0, 100, 64 );
+		Assert.assertEquals( 10, fullScaleRange.getA(), 0 );
+		Assert.assertEquals( 10, fullScaleRange.getB(), 0 );
+
+		final Pair< Double, Double > coarseScaleRange = N5ValueRangeEstimator.estimateValueRange( sparkContext, n5Supplier, "pyramid/s0", 0, 100, 10 );
+		Assert.assertEquals( 20, coarseScaleRange.getA(), 0 );
+		Assert.assertEquals( 20, coarseScaleRange.getB(), 0 );
+	}
+
+	@Test
+	public void testEmpty() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		n5.createDataset( datasetPath, new DatasetAttributes( new long[] { 20, 20 }, new int[] { 5, 5 }, DataType.INT16, new GzipCompression() ) );
+		Assert.assertNull( N5ValueRangeEstimator.estimateValueRange( sparkContext, n5Supplier, datasetPath ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testInvalidPercentiles() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		n5.createDataset( datasetPath, new DatasetAttributes( new long[] { 20, 20 }, new int[] { 5, 5 }, DataType.INT16, new GzipCompression() ) );
+		N5ValueRangeEstimator.estimateValueRange( sparkContext, n5Supplier, datasetPath, 90, 10, 1000 );
+	}
+}
@@ -0,0 +1,125 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+public class ZOrderCurveTest
+{
+	private JavaSparkContext sparkContext;
+
+	@Before
+	public void setUp()
+	{
+		sparkContext = new JavaSparkContext( new SparkConf()
+				.setMaster( "local[*]" )
+				.setAppName( "ZOrderCurveTest" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			);
+	}
+
+	@After
+	public void tearDown()
+	{
+		if ( sparkContext != null )
+			sparkContext.close();
+	}
+
+	@Test
+	public void testEncodeDecode()
+	{
+		final ZOrderCurve curve = new ZOrderCurve( new long[] { 4, 4 } );
+		Assert.assertEquals( 16, curve.getCodeSpaceSize() );
+		Assert.assertEquals( 0, curve.encode( new long[] { 0, 0 } ) );
+		Assert.assertEquals( 1, curve.encode( new long[] { 1, 0 } ) );
+		Assert.assertEquals( 2, curve.encode( new long[] { 0, 1 } ) );
+		Assert.assertEquals( 3, curve.encode( new long[] { 1, 1 } ) );
+		Assert.assertEquals( 4, curve.encode( new long[] { 2, 0 } ) );
+		Assert.assertEquals( 15, curve.encode( new long[] { 3, 3 } ) );
+
+		final long[] gridDimensions = new long[] { 5, 1, 3, 9 };
+		final ZOrderCurve unevenCurve = new ZOrderCurve( gridDimensions );
+		final long[] gridPosition = new long[ gridDimensions.length ], decodedGridPosition = new long[ gridDimensions.length ];
+		for ( long i = 0; i < Intervals.numElements( gridDimensions ); ++i )
+		{
+			IntervalIndexer.indexToPosition( i, gridDimensions, gridPosition );
+			final long code = unevenCurve.encode( gridPosition );
+			Assert.assertTrue( code < unevenCurve.getCodeSpaceSize() );
+			Assert.assertTrue( unevenCurve.decode( code, decodedGridPosition ) );
+			Assert.assertArrayEquals( gridPosition, decodedGridPosition );
+		}
+		Assert.assertFalse( unevenCurve.decode( unevenCurve.getCodeSpaceSize() - 1, decodedGridPosition ) );
+
+		// the codes within the grid are counted without iterating over them
+		long numGridCodes = 0;
+		for ( long code = 0; code < unevenCurve.getCodeSpaceSize(); ++code )
+		{
+			Assert.assertEquals( numGridCodes, unevenCurve.countGridCodes( code ) );
+			if ( unevenCurve.decode( code, decodedGridPosition ) )
+			{
+				Assert.assertEquals( code + 1, unevenCurve.findCode( numGridCodes + 1 ) );
+				++numGridCodes;
+			}
+		}
+		Assert.assertEquals( Intervals.numElements( gridDimensions ), numGridCodes );
+		Assert.assertEquals( numGridCodes, unevenCurve.countGridCodes( unevenCurve.getCodeSpaceSize() ) );
+	}
+
+	@Test
+	public void testParallelizeBlockIndexes()
+	{
+		final long[] gridDimensions = new long[] { 5, 3, 6 };
+		final ZOrderCurve curve = new ZOrderCurve( gridDimensions );
+		final JavaRDD< Long > blockIndexes = ZOrderCurve.parallelizeBlockIndexes( sparkContext, gridDimensions, 4 );
+		Assert.assertEquals( 4, blockIndexes.getNumPartitions() );
+
+		// the blocks are split evenly between the partitions, even though most of the codes are outside of the grid
+		for ( final List< Long > partition : blockIndexes.glom().collect() )
+			Assert.assertTrue( partition.size() == 22 || partition.size() == 23 );
+
+		// all blocks are included once, in the order of the curve
+		final List< Long > actual = blockIndexes.collect();
+		final List< Long > expected = new ArrayList<>();
+		for ( long i = 0; i < Intervals.numElements( gridDimensions ); ++i )
+			expected.add( i );
+		final List< Long > sortedActual = new ArrayList<>( actual );
+		Collections.sort( sortedActual );
+		Assert.assertEquals( expected, sortedActual );
+
+		final long[] gridPosition = new long[ gridDimensions.length ];
+		long previousCode = -1;
+		for ( final long blockIndex : actual )
+		{
+			IntervalIndexer.indexToPosition( blockIndex, gridDimensions, gridPosition );
+			final long code = curve.encode( gridPosition );
+			Assert.assertTrue( code > previousCode );
+			previousCode = code;
+		}
+
+		// same for sorting an arbitrary subset
+		final List< Long > subset = new ArrayList<>();
+		for ( long i = Intervals.numElements( gridDimensions ) - 1; i >= 0; i -= 3 )
+			subset.add( i );
+		final List< Long > sortedSubset = ZOrderCurve.sortBlockIndexes( sparkContext.parallelize( subset, 3 ), gridDimensions ).collect();
+		Assert.assertEquals( subset.size(), sortedSubset.size() );
+		previousCode = -1;
+		for ( final long blockIndex : sortedSubset )
+		{
+			IntervalIndexer.indexToPosition( blockIndex, gridDimensions, gridPosition );
+			final long code = curve.encode( gridPosition );
+			Assert.assertTrue( code > previousCode );
+			previousCode = code;
+		}
+	}
+}